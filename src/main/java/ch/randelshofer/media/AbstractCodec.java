@@ -39,5 +39,10 @@ public abstract class AbstractCodec implements Codec {
         return quality;
     }
 
+    /** Does nothing. Codecs which hold native resources override this method. */
+    @Override
+    public void close() {
+    }
+
 
 }
@@ -8,6 +8,8 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.*;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
 
 /**
  * {@code AbstractVideoCodec}.
@@ -18,6 +20,52 @@ import java.io.IOException;
 public abstract class AbstractVideoCodec extends AbstractCodec {
 
     private BufferedImage imgConverter;
+    /** The converter image which holds the previous frame, or null. */
+    private BufferedImage spareImgConverter;
+    /** The data of the previous frame, if it has been relinquished to this codec. */
+    private Object previousData;
+    private int[] damageSpans;
+    /** Whether delta frames are promoted to key frames on a scene change. */
+    private boolean sceneChangeDetection = true;
+    /** The length of the most recent key frame, or -1 if there is none. */
+    private long keyFrameLength = -1;
+
+    /**
+     * Sets whether a delta frame is encoded as a key frame instead, when most
+     * of the frame has changed, for example on a page navigation. The key
+     * frame is usually not larger than the delta frame would be, and a player
+     * can seek to it without decoding the preceding frames.
+     * <p>
+     * The default value is true.
+     */
+    public void setSceneChangeDetection(boolean newValue) {
+        sceneChangeDetection = newValue;
+    }
+
+    public boolean isSceneChangeDetection() {
+        return sceneChangeDetection;
+    }
+
+    /**
+     * Returns true if an encoded delta frame should be encoded as a key frame
+     * instead, because it is larger than the most recent key frame.
+     */
+    protected boolean isSceneChange(long deltaLength) {
+        return sceneChangeDetection && keyFrameLength >= 0 && deltaLength > keyFrameLength;
+    }
+
+    /**
+     * Returns true if a delta frame should be encoded as a key frame instead,
+     * because more than half of its pixels have changed.
+     */
+    protected boolean isSceneChange(long changedPixels, long pixelCount) {
+        return sceneChangeDetection && changedPixels * 2 > pixelCount;
+    }
+
+    /** Records the length of an encoded key frame for {@link #isSceneChange(long)}. */
+    protected void keyFrameEncoded(long length) {
+        keyFrameLength = length;
+    }
 
     /** Gets 8-bit indexed pixels from a buffer. Returns null if conversion failed. */
     protected byte[] getIndexed8(Buffer buf) {
@@ -35,7 +83,7 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
 
     /** Gets 16-bit RGB pixels from a buffer. Returns null if conversion failed. */
     protected short[] getRGB15(Buffer buf) {
-        if (buf.data instanceof int[]) {
+        if (buf.data instanceof short[]) {
             return (short[]) buf.data;
         }
         if (buf.data instanceof BufferedImage) {
@@ -56,10 +104,11 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
                 int height = ((VideoFormat) outputFormat).getHeight();
                 imgConverter = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
             }
+            // Java2D converts INT_RGB images with a native loop
             Graphics2D g = imgConverter.createGraphics();
             g.drawImage(image, 0, 0, null);
             g.dispose();
-            return ((DataBufferShort) imgConverter.getRaster().getDataBuffer()).getData();
+            return ((DataBufferUShort) imgConverter.getRaster().getDataBuffer()).getData();
         }
         return null;
     }
@@ -105,6 +154,71 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
         return null;
     }
 
+    /**
+     * Keeps the pixels of a frame as the pixels of the previous frame.
+     * <p>
+     * The pixels are only copied if this codec does not own them. The codec
+     * owns pixels which it has converted, and pixels of a buffer with
+     * {@link Buffer#FLAG_RELINQUISH}. In the latter case, the data which has
+     * been kept from an earlier buffer is handed back to the sender in
+     * {@code in.data}, also if the pixels of this frame have been converted.
+     *
+     * @param in The buffer holding the frame.
+     * @param pixels The pixels of the frame, as returned by one of the
+     * {@code get...} methods of this class.
+     * @param previousPixels The pixels of the previous frame, or null.
+     * @return The pixels of the previous frame for encoding the next frame.
+     */
+    protected Object keepPreviousPixels(Buffer in, Object pixels, Object previousPixels) {
+        if (isBackedBy(in.data, pixels)) {
+            if ((in.flags & Buffer.FLAG_RELINQUISH) != 0) {
+                Object released = previousData;
+                previousData = in.data;
+                in.data = released;
+                return pixels;
+            }
+            int length = Array.getLength(pixels);
+            if (previousPixels == null || previousPixels == pixels
+                    || previousPixels.getClass() != pixels.getClass() || Array.getLength(previousPixels) != length) {
+                previousPixels = Array.newInstance(pixels.getClass().getComponentType(), length);
+            }
+            System.arraycopy(pixels, 0, previousPixels, 0, length);
+            return previousPixels;
+        }
+        if (imgConverter != null && isBackedBy(imgConverter, pixels)) {
+            // Convert the next frame into the other image
+            BufferedImage swap = imgConverter;
+            imgConverter = spareImgConverter;
+            spareImgConverter = swap;
+        }
+        if ((in.flags & Buffer.FLAG_RELINQUISH) != 0 && previousData != null) {
+            // The kept data is no longer needed: hand it back to the sender
+            in.data = previousData;
+        }
+        previousData = null;
+        return pixels;
+    }
+
+    /** Returns true if the pixels are the data of a buffer, or of the image in it. */
+    private static boolean isBackedBy(Object data, Object pixels) {
+        if (data == pixels) {
+            return true;
+        }
+        if (data instanceof BufferedImage) {
+            DataBuffer db = ((BufferedImage) data).getRaster().getDataBuffer();
+            if (db instanceof DataBufferByte) {
+                return ((DataBufferByte) db).getData() == pixels;
+            } else if (db instanceof DataBufferUShort) {
+                return ((DataBufferUShort) db).getData() == pixels;
+            } else if (db instanceof DataBufferShort) {
+                return ((DataBufferShort) db).getData() == pixels;
+            } else if (db instanceof DataBufferInt) {
+                return ((DataBufferInt) db).getData() == pixels;
+            }
+        }
+        return false;
+    }
+
     /** Gets a buffered image from a buffer. Returns null if conversion failed. */
     protected BufferedImage getBufferedImage(Buffer buf) {
         if (buf.data instanceof BufferedImage) {
@@ -113,6 +227,46 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
         return null;
     }
 
+    /** Gets the damaged span of each scanline of a buffer.
+     * <p>
+     * The span of scanline {@code y} starts at {@code spans[y * 2]} and ends
+     * before {@code spans[y * 2 + 1]}. Both values are equal if the scanline
+     * is not damaged. Pixels outside of the spans are the same as in the
+     * previous frame.
+     * <p>
+     * Returns null if the buffer does not have damage regions, that is,
+     * if all pixels may have changed.
+     */
+    protected int[] getDamageSpans(Buffer buf, int width, int height) {
+        if (buf.damage == null) {
+            return null;
+        }
+        if (damageSpans == null || damageSpans.length != height * 2) {
+            damageSpans = new int[height * 2];
+        } else {
+            Arrays.fill(damageSpans, 0);
+        }
+        int[] spans = damageSpans;
+        for (Rectangle r : buf.damage) {
+            int x0 = Math.max(0, r.x);
+            int x1 = Math.min(width, r.x + r.width);
+            int y1 = Math.min(height, r.y + r.height);
+            if (x0 >= x1) {
+                continue;
+            }
+            for (int y = Math.max(0, r.y); y < y1; y++) {
+                if (spans[y * 2] == spans[y * 2 + 1]) {
+                    spans[y * 2] = x0;
+                    spans[y * 2 + 1] = x1;
+                } else {
+                    spans[y * 2] = Math.min(spans[y * 2], x0);
+                    spans[y * 2 + 1] = Math.max(spans[y * 2 + 1], x1);
+                }
+            }
+        }
+        return spans;
+    }
+
     private byte[] byteBuf=new byte[4];
     protected void writeInt24(ImageOutputStream out,int v) throws IOException {
         byteBuf[0] = (byte) (v >>> 16);
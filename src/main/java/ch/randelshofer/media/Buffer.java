@@ -4,6 +4,8 @@
  */
 package ch.randelshofer.media;
 
+import java.awt.Rectangle;
+
 /**
  * A {@code Buffer} carries media data from one media processing unit to another.
  *
@@ -16,6 +18,18 @@ public class Buffer {
     public final static int FLAG_DISCARD = 1 << 1;
     /** Indicates that this Buffer starts with a key frame. */
     public final static int FLAG_KEY_FRAME = 1 << 4;
+    /** Indicates that the sender relinquishes the data of this buffer.
+     * <p>
+     * Without this flag, a receiver may only use the data while it processes
+     * the buffer. With this flag, the receiver may keep the data, and the
+     * sender must not change it anymore. In exchange, the receiver stores
+     * the data which it no longer needs in {@code data}: the data which it
+     * has kept from an earlier buffer, or null. If the receiver neither keeps
+     * the data nor has kept data from an earlier buffer, {@code data} is
+     * unchanged. Either way, the sender may reuse the data which it finds in
+     * {@code data} after processing.
+     */
+    public final static int FLAG_RELINQUISH = 1 << 5;
     /** A flag mask that describes the boolean attributes for this buffer. */
     public int flags;
     /** The media data. */
@@ -34,4 +48,11 @@ public class Buffer {
     public long timeScale;
     /** The number of samples in the data field. */
     public int sampleCount = 1;
+    /** Header information of the data, for example the color palette of an
+     * encoded video frame, or null. */
+    public Object header;
+    /** Regions of a video frame which have changed since the previous frame,
+     * or null if any region may have changed. Codecs may use this to skip
+     * the unchanged regions in delta frames. */
+    public Rectangle[] damage;
 }
@@ -36,4 +36,9 @@ public interface Codec {
 
     /** Returns the processing quality. */
     public float getQuality();
+
+    /** Releases the resources of the codec, for example native deflaters.
+     * The codec can not be used afterwards.
+     */
+    public void close();
 }
@@ -40,6 +40,53 @@ public interface MovieWriter {
      */
     public void writeFrame(int track, BufferedImage image, long duration) throws IOException;
 
+    /**
+     * Encodes an image as a video frame with the built-in encoder of a video
+     * track, but does not write it into the track.
+     * <p>
+     * This allows to encode frames on a different thread than the one which
+     * writes them. The encoded frames must be written with
+     * {@link #writeSample(int, Buffer)} in the order in which they have been
+     * encoded. This method may be invoked concurrently with
+     * {@code writeSample}, but not concurrently with itself.
+     *
+     * @param track The track index.
+     * @param in A buffer holding the image of the video frame in its data field.
+     * The duration field holds the duration of the video frame in media time
+     * scale units. If the flags include {@link Buffer#FLAG_RELINQUISH}, the
+     * encoder may keep the image, and hands back an image which it no longer
+     * needs, or null, in the data field.
+     * @param out A buffer which receives the encoded video frame. If the data
+     * field holds a byte array, the encoder may reuse it.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IllegalArgumentException if the dimension of the frame
+     * does not match the dimension of the video.
+     * @throws UnsupportedOperationException if the {@code MovieWriter} does not have
+     * a built-in encoder for this video format.
+     * @throws IOException if encoding the frame failed.
+     */
+    public void encodeFrame(int track, Buffer in, Buffer out) throws IOException;
+
+    /**
+     * Writes a video frame which has been encoded with
+     * {@link #encodeFrame} into a video track.
+     * <p>
+     * The duration of the frame may be changed between encoding and writing,
+     * for example when the duration is not known before the next frame has
+     * been captured. If the writer does not support variable frame rates,
+     * it repeats the frame for as many frame periods as its duration
+     * covers.
+     *
+     * @param track The track index.
+     * @param buf The buffer holding the encoded video frame. The duration
+     * field holds the duration of the frame in {@code timeScale} units.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IOException if writing the sample data failed.
+     */
+    public void writeSample(int track, Buffer buf) throws IOException;
+
     /**
      * Writes an already encoded sample from a byte array into a track.
      * <p>
@@ -93,4 +140,9 @@ public interface MovieWriter {
      * which will overflow if more samples are added to the movie.
      */
     public boolean isDataLimitReached();
+
+    /** Returns true if the limit for media data will soon be reached.
+     * This allows to prepare the next movie file ahead of time.
+     */
+    public boolean isDataLimitNear();
 }
@@ -0,0 +1,129 @@
+/*
+ * @(#)Scanlines.java
+ */
+package ch.randelshofer.media;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * {@code Scanlines} compares the pixels of a scanline with the pixels of the
+ * previous frame. The delta encoders use it to find runs of unchanged pixels.
+ * <p>
+ * Long runs are compared with {@code Arrays.mismatch}, if the JVM provides
+ * it (Java 9 and later). It compares many pixels at a time with vector
+ * instructions. Otherwise, and for short runs, the pixels are compared in an
+ * unrolled loop.
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-12 Created.
+ */
+public final class Scanlines {
+
+    /** Runs shorter than this are compared in a loop. */
+    private final static int MIN_MISMATCH_LENGTH = 16;
+    private final static MethodHandle BYTE_MISMATCH = findMismatch(byte[].class);
+    private final static MethodHandle SHORT_MISMATCH = findMismatch(short[].class);
+    private final static MethodHandle INT_MISMATCH = findMismatch(int[].class);
+
+    private Scanlines() {
+    }
+
+    /** Returns the {@code Arrays.mismatch} method for ranges of arrays, or null. */
+    private static MethodHandle findMismatch(Class<?> arrayClass) {
+        try {
+            return MethodHandles.publicLookup().findStatic(Arrays.class, "mismatch",
+                    MethodType.methodType(int.class, arrayClass, int.class, int.class, arrayClass, int.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the first pixel in which two arrays differ.
+     *
+     * @param data The pixels of the current frame.
+     * @param prev The pixels of the previous frame.
+     * @param from The index of the first pixel to compare.
+     * @param to The index after the last pixel to compare.
+     * @return The index of the first differing pixel, or {@code to} if all
+     * pixels are equal.
+     */
+    public static int firstMismatch(byte[] data, byte[] prev, int from, int to) {
+        if (BYTE_MISMATCH != null && to - from >= MIN_MISMATCH_LENGTH) {
+            try {
+                int i = (int) BYTE_MISMATCH.invokeExact(data, from, to, prev, from, to);
+                return (i == -1) ? to : from + i;
+            } catch (Throwable t) {
+                throw new InternalError(t);
+            }
+        }
+        int xy = from;
+        for (int end = to - 3; xy < end; xy += 4) {
+            if (data[xy] != prev[xy] || data[xy + 1] != prev[xy + 1]
+                    || data[xy + 2] != prev[xy + 2] || data[xy + 3] != prev[xy + 3]) {
+                break;
+            }
+        }
+        while (xy < to && data[xy] == prev[xy]) {
+            xy++;
+        }
+        return xy;
+    }
+
+    /**
+     * Returns the index of the first pixel in which two arrays differ.
+     *
+     * @see #firstMismatch(byte[], byte[], int, int)
+     */
+    public static int firstMismatch(short[] data, short[] prev, int from, int to) {
+        if (SHORT_MISMATCH != null && to - from >= MIN_MISMATCH_LENGTH) {
+            try {
+                int i = (int) SHORT_MISMATCH.invokeExact(data, from, to, prev, from, to);
+                return (i == -1) ? to : from + i;
+            } catch (Throwable t) {
+                throw new InternalError(t);
+            }
+        }
+        int xy = from;
+        for (int end = to - 3; xy < end; xy += 4) {
+            if (data[xy] != prev[xy] || data[xy + 1] != prev[xy + 1]
+                    || data[xy + 2] != prev[xy + 2] || data[xy + 3] != prev[xy + 3]) {
+                break;
+            }
+        }
+        while (xy < to && data[xy] == prev[xy]) {
+            xy++;
+        }
+        return xy;
+    }
+
+    /**
+     * Returns the index of the first pixel in which two arrays differ.
+     *
+     * @see #firstMismatch(byte[], byte[], int, int)
+     */
+    public static int firstMismatch(int[] data, int[] prev, int from, int to) {
+        if (INT_MISMATCH != null && to - from >= MIN_MISMATCH_LENGTH) {
+            try {
+                int i = (int) INT_MISMATCH.invokeExact(data, from, to, prev, from, to);
+                return (i == -1) ? to : from + i;
+            } catch (Throwable t) {
+                throw new InternalError(t);
+            }
+        }
+        int xy = from;
+        for (int end = to - 3; xy < end; xy += 4) {
+            if (data[xy] != prev[xy] || data[xy + 1] != prev[xy + 1]
+                    || data[xy + 2] != prev[xy + 2] || data[xy + 3] != prev[xy + 3]) {
+                break;
+            }
+        }
+        while (xy < to && data[xy] == prev[xy]) {
+            xy++;
+        }
+        return xy;
+    }
+}
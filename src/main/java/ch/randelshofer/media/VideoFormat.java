@@ -55,6 +55,8 @@ public class VideoFormat extends Format {
     public static final String AVI_MJPG = "MJPG";
     /** PNG format. */
     public static final String AVI_PNG = "png ";
+    /** Zip Motion Blocks Video format. */
+    public static final String AVI_ZMBV = "ZMBV";
 
 
   public VideoFormat(String encoding, Class dataClass, int width, int height, int depth) {
@@ -11,19 +11,25 @@
 package ch.randelshofer.media.avi;
 
 import ch.randelshofer.media.Buffer;
+import ch.randelshofer.media.Codec;
 import ch.randelshofer.media.MovieWriter;
 import ch.randelshofer.media.VideoFormat;
+import ch.randelshofer.media.io.FileChannelImageOutputStream;
 import ch.randelshofer.media.jpeg.JPEGCodec;
 import ch.randelshofer.media.png.PNGCodec;
 
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.max;
 
@@ -33,7 +39,7 @@ import static java.lang.Math.max;
  * The images are written as video frames.
  * <p>
  * For convenience, this class has built-in encoders for video frames in the following
- * formats: "JPEG", "PNG", "RAW", "RLE" and "tscc".
+ * formats: "JPEG", "PNG", "RAW", "RLE", "tscc" and "ZMBV".
  * Media data in other formats, including all audio data, must be encoded before
  * it can be written with {@code AVIWriter}.
  * Alternatively, you can plug in your own codec.
@@ -49,6 +55,14 @@ import static java.lang.Math.max;
  * This class supports lengths of up to 4 GB, but such files may not work on
  * all players.
  * <p>
+ * In OpenDML mode, the movie is written as an AVI 2.0 file. The media data is
+ * split into RIFF chunks of about 1 GB, each of them holding a standard index
+ * of its samples, and each track has a super index of the standard indexes.
+ * The first RIFF chunk also holds an AVI 1.0 index of its samples, so that
+ * players which do not support OpenDML can play the beginning of the movie.
+ * The standard indexes are written while the movie is being written, and
+ * the file size is only limited by the size of the super index.
+ * <p>
  * For detailed information about the AVI RIFF file format see:<br>
  * <a href="http://msdn.microsoft.com/en-us/library/ms779636.aspx">msdn.microsoft.com AVI RIFF</a><br>
  * <a href="http://www.microsoft.com/whdc/archive/fourcc.mspx">www.microsoft.com FOURCC for Video Compression</a><br>
@@ -63,6 +77,7 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
     public final static VideoFormat VIDEO_JPEG = new VideoFormat(VideoFormat.AVI_MJPG);
     public final static VideoFormat VIDEO_PNG = new VideoFormat(VideoFormat.QT_PNG);
     public final static VideoFormat VIDEO_SCREEN_CAPTURE = new VideoFormat(VideoFormat.AVI_TECHSMITH_SCREEN_CAPTURE);
+    public final static VideoFormat VIDEO_ZMBV = new VideoFormat(VideoFormat.AVI_ZMBV);
 
     /**
      * The states of the movie output stream.
@@ -76,7 +91,8 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      */
     private States state = States.FINISHED;
     /**
-     * This chunk holds the whole AVI content.
+     * This chunk holds the whole AVI content. In an OpenDML file, this is
+     * the RIFF chunk which is currently being written.
      */
     private CompositeChunk aviChunk;
     /**
@@ -87,6 +103,36 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      * This chunk holds the AVI Main Header.
      */
     FixedSizeDataChunk avihChunk;
+    /**
+     * This chunk holds the OpenDML extended AVI header.
+     */
+    FixedSizeDataChunk dmlhChunk;
+    /**
+     * Whether the movie is written as an OpenDML (AVI 2.0) file.
+     */
+    private boolean isOpenDML;
+    /**
+     * The number of RIFF chunks which have been started, and the number of
+     * frames in the first RIFF chunk.
+     */
+    private int riffCount;
+    private long firstRiffFrameCount;
+    /**
+     * The size at which an OpenDML file starts a new RIFF chunk.
+     */
+    private final static long RIFF_SIZE_LIMIT = 1L << 30;
+    /**
+     * The number of samples of a track at which an OpenDML file starts a new
+     * RIFF chunk. This limits the number of index entries held in memory.
+     */
+    private final static int MAX_RIFF_SAMPLE_COUNT = 1 << 18;
+    /**
+     * The number of entries in the super index of a track, and thus the
+     * maximal number of RIFF chunks in an OpenDML file.
+     */
+    private final static int SUPER_INDEX_ENTRY_COUNT = 256;
+    private final static int AVI_INDEX_OF_INDEXES = 0x00;
+    private final static int AVI_INDEX_OF_CHUNKS = 0x01;
 
     /**
      * Creates a new AVI writer.
@@ -94,10 +140,23 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      * @param file the output file
      */
     public AVIWriter(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Creates a new AVI writer.
+     *
+     * @param file the output file
+     * @param asynchronous Whether the file is written by a background
+     * thread. Writing a sample then only copies it into a buffer, and does
+     * not wait for the disk unless all buffers are being written.
+     */
+    public AVIWriter(File file, boolean asynchronous) throws IOException {
         if (file.exists()) {
             file.delete();
         }
-        this.out = new FileImageOutputStream(file);
+        this.out = new FileChannelImageOutputStream(file, FileChannelImageOutputStream.DEFAULT_BUFFER_SIZE,
+                asynchronous ? FileChannelImageOutputStream.DEFAULT_ASYNCHRONOUS_BUFFER_COUNT : 1);
         this.streamOffset = 0;
     }
 
@@ -196,7 +255,6 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
         vt.syncInterval = syncInterval;
         vt.rcFrame = new Rectangle(0, 0, width, height);
 
-        vt.samples = new LinkedList<Sample>();
 
         if (vt.videoFormat.getDepth() == 4) {
             byte[] gray = new byte[16];
@@ -211,12 +269,29 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
             }
             vt.palette = new IndexColorModel(8, 256, gray, gray, gray);
         }
-        createCodec(vt);
+        vt.codec = createCodec(vt);
 
         tracks.add(vt);
         return tracks.size() - 1;
     }
 
+    /**
+     * Sets whether the movie is written as an OpenDML (AVI 2.0) file.
+     * <p>
+     * This method must be called before the first frame is written.
+     * The default value is false.
+     */
+    public void setOpenDML(boolean newValue) {
+        if (state == States.STARTED) {
+            throw new IllegalStateException("The movie has already been started");
+        }
+        isOpenDML = newValue;
+    }
+
+    public boolean isOpenDML() {
+        return isOpenDML;
+    }
+
     /** Sets the global color palette. */
     public void setPalette(int track, IndexColorModel palette) {
         ((VideoTrack) tracks.get(track)).palette = palette;
@@ -245,6 +320,140 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
         }
     }
 
+    /**
+     * Sets the number of horizontal bands into which the codec of the video
+     * track splits a frame, and which it encodes in parallel.
+     * <p>
+     * This value has only effect on videos encoded with the TechSmith Screen
+     * Capture format.
+     * <p>
+     * The default value is 1.
+     *
+     * @param newValue
+     */
+    public void setBandCount(int track, int newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        vt.bandCount = newValue;
+        if (vt.codec instanceof TechSmithCodec) {
+            ((TechSmithCodec) vt.codec).setBandCount(newValue);
+        }
+    }
+
+    /**
+     * Sets the deflate compression level of the video track, from
+     * {@code Deflater.BEST_SPEED} to {@code Deflater.BEST_COMPRESSION}.
+     * <p>
+     * This value has only effect on videos encoded with the TechSmith Screen
+     * Capture or the ZMBV format.
+     * <p>
+     * The default value is {@code Deflater.DEFAULT_COMPRESSION}.
+     *
+     * @param newValue
+     */
+    public void setCompressionLevel(int track, int newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        vt.compressionLevel = newValue;
+        if (vt.codec instanceof TechSmithCodec) {
+            ((TechSmithCodec) vt.codec).setCompressionLevel(newValue);
+        } else if (vt.codec instanceof ZMBVCodec) {
+            ((ZMBVCodec) vt.codec).setCompressionLevel(newValue);
+        }
+    }
+
+    /**
+     * Sets the maximal distance in pixels of the motion vectors which the
+     * codec of the video track searches.
+     * <p>
+     * This value has only effect on videos encoded with the ZMBV format.
+     * <p>
+     * The default value is 63.
+     *
+     * @param newValue
+     */
+    public void setSearchRange(int track, int newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        vt.searchRange = newValue;
+        if (vt.codec instanceof ZMBVCodec) {
+            ((ZMBVCodec) vt.codec).setSearchRange(newValue);
+        }
+    }
+
+    /**
+     * Sets the deflate compression strategy of the video track:
+     * {@code Deflater.DEFAULT_STRATEGY}, {@code Deflater.FILTERED} or
+     * {@code Deflater.HUFFMAN_ONLY}.
+     * <p>
+     * This value has only effect on videos encoded with the TechSmith Screen
+     * Capture format.
+     *
+     * @param newValue
+     */
+    public void setCompressionStrategy(int track, int newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        vt.compressionStrategy = newValue;
+        if (vt.codec instanceof TechSmithCodec) {
+            ((TechSmithCodec) vt.codec).setCompressionStrategy(newValue);
+        }
+    }
+
+    /**
+     * Sets whether the deflate compression level of the video track is
+     * adapted to the time it takes to encode a frame, so that the encoding
+     * keeps up with the frame rate.
+     * <p>
+     * This value has only effect on videos encoded with the TechSmith Screen
+     * Capture format.
+     * <p>
+     * The default value is false.
+     *
+     * @param newValue
+     */
+    public void setAdaptiveCompression(int track, boolean newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        vt.adaptiveCompression = newValue;
+        if (vt.codec instanceof TechSmithCodec) {
+            ((TechSmithCodec) vt.codec).setEncodeTimeBudget(getEncodeTimeBudget(vt));
+        }
+    }
+
+    /** Returns the frame period of the track in nanoseconds, if adaptive compression is on. */
+    private long getEncodeTimeBudget(VideoTrack vt) {
+        return vt.adaptiveCompression ? 1000000000L * vt.timeScale / vt.frameRate : 0;
+    }
+
+    /**
+     * Sets the number of frames of the video track which are encoded in
+     * parallel by {@link #writeFrame(int, BufferedImage, long)}.
+     * <p>
+     * Each frame is copied and encoded on a worker thread. The encoded frames
+     * are written in the order in which they have been passed to
+     * {@code writeFrame}, as soon as all preceding frames have been written.
+     * <p>
+     * This value has only effect on videos encoded with the JPEG or PNG
+     * format, because their frames do not depend on each other. It must be
+     * set before the first frame is written.
+     * <p>
+     * The default value is 1.
+     *
+     * @param newValue
+     */
+    public void setEncodeThreadCount(int track, int newValue) {
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        if (vt.encodeExecutor != null) {
+            throw new IllegalStateException("The encode thread count must be set before the first frame is written.");
+        }
+        vt.encodeThreadCount = max(1, newValue);
+    }
+
+    public int getEncodeThreadCount(int track) {
+        return ((VideoTrack) tracks.get(track)).encodeThreadCount;
+    }
+
+    /** Returns true if the frames of the track are encoded in parallel. */
+    private boolean isEncodedInParallel(VideoTrack vt) {
+        return vt.encodeThreadCount > 1 && (vt.codec instanceof JPEGCodec || vt.codec instanceof PNGCodec);
+    }
+
     /**
      * Returns the video compression quality.
      *
@@ -318,200 +527,313 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
     public void writeFrame(int track, BufferedImage image, long duration) throws IOException {
         ensureStarted();
 
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        if (isEncodedInParallel(vt)) {
+            submitFrame(track, vt, image);
+            return;
+        }
+        if (vt.outputBuffer == null) {
+            vt.outputBuffer = new Buffer();
+        }
+        Buffer inputBuffer = new Buffer();
+        inputBuffer.data = image;
+        inputBuffer.duration = duration;
+        encodeFrame(track, inputBuffer, vt.outputBuffer);
+        if (vt.outputBuffer.flags == Buffer.FLAG_DISCARD) {
+            return;
+        }
+        writeSample(track, vt.outputBuffer);
+    }
+
+    /**
+     * Copies an image and submits it to the encode workers of the video
+     * track. Before that, writes the oldest frames which are being encoded,
+     * until there is room for the new frame.
+     */
+    private void submitFrame(int track, final VideoTrack vt, BufferedImage image) throws IOException {
+        checkDimension(vt, image);
+        if (vt.encodeExecutor == null) {
+            vt.encodeExecutor = Executors.newFixedThreadPool(vt.encodeThreadCount, r -> {
+                Thread t = new Thread(r, "AVIWriter-encoder");
+                t.setDaemon(true);
+                return t;
+            });
+            vt.encodeCodecs = Collections.synchronizedList(new ArrayList<Codec>());
+            vt.encodeCodec = ThreadLocal.withInitial(() -> {
+                Codec codec = createCodec(vt);
+                vt.encodeCodecs.add(codec);
+                return codec;
+            });
+            vt.encodingFrames = new ArrayDeque<>();
+        }
+        while (vt.encodingFrames.size() >= 2 * vt.encodeThreadCount) {
+            writeEncodedFrame(track, vt);
+        }
+
+        // The caller may reuse the image as soon as this method returns
+        final BufferedImage copy = new BufferedImage(image.getColorModel(), image.copyData(null),
+                image.isAlphaPremultiplied(), null);
+        final float quality = vt.videoQuality;
+        vt.encodingFrames.add(vt.encodeExecutor.submit(() -> {
+            Codec codec = vt.encodeCodec.get();
+            codec.setQuality(quality);
+            Buffer in = new Buffer();
+            in.flags = Buffer.FLAG_KEY_FRAME;
+            in.data = copy;
+            Buffer out = new Buffer();
+            codec.process(in, out);
+            out.duration = vt.timeScale;
+            out.timeScale = vt.frameRate;
+            out.header = (vt.videoFormat.getDepth() <= 8) ? copy.getColorModel() : null;
+            return out;
+        }));
+    }
+
+    /** Waits until the oldest frame which is being encoded is done, and writes it. */
+    private void writeEncodedFrame(int track, VideoTrack vt) throws IOException {
+        Buffer buf;
+        try {
+            buf = vt.encodingFrames.remove().get();
+        } catch (InterruptedException ex) {
+            InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for an encoded frame.");
+            iioe.initCause(ex);
+            throw iioe;
+        } catch (ExecutionException ex) {
+            throw new IOException("Encoding of frame failed.", ex.getCause());
+        }
+        if (buf.flags == Buffer.FLAG_DISCARD) {
+            return;
+        }
+        vt.encodedFrameCount++;
+        writeSample(track, buf);
+    }
+
+    /** Writes all frames which are being encoded. */
+    private void writeEncodedFrames() throws IOException {
+        for (int track = 0; track < tracks.size(); track++) {
+            if (tracks.get(track) instanceof VideoTrack) {
+                VideoTrack vt = (VideoTrack) tracks.get(track);
+                while (vt.encodingFrames != null && !vt.encodingFrames.isEmpty()) {
+                    writeEncodedFrame(track, vt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes an image as a video frame, but does not write it into the
+     * video track.
+     * <p>
+     * The encoded frame can be written with {@link #writeSample(int, Buffer)}.
+     * Frames must be written in the order in which they have been encoded.
+     * This method may be invoked concurrently with {@code writeSample} from
+     * a different thread.
+     *
+     * @param track The track index.
+     * @param in A buffer holding the image of the video frame.
+     * @param out A buffer which receives the encoded frame.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IllegalArgumentException if the dimension of the frame does not
+     * match the dimension of the video.
+     * @throws UnsupportedOperationException if the {@code MovieWriter} does not have
+     * a built-in encoder for this video format.
+     */
+    @Override
+    public void encodeFrame(int track, Buffer in, Buffer out) throws IOException {
         VideoTrack vt = (VideoTrack) tracks.get(track);
         if (vt.codec == null) {
             throw new UnsupportedOperationException("No codec for this video format.");
         }
 
-        // The dimension of the image must match the dimension of the video track
+        BufferedImage image = (BufferedImage) in.data;
+        VideoFormat fmt = vt.videoFormat;
+        checkDimension(vt, image);
+
+        // The sync interval is the maximal distance from one key frame to the
+        // next. Key frames which are forced by the caller or promoted by the
+        // codec restart the interval.
+        boolean isSync = vt.syncInterval == 0 ? false
+                : vt.encodedFrameCount == 0 || vt.deltaFrameCount >= vt.syncInterval - 1;
+
+        if (vt.inputBuffer == null) {
+            vt.inputBuffer = new Buffer();
+        }
+        Buffer inputBuffer = vt.inputBuffer;
+        inputBuffer.flags = in.flags | ((isSync) ? Buffer.FLAG_KEY_FRAME : 0);
+        inputBuffer.data = image;
+        inputBuffer.damage = in.damage;
+        vt.codec.process(inputBuffer, out);
+        if ((in.flags & Buffer.FLAG_RELINQUISH) != 0) {
+            in.data = inputBuffer.data;
+        }
+        inputBuffer.data = null;
+        inputBuffer.damage = null;
+        if (out.flags == Buffer.FLAG_DISCARD) {
+            return;
+        }
+        vt.encodedFrameCount++;
+        vt.deltaFrameCount = (out.flags & Buffer.FLAG_KEY_FRAME) != 0 ? 0 : vt.deltaFrameCount + 1;
+        out.duration = vt.timeScale;
+        out.timeScale = vt.frameRate;
+        out.header = (fmt.getDepth() <= 8) ? image.getColorModel() : null;
+    }
+
+    /** The dimension of the image must match the dimension of the video track. */
+    private void checkDimension(VideoTrack vt, BufferedImage image) {
         VideoFormat fmt = vt.videoFormat;
         if (fmt.getWidth() != image.getWidth() || fmt.getHeight() != image.getHeight()) {
-            throw new IllegalArgumentException("Dimensions of image[" + vt.samples.size()
+            throw new IllegalArgumentException("Dimensions of image[" + vt.encodedFrameCount
                     + "] (width=" + image.getWidth() + ", height=" + image.getHeight()
                     + ") differs from image[0] (width="
                     + fmt.getWidth() + ", height=" + fmt.getHeight());
         }
+    }
 
-        // Encode palette data
-        {
-            DataChunk videoFrameChunk;
-            long offset = getRelativeStreamPosition();
-            switch (fmt.getDepth()) {
-                case 4: {
-                    IndexColorModel imgPalette = (IndexColorModel) image.getColorModel();
-                    int[] imgRGBs = new int[16];
-                    imgPalette.getRGBs(imgRGBs);
-                    int[] previousRGBs = new int[16];
-                    if (vt.previousPalette == null) {
-                        vt.previousPalette = vt.palette;
-                    }
-                    vt.previousPalette.getRGBs(previousRGBs);
-                    if (!Arrays.equals(imgRGBs, previousRGBs)) {
-                        vt.previousPalette = imgPalette;
-                        DataChunk paletteChangeChunk = new DataChunk(vt.twoCC + "pc");
-                        /*
-                        int first = imgPalette.getMapSize();
-                        int last = -1;
-                        for (int i = 0; i < 16; i++) {
-                        if (previousRGBs[i] != imgRGBs[i] && i < first) {
-                        first = i;
-                        }
-                        if (previousRGBs[i] != imgRGBs[i] && i > last) {
-                        last = i;
-                        }
-                        }*/
-                        int first = 0;
-                        int last = imgPalette.getMapSize() - 1;
-                        /*
-                         * typedef struct {
-                        BYTE         bFirstEntry;
-                        BYTE         bNumEntries;
-                        WORD         wFlags;
-                        PALETTEENTRY peNew[];
-                        } AVIPALCHANGE;
-                         *
-                         * typedef struct tagPALETTEENTRY {
-                        BYTE peRed;
-                        BYTE peGreen;
-                        BYTE peBlue;
-                        BYTE peFlags;
-                        } PALETTEENTRY;
-                         */
-                        DataChunkOutputStream pOut = paletteChangeChunk.getOutputStream();
-                        pOut.writeByte(first);//bFirstEntry
-                        pOut.writeByte(last - first + 1);//bNumEntries
-                        pOut.writeShort(0);//wFlags
-
-                        for (int i = first; i <= last; i++) {
-                            pOut.writeByte((imgRGBs[i] >>> 16) & 0xff); // red
-                            pOut.writeByte((imgRGBs[i] >>> 8) & 0xff); // green
-                            pOut.writeByte(imgRGBs[i] & 0xff); // blue
-                            pOut.writeByte(0); // reserved*/
-                        }
+    /**
+     * Writes an encoded video frame into a video track.
+     * <p>
+     * If the buffer header holds an {@code IndexColorModel} which differs
+     * from the current palette of the track, a palette change chunk is
+     * written before the frame.
+     * <p>
+     * All frames in an AVI file have the same duration. If the duration of
+     * the buffer covers more than one frame period, the frame is followed by
+     * empty chunks, which tell the player to repeat the previous frame.
+     *
+     * @param track The track index.
+     * @param buf A buffer holding the encoded video frame.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IOException if writing the sample data failed.
+     */
+    @Override
+    public void writeSample(int track, Buffer buf) throws IOException {
+        ensureStarted();
+        startNewRiffIfFull();
 
-                        moviChunk.add(paletteChangeChunk);
-                        paletteChangeChunk.finish();
-                        long length = getRelativeStreamPosition() - offset;
-                        vt.samples.add(new Sample(paletteChangeChunk.chunkType, 0, offset, length - 8, false));
-                        offset = getRelativeStreamPosition();
-                    }
-                    break;
-                }
-                case 8: {
-                    IndexColorModel imgPalette = (IndexColorModel) image.getColorModel();
-                    int[] imgRGBs = new int[256];
-                    imgPalette.getRGBs(imgRGBs);
-                    int[] previousRGBs = new int[256];
-                    if (vt.previousPalette == null) {
-                        vt.previousPalette = vt.palette;
-                    }
-                    vt.previousPalette.getRGBs(previousRGBs);
-                    if (!Arrays.equals(imgRGBs, previousRGBs)) {
-                        vt.previousPalette = imgPalette;
-                        DataChunk paletteChangeChunk = new DataChunk(vt.twoCC + "pc");
-                        /*
-                        int first = imgPalette.getMapSize();
-                        int last = -1;
-                        for (int i = 0; i < 16; i++) {
-                        if (previousRGBs[i] != imgRGBs[i] && i < first) {
-                        first = i;
-                        }
-                        if (previousRGBs[i] != imgRGBs[i] && i > last) {
-                        last = i;
-                        }
-                        }*/
-                        int first = 0;
-                        int last = imgPalette.getMapSize() - 1;
-                        /*
-                         * typedef struct {
-                        BYTE         bFirstEntry;
-                        BYTE         bNumEntries;
-                        WORD         wFlags;
-                        PALETTEENTRY peNew[];
-                        } AVIPALCHANGE;
-                         *
-                         * typedef struct tagPALETTEENTRY {
-                        BYTE peRed;
-                        BYTE peGreen;
-                        BYTE peBlue;
-                        BYTE peFlags;
-                        } PALETTEENTRY;
-                         */
-                        DataChunkOutputStream pOut = paletteChangeChunk.getOutputStream();
-                        pOut.writeByte(first);//bFirstEntry
-                        pOut.writeByte(last - first + 1);//bNumEntries
-                        pOut.writeShort(0);//wFlags
-
-                        for (int i = first; i <= last; i++) {
-                            pOut.writeByte((imgRGBs[i] >>> 16) & 0xff); // red
-                            pOut.writeByte((imgRGBs[i] >>> 8) & 0xff); // green
-                            pOut.writeByte(imgRGBs[i] & 0xff); // blue
-                            pOut.writeByte(0); // reserved*/
-                        }
+        VideoTrack vt = (VideoTrack) tracks.get(track);
 
-                        moviChunk.add(paletteChangeChunk);
-                        paletteChangeChunk.finish();
-                        long length = getRelativeStreamPosition() - offset;
-                        vt.samples.add(new Sample(paletteChangeChunk.chunkType, 0, offset, length - 8, false));
-                        offset = getRelativeStreamPosition();
-                    }
-                    break;
-                }
-            }
+        // Encode palette data
+        if (buf.header instanceof IndexColorModel) {
+            writePaletteChange(vt, (IndexColorModel) buf.header);
         }
 
-        // Encode pixel data
+        // Write pixel data
         {
-            if (vt.outputBuffer == null) {
-                vt.outputBuffer = new Buffer();
-            }
-
-            boolean isSync = vt.syncInterval == 0 ? false : vt.samples.size() % vt.syncInterval == 0;
-
-            Buffer inputBuffer = new Buffer();
-            inputBuffer.flags = (isSync) ? Buffer.FLAG_KEY_FRAME : 0;
-            inputBuffer.data = image;
-            vt.codec.process(inputBuffer, vt.outputBuffer);
-            if (vt.outputBuffer.flags == Buffer.FLAG_DISCARD) {
-                return;
-            }
-
-            isSync = (vt.outputBuffer.flags & Buffer.FLAG_KEY_FRAME) != 0;
+            boolean isSync = (buf.flags & Buffer.FLAG_KEY_FRAME) != 0;
 
             long offset = getRelativeStreamPosition();
 
             DataChunk videoFrameChunk = new DataChunk(
-                    isSync ? vt.twoCC + "db" : vt.twoCC + "dc");
+                    isSync ? vt.twoCC + "db" : vt.twoCC + "dc", buf.length);
             moviChunk.add(videoFrameChunk);
-            videoFrameChunk.getOutputStream().write((byte[]) vt.outputBuffer.data, vt.outputBuffer.offset, vt.outputBuffer.length);
+            videoFrameChunk.getOutputStream().write((byte[]) buf.data, buf.offset, buf.length);
             videoFrameChunk.finish();
-            long length = getRelativeStreamPosition() - offset;
 
-            vt.samples.add(new Sample(videoFrameChunk.chunkType, (int) vt.frameRate, offset, length - 8, isSync));
-            if (getRelativeStreamPosition() > 1L << 32) {
-                throw new IOException("AVI file is larger than 4 GB");
+            vt.addSample(videoFrameChunk.chunkType, (int) vt.frameRate, offset, videoFrameChunk.size() - 8, isSync);
+        }
+
+        // Write empty chunks for the remaining frame periods
+        if (buf.timeScale > 0) {
+            double periods = (double) buf.duration * vt.frameRate / ((double) buf.timeScale * vt.timeScale) + vt.durationError;
+            long count = max(1, Math.round(periods));
+            vt.durationError = periods - count;
+            for (long i = 1; i < count; i++) {
+                long offset = getRelativeStreamPosition();
+                DataChunk emptyChunk = new DataChunk(vt.twoCC + "dc", 0);
+                moviChunk.add(emptyChunk);
+                emptyChunk.finish();
+                vt.addSample(emptyChunk.chunkType, (int) vt.frameRate, offset, 0, false);
             }
         }
+        if (!isOpenDML && getRelativeStreamPosition() > 1L << 32) {
+            throw new IOException("AVI file is larger than 4 GB");
+        }
     }
 
-    private void createCodec(VideoTrack vt) {
+    /**
+     * Writes a palette change chunk, if the specified palette differs from the
+     * current palette of the video track.
+     */
+    private void writePaletteChange(VideoTrack vt, IndexColorModel imgPalette) throws IOException {
+        int mapSize = 1 << vt.videoFormat.getDepth();
+        int[] imgRGBs = new int[mapSize];
+        imgPalette.getRGBs(imgRGBs);
+        int[] previousRGBs = new int[mapSize];
+        if (vt.previousPalette == null) {
+            vt.previousPalette = vt.palette;
+        }
+        vt.previousPalette.getRGBs(previousRGBs);
+        if (!Arrays.equals(imgRGBs, previousRGBs)) {
+            vt.previousPalette = imgPalette;
+            long offset = getRelativeStreamPosition();
+            DataChunk paletteChangeChunk = new DataChunk(vt.twoCC + "pc");
+            int first = 0;
+            int last = imgPalette.getMapSize() - 1;
+            /*
+             * typedef struct {
+            BYTE         bFirstEntry;
+            BYTE         bNumEntries;
+            WORD         wFlags;
+            PALETTEENTRY peNew[];
+            } AVIPALCHANGE;
+             *
+             * typedef struct tagPALETTEENTRY {
+            BYTE peRed;
+            BYTE peGreen;
+            BYTE peBlue;
+            BYTE peFlags;
+            } PALETTEENTRY;
+             */
+            DataChunkOutputStream pOut = paletteChangeChunk.getOutputStream();
+            pOut.writeByte(first);//bFirstEntry
+            pOut.writeByte(last - first + 1);//bNumEntries
+            pOut.writeShort(0);//wFlags
+
+            for (int i = first; i <= last; i++) {
+                pOut.writeByte((imgRGBs[i] >>> 16) & 0xff); // red
+                pOut.writeByte((imgRGBs[i] >>> 8) & 0xff); // green
+                pOut.writeByte(imgRGBs[i] & 0xff); // blue
+                pOut.writeByte(0); // reserved*/
+            }
+
+            moviChunk.add(paletteChangeChunk);
+            paletteChangeChunk.finish();
+            vt.addSample(paletteChangeChunk.chunkType, 0, offset, paletteChangeChunk.size() - 8, false);
+        }
+    }
+
+    private Codec createCodec(VideoTrack vt) {
         VideoFormat fmt = vt.videoFormat;
         String enc = fmt.getEncoding();
+        Codec codec = null;
         if (enc.equals(VideoFormat.AVI_MJPG)) {
-            vt.codec = new JPEGCodec();
+            codec = new JPEGCodec();
         } else if (enc.equals(VideoFormat.AVI_PNG)) {
-            vt.codec = new PNGCodec();
+            codec = new PNGCodec();
         } else if (enc.equals(VideoFormat.AVI_DIB)) {
-            vt.codec = new DIBCodec();
+            codec = new DIBCodec();
         } else if (enc.equals(VideoFormat.AVI_RLE)) {
-            vt.codec = new RunLengthCodec();
+            codec = new RunLengthCodec();
         } else if (enc.equals(VideoFormat.AVI_TECHSMITH_SCREEN_CAPTURE)) {
-            vt.codec = new TechSmithCodec();
+            TechSmithCodec tscc = new TechSmithCodec();
+            tscc.setBandCount(vt.bandCount);
+            tscc.setCompressionLevel(vt.compressionLevel);
+            tscc.setCompressionStrategy(vt.compressionStrategy);
+            tscc.setEncodeTimeBudget(getEncodeTimeBudget(vt));
+            codec = tscc;
+        } else if (enc.equals(VideoFormat.AVI_ZMBV)) {
+            ZMBVCodec zmbv = new ZMBVCodec();
+            zmbv.setCompressionLevel(vt.compressionLevel);
+            zmbv.setSearchRange(vt.searchRange);
+            codec = zmbv;
         }
 
-        vt.codec.setInputFormat(new VideoFormat(enc, BufferedImage.class, fmt.getWidth(), fmt.getHeight(), fmt.getDepth()));
-        vt.codec.setOutputFormat(new VideoFormat(enc, byte[].class, fmt.getWidth(), fmt.getHeight(), fmt.getDepth()));
-        vt.codec.setQuality(vt.videoQuality);
+        codec.setInputFormat(new VideoFormat(enc, BufferedImage.class, fmt.getWidth(), fmt.getHeight(), fmt.getDepth()));
+        codec.setOutputFormat(new VideoFormat(enc, byte[].class, fmt.getWidth(), fmt.getHeight(), fmt.getDepth()));
+        codec.setQuality(vt.videoQuality);
+        return codec;
     }
 
     /**
@@ -560,23 +882,23 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      */
     public void writeFrame(int track, InputStream in) throws IOException {
         ensureStarted();
+        startNewRiffIfFull();
 
         VideoTrack vt = (VideoTrack) tracks.get(track);
 
+        long offset = getRelativeStreamPosition();
         DataChunk videoFrameChunk = new DataChunk(
                 vt.videoFormat.getEncoding().equals(VideoFormat.AVI_DIB) ? vt.twoCC + "db" : vt.twoCC + "dc");
         moviChunk.add(videoFrameChunk);
         OutputStream mdatOut = videoFrameChunk.getOutputStream();
-        long offset = getRelativeStreamPosition();
         byte[] buf = new byte[512];
         int len;
         while ((len = in.read(buf)) != -1) {
             mdatOut.write(buf, 0, len);
         }
-        long length = getRelativeStreamPosition() - offset;
         videoFrameChunk.finish();
-        vt.samples.add(new Sample(videoFrameChunk.chunkType, (int) vt.frameRate, offset, length - 8, true));
-        if (getRelativeStreamPosition() > 1L << 32) {
+        vt.addSample(videoFrameChunk.chunkType, (int) vt.frameRate, offset, videoFrameChunk.size() - 8, true);
+        if (!isOpenDML && getRelativeStreamPosition() > 1L << 32) {
             throw new IOException("AVI file is larger than 4 GB");
         }
     }
@@ -600,23 +922,23 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
     @Override
     public void writeSample(int track, byte[] data, int off, int len, long duration, boolean isSync) throws IOException {
         ensureStarted();
+        startNewRiffIfFull();
         Track t = tracks.get(track);
+        long offset = getRelativeStreamPosition();
         DataChunk dc;
         if (t instanceof VideoTrack) {
             VideoTrack vt = (VideoTrack) t;
             dc = new DataChunk(
-                    vt.videoFormat.getEncoding().equals(VideoFormat.AVI_DIB) ? vt.twoCC + "db" : vt.twoCC + "dc");
+                    vt.videoFormat.getEncoding().equals(VideoFormat.AVI_DIB) ? vt.twoCC + "db" : vt.twoCC + "dc", len);
         } else {
             throw new UnsupportedOperationException("Not yet implemented");
         }
         moviChunk.add(dc);
         OutputStream mdatOut = dc.getOutputStream();
-        long offset = getRelativeStreamPosition();
         mdatOut.write(data, off, len);
-        long length = getRelativeStreamPosition() - offset;
         dc.finish();
-        t.samples.add(new Sample(dc.chunkType, (int) t.frameRate, offset, length - 8, true));
-        if (getRelativeStreamPosition() > 1L << 32) {
+        t.addSample(dc.chunkType, (int) t.frameRate, offset, dc.size() - 8, isSync);
+        if (!isOpenDML && getRelativeStreamPosition() > 1L << 32) {
             throw new IOException("AVI file is larger than 4 GB");
         }
     }
@@ -656,12 +978,50 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      */
     @Override
     public void close() throws IOException {
-        if (state == States.STARTED) {
-            finish();
+        try {
+            if (state == States.STARTED) {
+                finish();
+            }
+        } finally {
+            if (state != States.CLOSED) {
+                try {
+                    out.close();
+                } finally {
+                    state = States.CLOSED;
+                    closeCodecs();
+                }
+            }
         }
-        if (state != States.CLOSED) {
-            out.close();
-            state = States.CLOSED;
+    }
+
+    /**
+     * Releases the codecs of the video tracks. The encode workers finish the
+     * frames they are encoding before their codecs are released.
+     */
+    private void closeCodecs() {
+        for (Track tr : tracks) {
+            if (tr instanceof VideoTrack) {
+                VideoTrack vt = (VideoTrack) tr;
+                if (vt.codec != null) {
+                    vt.codec.close();
+                }
+                if (vt.encodeExecutor != null) {
+                    vt.encodeExecutor.shutdown();
+                    try {
+                        if (!vt.encodeExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                            // A worker still uses its codec, leave the codecs to the garbage collector
+                            continue;
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        continue;
+                    }
+                    for (Codec codec : vt.encodeCodecs) {
+                        codec.close();
+                    }
+                    vt.encodeCodecs.clear();
+                }
+            }
         }
     }
 
@@ -686,7 +1046,8 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
                     }
                 }
             }
-            moviChunk.finish();
+            writeEncodedFrames();
+            finishMovi();
             writeEpilog();
             state = States.FINISHED;
         }
@@ -711,17 +1072,38 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
      * If this limit is reached, no more samples should be added to the movie.
      * <p>
      * AVI 1.0 files have a file size limit of 2 GB. This method returns true
-     * if a file size of 1.8 GB has been reached.
+     * if a file size of 1.8 GB has been reached. OpenDML files are only
+     * limited by the number of RIFF chunks which the super index can hold.
      */
     @Override
     public boolean isDataLimitReached() {
         try {
+            if (isOpenDML) {
+                return riffCount == SUPER_INDEX_ENTRY_COUNT && isRiffFull();
+            }
             return getRelativeStreamPosition() > (long) (1.8 * 1024 * 1024 * 1024);
         } catch (IOException ex) {
             return true;
         }
     }
 
+    /** Returns true if the limit for media samples will soon be reached.
+     * <p>
+     * This method returns true if an AVI 1.0 file has reached a size of 1.6 GB,
+     * or if an OpenDML file has started its last RIFF chunk.
+     */
+    @Override
+    public boolean isDataLimitNear() {
+        try {
+            if (isOpenDML) {
+                return riffCount == SUPER_INDEX_ENTRY_COUNT;
+            }
+            return getRelativeStreamPosition() > (long) (1.6 * 1024 * 1024 * 1024);
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
     private void writeProlog() throws IOException {
         // The file has the following structure:
         //
@@ -730,9 +1112,17 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
         // ..LIST strl
         // ...strh (Stream Header Chunk)
         // ...strf (Stream Format Chunk)
+        // ...indx (OpenDML Super Index Chunk)
+        // ..LIST odml (OpenDML only)
+        // ...dmlh (Extended AVI Header Chunk)
         // ..LIST movi
         // ...00dc (Compressed video data chunk in Track 00, repeated for each frame)
+        // ...ix00 (OpenDML Standard Index Chunk of Track 00)
         // ..idx1 (List of video data chunks and their location in the file)
+        // .RIFF AVIX (OpenDML only, repeated for each GB of media data)
+        // ..LIST movi
+        // ...00dc
+        // ...ix00
 
         // The RIFF AVI Chunk holds the complete movie
         aviChunk = new CompositeChunk("RIFF", "AVI ");
@@ -757,41 +1147,207 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
                 vt.strfChunk = new FixedSizeDataChunk("strf", vt.palette == null ? 40 : 40 + vt.palette.getMapSize() * 4);
                 vt.strfChunk.seekToEndOfChunk();
                 strlChunk.add(vt.strfChunk);
+                if (isOpenDML) {
+                    vt.indxChunk = new FixedSizeDataChunk("indx", 24 + 16 * SUPER_INDEX_ENTRY_COUNT);
+                    writeSuperIndexHeader(vt);
+                    vt.indxChunk.seekToEndOfChunk();
+                    strlChunk.add(vt.indxChunk);
+                }
             } else {
                 throw new UnsupportedOperationException("Track type not implemented yet.");
             }
         }
 
+        if (isOpenDML) {
+            CompositeChunk odmlChunk = new CompositeChunk("LIST", "odml");
+            hdrlChunk.add(odmlChunk);
+            dmlhChunk = new FixedSizeDataChunk("dmlh", 248);
+            dmlhChunk.seekToEndOfChunk();
+            odmlChunk.add(dmlhChunk);
+        }
+
         moviChunk = new CompositeChunk("LIST", "movi");
         aviChunk.add(moviChunk);
+        riffCount = 1;
+        firstRiffFrameCount = 0;
+    }
 
+    /**
+     * Returns true if an OpenDML file has to start a new RIFF chunk.
+     */
+    private boolean isRiffFull() throws IOException {
+        if (getRelativeStreamPosition() - aviChunk.offset >= RIFF_SIZE_LIMIT) {
+            return true;
+        }
+        for (Track tr : tracks) {
+            if (tr.sampleCount >= MAX_RIFF_SAMPLE_COUNT) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Finishes the current RIFF chunk and starts a RIFF AVIX chunk, if this
+     * is an OpenDML file and the current RIFF chunk is full.
+     */
+    private void startNewRiffIfFull() throws IOException {
+        if (isOpenDML && isRiffFull()) {
+            if (riffCount == SUPER_INDEX_ENTRY_COUNT) {
+                throw new IOException("AVI file has more than " + SUPER_INDEX_ENTRY_COUNT + " RIFF chunks");
+            }
+            finishMovi();
+            aviChunk.finish();
+            aviChunk = new CompositeChunk("RIFF", "AVIX");
+            moviChunk = new CompositeChunk("LIST", "movi");
+            aviChunk.add(moviChunk);
+            riffCount++;
+        }
     }
 
-    private void writeEpilog() throws IOException {
-        // Write empty AVI Stream Header Chunk - we fill the data in later
-        long largestBufferSize = 0;
-        // Compute values
-        long duration = 0;
-        for (Track tr : tracks) {
-            if (tr instanceof VideoTrack) {
+    /**
+     * Finishes the movi chunk of the current RIFF chunk.
+     * <p>
+     * In an OpenDML file, the standard indexes of the samples in the RIFF
+     * chunk are written at the end of the movi chunk, and the samples are
+     * removed from memory. The first RIFF chunk is followed by an AVI 1.0
+     * index.
+     */
+    private void finishMovi() throws IOException {
+        if (isOpenDML) {
+            writeStandardIndexes();
+        }
+        moviChunk.finish();
+        if (riffCount == 1) {
+            writeIdx1();
+            for (Track tr : tracks) {
+                firstRiffFrameCount += tr.sampleCount;
+            }
+        }
+        if (isOpenDML) {
+            for (Track tr : tracks) {
+                tr.flushSamples();
+            }
+        }
+    }
 
-                VideoTrack vt = (VideoTrack) tr;
+    /**
+     * Writes the header of the super index of a track.
+     * <p>
+     * The header is written when the track is started, and updated whenever
+     * a standard index is added, so that the index is complete up to the
+     * last finished RIFF chunk.
+     */
+    private void writeSuperIndexHeader(Track tr) throws IOException {
+        /* AVI Super Index Chunk
+         * -------------
+        typedef struct _avisuperindex {
+        FOURCC   fcc;
+        DWORD    cb;
+        WORD     wLongsPerEntry;
+        BYTE     bIndexSubType;
+        BYTE     bIndexType;
+        DWORD    nEntriesInUse;
+        DWORD    dwChunkId;
+        DWORD    dwReserved[3];
+        struct _avisuperindex_entry {
+        QWORD    qwOffset;
+        DWORD    dwSize;
+        DWORD    dwDuration;
+        } aIndex[];
+        } AVISUPERINDEX;
+         */
+        tr.indxChunk.seekToStartOfData();
+        DataChunkOutputStream d = tr.indxChunk.getOutputStream();
+        d.writeUShort(4); // wLongsPerEntry
+        // The size of each index entry in 4-byte units.
+
+        d.write(0); // bIndexSubType
+        d.write(AVI_INDEX_OF_INDEXES); // bIndexType
+        // The entries point to standard index chunks.
+
+        d.writeUInt(tr.superIndexEntryCount); // nEntriesInUse
+        d.writeType(tr.twoCC + "dc"); // dwChunkId
+        // The chunk type of the chunks which are indexed.
+    }
 
-                long trackDuration = 0;
-                for (Sample s : vt.samples) {
-                    trackDuration += s.duration;
+    /**
+     * Writes a standard index chunk for the samples of each track in the
+     * current RIFF chunk, and enters it into the super index of the track.
+     */
+    private void writeStandardIndexes() throws IOException {
+        for (Track tr : tracks) {
+            // Palette changes do not take time, which can not be expressed
+            // in a standard index.
+            int entryCount = 0;
+            for (int i = 0; i < tr.sampleCount; i++) {
+                if (!tr.isPaletteChange(i)) {
+                    entryCount++;
                 }
-                duration = max(duration, trackDuration);
-                for (Sample s : vt.samples) {
-                    if (s.length > largestBufferSize) {
-                        largestBufferSize = s.length;
-                    }
+            }
+            if (entryCount == 0) {
+                continue;
+            }
+
+            /* AVI Standard Index Chunk
+             * -------------
+            typedef struct _avistdindex {
+            FOURCC   fcc;
+            DWORD    cb;
+            WORD     wLongsPerEntry;
+            BYTE     bIndexSubType;
+            BYTE     bIndexType;
+            DWORD    nEntriesInUse;
+            DWORD    dwChunkId;
+            QWORD    qwBaseOffset;
+            DWORD    dwReserved3;
+            struct _avistdindex_entry {
+            DWORD dwOffset;
+            DWORD dwSize;
+            } aIndex[];
+            } AVISTDINDEX;
+             */
+            long baseOffset = moviChunk.offset;
+            DataChunk ixChunk = new DataChunk("ix" + tr.twoCC, 24 + 8L * entryCount);
+            moviChunk.add(ixChunk);
+            DataChunkOutputStream d = ixChunk.getOutputStream();
+            d.writeUShort(2); // wLongsPerEntry
+            d.write(0); // bIndexSubType
+            d.write(AVI_INDEX_OF_CHUNKS); // bIndexType
+            d.writeUInt(entryCount); // nEntriesInUse
+            d.writeType(tr.twoCC + "dc"); // dwChunkId
+            d.writeLong(baseOffset); // qwBaseOffset
+            d.writeUInt(0); // dwReserved3
+            for (int i = 0; i < tr.sampleCount; i++) {
+                if (!tr.isPaletteChange(i)) {
+                    d.writeUInt(tr.sampleOffsets[i] + 8 - baseOffset); // dwOffset
+                    // The offset of the chunk data relative to qwBaseOffset.
+
+                    d.writeUInt((tr.sampleLengths[i] & 0x7fffffffL)//
+                            | (tr.syncSamples.get(i) ? 0 : 0x80000000L)); // dwSize
+                    // The size of the chunk data. Bit 31 is set if the chunk is
+                    // not a key frame.
                 }
             }
+            ixChunk.finish();
+
+            long pointer = getRelativeStreamPosition();
+            seekRelative(tr.indxChunk.offset + 8 + 24 + 16 * tr.superIndexEntryCount);
+            d = tr.indxChunk.getOutputStream();
+            d.writeLong(ixChunk.offset); // qwOffset
+            d.writeUInt(ixChunk.size()); // dwSize
+            d.writeUInt(entryCount); // dwDuration
+            // The duration of the standard index in stream ticks.
+            tr.superIndexEntryCount++;
+            writeSuperIndexHeader(tr);
+            seekRelative(pointer);
         }
+    }
 
-
+    /**
+     * Writes the AVI 1.0 index of the samples in the first RIFF chunk.
+     */
+    private void writeIdx1() throws IOException {
         DataChunkOutputStream d;
 
         /* Create Idx1 Chunk and write data
@@ -816,9 +1372,9 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
             if (tr instanceof VideoTrack) {
 
                 VideoTrack vt = (VideoTrack) tr;
-                for (Sample f : vt.samples) {
+                for (int i = 0; i < vt.sampleCount; i++) {
 
-                    d.writeType(f.chunkType); // dwChunkId
+                    d.writeInt(vt.sampleChunkTypes[i]); // dwChunkId
                     // Specifies a FOURCC that identifies a stream in the AVI file. The
                     // FOURCC must have the form 'xxyy' where xx is the stream number and yy
                     // is a two-character code that identifies the contents of the stream:
@@ -829,8 +1385,8 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
                     //  pc                  Palette change
                     //  wb                  Audio data
 
-                    d.writeUInt((f.chunkType.endsWith("pc") ? 0x100 : 0x0)//
-                            | (f.isSync ? 0x10 : 0x0)); // dwFlags
+                    d.writeUInt((vt.isPaletteChange(i) ? 0x100 : 0x0)//
+                            | (vt.syncSamples.get(i) ? 0x10 : 0x0)); // dwFlags
                     // Specifies a bitwise combination of zero or more of the following
                     // flags:
                     //
@@ -841,13 +1397,13 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
                     //                          stream. For example, this flag should be set for
                     //                          palette changes.
 
-                    d.writeUInt(f.offset - moviListOffset); // dwOffset
+                    d.writeUInt(vt.sampleOffsets[i] - moviListOffset); // dwOffset
                     // Specifies the location of the data chunk in the file. The value
                     // should be specified as an offset, in bytes, from the start of the
                     // 'movi' list; however, in some AVI files it is given as an offset from
                     // the start of the file.
 
-                    d.writeUInt(f.length); // dwSize
+                    d.writeUInt(vt.sampleLengths[i] & 0xffffffffL); // dwSize
                     // Specifies the size of the data chunk, in bytes.
                 }
             } else {
@@ -855,6 +1411,25 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
             }
         }
         idx1Chunk.finish();
+    }
+
+    private void writeEpilog() throws IOException {
+        // Write empty AVI Stream Header Chunk - we fill the data in later
+        long largestBufferSize = 0;
+        // Compute values
+        long duration = 0;
+        for (Track tr : tracks) {
+            if (tr instanceof VideoTrack) {
+
+                VideoTrack vt = (VideoTrack) tr;
+
+                duration = max(duration, vt.sampleDuration);
+                largestBufferSize = max(largestBufferSize, vt.maxSampleLength);
+            }
+        }
+
+
+        DataChunkOutputStream d;
 
         /* Write Data into AVI Main Header Chunk
          * -------------
@@ -918,12 +1493,10 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
         //                      software should not permit the data to be
         //                      duplicated.
 
-        long dwTotalFrames = 0;
-        for (Track t : tracks) {
-            dwTotalFrames += t.samples.size();
-        }
-        d.writeUInt(dwTotalFrames); // dwTotalFrames
+        d.writeUInt(firstRiffFrameCount); // dwTotalFrames
         // Specifies the total number of frames of data in the file.
+        // In an OpenDML file, this is the number of frames in the first
+        // RIFF chunk.
 
         d.writeUInt(0); // dwInitialFrames
         // Specifies the initial frame for interleaved files. Noninterleaved
@@ -1069,17 +1642,11 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
             // is zero, but it can specify a delay time for a stream that does not
             // start concurrently with the file.
 
-            d.writeUInt(tr.samples.size()); // dwLength
+            d.writeUInt(tr.flushedSampleCount + tr.sampleCount); // dwLength
             // Specifies the length of this stream. The units are defined by the
             // dwRate and dwScale members of the stream's header.
 
-            long dwSuggestedBufferSize = 0;
-            for (Sample s : tr.samples) {
-                if (s.length > dwSuggestedBufferSize) {
-                    dwSuggestedBufferSize = s.length;
-                }
-            }
-            d.writeUInt(dwSuggestedBufferSize); // dwSuggestedBufferSize
+            d.writeUInt(tr.maxSampleLength); // dwSuggestedBufferSize
             // Specifies how large a buffer should be used to read this stream.
             // Typically, this contains a value corresponding to the largest chunk
             // present in the stream. Using the correct buffer size makes playback
@@ -1253,6 +1820,24 @@ public class AVIWriter extends AbstractAVIStream implements MovieWriter {
                 }
             }
         }
+
+        if (isOpenDML) {
+            /* Write Data into Extended AVI Header Chunk
+             * -------------
+            typedef struct {
+            DWORD dwTotalFrames;
+            DWORD dwFuture[61];
+            } ODMLExtendedAVIHeader;
+             */
+            dmlhChunk.seekToStartOfData();
+            d = dmlhChunk.getOutputStream();
+            long dwTotalFrames = 0;
+            for (Track tr : tracks) {
+                dwTotalFrames += tr.flushedSampleCount + tr.sampleCount;
+            }
+            d.writeUInt(dwTotalFrames); // dwTotalFrames
+            // The total number of frames in all RIFF chunks of the file.
+        }
         // -----------------
         aviChunk.finish();
     }
@@ -20,8 +20,15 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * This class is just a stub.
@@ -103,40 +110,6 @@ public abstract class AbstractAVIStream {
     protected void seekRelative(long newPosition) throws IOException {
         out.seek(newPosition + streamOffset);
     }
-    /**
-     * AVI stores media data in samples.
-     * A sample is a single element in a sequence of time-ordered data.
-     */
-    protected static class Sample {
-
-        String chunkType;
-        /** Offset of the sample relative to the start of the AVI file.
-         */
-        long offset;
-        /** Data length of the sample. */
-        long length;
-        /**
-         * The duration of the sample in time scale units.
-         */
-        int duration;
-        /** Whether the sample is a sync-sample. */
-        boolean isSync;
-
-        /**
-         * Creates a new sample.
-         * @param duration
-         * @param offset
-         * @param length
-         */
-        public Sample(String chunkId, int duration, long offset, long length, boolean isSync) {
-            this.chunkType = chunkId;
-            this.duration = duration;
-            this.offset = offset;
-            this.length = length;
-            this.isSync = isSync;
-        }
-    }
-
     /** Represents a track. */
     protected abstract class Track {
 
@@ -160,9 +133,33 @@ public abstract class AbstractAVIStream {
          */
         protected long frameRate = 30;
         /**
-         * List of samples.
+         * The sample index.
+         * <p>
+         * AVI stores media data in samples. A sample is a single element in a
+         * sequence of time-ordered data. The index keeps one entry per sample
+         * in growable primitive columns, so that long recordings do not need
+         * an object for each frame.
          */
-        protected LinkedList<Sample> samples;
+        protected int sampleCount;
+        /** Chunk type of each sample, as a four character code in file byte order. */
+        protected int[] sampleChunkTypes = new int[256];
+        /** Offset of each sample relative to the start of the AVI file. */
+        protected long[] sampleOffsets = new long[256];
+        /** Data length of each sample. An unsigned int. */
+        protected int[] sampleLengths = new int[256];
+        /** Duration of each sample in time scale units. */
+        protected int[] sampleDurations = new int[256];
+        /** Whether a sample is a sync sample. */
+        protected BitSet syncSamples = new BitSet();
+        /**
+         * Number of samples whose entries have already been written into an
+         * index in the file and which have been removed from the columns.
+         */
+        protected long flushedSampleCount;
+        /** Sum of the durations of all samples. */
+        protected long sampleDuration;
+        /** Length of the largest sample. */
+        protected long maxSampleLength;
         /** Interval between sync samples (keyframes).
          * 0 = automatic.
          * 1 = write all samples as sync samples.
@@ -178,6 +175,52 @@ public abstract class AbstractAVIStream {
             twoCC = twoCC.substring(twoCC.length() - 2);
             this.fourCC = fourCC;
         }
+
+        /**
+         * Adds a sample to the index.
+         *
+         * @param chunkType The chunk type. A String with 4 characters.
+         * @param duration The duration of the sample in time scale units.
+         * @param offset The offset of the sample relative to the start of the AVI file.
+         * @param length The data length of the sample.
+         * @param isSync Whether the sample is a sync sample.
+         */
+        public void addSample(String chunkType, int duration, long offset, long length, boolean isSync) {
+            if (sampleCount == sampleOffsets.length) {
+                int capacity = sampleCount * 2;
+                sampleChunkTypes = Arrays.copyOf(sampleChunkTypes, capacity);
+                sampleOffsets = Arrays.copyOf(sampleOffsets, capacity);
+                sampleLengths = Arrays.copyOf(sampleLengths, capacity);
+                sampleDurations = Arrays.copyOf(sampleDurations, capacity);
+            }
+            sampleChunkTypes[sampleCount] = chunkType.charAt(0) | (chunkType.charAt(1) << 8)
+                    | (chunkType.charAt(2) << 16) | (chunkType.charAt(3) << 24);
+            sampleOffsets[sampleCount] = offset;
+            sampleLengths[sampleCount] = (int) length;
+            sampleDurations[sampleCount] = duration;
+            if (isSync) {
+                syncSamples.set(sampleCount);
+            }
+            sampleCount++;
+            sampleDuration += duration;
+            maxSampleLength = Math.max(maxSampleLength, length);
+        }
+
+        /**
+         * Removes all samples from the columns, after their entries have been
+         * written into an index in the file.
+         */
+        public void flushSamples() {
+            flushedSampleCount += sampleCount;
+            sampleCount = 0;
+            syncSamples.clear();
+        }
+
+        /** Returns true if the sample is a palette change. */
+        public boolean isPaletteChange(int i) {
+            // the chunk type holds the characters in file byte order: "##pc"
+            return (sampleChunkTypes[i] >>> 16) == ('p' | 'c' << 8);
+        }
         /**
          * This chunk holds the AVI Stream Header.
          */
@@ -186,6 +229,12 @@ public abstract class AbstractAVIStream {
          * This chunk holds the AVI Stream Format Header.
          */
         FixedSizeDataChunk strfChunk;
+        /**
+         * This chunk holds the OpenDML super index, and the number of
+         * standard indexes which have been entered into it.
+         */
+        FixedSizeDataChunk indxChunk;
+        int superIndexEntryCount;
     }
 
     protected class VideoTrack extends Track {
@@ -199,6 +248,31 @@ public abstract class AbstractAVIStream {
          * The video compression quality.
          */
         protected float videoQuality = 0.97f;
+        /**
+         * The number of horizontal bands which the codec encodes in parallel.
+         */
+        protected int bandCount = 1;
+        /**
+         * The compression level and strategy of the deflater, and whether the
+         * level is adapted to the encoding time.
+         */
+        protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        protected int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+        protected boolean adaptiveCompression;
+        /**
+         * The maximal distance of the motion vectors which the codec searches.
+         */
+        protected int searchRange = 63;
+        /**
+         * The number of frames which are encoded in parallel, the workers
+         * and their codecs, all codecs which have been created for the
+         * workers, and the frames which are being encoded, in frame order.
+         */
+        protected int encodeThreadCount = 1;
+        protected ExecutorService encodeExecutor;
+        protected ThreadLocal<Codec> encodeCodec;
+        protected List<Codec> encodeCodecs;
+        protected ArrayDeque<Future<Buffer>> encodingFrames;
 
         /** Index color model for RAW_RGB4 and RAW_RGB8 formats. */
         protected IndexColorModel palette;
@@ -208,6 +282,15 @@ public abstract class AbstractAVIStream {
         /** Video codec. */
         protected Codec codec;
         protected Buffer outputBuffer;
+        /** Input buffer handed to the codec by encodeFrame. */
+        protected Buffer inputBuffer;
+        /** Number of frames which have been encoded so far. */
+        protected long encodedFrameCount;
+        /** Number of delta frames which have been encoded since the most recent key frame. */
+        protected long deltaFrameCount;
+        /** The fraction of a frame period by which the written frames are
+         * ahead (negative) or behind (positive) of their durations. */
+        protected double durationError;
         protected Rectangle rcFrame;
 
         public VideoTrack(int trackIndex, String fourCC) {
@@ -260,6 +343,8 @@ public abstract class AbstractAVIStream {
          */
         protected String compositeType;
         protected LinkedList<Chunk> children;
+        /** The size of the children which have been finished and removed. */
+        protected long finishedChildrenSize;
         protected boolean finished;
 
         /**
@@ -279,7 +364,9 @@ public abstract class AbstractAVIStream {
 
         public void add(Chunk child) throws IOException {
             if (children.size() > 0) {
-                children.getLast().finish();
+                Chunk last = children.removeLast();
+                last.finish();
+                finishedChildrenSize += last.size() + last.size() % 2;
             }
             children.add(child);
         }
@@ -316,7 +403,7 @@ public abstract class AbstractAVIStream {
 
         @Override
         public long size() {
-            long length = 12;
+            long length = 12 + finishedChildrenSize;
             for (Chunk child : children) {
                 length += child.size() + child.size() % 2;
             }
@@ -331,6 +418,8 @@ public abstract class AbstractAVIStream {
 
         protected DataChunkOutputStream data;
         protected boolean finished;
+        /** The size of the data which has been written into the header, or -1. */
+        protected long headerDataSize = -1;
 
         /**
          * Creates a new DataChunk at the current position of the
@@ -343,6 +432,23 @@ public abstract class AbstractAVIStream {
             data = new DataChunkOutputStream(new ImageOutputStreamAdapter(out), false);
         }
 
+        /**
+         * Creates a new DataChunk at the current position of the
+         * ImageOutputStream, whose size is already known. The header is
+         * written right away, so that it is not patched when the chunk is
+         * finished, unless a different amount of data is written.
+         * @param chunkType The chunkType of the chunk.
+         * @param dataSize The size of the data of the chunk.
+         */
+        public DataChunk(String name, long dataSize) throws IOException {
+            super(name);
+            data = new DataChunkOutputStream(new ImageOutputStreamAdapter(out), false);
+            data.writeType(name);
+            data.writeUInt(dataSize);
+            data.clearCount();
+            headerDataSize = dataSize;
+        }
+
         public DataChunkOutputStream getOutputStream() {
             if (finished) {
                 throw new IllegalStateException("DataChunk is finished");
@@ -367,13 +473,15 @@ public abstract class AbstractAVIStream {
                     throw new IOException("DataChunk \"" + chunkType + "\" is too large: " + size());
                 }
 
-                long pointer = getRelativeStreamPosition();
-                seekRelative(offset);
+                if (data.size() != headerDataSize) {
+                    long pointer = getRelativeStreamPosition();
+                    seekRelative(offset);
 
-                DataChunkOutputStream headerData = new DataChunkOutputStream(new ImageOutputStreamAdapter(out), false);
-                headerData.writeType(chunkType);
-                headerData.writeUInt(size() - 8);
-                seekRelative(pointer);
+                    DataChunkOutputStream headerData = new DataChunkOutputStream(new ImageOutputStreamAdapter(out), false);
+                    headerData.writeType(chunkType);
+                    headerData.writeUInt(size() - 8);
+                    seekRelative(pointer);
+                }
                 if (size() % 2 == 1) {
                     out.writeByte(0); // write pad byte
                 }
@@ -30,6 +30,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
     protected long written;
     /** Whether flush and close request shall be forwarded to underlying stream.*/
     private boolean forwardFlushAndClose;
+    private final byte[] byteBuf = new byte[8];
 
     public DataChunkOutputStream(OutputStream out) {
         this(out, true);
@@ -49,12 +50,11 @@ public class DataChunkOutputStream extends FilterOutputStream {
             throw new IllegalArgumentException("type string must have 4 characters");
         }
 
-        try {
-            out.write(s.getBytes("ASCII"), 0, 4);
-            incCount(4);
-        } catch (UnsupportedEncodingException e) {
-            throw new InternalError(e.toString());
+        for (int i = 0; i < 4; i++) {
+            byteBuf[i] = (byte) s.charAt(i);
         }
+        out.write(byteBuf, 0, 4);
+        incCount(4);
     }
 
     /**
@@ -84,7 +84,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     @Override
-    public synchronized void write(byte b[], int off, int len)
+    public void write(byte b[], int off, int len)
             throws IOException {
         out.write(b, off, len);
         incCount(len);
@@ -103,7 +103,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     @Override
-    public synchronized void write(int b) throws IOException {
+    public void write(int b) throws IOException {
         out.write(b);
         incCount(1);
     }
@@ -118,11 +118,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     public void writeInt(int v) throws IOException {
-        out.write((v >>> 0) & 0xff);
-        out.write((v >>> 8) & 0xff);
-        out.write((v >>> 16) & 0xff);
-        out.write((v >>> 24) & 0xff);
-        incCount(4);
+        writeLE(v, 4);
     }
 
     /**
@@ -132,11 +128,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeUInt(long v) throws IOException {
-        out.write((int) ((v >>> 0) & 0xff));
-        out.write((int) ((v >>> 8) & 0xff));
-        out.write((int) ((v >>> 16) & 0xff));
-        out.write((int) ((v >>> 24) & 0xff));
-        incCount(4);
+        writeLE(v, 4);
     }
 
     /**
@@ -146,9 +138,7 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeShort(int v) throws IOException {
-        out.write((int) ((v >>> 0) & 0xff));
-        out.write((int) ((v >> 8) & 0xff));
-        incCount(2);
+        writeLE(v, 2);
     }
 
     /**
@@ -158,10 +148,12 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeShorts(short[] v, int off, int len) throws IOException {
-        for (int i = off; i < off + len; i++) {
-            out.write((int) ((v[i] >>> 0) & 0xff));
-            out.write((int) ((v[i] >> 8) & 0xff));
+        byte[] b = new byte[len * 2];
+        for (int i = off, boff = 0; i < off + len; i++) {
+            b[boff++] = (byte) v[i];
+            b[boff++] = (byte) (v[i] >> 8);
         }
+        out.write(b, 0, b.length);
         incCount(len * 2);
     }
 
@@ -172,29 +164,33 @@ public class DataChunkOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeInts24(int[] v, int off, int len) throws IOException {
-        for (int i = off; i < off + len; i++) {
-            out.write((int) ((v[i] >>> 0) & 0xff));
-            out.write((int) ((v[i] >> 8) & 0xff));
-            out.write((int) ((v[i] >> 16) & 0xff));
+        byte[] b = new byte[len * 3];
+        for (int i = off, boff = 0; i < off + len; i++) {
+            b[boff++] = (byte) v[i];
+            b[boff++] = (byte) (v[i] >> 8);
+            b[boff++] = (byte) (v[i] >> 16);
         }
+        out.write(b, 0, b.length);
         incCount(len * 3);
     }
     public void writeLong(long v) throws IOException {
-        out.write((int) (v >>> 0) & 0xff);
-        out.write((int) (v >>> 8) & 0xff);
-        out.write((int) (v >>> 16) & 0xff);
-        out.write((int) (v >>> 24) & 0xff);
-        out.write((int) (v >>> 32) & 0xff);
-        out.write((int) (v >>> 40) & 0xff);
-        out.write((int) (v >>> 48) & 0xff);
-        out.write((int) (v >>> 56) & 0xff);
-        incCount(8);
+        writeLE(v, 8);
     }
 
     public void writeUShort(int v) throws IOException {
-        out.write((int) ((v >>> 0) & 0xff));
-        out.write((int) ((v >> 8) & 0xff));
-        incCount(2);
+        writeLE(v, 2);
+    }
+
+    /**
+     * Writes the low bytes of a value, low byte first, with a single write
+     * to the underlying stream.
+     */
+    private void writeLE(long v, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byteBuf[i] = (byte) (v >>> (i * 8));
+        }
+        out.write(byteBuf, 0, count);
+        incCount(count);
     }
 
     /**
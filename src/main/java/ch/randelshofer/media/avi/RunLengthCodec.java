@@ -13,6 +13,7 @@ package ch.randelshofer.media.avi;
 import ch.randelshofer.media.AbstractVideoCodec;
 import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.Format;
+import ch.randelshofer.media.Scanlines;
 import ch.randelshofer.media.VideoFormat;
 import ch.randelshofer.media.io.ByteArrayImageOutputStream;
 
@@ -163,18 +164,22 @@ public class RunLengthCodec extends AbstractVideoCodec {
                 writeKey8(tmp, pixels, r.width, r.height, offset, scanlineStride);
                 out.flags = Buffer.FLAG_KEY_FRAME;
             } else {
-                writeDelta8(tmp, pixels, previousPixels, r.width, r.height, offset, scanlineStride);
+                writeDelta8(tmp, pixels, previousPixels, r.width, r.height, offset, scanlineStride, getDamageSpans(in, r.width, r.height));
                 out.flags = 0;
+                if (isSceneChange(tmp.getStreamPosition())) {
+                    tmp.clear();
+                    writeKey8(tmp, pixels, r.width, r.height, offset, scanlineStride);
+                    out.flags = Buffer.FLAG_KEY_FRAME;
+                }
             }
             out.data = tmp.getBuffer();
             out.offset = 0;
             out.length = (int) tmp.getStreamPosition();
-            //
-            if (previousPixels == null) {
-                previousPixels = pixels.clone();
-            } else {
-                System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
+            if (out.flags == Buffer.FLAG_KEY_FRAME) {
+                keyFrameEncoded(out.length);
             }
+            //
+            previousPixels = (byte[]) keepPreviousPixels(in, pixels, previousPixels);
             return;
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -308,6 +313,22 @@ public class RunLengthCodec extends AbstractVideoCodec {
      */
     public void writeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        writeDelta8(out, data, prev, width, height, offset, scanlineStride, null);
+    }
+
+    /** Encodes an 8-bit delta frame.
+     *
+     * @param out The output stream.
+     * @param data The image data.
+     * @param prev The image data of the previous frame.
+     * @param offset The offset to the first pixel in the data array.
+     * @param width The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next scanline.
+     * @param damage The damaged span of each scanline, or null if all
+     * pixels may have changed. See {@code getDamageSpans}.
+     */
+    public void writeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+            throws IOException {
 
         out.setByteOrder(ByteOrder.LITTLE_ENDIAN);
 
@@ -322,12 +343,17 @@ public class RunLengthCodec extends AbstractVideoCodec {
 
             // determine skip count
             int skipCount = 0;
-            for (; xy < xymax; ++xy, ++skipCount) {
-                if (data[xy] != prev[xy]) {
-                    break;
-                }
+            if (damage != null) {
+                // pixels outside of the damaged span are unchanged
+                int row = height - 1 - (y - offset) / scanlineStride;
+                skipCount = damage[row * 2];
+                xymax = xy + damage[row * 2 + 1];
+                xy += skipCount;
             }
-            if (skipCount == width) {
+            int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+            skipCount += mismatch - xy;
+            xy = mismatch;
+            if (xy == xymax) {
                 // => the entire line can be skipped
                 ++verticalOffset;
                 continue;
@@ -353,12 +379,7 @@ public class RunLengthCodec extends AbstractVideoCodec {
             int repeatCount = 0;
             for (; xy < xymax; ++xy) {
                 // determine skip count
-                for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-                    if (data[xy] != prev[xy]) {
-                        break;
-                    }
-                }
-                xy -= skipCount;
+                skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
                 // determine repeat count
                 byte v = data[xy];
@@ -13,6 +13,7 @@ package ch.randelshofer.media.avi;
 import ch.randelshofer.media.AbstractVideoCodec;
 import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.Format;
+import ch.randelshofer.media.Scanlines;
 import ch.randelshofer.media.VideoFormat;
 import ch.randelshofer.media.io.ByteArrayImageOutputStream;
 import ch.randelshofer.media.io.SeekableByteArrayOutputStream;
@@ -25,8 +26,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.zip.DeflaterOutputStream;
-
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import static ch.randelshofer.media.io.ZlibBands.combineAdler32;
+import static ch.randelshofer.media.io.ZlibBands.deflateBand;
+import static ch.randelshofer.media.io.ZlibBands.runBands;
+import static ch.randelshofer.media.io.ZlibBands.writeAdler32;
+import static ch.randelshofer.media.io.ZlibBands.writeZlibHeader;
 import static java.lang.Math.min;
 
 /**
@@ -112,6 +119,173 @@ public class TechSmithCodec extends AbstractVideoCodec {
 
     private ByteArrayImageOutputStream temp = new ByteArrayImageOutputStream(ByteOrder.LITTLE_ENDIAN);
     private Object previousPixels;
+    /** The number of horizontal bands which are encoded in parallel. */
+    private int bandCount = 1;
+    /** Bands are not made smaller than this number of scanlines. */
+    private final static int MIN_BAND_HEIGHT = 16;
+    private Band[] bands = new Band[0];
+    /** The deflater, which is reused until the compression settings change. */
+    private Deflater deflater;
+    private final byte[] deflateBuf = new byte[8192];
+    /** The compression level of the deflater. */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    /** The compression strategy of the deflater. */
+    private int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+    /** The time in nanoseconds which the encoding of a frame may take, or 0. */
+    private long encodeTimeBudget;
+    /** The moving average of the encoding time in nanoseconds. */
+    private long averageEncodeTime;
+    /** The number of frames which have been encoded since the level was changed. */
+    private int framesSinceLevelChange;
+
+    /** The encoding state of a band. */
+    private static class Band {
+
+        final ByteArrayImageOutputStream rle = new ByteArrayImageOutputStream(ByteOrder.LITTLE_ENDIAN);
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        Deflater deflater;
+        final byte[] buf = new byte[8192];
+        long adler;
+        /** The number of skipped scanlines at the end of the band. */
+        int skipped;
+    }
+
+    /** Run length encodes a band of scanlines. */
+    private interface BandEncoder {
+
+        /**
+         * Encodes the scanlines {@code fromLine} to {@code toLine}.
+         *
+         * @return The number of skipped scanlines at the end of the band.
+         */
+        int encode(ByteArrayImageOutputStream band, int fromLine, int toLine) throws IOException;
+    }
+
+    /**
+     * Sets the number of horizontal bands into which a frame is split.
+     * The bands are encoded in parallel on the common fork/join pool. Each
+     * band is compressed into a sync-flushed raw deflate block, and the
+     * blocks are concatenated into one zlib stream, so that the output is
+     * a regular tscc frame.
+     * <p>
+     * The default value is 1, which encodes the frame on the calling thread.
+     */
+    public void setBandCount(int newValue) {
+        bandCount = Math.max(1, newValue);
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Sets the compression level of the deflater, from
+     * {@code Deflater.BEST_SPEED} to {@code Deflater.BEST_COMPRESSION}.
+     * <p>
+     * The default value is {@code Deflater.DEFAULT_COMPRESSION}.
+     */
+    public void setCompressionLevel(int newValue) {
+        if ((newValue < 1 || newValue > 9) && newValue != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Illegal compression level " + newValue);
+        }
+        if (compressionLevel != newValue) {
+            compressionLevel = newValue;
+            endDeflaters();
+        }
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression strategy of the deflater:
+     * {@code Deflater.DEFAULT_STRATEGY}, {@code Deflater.FILTERED} or
+     * {@code Deflater.HUFFMAN_ONLY}.
+     * <p>
+     * The default value is {@code Deflater.DEFAULT_STRATEGY}.
+     */
+    public void setCompressionStrategy(int newValue) {
+        if (newValue != Deflater.DEFAULT_STRATEGY && newValue != Deflater.FILTERED && newValue != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Illegal compression strategy " + newValue);
+        }
+        if (compressionStrategy != newValue) {
+            compressionStrategy = newValue;
+            endDeflaters();
+        }
+    }
+
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    /**
+     * Sets the time which the encoding of a frame may take. If this value is
+     * greater than 0, the compression level is adapted to the measured
+     * encoding time: It is lowered when the frames take most of the budget,
+     * and raised when they take only a small part of it.
+     * <p>
+     * The default value is 0, which keeps the compression level.
+     *
+     * @param newValue The budget in nanoseconds, typically the frame period.
+     */
+    public void setEncodeTimeBudget(long newValue) {
+        encodeTimeBudget = Math.max(0, newValue);
+    }
+
+    public long getEncodeTimeBudget() {
+        return encodeTimeBudget;
+    }
+
+    /**
+     * Releases the native resources of the deflaters. The codec can not be
+     * used afterwards.
+     */
+    @Override
+    public void close() {
+        endDeflaters();
+    }
+
+    /** Ends the deflaters, so that they are created again with the current settings. */
+    private void endDeflaters() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        for (Band band : bands) {
+            if (band.deflater != null) {
+                band.deflater.end();
+                band.deflater = null;
+            }
+        }
+    }
+
+    /**
+     * Resets the specified deflater, or creates a new one with the current
+     * compression level and strategy.
+     * <p>
+     * The settings are only applied when a deflater is created, because
+     * changing them later on makes zlib flush the data and the dictionary
+     * which have already been set. Therefore the deflaters are ended when
+     * the settings change.
+     *
+     * @param deflater A deflater, or null.
+     * @param nowrap Whether the deflater writes raw deflate data without
+     * zlib header and checksum.
+     */
+    private Deflater getDeflater(Deflater deflater, boolean nowrap) {
+        if (deflater != null) {
+            deflater.reset();
+            return deflater;
+        }
+        deflater = new Deflater(compressionLevel, nowrap);
+        if (compressionStrategy != Deflater.DEFAULT_STRATEGY) {
+            deflater.setStrategy(compressionStrategy);
+            // Apply the strategy, there is no input yet
+            deflater.deflate(deflateBuf, 0, 0, Deflater.NO_FLUSH);
+        }
+        return deflater;
+    }
 
     @Override
     public Format setInputFormat(Format f) {
@@ -147,6 +321,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             out.flags = Buffer.FLAG_DISCARD;
             return;
         }
+        long startTime = System.nanoTime();
         SeekableByteArrayOutputStream tmp;
         if (out.data instanceof byte[]) {
             tmp = new SeekableByteArrayOutputStream((byte[]) out.data);
@@ -171,6 +346,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             scanlineStride = vf.getWidth();
         }
         int offset = r.x + r.y * scanlineStride;
+        int[] damage = getDamageSpans(in, vf.getWidth(), vf.getHeight());
 
         try {
             switch (vf.getDepth()) {
@@ -187,14 +363,15 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         writeKey8(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
                         out.flags = Buffer.FLAG_KEY_FRAME;
                     } else {
-                        writeDelta8(tmp, pixels, (byte[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                        writeDelta8(tmp, pixels, (byte[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride, damage);
                         out.flags = 0;
+                        if (isSceneChange(tmp.getStreamPosition())) {
+                            tmp.reset();
+                            writeKey8(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                            out.flags = Buffer.FLAG_KEY_FRAME;
+                        }
                     }
-                    if (previousPixels == null) {
-                        previousPixels = pixels.clone();
-                    } else {
-                        System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-                    }
+                    previousPixels = keepPreviousPixels(in, pixels, previousPixels);
                     break;
                 }
                 case 16: {
@@ -210,14 +387,15 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         writeKey16(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
                         out.flags = Buffer.FLAG_KEY_FRAME;
                     } else {
-                        writeDelta16(tmp, pixels, (short[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                        writeDelta16(tmp, pixels, (short[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride, damage);
                         out.flags = 0;
+                        if (isSceneChange(tmp.getStreamPosition())) {
+                            tmp.reset();
+                            writeKey16(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                            out.flags = Buffer.FLAG_KEY_FRAME;
+                        }
                     }
-                    if (previousPixels == null) {
-                        previousPixels = pixels.clone();
-                    } else {
-                        System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-                    }
+                    previousPixels = keepPreviousPixels(in, pixels, previousPixels);
                     break;
                 }
                 case 24: {
@@ -233,14 +411,15 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         writeKey24(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
                         out.flags = Buffer.FLAG_KEY_FRAME;
                     } else {
-                        writeDelta24(tmp, pixels, (int[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                        writeDelta24(tmp, pixels, (int[]) previousPixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride, damage);
                         out.flags = 0;
+                        if (isSceneChange(tmp.getStreamPosition())) {
+                            tmp.reset();
+                            writeKey24(tmp, pixels, vf.getWidth(), vf.getHeight(), offset, scanlineStride);
+                            out.flags = Buffer.FLAG_KEY_FRAME;
+                        }
                     }
-                    if (previousPixels == null) {
-                        previousPixels = pixels.clone();
-                    } else {
-                        System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-                    }
+                    previousPixels = keepPreviousPixels(in, pixels, previousPixels);
                     break;
                 }
                 default: {
@@ -252,6 +431,12 @@ public class TechSmithCodec extends AbstractVideoCodec {
             out.data = tmp.getBuffer();
             out.offset = 0;
             out.length = (int) tmp.getStreamPosition();
+            if (out.flags == Buffer.FLAG_KEY_FRAME) {
+                keyFrameEncoded(out.length);
+            }
+            if (encodeTimeBudget > 0) {
+                adaptCompressionLevel(System.nanoTime() - startTime);
+            }
             return;
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -270,12 +455,32 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeKey8(OutputStream out, byte[] data, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> {
+                encodeKey8(band, data, width, height, offset, scanlineStride, fromLine, toLine);
+                return 0;
+            }, height, false);
+            return;
+        }
         temp.clear();
+        encodeKey8(temp, data, width, height, offset, scanlineStride, 0, height);
+        temp.write(0);
+        temp.write(0x0001);// End of bitmap
+        deflate(temp, out);
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 8-bit
+     * key frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     */
+    private static void encodeKey8(ByteArrayImageOutputStream temp, byte[] data, int width, int height, int offset, int scanlineStride, int fromLine, int toLine)
+            throws IOException {
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
 
         // Encode each scanline separately
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
@@ -342,13 +547,6 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0);
             temp.write(0x0000);// End of line
         }
-        temp.write(0);
-        temp.write(0x0001);// End of bitmap
-        //temp.toOutputStream(out);
-
-        DeflaterOutputStream defl = new DeflaterOutputStream(out);
-        temp.toOutputStream(defl);
-        defl.finish();
     }
 
     /** Encodes a 8-bit delta frame.
@@ -362,26 +560,72 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeDelta8(OutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        writeDelta8(out, data, prev, width, height, offset, scanlineStride, null);
+    }
 
+    /** Encodes a 8-bit delta frame.
+     *
+     * @param temp The output stream. Must be set to Big-Endian.
+     * @param data The image data.
+     * @param prev The image data of the previous frame.
+     * @param offset The offset to the first pixel in the data array.
+     * @param width The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next scanline.
+     * @param damage The damaged span of each scanline, or null if all
+     * pixels may have changed. See {@code getDamageSpans}.
+     */
+    public void writeDelta8(OutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+            throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> encodeDelta8(band, data, prev, width, height, offset, scanlineStride, damage, fromLine, toLine), height, true);
+            return;
+        }
         temp.clear();
+        encodeDelta8(temp, data, prev, width, height, offset, scanlineStride, damage, 0, height);
+        temp.write(0); // Escape code
+        temp.write(0x01);// End of bitmap
+
+
+        if (temp.length() == 2) {
+            temp.toOutputStream(out);
+        } else {
+            deflate(temp, out);
+        }
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 8-bit
+     * delta frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     *
+     * @return The number of skipped scanlines at the end, which have not
+     * been encoded yet.
+     */
+    private static int encodeDelta8(ByteArrayImageOutputStream temp, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride, int[] damage, int fromLine, int toLine)
+            throws IOException {
 
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
 
         // Encode each scanline
         int verticalOffset = 0;
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
             // determine skip count
             int skipCount = 0;
-            for (; xy < xymax; ++xy, ++skipCount) {
-                if (data[xy] != prev[xy]) {
-                    break;
-                }
+            if (damage != null) {
+                // pixels outside of the damaged span are unchanged
+                int row = height - 1 - (y - offset) / scanlineStride;
+                skipCount = damage[row * 2];
+                xymax = xy + damage[row * 2 + 1];
+                xy += skipCount;
             }
-            if (skipCount == width) {
+            int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+            skipCount += mismatch - xy;
+            xy = mismatch;
+            if (xy == xymax) {
                 // => the entire line can be skipped
                 ++verticalOffset;
                 continue;
@@ -401,12 +645,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             int repeatCount = 0;
             for (; xy < xymax; ++xy) {
                 // determine skip count
-                for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-                    if (data[xy] != prev[xy]) {
-                        break;
-                    }
-                }
-                xy -= skipCount;
+                skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
                 // determine repeat count
                 byte v = data[xy];
@@ -479,17 +718,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0); // Escape code
             temp.write(0x00); // End of line OP-code
         }
-        temp.write(0); // Escape code
-        temp.write(0x01);// End of bitmap
-
-
-        if (temp.length() == 2) {
-            temp.toOutputStream(out);
-        } else {
-            DeflaterOutputStream defl = new DeflaterOutputStream(out);
-            temp.toOutputStream(defl);
-            defl.finish();
-        }
+        return verticalOffset;
     }
 
     /** Encodes a 16-bit key frame.
@@ -502,12 +731,32 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeKey16(OutputStream out, short[] data, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> {
+                encodeKey16(band, data, width, height, offset, scanlineStride, fromLine, toLine);
+                return 0;
+            }, height, false);
+            return;
+        }
         temp.clear();
+        encodeKey16(temp, data, width, height, offset, scanlineStride, 0, height);
+        temp.write(0);
+        temp.write(0x0001);// End of bitmap
+        deflate(temp, out);
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 16-bit
+     * key frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     */
+    private static void encodeKey16(ByteArrayImageOutputStream temp, short[] data, int width, int height, int offset, int scanlineStride, int fromLine, int toLine)
+            throws IOException {
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
 
         // Encode each scanline separately
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
@@ -574,13 +823,6 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0);
             temp.write(0x0000);// End of line
         }
-        temp.write(0);
-        temp.write(0x0001);// End of bitmap
-        //temp.toOutputStream(out);
-
-        DeflaterOutputStream defl = new DeflaterOutputStream(out);
-        temp.toOutputStream(defl);
-        defl.finish();
     }
 
     /** Encodes a 16-bit delta frame.
@@ -594,27 +836,71 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeDelta16(OutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        writeDelta16(out, data, prev, width, height, offset, scanlineStride, null);
+    }
 
-
+    /** Encodes a 16-bit delta frame.
+     *
+     * @param temp The output stream. Must be set to Big-Endian.
+     * @param data The image data.
+     * @param prev The image data of the previous frame.
+     * @param offset The offset to the first pixel in the data array.
+     * @param width The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next scanline.
+     * @param damage The damaged span of each scanline, or null if all
+     * pixels may have changed. See {@code getDamageSpans}.
+     */
+    public void writeDelta16(OutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+            throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> encodeDelta16(band, data, prev, width, height, offset, scanlineStride, damage, fromLine, toLine), height, true);
+            return;
+        }
         temp.clear();
+        encodeDelta16(temp, data, prev, width, height, offset, scanlineStride, damage, 0, height);
+        temp.write(0); // Escape code
+        temp.write(0x01);// End of bitmap OP-code
+
+        if (temp.length() == 2) {
+            temp.toOutputStream(out);
+        } else {
+            deflate(temp, out);
+        }
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 16-bit
+     * delta frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     *
+     * @return The number of skipped scanlines at the end, which have not
+     * been encoded yet.
+     */
+    private static int encodeDelta16(ByteArrayImageOutputStream temp, short[] data, short[] prev, int width, int height, int offset, int scanlineStride, int[] damage, int fromLine, int toLine)
+            throws IOException {
 
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
 
         // Encode each scanline
         int verticalOffset = 0;
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
             // determine skip count
             int skipCount = 0;
-            for (; xy < xymax; ++xy, ++skipCount) {
-                if (data[xy] != prev[xy]) {
-                    break;
-                }
+            if (damage != null) {
+                // pixels outside of the damaged span are unchanged
+                int row = height - 1 - (y - offset) / scanlineStride;
+                skipCount = damage[row * 2];
+                xymax = xy + damage[row * 2 + 1];
+                xy += skipCount;
             }
-            if (skipCount == width) {
+            int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+            skipCount += mismatch - xy;
+            xy = mismatch;
+            if (xy == xymax) {
                 // => the entire line can be skipped
                 ++verticalOffset;
                 continue;
@@ -633,12 +919,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             int repeatCount = 0;
             for (; xy < xymax; ++xy) {
                 // determine skip count
-                for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-                    if (data[xy] != prev[xy]) {
-                        break;
-                    }
-                }
-                xy -= skipCount;
+                skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
                 // determine repeat count
                 short v = data[xy];
@@ -711,17 +992,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0); // Escape code
             temp.write(0x00); // End of line OP-code
         }
-
-        temp.write(0); // Escape code
-        temp.write(0x01);// End of bitmap OP-code
-
-        if (temp.length() == 2) {
-            temp.toOutputStream(out);
-        } else {
-            DeflaterOutputStream defl = new DeflaterOutputStream(out);
-            temp.toOutputStream(defl);
-            defl.finish();
-        }
+        return verticalOffset;
     }
 
     /** Encodes a 24-bit key frame.
@@ -734,12 +1005,32 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeKey24(OutputStream out, int[] data, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> {
+                encodeKey24(band, data, width, height, offset, scanlineStride, fromLine, toLine);
+                return 0;
+            }, height, false);
+            return;
+        }
         temp.clear();
+        encodeKey24(temp, data, width, height, offset, scanlineStride, 0, height);
+        temp.write(0);
+        temp.write(0x0001);// End of bitmap
+        deflate(temp, out);
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 24-bit
+     * key frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     */
+    private static void encodeKey24(ByteArrayImageOutputStream temp, int[] data, int width, int height, int offset, int scanlineStride, int fromLine, int toLine)
+            throws IOException {
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
 
         // Encode each scanline separately
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
@@ -759,7 +1050,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
                     if (literalCount == 254) {
                         temp.write(0);
                         temp.write(literalCount); // Literal OP-code
-                        writeInts24LE(temp, data, xy - literalCount + 1, literalCount);
+                        writePixels24(temp, data, xy - literalCount + 1, literalCount);
                         literalCount = 0;
                     }
                 } else {
@@ -767,12 +1058,12 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         if (literalCount < 3) {
                             for (; literalCount > 0; --literalCount) {
                                 temp.write(1); // Repeat OP-code
-                                writeInt24LE(temp, data[xy - literalCount]);
+                                writePixel24(temp, data[xy - literalCount]);
                             }
                         } else {
                             temp.write(0);
                             temp.write(literalCount); // Literal OP-code
-                            writeInts24LE(temp, data, xy - literalCount, literalCount);
+                            writePixels24(temp, data, xy - literalCount, literalCount);
                             ///if (literalCount % 2 == 1) {
                             ///    temp.write(0); // pad byte
                             ///}
@@ -780,7 +1071,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         }
                     }
                     temp.write(repeatCount); // Repeat OP-code
-                    writeInt24LE(temp, v);
+                    writePixel24(temp, v);
                     xy += repeatCount - 1;
                 }
             }
@@ -790,12 +1081,12 @@ public class TechSmithCodec extends AbstractVideoCodec {
                 if (literalCount < 3) {
                     for (; literalCount > 0; --literalCount) {
                         temp.write(1); // Repeat OP-code
-                        writeInt24LE(temp, data[xy - literalCount]);
+                        writePixel24(temp, data[xy - literalCount]);
                     }
                 } else {
                     temp.write(0);
                     temp.write(literalCount);
-                    writeInts24LE(temp, data, xy - literalCount, literalCount);
+                    writePixels24(temp, data, xy - literalCount, literalCount);
                     ///if (literalCount % 2 == 1) {
                     ///    temp.write(0); // pad byte
                     ///}
@@ -806,13 +1097,6 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0);
             temp.write(0x0000);// End of line
         }
-        temp.write(0);
-        temp.write(0x0001);// End of bitmap
-        //temp.toOutputStream(out);
-
-        DeflaterOutputStream defl = new DeflaterOutputStream(out);
-        temp.toOutputStream(defl);
-        defl.finish();
     }
 
     /** Encodes a 24-bit delta frame.
@@ -826,8 +1110,48 @@ public class TechSmithCodec extends AbstractVideoCodec {
      */
     public void writeDelta24(OutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        writeDelta24(out, data, prev, width, height, offset, scanlineStride, null);
+    }
 
+    /** Encodes a 24-bit delta frame.
+     *
+     * @param temp The output stream. Must be set to Big-Endian.
+     * @param data The image data.
+     * @param prev The image data of the previous frame.
+     * @param offset The offset to the first pixel in the data array.
+     * @param width The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next scanline.
+     * @param damage The damaged span of each scanline, or null if all
+     * pixels may have changed. See {@code getDamageSpans}.
+     */
+    public void writeDelta24(OutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+            throws IOException {
+        if (isBanded(height)) {
+            writeBands(out, (band, fromLine, toLine) -> encodeDelta24(band, data, prev, width, height, offset, scanlineStride, damage, fromLine, toLine), height, true);
+            return;
+        }
         temp.clear();
+        encodeDelta24(temp, data, prev, width, height, offset, scanlineStride, damage, 0, height);
+        temp.write(0); // Escape code
+        temp.write(0x01);// End of bitmap
+
+        if (temp.length() == 2) {
+            temp.toOutputStream(out);
+        } else {
+            deflate(temp, out);
+        }
+    }
+
+    /**
+     * Encodes the scanlines {@code fromLine} to {@code toLine} of a 24-bit
+     * delta frame without the end of bitmap op-code. Scanlines are counted
+     * from the bottom of the image.
+     *
+     * @return The number of skipped scanlines at the end, which have not
+     * been encoded yet.
+     */
+    private static int encodeDelta24(ByteArrayImageOutputStream temp, int[] data, int[] prev, int width, int height, int offset, int scanlineStride, int[] damage, int fromLine, int toLine)
+            throws IOException {
 
         int ymax = offset + height * scanlineStride;
         int upsideDown = ymax - scanlineStride + offset;
@@ -835,18 +1159,23 @@ public class TechSmithCodec extends AbstractVideoCodec {
         // Encode each scanline
         int verticalOffset = 0;
         ScanlineLoop:
-        for (int y = offset; y < ymax; y += scanlineStride) {
+        for (int y = offset + fromLine * scanlineStride, yend = offset + toLine * scanlineStride; y < yend; y += scanlineStride) {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
             // determine skip count
             int skipCount = 0;
-            for (; xy < xymax; ++xy, ++skipCount) {
-                if (data[xy] != prev[xy]) {
-                    break;
-                }
+            if (damage != null) {
+                // pixels outside of the damaged span are unchanged
+                int row = height - 1 - (y - offset) / scanlineStride;
+                skipCount = damage[row * 2];
+                xymax = xy + damage[row * 2 + 1];
+                xy += skipCount;
             }
-            if (skipCount == width) {
+            int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+            skipCount += mismatch - xy;
+            xy = mismatch;
+            if (xy == xymax) {
                 // => the entire line can be skipped
                 ++verticalOffset;
                 continue;
@@ -865,12 +1194,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             int repeatCount = 0;
             for (; xy < xymax; ++xy) {
                 // determine skip count
-                for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-                    if (data[xy] != prev[xy]) {
-                        break;
-                    }
-                }
-                xy -= skipCount;
+                skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
                 // determine repeat count
                 int v = data[xy];
@@ -887,13 +1211,13 @@ public class TechSmithCodec extends AbstractVideoCodec {
                     while (literalCount > 0) {
                         if (literalCount < 3) {
                             temp.write(1); // Repeat OP-code
-                            writeInt24LE(temp, data[xy - literalCount]);
+                            writePixel24(temp, data[xy - literalCount]);
                             literalCount--;
                         } else {
                             int literalRun = min(254, literalCount);
                             temp.write(0);
                             temp.write(literalRun); // Literal OP-code
-                            writeInts24LE(temp, data, xy - literalCount, literalRun);
+                            writePixels24(temp, data, xy - literalCount, literalRun);
                             ///if (literalRun % 2 == 1) {
                             ///    temp.write(0); // pad byte
                             ///}
@@ -916,7 +1240,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         xy -= 1;
                     } else {
                         temp.write(repeatCount); // Repeat OP-code
-                        writeInt24LE(temp, v);
+                        writePixel24(temp, v);
                         xy += repeatCount - 1;
                     }
                 }
@@ -926,13 +1250,13 @@ public class TechSmithCodec extends AbstractVideoCodec {
             while (literalCount > 0) {
                 if (literalCount < 3) {
                     temp.write(1); // Repeat OP-code
-                    writeInt24LE(temp, data[xy - literalCount]);
+                    writePixel24(temp, data[xy - literalCount]);
                     literalCount--;
                 } else {
                     int literalRun = min(254, literalCount);
                     temp.write(0);
                     temp.write(literalRun); // Literal OP-code
-                    writeInts24LE(temp, data, xy - literalCount, literalRun);
+                    writePixels24(temp, data, xy - literalCount, literalRun);
                     ///if (literalRun % 2 == 1) {
                     ///   temp.write(0); // pad byte
                     ///}
@@ -943,17 +1267,143 @@ public class TechSmithCodec extends AbstractVideoCodec {
             temp.write(0); // Escape code
             temp.write(0x00); // End of line OP-code
         }
+        return verticalOffset;
+    }
 
-        temp.write(0); // Escape code
-        temp.write(0x01);// End of bitmap
+    /**
+     * Adapts the compression level to the encoding time of a frame.
+     */
+    private void adaptCompressionLevel(long encodeTime) {
+        // Average over about 8 frames, so that single key frames do not
+        // change the level.
+        averageEncodeTime = (averageEncodeTime == 0) ? encodeTime : averageEncodeTime + (encodeTime - averageEncodeTime) / 8;
+        if (++framesSinceLevelChange < 8) {
+            return;
+        }
+        int level = (compressionLevel == Deflater.DEFAULT_COMPRESSION) ? 6 : compressionLevel;
+        if (averageEncodeTime > encodeTimeBudget * 3 / 4 && level > Deflater.BEST_SPEED) {
+            setCompressionLevel(level - 1);
+            framesSinceLevelChange = 0;
+        } else if (averageEncodeTime < encodeTimeBudget / 3 && level < Deflater.BEST_COMPRESSION) {
+            setCompressionLevel(level + 1);
+            framesSinceLevelChange = 0;
+        }
+    }
 
-        if (temp.length() == 2) {
-            temp.toOutputStream(out);
-        } else {
-            DeflaterOutputStream defl = new DeflaterOutputStream(out);
-            temp.toOutputStream(defl);
-            defl.finish();
+    /**
+     * Compresses the run length encoded data into a zlib stream.
+     */
+    private void deflate(ByteArrayImageOutputStream in, OutputStream out) throws IOException {
+        deflater = getDeflater(deflater, false);
+        deflater.setInput(in.getBuffer(), 0, (int) in.length());
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(deflateBuf);
+            out.write(deflateBuf, 0, count);
+        }
+    }
+
+    private boolean isBanded(int height) {
+        return bandCount > 1 && height >= 2 * MIN_BAND_HEIGHT;
+    }
+
+    /**
+     * Encodes a frame in horizontal bands, and writes it as a zlib stream.
+     * <p>
+     * First the scanlines of all bands are run length encoded in parallel.
+     * Then the bands are deflated in parallel. The deflater of each band is
+     * primed with the end of the previous band, as if the frame had been
+     * deflated in one piece.
+     *
+     * @param out The output stream.
+     * @param encoder Encodes the scanlines of a band.
+     * @param height The height of the frame.
+     * @param isDelta Whether this is a delta frame. A delta frame without
+     * changes is written without compression.
+     */
+    private void writeBands(OutputStream out, final BandEncoder encoder, int height, boolean isDelta) throws IOException {
+        final int n = min(bandCount, height / MIN_BAND_HEIGHT);
+        if (bands.length != n) {
+            bands = new Band[n];
+            for (int i = 0; i < n; i++) {
+                bands[i] = new Band();
+            }
+        }
+        runBands(n, i -> {
+            Band band = bands[i];
+            band.rle.clear();
+            band.skipped = encoder.encode(band.rle, i * height / n, (i + 1) * height / n);
+        });
+
+        // Continue at the first scanline of the next band, unless all
+        // remaining bands are empty. Like the serial encoder, a frame without
+        // changes then only consists of the end of bitmap op-code.
+        int last = n - 1;
+        while (last > 0 && bands[last].rle.length() == 0) {
+            last--;
+        }
+        for (int i = 0; i < last; i++) {
+            Band band = bands[i];
+            for (int skipped = band.skipped; skipped > 0; skipped -= min(255, skipped)) {
+                band.rle.write(0x00); // Escape code
+                band.rle.write(0x02); // Skip OP-code
+                band.rle.write(0); // horizontal offset
+                band.rle.write(min(255, skipped)); // vertical offset
+            }
+        }
+        bands[n - 1].rle.write(0); // Escape code
+        bands[n - 1].rle.write(0x01);// End of bitmap
+
+        long length = 0;
+        for (Band band : bands) {
+            length += band.rle.length();
+        }
+        if (isDelta && length == 2) {
+            bands[n - 1].rle.toOutputStream(out);
+            return;
+        }
+
+        for (Band band : bands) {
+            band.deflater = getDeflater(band.deflater, true);
+        }
+        runBands(n, i -> {
+            Band band = bands[i];
+            Band previous = i > 0 ? bands[i - 1] : null;
+            band.deflated.reset();
+            deflateBand(band.deflater, previous == null ? null : previous.rle.getBuffer(),
+                    previous == null ? 0 : (int) previous.rle.length(),
+                    band.rle.getBuffer(), (int) band.rle.length(), i == n - 1, band.buf, band.deflated);
+            Adler32 adler = new Adler32();
+            adler.update(band.rle.getBuffer(), 0, (int) band.rle.length());
+            band.adler = adler.getValue();
+        });
+
+        writeZlibHeader(out, compressionLevel, compressionStrategy);
+        long adler = 1;
+        for (Band band : bands) {
+            band.deflated.writeTo(out);
+            adler = combineAdler32(adler, band.adler, band.rle.length());
+        }
+        writeAdler32(out, adler);
+    }
+
+    /** Writes a 24-bit pixel in little endian order. */
+    private static void writePixel24(ByteArrayImageOutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+    }
+
+    /** Writes 24-bit pixels in little endian order. */
+    private static void writePixels24(ByteArrayImageOutputStream out, int[] data, int off, int len) throws IOException {
+        byte[] b = new byte[len * 3];
+        for (int i = 0, j = 0; i < len; i++) {
+            int v = data[off + i];
+            b[j++] = (byte) v;
+            b[j++] = (byte) (v >>> 8);
+            b[j++] = (byte) (v >>> 16);
         }
+        out.write(b, 0, b.length);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,570 @@
+/*
+ * @(#)ZMBVCodec.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.avi;
+
+import ch.randelshofer.media.AbstractVideoCodec;
+import ch.randelshofer.media.Buffer;
+import ch.randelshofer.media.Format;
+import ch.randelshofer.media.VideoFormat;
+import ch.randelshofer.media.io.SeekableByteArrayOutputStream;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static java.lang.Math.min;
+
+/**
+ * {@code ZMBVCodec} (Zip Motion Blocks Video) encodes a BufferedImage as a
+ * byte[] array.
+ * <p>
+ * Supported input formats:
+ * <ul>
+ * {@code VideoFormat} with {@code BufferedImage.class}, any width, any height,
+ * depth=8,16 or 24.
+ * </ul>
+ * Supported output formats:
+ * <ul>
+ * {@code VideoFormat} with {@code byte[].class}, same width and height as input
+ * format, depth=8,16 or 24.
+ * </ul>
+ * 8-bit images are encoded with their palette, 16-bit images as RGB 555 and
+ * 24-bit images as 32-bit RGB.
+ * <p>
+ * A frame is split into blocks of 16 x 16 pixels. A key frame holds the
+ * pixels of the whole frame. In a delta frame, each block has a motion
+ * vector, which points to the block of the previous frame it is copied from,
+ * optionally followed by the XOR difference to that block. The data of all
+ * frames from one key frame to the next is compressed into a single zlib
+ * stream, which is flushed at the end of each frame.
+ * <p>
+ * The motion vectors are searched within the search range. The search is
+ * biased towards vertical motion, because screen content mostly scrolls
+ * vertically: The codec first estimates the dominant vertical shifts of the
+ * frame from hashes of the scanlines, and tries them on each block before
+ * the blocks in the vicinity. A delta frame in which more than half of the
+ * pixels still differ after motion compensation is encoded as a key frame.
+ * <p>
+ * References:<br/>
+ * <a href="http://wiki.multimedia.cx/index.php?title=DosBox_Capture_Codec"
+ * >http://wiki.multimedia.cx/index.php?title=DosBox_Capture_Codec</a><br>
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-12 Created.
+ */
+public class ZMBVCodec extends AbstractVideoCodec {
+
+    private final static int FLAG_KEY_FRAME = 1;
+    private final static int FLAG_DELTA_PALETTE = 2;
+    private final static int FORMAT_8BPP = 4;
+    private final static int FORMAT_15BPP = 5;
+    private final static int FORMAT_32BPP = 8;
+    private final static int BLOCK_WIDTH = 16;
+    private final static int BLOCK_HEIGHT = 16;
+    /** Motion vectors are stored in 7 bits. */
+    private final static int MAX_SEARCH_RANGE = 63;
+    /** The number of dominant vertical shifts which are tried on each block. */
+    private final static int SHIFT_CANDIDATES = 3;
+    /** The maximal number of candidates per block which are compared in full. */
+    private final static int MAX_FULL_COMPARES = 16;
+    private int searchRange = MAX_SEARCH_RANGE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Deflater deflater;
+    private int deflaterLevel;
+    private final byte[] deflateBuf = new byte[8192];
+    /** The uncompressed data of the frame. */
+    private byte[] work = new byte[0];
+    private int workUsed;
+    /** The pixels of the current and the previous frame. */
+    private int[] pixels;
+    private int[] previousPixels;
+    /** The RGB colors of the current and the previous palette. */
+    private final int[] palette = new int[256];
+    private final int[] previousPalette = new int[256];
+    /** The hash of each block-wide segment of each scanline, of the current and the previous frame. */
+    private int[] hashes;
+    private int[] previousHashes;
+    /** The votes for each vertical shift. */
+    private int[] shiftVotes;
+    /** The motion vectors which are tried on each block, as pairs of dx and dy. */
+    private int[] candidates;
+    private int candidateCount;
+
+    /**
+     * Sets the maximal distance in pixels of a motion vector. The dominant
+     * vertical shifts are searched within the full range, the vicinity of
+     * each block within a quarter of it vertically and an eighth of it
+     * horizontally. The encoding time grows with the search range.
+     * <p>
+     * The default value is 63, which is also the maximal value.
+     */
+    public void setSearchRange(int newValue) {
+        if (newValue < 0 || newValue > MAX_SEARCH_RANGE) {
+            throw new IllegalArgumentException("Illegal search range " + newValue);
+        }
+        searchRange = newValue;
+    }
+
+    public int getSearchRange() {
+        return searchRange;
+    }
+
+    /**
+     * Sets the compression level of the deflater, from
+     * {@code Deflater.BEST_SPEED} to {@code Deflater.BEST_COMPRESSION}.
+     * A new level takes effect at the next key frame.
+     * <p>
+     * The default value is {@code Deflater.DEFAULT_COMPRESSION}.
+     */
+    public void setCompressionLevel(int newValue) {
+        if ((newValue < 1 || newValue > 9) && newValue != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Illegal compression level " + newValue);
+        }
+        compressionLevel = newValue;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Releases the native resources of the deflater. The codec can not be
+     * used afterwards.
+     */
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    @Override
+    public Format setInputFormat(Format f) {
+        if (f instanceof VideoFormat) {
+            VideoFormat vf = (VideoFormat) f;
+            if (BufferedImage.class.isAssignableFrom(vf.getDataClass())) {
+                return super.setInputFormat(new VideoFormat(VideoFormat.IMAGE, vf.getDataClass(), vf.getWidth(), vf.getHeight(), vf.getDepth()));
+            }
+        }
+        return super.setInputFormat(null);
+    }
+
+    @Override
+    public Format setOutputFormat(Format f) {
+        if (f instanceof VideoFormat) {
+            VideoFormat vf = (VideoFormat) f;
+            int depth = vf.getDepth();
+            if (depth <= 8) {
+                depth = 8;
+            } else if (depth <= 16) {
+                depth = 16;
+            } else {
+                depth = 24;
+            }
+            return super.setOutputFormat(new VideoFormat(VideoFormat.AVI_ZMBV, byte[].class, vf.getWidth(), vf.getHeight(), depth));
+        }
+        return super.setOutputFormat(null);
+    }
+
+    @Override
+    public void process(Buffer in, Buffer out) {
+        if ((in.flags & Buffer.FLAG_DISCARD) != 0) {
+            out.flags = Buffer.FLAG_DISCARD;
+            return;
+        }
+        VideoFormat vf = (VideoFormat) outputFormat;
+        int width = vf.getWidth();
+        int height = vf.getHeight();
+
+        // Handle sub-image
+        Rectangle r;
+        int scanlineStride;
+        if (in.data instanceof BufferedImage) {
+            BufferedImage image = (BufferedImage) in.data;
+            WritableRaster raster = image.getRaster();
+            scanlineStride = raster.getSampleModel().getWidth();
+            r = raster.getBounds();
+            r.x -= raster.getSampleModelTranslateX();
+            r.y -= raster.getSampleModelTranslateY();
+        } else {
+            r = new Rectangle(0, 0, width, height);
+            scanlineStride = width;
+        }
+        int offset = r.x + r.y * scanlineStride;
+
+        if (pixels == null || pixels.length != width * height) {
+            pixels = new int[width * height];
+            previousPixels = null;
+        }
+        int format;
+        int bytesPerPixel;
+        switch (vf.getDepth()) {
+            case 8: {
+                byte[] data = getIndexed8(in);
+                if (data == null) {
+                    out.flags = Buffer.FLAG_DISCARD;
+                    return;
+                }
+                for (int y = 0, xy = 0; y < height; y++) {
+                    for (int i = offset + y * scanlineStride, end = i + width; i < end; i++) {
+                        pixels[xy++] = data[i] & 0xff;
+                    }
+                }
+                readPalette(in);
+                format = FORMAT_8BPP;
+                bytesPerPixel = 1;
+                break;
+            }
+            case 16: {
+                short[] data = getRGB15(in);
+                if (data == null) {
+                    out.flags = Buffer.FLAG_DISCARD;
+                    return;
+                }
+                for (int y = 0, xy = 0; y < height; y++) {
+                    for (int i = offset + y * scanlineStride, end = i + width; i < end; i++) {
+                        pixels[xy++] = data[i] & 0x7fff;
+                    }
+                }
+                format = FORMAT_15BPP;
+                bytesPerPixel = 2;
+                break;
+            }
+            case 24: {
+                int[] data = getRGB24(in);
+                if (data == null) {
+                    out.flags = Buffer.FLAG_DISCARD;
+                    return;
+                }
+                for (int y = 0, xy = 0; y < height; y++) {
+                    for (int i = offset + y * scanlineStride, end = i + width; i < end; i++) {
+                        pixels[xy++] = data[i] & 0xffffff;
+                    }
+                }
+                format = FORMAT_32BPP;
+                bytesPerPixel = 4;
+                break;
+            }
+            default: {
+                out.flags = Buffer.FLAG_DISCARD;
+                return;
+            }
+        }
+
+        int blocksX = (width + BLOCK_WIDTH - 1) / BLOCK_WIDTH;
+        int blocksY = (height + BLOCK_HEIGHT - 1) / BLOCK_HEIGHT;
+        int capacity = 768 + ((blocksX * blocksY * 2 + 3) & ~3) + width * height * bytesPerPixel;
+        if (work.length < capacity) {
+            work = new byte[capacity];
+        }
+        computeHashes(width, height, blocksX);
+
+        boolean isKeyFrame = (in.flags & Buffer.FLAG_KEY_FRAME) != 0 || previousPixels == null;
+        int flags = 0;
+        workUsed = 0;
+        if (!isKeyFrame) {
+            if (format == FORMAT_8BPP && !Arrays.equals(palette, previousPalette)) {
+                flags |= FLAG_DELTA_PALETTE;
+                for (int i = 0; i < 256; i++) {
+                    int xor = palette[i] ^ previousPalette[i];
+                    work[workUsed++] = (byte) (xor >>> 16);
+                    work[workUsed++] = (byte) (xor >>> 8);
+                    work[workUsed++] = (byte) xor;
+                }
+            }
+            long changedPixels = writeBlocks(width, height, blocksX, blocksY, bytesPerPixel, getDamageSpans(in, width, height));
+            // The zlib stream can not be rewound, so that a scene change is
+            // detected before the frame is compressed
+            if (isSceneChange(changedPixels, (long) width * height)) {
+                isKeyFrame = true;
+                workUsed = 0;
+            }
+        }
+        if (isKeyFrame) {
+            flags = FLAG_KEY_FRAME;
+            if (format == FORMAT_8BPP) {
+                for (int i = 0; i < 256; i++) {
+                    work[workUsed++] = (byte) (palette[i] >>> 16);
+                    work[workUsed++] = (byte) (palette[i] >>> 8);
+                    work[workUsed++] = (byte) palette[i];
+                }
+            }
+            for (int xy = 0, n = width * height; xy < n; xy++) {
+                putPixel(pixels[xy], bytesPerPixel);
+            }
+        }
+
+        SeekableByteArrayOutputStream tmp;
+        if (out.data instanceof byte[]) {
+            tmp = new SeekableByteArrayOutputStream((byte[]) out.data);
+        } else {
+            tmp = new SeekableByteArrayOutputStream();
+        }
+        tmp.write(flags);
+        if (isKeyFrame) {
+            tmp.write(0); // major version
+            tmp.write(1); // minor version
+            tmp.write(1); // compression: zlib
+            tmp.write(format);
+            tmp.write(BLOCK_WIDTH);
+            tmp.write(BLOCK_HEIGHT);
+            if (deflater != null && deflaterLevel != compressionLevel) {
+                deflater.end();
+                deflater = null;
+            }
+            if (deflater == null) {
+                deflater = new Deflater(compressionLevel);
+                deflaterLevel = compressionLevel;
+            } else {
+                deflater.reset();
+            }
+        }
+        // The zlib stream continues until the next key frame
+        deflater.setInput(work, 0, workUsed);
+        int count;
+        do {
+            count = deflater.deflate(deflateBuf, 0, deflateBuf.length, Deflater.SYNC_FLUSH);
+            tmp.write(deflateBuf, 0, count);
+        } while (count == deflateBuf.length);
+
+        int[] swap = previousPixels == null ? new int[pixels.length] : previousPixels;
+        previousPixels = pixels;
+        pixels = swap;
+        int[] swapHashes = previousHashes;
+        previousHashes = hashes;
+        hashes = swapHashes;
+        System.arraycopy(palette, 0, previousPalette, 0, 256);
+
+        out.flags = isKeyFrame ? Buffer.FLAG_KEY_FRAME : 0;
+        out.data = tmp.getBuffer();
+        out.offset = 0;
+        out.length = tmp.size();
+    }
+
+    /** Reads the palette of an indexed image. */
+    private void readPalette(Buffer in) {
+        if (in.data instanceof BufferedImage && ((BufferedImage) in.data).getColorModel() instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) ((BufferedImage) in.data).getColorModel();
+            Arrays.fill(palette, 0);
+            icm.getRGBs(palette);
+            for (int i = 0; i < 256; i++) {
+                palette[i] &= 0xffffff;
+            }
+        }
+    }
+
+    private void putPixel(int v, int bytesPerPixel) {
+        // Pixels are little-endian
+        work[workUsed++] = (byte) v;
+        if (bytesPerPixel > 1) {
+            work[workUsed++] = (byte) (v >>> 8);
+            if (bytesPerPixel > 2) {
+                work[workUsed++] = (byte) (v >>> 16);
+                work[workUsed++] = (byte) (v >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Computes the hash of each block-wide segment of each scanline of the
+     * current frame.
+     */
+    private void computeHashes(int width, int height, int blocksX) {
+        if (hashes == null || hashes.length != height * blocksX) {
+            hashes = new int[height * blocksX];
+        }
+        if (previousHashes != null && previousHashes.length != hashes.length) {
+            previousHashes = null;
+        }
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x += BLOCK_WIDTH) {
+                int hash = 1;
+                for (int xy = y * width + x, end = xy + min(BLOCK_WIDTH, width - x); xy < end; xy++) {
+                    hash = 31 * hash + pixels[xy];
+                }
+                hashes[i++] = hash;
+            }
+        }
+    }
+
+    /**
+     * Fills the candidate list with the motion vectors which are tried on
+     * each block: The dominant vertical shifts of the frame first, then
+     * vertical and finally horizontal shifts by increasing distance.
+     * <p>
+     * A segment votes for each shift under which it matches a segment of the
+     * previous frame, if it has changed and differs from the segment above
+     * it. Flat areas match under every shift and therefore do not vote.
+     */
+    private void findCandidates(int height, int blocksX) {
+        int range = searchRange;
+        if (shiftVotes == null || shiftVotes.length != 2 * range + 1) {
+            shiftVotes = new int[2 * range + 1];
+            candidates = new int[2 * (2 * (range / 4) + 2 * (range / 8) + SHIFT_CANDIDATES)];
+        } else {
+            Arrays.fill(shiftVotes, 0);
+        }
+        candidateCount = 0;
+        if (previousHashes != null) {
+            for (int y = 1; y < height; y++) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int hash = hashes[y * blocksX + bx];
+                    if (hash == previousHashes[y * blocksX + bx] || hash == hashes[(y - 1) * blocksX + bx]) {
+                        continue;
+                    }
+                    for (int dy = -range; dy <= range; dy++) {
+                        int py = y + dy;
+                        if (dy != 0 && py >= 0 && py < height && previousHashes[py * blocksX + bx] == hash) {
+                            shiftVotes[dy + range]++;
+                        }
+                    }
+                }
+            }
+            for (int k = 0; k < SHIFT_CANDIDATES; k++) {
+                int best = -1;
+                for (int i = 0; i < shiftVotes.length; i++) {
+                    if (shiftVotes[i] > 0 && (best == -1 || shiftVotes[i] > shiftVotes[best])) {
+                        best = i;
+                    }
+                }
+                if (best == -1) {
+                    break;
+                }
+                shiftVotes[best] = 0;
+                addCandidate(0, best - range);
+            }
+        }
+        for (int d = 1; d <= range / 4; d++) {
+            addCandidate(0, d);
+            addCandidate(0, -d);
+        }
+        for (int d = 1; d <= range / 8; d++) {
+            addCandidate(d, 0);
+            addCandidate(-d, 0);
+        }
+    }
+
+    private void addCandidate(int dx, int dy) {
+        for (int i = 0; i < candidateCount; i++) {
+            if (candidates[i * 2] == dx && candidates[i * 2 + 1] == dy) {
+                return;
+            }
+        }
+        candidates[candidateCount * 2] = dx;
+        candidates[candidateCount * 2 + 1] = dy;
+        candidateCount++;
+    }
+
+    /**
+     * Writes the motion vectors and the XOR differences of a delta frame.
+     * Returns the number of pixels which differ from the blocks they are
+     * copied from.
+     */
+    private long writeBlocks(int width, int height, int blocksX, int blocksY, int bytesPerPixel, int[] damage) {
+        findCandidates(height, blocksX);
+        int vectors = workUsed;
+        // Align the XOR data on a 4 byte boundary
+        workUsed += (blocksX * blocksY * 2 + 3) & ~3;
+        Arrays.fill(work, vectors, workUsed, (byte) 0);
+        long changedPixels = 0;
+        int block = 0;
+        for (int y = 0; y < height; y += BLOCK_HEIGHT) {
+            int bh = min(BLOCK_HEIGHT, height - y);
+            for (int x = 0; x < width; x += BLOCK_WIDTH, block++) {
+                int bw = min(BLOCK_WIDTH, width - x);
+                if (damage != null && !isDamaged(damage, x, y, bw, bh)) {
+                    continue;
+                }
+                int bestDx = 0;
+                int bestDy = 0;
+                int bestChange = countChanges(width, x, y, bw, bh, 0, 0, Integer.MAX_VALUE);
+                int possibles = MAX_FULL_COMPARES;
+                for (int i = 0; i < candidateCount && bestChange > 0 && possibles > 0; i++) {
+                    int dx = candidates[i * 2];
+                    int dy = candidates[i * 2 + 1];
+                    if (x + dx < 0 || x + dx + bw > width || y + dy < 0 || y + dy + bh > height) {
+                        continue;
+                    }
+                    if (sampleChanges(width, x, y, bw, bh, dx, dy) < 4) {
+                        possibles--;
+                        int change = countChanges(width, x, y, bw, bh, dx, dy, bestChange);
+                        if (change < bestChange) {
+                            bestChange = change;
+                            bestDx = dx;
+                            bestDy = dy;
+                        }
+                    }
+                }
+                work[vectors + block * 2] = (byte) ((bestDx << 1) | (bestChange > 0 ? 1 : 0));
+                work[vectors + block * 2 + 1] = (byte) (bestDy << 1);
+                if (bestChange > 0) {
+                    changedPixels += bestChange;
+                    for (int j = 0; j < bh; j++) {
+                        int xy = (y + j) * width + x;
+                        int pxy = xy + bestDy * width + bestDx;
+                        for (int i = 0; i < bw; i++) {
+                            putPixel(pixels[xy + i] ^ previousPixels[pxy + i], bytesPerPixel);
+                        }
+                    }
+                }
+            }
+        }
+        return changedPixels;
+    }
+
+    /** Returns true if a scanline of the block is in a damaged span. */
+    private static boolean isDamaged(int[] damage, int x, int y, int bw, int bh) {
+        for (int j = y; j < y + bh; j++) {
+            if (damage[j * 2] < damage[j * 2 + 1] && damage[j * 2] < x + bw && damage[j * 2 + 1] > x) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the pixels of a block which differ from the block of the
+     * previous frame at the specified offset. Stops counting at
+     * {@code limit}.
+     */
+    private int countChanges(int width, int x, int y, int bw, int bh, int dx, int dy, int limit) {
+        int change = 0;
+        for (int j = 0; j < bh; j++) {
+            int xy = (y + j) * width + x;
+            int pxy = xy + dy * width + dx;
+            for (int i = 0; i < bw; i++) {
+                if (pixels[xy + i] != previousPixels[pxy + i] && ++change >= limit) {
+                    return change;
+                }
+            }
+        }
+        return change;
+    }
+
+    /** Counts the differing pixels in a sparse grid of the block. */
+    private int sampleChanges(int width, int x, int y, int bw, int bh, int dx, int dy) {
+        int change = 0;
+        for (int j = 0; j < bh; j += 4) {
+            int xy = (y + j) * width + x;
+            int pxy = xy + dy * width + dx;
+            for (int i = 0; i < bw; i += 4) {
+                if (pixels[xy + i] != previousPixels[pxy + i]) {
+                    change++;
+                }
+            }
+        }
+        return change;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * @(#)InverseColorMap.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.color;
+
+import java.awt.image.IndexColorModel;
+import java.util.stream.IntStream;
+
+/**
+ * Maps RGB colors to the indices of the nearest colors of a palette.
+ * <p>
+ * The map is a lookup table with 32K entries, one for each color with 5 bits
+ * per component. Thus mapping a pixel costs one table lookup.
+ * <p>
+ * Optionally, the pixels are dithered with a 4x4 ordered dither matrix. This
+ * gives smoother gradients, but makes flat areas noisy, which compress less
+ * well.
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-13 Created.
+ */
+public class InverseColorMap {
+
+    /** The 4x4 Bayer matrix. */
+    private final static int[] BAYER = {
+        0, 8, 2, 10,
+        12, 4, 14, 6,
+        3, 11, 1, 9,
+        15, 7, 13, 5};
+    /** Images with at least this many pixels are converted in parallel bands. */
+    private final static int PARALLEL_THRESHOLD = 1 << 16;
+    /** The palette index of each RGB 555 color. */
+    private final byte[] map = new byte[1 << 15];
+    /** The dither offset of each position in the dither matrix. */
+    private final int[] ditherOffsets = new int[16];
+
+    /**
+     * Creates an inverse color map for the specified palette.
+     *
+     * @param palette The palette.
+     */
+    public InverseColorMap(IndexColorModel palette) {
+        int size = palette.getMapSize();
+        int[] rgbs = new int[size];
+        palette.getRGBs(rgbs);
+        for (int rgb15 = 0; rgb15 < map.length; rgb15++) {
+            // Use the center of the 555 color cell
+            int r = ((rgb15 >>> 10) << 3) | 4;
+            int g = (((rgb15 >>> 5) & 0x1f) << 3) | 4;
+            int b = ((rgb15 & 0x1f) << 3) | 4;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int dr = ((rgbs[i] >>> 16) & 0xff) - r;
+                int dg = ((rgbs[i] >>> 8) & 0xff) - g;
+                int db = (rgbs[i] & 0xff) - b;
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            map[rgb15] = (byte) best;
+        }
+
+        // Dither by about the distance between the colors of the palette
+        int spread = (int) (256 / Math.cbrt(size));
+        for (int i = 0; i < 16; i++) {
+            ditherOffsets[i] = (BAYER[i] * 2 - 15) * spread / 32;
+        }
+    }
+
+    /** Returns the palette index of the nearest color of an RGB color. */
+    public int lookup(int rgb) {
+        return map[((rgb >>> 9) & 0x7c00) | ((rgb >>> 6) & 0x3e0) | ((rgb >>> 3) & 0x1f)] & 0xff;
+    }
+
+    /**
+     * Converts RGB pixels into palette indices.
+     *
+     * @param src The RGB pixels.
+     * @param srcOffset The index of the first source pixel.
+     * @param srcStride The scanline stride of the source pixels.
+     * @param dst The indexed pixels.
+     * @param dstOffset The index of the first destination pixel.
+     * @param dstStride The scanline stride of the destination pixels.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param dither Whether to use ordered dithering.
+     */
+    public void toIndexed(int[] src, int srcOffset, int srcStride, byte[] dst, int dstOffset, int dstStride,
+            int width, int height, boolean dither) {
+        if (width * height < PARALLEL_THRESHOLD) {
+            toIndexed(src, srcOffset, srcStride, dst, dstOffset, dstStride, width, 0, height, dither);
+            return;
+        }
+        int bands = Runtime.getRuntime().availableProcessors();
+        IntStream.range(0, bands).parallel().forEach(band
+                -> toIndexed(src, srcOffset, srcStride, dst, dstOffset, dstStride, width,
+                        band * height / bands, (band + 1) * height / bands, dither));
+    }
+
+    private void toIndexed(int[] src, int srcOffset, int srcStride, byte[] dst, int dstOffset, int dstStride,
+            int width, int fromLine, int toLine, boolean dither) {
+        byte[] map = this.map;
+        for (int y = fromLine; y < toLine; y++) {
+            int xy = srcOffset + y * srcStride;
+            int dxy = dstOffset + y * dstStride;
+            if (dither) {
+                int row = (y & 3) << 2;
+                for (int x = 0; x < width; x++) {
+                    int p = src[xy + x];
+                    int d = ditherOffsets[row | (x & 3)];
+                    int r = clamp(((p >>> 16) & 0xff) + d);
+                    int g = clamp(((p >>> 8) & 0xff) + d);
+                    int b = clamp((p & 0xff) + d);
+                    dst[dxy + x] = map[((r << 7) & 0x7c00) | ((g << 2) & 0x3e0) | (b >>> 3)];
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int p = src[xy + x];
+                    dst[dxy + x] = map[((p >>> 9) & 0x7c00) | ((p >>> 6) & 0x3e0) | ((p >>> 3) & 0x1f)];
+                }
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+}
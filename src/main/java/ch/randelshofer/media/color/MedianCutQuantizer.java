@@ -0,0 +1,265 @@
+/*
+ * @(#)MedianCutQuantizer.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.color;
+
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/**
+ * Creates an optimized palette for the colors of an image with the median
+ * cut algorithm.
+ * <p>
+ * The pixels are gathered in a histogram with one bin for each color with 5
+ * bits per component. Each bin remembers the mean of its colors. If there
+ * are not more bins than palette colors, the palette consists of these
+ * means, and thus has the exact colors of images with few colors. Otherwise
+ * the bins are split into boxes along the longest side of the box, at the
+ * median of the pixel count, until there are as many boxes as palette
+ * colors.
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-13 Created.
+ */
+public class MedianCutQuantizer {
+
+    private final static int BIN_COUNT = 1 << 15;
+    /** The number of pixels in each bin. */
+    private final int[] counts = new int[BIN_COUNT];
+    /** The sums of the color components of the pixels in each bin. */
+    private final long[] sumR = new long[BIN_COUNT];
+    private final long[] sumG = new long[BIN_COUNT];
+    private final long[] sumB = new long[BIN_COUNT];
+    /** The mean color of each bin. */
+    private final int[] means = new int[BIN_COUNT];
+    /** The maximal number of palette colors. */
+    private final int colorCount;
+    /** The mean squared error of the last palette which was created. */
+    private double error;
+
+    /**
+     * Creates a new quantizer.
+     *
+     * @param colorCount The maximal number of palette colors.
+     */
+    public MedianCutQuantizer(int colorCount) {
+        this.colorCount = colorCount;
+    }
+
+    /** Removes all pixels from the histogram. */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(sumR, 0);
+        Arrays.fill(sumG, 0);
+        Arrays.fill(sumB, 0);
+    }
+
+    /**
+     * Adds the pixels of an image to the histogram.
+     *
+     * @param rgb The RGB pixels.
+     * @param offset The index of the first pixel.
+     * @param stride The scanline stride.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param step Only adds every {@code step}-th pixel of every
+     * {@code step}-th scanline.
+     */
+    public void addPixels(int[] rgb, int offset, int stride, int width, int height, int step) {
+        for (int y = 0; y < height; y += step) {
+            int xy = offset + y * stride;
+            for (int x = 0; x < width; x += step) {
+                int p = rgb[xy + x];
+                int bin = ((p >>> 9) & 0x7c00) | ((p >>> 6) & 0x3e0) | ((p >>> 3) & 0x1f);
+                counts[bin]++;
+                sumR[bin] += (p >>> 16) & 0xff;
+                sumG[bin] += (p >>> 8) & 0xff;
+                sumB[bin] += p & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Creates a palette for the pixels in the histogram.
+     *
+     * @return The RGB colors of the palette. Has at most {@code colorCount}
+     * entries.
+     */
+    public int[] createPalette() {
+        computeMeans();
+        int n = 0;
+        int[] bins = new int[BIN_COUNT];
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            if (counts[bin] != 0) {
+                bins[n++] = bin;
+            }
+        }
+
+        // Each box is a range of bins, boxes[i] to boxes[i + 1]
+        int[] boxes = new int[colorCount + 1];
+        long[] scores = new long[colorCount];
+        int[] axes = new int[colorCount];
+        int boxCount = (n == 0) ? 0 : 1;
+        boxes[1] = n;
+        scoreBox(bins, boxes, 0, scores, axes);
+        long[] keys = new long[n];
+        while (boxCount < colorCount) {
+            // Split the box with the longest side, weighted by its pixel count
+            int box = -1;
+            for (int i = 0; i < boxCount; i++) {
+                if (scores[i] > 0 && (box == -1 || scores[i] > scores[box])) {
+                    box = i;
+                }
+            }
+            if (box == -1) {
+                break;
+            }
+
+            // Sort the bins of the box along the axis, and split at the median
+            int from = boxes[box];
+            int to = boxes[box + 1];
+            for (int i = from; i < to; i++) {
+                keys[i] = ((long) getMean(bins[i], axes[box]) << 32) | bins[i];
+            }
+            Arrays.sort(keys, from, to);
+            long half = getCount(bins, from, to) / 2;
+            long count = 0;
+            int split = from + 1;
+            for (int i = from; i < to; i++) {
+                bins[i] = (int) keys[i];
+                count += counts[bins[i]];
+                if (count <= half) {
+                    split = i + 1;
+                }
+            }
+            split = Math.max(from + 1, Math.min(to - 1, split));
+
+            System.arraycopy(boxes, box + 1, boxes, box + 2, boxCount - box);
+            System.arraycopy(scores, box + 1, scores, box + 2, boxCount - box - 1);
+            System.arraycopy(axes, box + 1, axes, box + 2, boxCount - box - 1);
+            boxes[box + 1] = split;
+            boxCount++;
+            scoreBox(bins, boxes, box, scores, axes);
+            scoreBox(bins, boxes, box + 1, scores, axes);
+        }
+
+        // Each palette color is the mean of the pixels in its box
+        int[] colors = new int[boxCount];
+        double squaredError = 0;
+        long pixelCount = 0;
+        for (int i = 0; i < boxCount; i++) {
+            long r = 0, g = 0, b = 0, count = 0;
+            for (int j = boxes[i]; j < boxes[i + 1]; j++) {
+                int bin = bins[j];
+                r += sumR[bin];
+                g += sumG[bin];
+                b += sumB[bin];
+                count += counts[bin];
+            }
+            colors[i] = (int) ((r / count) << 16 | (g / count) << 8 | (b / count));
+            for (int j = boxes[i]; j < boxes[i + 1]; j++) {
+                squaredError += getSquaredError(bins[j], colors[i]);
+            }
+            pixelCount += count;
+        }
+        error = (pixelCount == 0) ? 0 : squaredError / pixelCount;
+        return colors;
+    }
+
+    /**
+     * Returns the mean squared error of the last palette which was created
+     * with {@link #createPalette}.
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Returns the mean squared error of the pixels in the histogram, if they
+     * are mapped to the specified palette.
+     *
+     * @param palette The palette.
+     * @param map The inverse color map of the palette.
+     */
+    public double getError(IndexColorModel palette, InverseColorMap map) {
+        computeMeans();
+        double squaredError = 0;
+        long pixelCount = 0;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            if (counts[bin] != 0) {
+                squaredError += getSquaredError(bin, palette.getRGB(map.lookup(means[bin])));
+                pixelCount += counts[bin];
+            }
+        }
+        return (pixelCount == 0) ? 0 : squaredError / pixelCount;
+    }
+
+    /** Returns the squared error of the pixels in a bin, when mapped to a color. */
+    private double getSquaredError(int bin, int rgb) {
+        int dr = getMean(bin, 0) - ((rgb >>> 16) & 0xff);
+        int dg = getMean(bin, 1) - ((rgb >>> 8) & 0xff);
+        int db = getMean(bin, 2) - (rgb & 0xff);
+        return (double) (dr * dr + dg * dg + db * db) * counts[bin];
+    }
+
+    /** Computes the mean color of each bin. */
+    private void computeMeans() {
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            int count = counts[bin];
+            if (count != 0) {
+                means[bin] = (int) ((sumR[bin] / count) << 16 | (sumG[bin] / count) << 8 | (sumB[bin] / count));
+            }
+        }
+    }
+
+    /** Returns the mean of a color component of the pixels in a bin. */
+    private int getMean(int bin, int axis) {
+        return (means[bin] >>> (16 - axis * 8)) & 0xff;
+    }
+
+    /** Returns the number of pixels in a range of bins. */
+    private long getCount(int[] bins, int from, int to) {
+        long count = 0;
+        for (int i = from; i < to; i++) {
+            count += counts[bins[i]];
+        }
+        return count;
+    }
+
+    /**
+     * Computes the score of a box, and the axis along which it is split. The
+     * score is 0 if the box can not be split.
+     */
+    private void scoreBox(int[] bins, int[] boxes, int box, long[] scores, int[] axes) {
+        int from = boxes[box];
+        int to = boxes[box + 1];
+        if (to - from < 2) {
+            scores[box] = 0;
+            return;
+        }
+        int[] min = {255, 255, 255};
+        int[] max = {0, 0, 0};
+        for (int i = from; i < to; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                int v = getMean(bins[i], axis);
+                min[axis] = Math.min(min[axis], v);
+                max[axis] = Math.max(max[axis], v);
+            }
+        }
+        int longest = 0;
+        for (int axis = 1; axis < 3; axis++) {
+            if (max[axis] - min[axis] > max[longest] - min[longest]) {
+                longest = axis;
+            }
+        }
+        axes[box] = longest;
+        scores[box] = (long) (max[longest] - min[longest] + 1) * getCount(bins, from, to);
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * @(#)FileChannelImageOutputStream.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.io;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An image output stream which writes into a {@code FileChannel} through
+ * large direct buffers.
+ * <p>
+ * The movie writers issue many small writes for chunk and atom headers, and
+ * seek back to patch the size of a header when its data is complete. This
+ * stream collects the writes in a buffer, so that a patch of a header which
+ * is still in the buffer does not cost a system call. A small patch of data
+ * which has already been written is kept, and written together with the
+ * buffer. A write which does not fit into the buffer is written together
+ * with the buffered data with a single gathering write, so that the header
+ * and the data of a large frame take one system call.
+ * <p>
+ * With more than one buffer, the stream is asynchronous: A full buffer is
+ * handed over to a background thread, which writes it into the channel and
+ * then returns it to the pool of buffers. The background thread writes
+ * adjacent buffers with a single gathering write. The thread which writes
+ * into the stream only waits for the channel when all buffers are being
+ * written, when it reads, and when it flushes or closes the stream. An
+ * I/O error of the background thread is thrown by the next of these.
+ * <p>
+ * Reading flushes the buffers and reads from the channel.
+ *
+ * @author Werner Randelshofer
+ * @version 1.1 2011-03-12 Adds asynchronous writing.
+ * <br>1.0 2011-03-12 Created.
+ */
+public class FileChannelImageOutputStream extends ImageOutputStreamImpl {
+
+    /** The default size of a buffer. */
+    public final static int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /** The default number of buffers of an asynchronous stream. */
+    public final static int DEFAULT_ASYNCHRONOUS_BUFFER_COUNT = 8;
+    /** The maximal length of a write which is kept as a patch. */
+    private final static int MAX_PATCH_LENGTH = 64;
+    /** The maximal number of buffers which are written with one gathering write. */
+    private final static int MAX_GATHER = 16;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    /** The position in the channel of the first byte in the buffer. */
+    private long bufferStart;
+    /** The number of bytes in the buffer. */
+    private int bufferLength;
+    /** The data of the patches. */
+    private byte[] patchData = new byte[MAX_PATCH_LENGTH * 4];
+    /** The position in the channel and the length of each patch. */
+    private long[] patchPositions = new long[8];
+    private int[] patchLengths = new int[8];
+    private int patchCount;
+    private int patchDataLength;
+    /** The end of the data which has been handed over to the background thread. */
+    private long handedOverEnd;
+    /** With asynchronous writing, the buffers which are not in use. */
+    private BlockingQueue<ByteBuffer> freeBuffers;
+    /** With asynchronous writing, the writes in the order in which they are done. */
+    private BlockingQueue<PendingWrite> pendingWrites;
+    private Thread writerThread;
+    /** The first I/O error of the background thread. */
+    private volatile IOException writeException;
+
+    /** A write which is done by the background thread. */
+    private static class PendingWrite {
+
+        final ByteBuffer data;
+        final long position;
+        /** Whether the data is a buffer of the pool. */
+        final boolean pooled;
+        /** The latch which is released when all preceding writes are done, or null. */
+        final CountDownLatch barrier;
+
+        PendingWrite(ByteBuffer data, long position, boolean pooled) {
+            this.data = data;
+            this.position = position;
+            this.pooled = pooled;
+            this.barrier = null;
+        }
+
+        PendingWrite(CountDownLatch barrier) {
+            this.data = null;
+            this.position = -1;
+            this.pooled = false;
+            this.barrier = barrier;
+        }
+    }
+
+    /**
+     * Creates a stream which writes into a file. If the file exists, it is
+     * truncated.
+     */
+    public FileChannelImageOutputStream(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a stream which writes into a file with the specified buffer
+     * size. If the file exists, it is truncated.
+     */
+    public FileChannelImageOutputStream(File file, int bufferSize) throws IOException {
+        this(file, bufferSize, 1);
+    }
+
+    /**
+     * Creates a stream which writes into a file with the specified number of
+     * buffers. If there is more than one buffer, the stream is asynchronous.
+     * If the file exists, it is truncated.
+     */
+    public FileChannelImageOutputStream(File file, int bufferSize, int bufferCount) throws IOException {
+        this(FileChannel.open(file.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING), bufferSize, bufferCount);
+    }
+
+    /**
+     * Creates a stream which writes into a channel, starting at position 0.
+     * If there is more than one buffer, the stream is asynchronous. The
+     * channel must be readable if data is read from the stream. It is closed
+     * when the stream is closed.
+     */
+    public FileChannelImageOutputStream(FileChannel channel, int bufferSize, int bufferCount) {
+        if (bufferSize <= 0 || bufferCount <= 0) {
+            throw new IllegalArgumentException("Illegal buffer size " + bufferSize + " or count " + bufferCount);
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        if (bufferCount > 1) {
+            freeBuffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+            for (int i = 1; i < bufferCount; i++) {
+                freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+            pendingWrites = new LinkedBlockingQueue<PendingWrite>();
+            writerThread = new Thread(this::writePendingWrites, "FileChannelImageOutputStream-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /** Returns true if full buffers are written by a background thread. */
+    public boolean isAsynchronous() {
+        return writerThread != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        long index = streamPos - bufferStart;
+        if (bufferLength > 0 && index >= 0 && index < buffer.capacity() && index <= bufferLength) {
+            buffer.put((int) index, (byte) b);
+            bufferLength = max(bufferLength, (int) index + 1);
+            streamPos++;
+        } else {
+            byte[] bytes = {(byte) b};
+            write(bytes, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        long index = streamPos - bufferStart;
+        if (bufferLength > 0 && (index < 0 || index > bufferLength)) {
+            if (index + len <= 0 && len <= MAX_PATCH_LENGTH) {
+                addPatch(b, off, len);
+                streamPos += len;
+                return;
+            }
+            flushBuffer();
+        }
+        if (bufferLength == 0) {
+            bufferStart = streamPos;
+            index = 0;
+        }
+        if (index + len <= buffer.capacity()) {
+            buffer.position((int) index);
+            buffer.put(b, off, len);
+            bufferLength = max(bufferLength, (int) index + len);
+        } else if (index == bufferLength && isAsynchronous()) {
+            // Fill the buffers, so that the background thread writes them
+            // with a single gathering write
+            for (int n = 0; n < len; ) {
+                if (bufferLength == buffer.capacity()) {
+                    flushBuffer();
+                    bufferStart = streamPos + n;
+                }
+                int count = min(len - n, buffer.capacity() - bufferLength);
+                buffer.position(bufferLength);
+                buffer.put(b, off + n, count);
+                bufferLength += count;
+                n += count;
+            }
+        } else if (index == bufferLength) {
+            // Write the buffer and the data with a single system call
+            buffer.position(0).limit(bufferLength);
+            ByteBuffer data = ByteBuffer.wrap(b, off, len);
+            ByteBuffer[] srcs = {buffer, data};
+            channel.position(bufferStart);
+            while (data.hasRemaining()) {
+                channel.write(srcs);
+            }
+            buffer.clear();
+            bufferLength = 0;
+        } else {
+            flushBuffer();
+            awaitPendingWrites();
+            writeFully(ByteBuffer.wrap(b, off, len), streamPos);
+        }
+        streamPos += len;
+    }
+
+    /** Keeps a write of data which is no longer in the buffer. */
+    private void addPatch(byte[] b, int off, int len) {
+        int last = patchCount - 1;
+        if (last >= 0 && patchPositions[last] + patchLengths[last] == streamPos
+                && patchLengths[last] + len <= MAX_PATCH_LENGTH) {
+            // Append to the previous patch, e.g. the size after the type of a header
+            patchLengths[last] += len;
+        } else {
+            if (patchCount == patchPositions.length) {
+                patchPositions = Arrays.copyOf(patchPositions, patchCount * 2);
+                patchLengths = Arrays.copyOf(patchLengths, patchCount * 2);
+            }
+            patchPositions[patchCount] = streamPos;
+            patchLengths[patchCount] = len;
+            patchCount++;
+        }
+        if (patchDataLength + len > patchData.length) {
+            patchData = Arrays.copyOf(patchData, max(patchData.length * 2, patchDataLength + len));
+        }
+        System.arraycopy(b, off, patchData, patchDataLength, len);
+        patchDataLength += len;
+    }
+
+    /**
+     * Writes the buffer and the patches into the channel, or hands them over
+     * to the background thread.
+     */
+    private void flushBuffer() throws IOException {
+        checkWriteException();
+        // The patches are written after the data which they patch, because
+        // the background thread writes in order
+        for (int i = 0, off = 0; i < patchCount; off += patchLengths[i], i++) {
+            if (isAsynchronous()) {
+                pendingWrites.add(new PendingWrite(ByteBuffer.wrap(Arrays.copyOfRange(patchData, off, off + patchLengths[i])), patchPositions[i], false));
+            } else {
+                writeFully(ByteBuffer.wrap(patchData, off, patchLengths[i]), patchPositions[i]);
+            }
+        }
+        patchCount = 0;
+        patchDataLength = 0;
+        if (bufferLength > 0) {
+            buffer.position(0).limit(bufferLength);
+            if (isAsynchronous()) {
+                pendingWrites.add(new PendingWrite(buffer, bufferStart, true));
+                handedOverEnd = max(handedOverEnd, bufferStart + bufferLength);
+                try {
+                    buffer = freeBuffers.take();
+                } catch (InterruptedException ex) {
+                    InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for a free buffer.");
+                    iioe.initCause(ex);
+                    throw iioe;
+                }
+            } else {
+                writeFully(buffer, bufferStart);
+                buffer.clear();
+            }
+            bufferLength = 0;
+        }
+    }
+
+    /** Waits until the background thread has done all writes which have been handed over. */
+    private void awaitPendingWrites() throws IOException {
+        if (isAsynchronous()) {
+            CountDownLatch barrier = new CountDownLatch(1);
+            pendingWrites.add(new PendingWrite(barrier));
+            try {
+                barrier.await();
+            } catch (InterruptedException ex) {
+                InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for pending writes.");
+                iioe.initCause(ex);
+                throw iioe;
+            }
+        }
+        checkWriteException();
+    }
+
+    private void checkWriteException() throws IOException {
+        if (writeException != null) {
+            throw new IOException("Writing into the channel failed.", writeException);
+        }
+    }
+
+    /**
+     * The background thread. Writes adjacent pending writes with a single
+     * gathering write, and returns the buffers to the pool.
+     */
+    private void writePendingWrites() {
+        PendingWrite[] batch = new PendingWrite[MAX_GATHER];
+        ByteBuffer[] srcs = new ByteBuffer[MAX_GATHER];
+        try {
+            for (;;) {
+                PendingWrite first = pendingWrites.take();
+                if (first.barrier != null) {
+                    first.barrier.countDown();
+                    continue;
+                }
+                int n = 0;
+                batch[n++] = first;
+                long end = first.position + first.data.remaining();
+                for (PendingWrite next = pendingWrites.peek(); n < MAX_GATHER && next != null
+                        && next.barrier == null && next.position == end; next = pendingWrites.peek()) {
+                    batch[n++] = pendingWrites.remove();
+                    end += next.data.remaining();
+                }
+                if (writeException == null) {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            srcs[i] = batch[i].data;
+                        }
+                        channel.position(first.position);
+                        while (srcs[n - 1].hasRemaining()) {
+                            channel.write(srcs, 0, n);
+                        }
+                    } catch (IOException ex) {
+                        writeException = ex;
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    if (batch[i].pooled) {
+                        batch[i].data.clear();
+                        freeBuffers.add(batch[i].data);
+                    }
+                    batch[i] = null;
+                    srcs[i] = null;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // the stream is being closed
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        flushBuffer();
+        awaitPendingWrites();
+        int count = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+        if (count > 0) {
+            streamPos += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long length() {
+        try {
+            checkClosed();
+            return max(max(channel.size(), handedOverEnd), bufferStart + bufferLength);
+        } catch (IOException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Writes the buffered data into the channel. Unlike the method of the
+     * super class, this method does not discard the data before the current
+     * position, so that the stream can still seek back.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        flushBuffer();
+        awaitPendingWrites();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            try {
+                flushBuffer();
+                awaitPendingWrites();
+            } finally {
+                if (writerThread != null) {
+                    // The background thread is idle, or the stream is
+                    // closed after an error
+                    writerThread.interrupt();
+                }
+                channel.close();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * @(#)ZlibBands.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+import static java.lang.Math.min;
+
+/**
+ * Compresses data in bands, which are deflated in parallel and concatenated
+ * into one zlib stream.
+ * <p>
+ * Each band is deflated by its own raw deflater into a sync-flushed deflate
+ * block, and only the last band finishes the stream. The deflater of a band
+ * is primed with the end of the previous band, so that the bands compress
+ * almost as well as the data in one piece. The zlib header is written in
+ * front of the first block, and the Adler-32 checksum of the data, combined
+ * from the checksums of the bands, behind the last block.
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-12 Created.
+ */
+public class ZlibBands {
+
+    /** The size of the deflate window, which is primed with the end of the previous band. */
+    public final static int DICTIONARY_SIZE = 32 * 1024;
+
+    /** A task on a band. */
+    public interface BandTask {
+
+        void run(int band) throws IOException;
+    }
+
+    /** Prevent instance creation. */
+    private ZlibBands() {
+    }
+
+    /**
+     * Runs a task on each band on the common fork/join pool, and waits until
+     * all are done. A single band is run on the calling thread.
+     *
+     * @param n The number of bands.
+     * @param task The task.
+     */
+    public static void runBands(int n, final BandTask task) throws IOException {
+        if (n == 1) {
+            task.run(0);
+            return;
+        }
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+        for (int i = 0; i < n; i++) {
+            final int band = i;
+            tasks[i] = ForkJoinPool.commonPool().submit(() -> {
+                task.run(band);
+                return null;
+            });
+        }
+        try {
+            for (ForkJoinTask<?> t : tasks) {
+                t.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Deflates a band into a raw deflate block.
+     *
+     * @param deflater A raw deflater, which has been reset.
+     * @param previous The data of the previous band, or null for the first band.
+     * @param previousLength The length of the data of the previous band.
+     * @param data The data of the band.
+     * @param length The length of the data of the band.
+     * @param last Whether this is the last band, which finishes the stream.
+     * Otherwise the block is sync-flushed.
+     * @param buf A buffer for the deflated data.
+     * @param out Receives the deflated data.
+     */
+    public static void deflateBand(Deflater deflater, byte[] previous, int previousLength,
+            byte[] data, int length, boolean last, byte[] buf, OutputStream out) throws IOException {
+        if (previous != null) {
+            int dictionaryLength = min(DICTIONARY_SIZE, previousLength);
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(previous, previousLength - dictionaryLength, dictionaryLength);
+            }
+        }
+        deflater.setInput(data, 0, length);
+        if (!last) {
+            int count;
+            do {
+                count = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, count);
+            } while (count == buf.length);
+        } else {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buf);
+                out.write(buf, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Returns the zlib header for the compression level and strategy, with
+     * a 32K window.
+     */
+    public static int getZlibHeader(int compressionLevel, int compressionStrategy) {
+        int level = (compressionLevel == Deflater.DEFAULT_COMPRESSION) ? 6 : compressionLevel;
+        int levelFlags;
+        if (compressionStrategy == Deflater.HUFFMAN_ONLY || level < 2) {
+            levelFlags = 0;
+        } else if (level < 6) {
+            levelFlags = 1;
+        } else if (level == 6) {
+            levelFlags = 2;
+        } else {
+            levelFlags = 3;
+        }
+        int header = (0x78 << 8) | (levelFlags << 6);
+        return header + 31 - header % 31;
+    }
+
+    /** Writes the 2-byte zlib header. */
+    public static void writeZlibHeader(OutputStream out, int compressionLevel, int compressionStrategy) throws IOException {
+        int header = getZlibHeader(compressionLevel, compressionStrategy);
+        out.write(header >>> 8);
+        out.write(header & 0xff);
+    }
+
+    /** Writes the Adler-32 checksum, which ends a zlib stream. */
+    public static void writeAdler32(OutputStream out, long adler) throws IOException {
+        out.write((int) (adler >>> 24));
+        out.write((int) (adler >>> 16));
+        out.write((int) (adler >>> 8));
+        out.write((int) adler);
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated sequences of bytes,
+     * as {@code adler32_combine} of zlib does.
+     *
+     * @param adler1 The checksum of the first sequence.
+     * @param adler2 The checksum of the second sequence.
+     * @param length2 The length of the second sequence.
+     */
+    public static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + BASE - rem;
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum2 >= BASE << 1) {
+            sum2 -= BASE << 1;
+        }
+        if (sum2 >= BASE) {
+            sum2 -= BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+}
@@ -42,6 +42,10 @@ import java.io.IOException;
  */
 public class JPEGCodec extends AbstractVideoCodec {
 
+    /** The image writer. It is created for the first frame and reused. */
+    private ImageWriter writer;
+    private ImageWriteParam writeParam;
+
      @Override
     public Format setInputFormat(Format f) {
         if (f instanceof VideoFormat) {
@@ -82,14 +86,15 @@ public class JPEGCodec extends AbstractVideoCodec {
         }
 
         try {
-            ImageWriter iw = (ImageWriter) ImageIO.getImageWritersByMIMEType("image/jpeg").next();
-            ImageWriteParam iwParam = iw.getDefaultWriteParam();
-            iwParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            iwParam.setCompressionQuality(quality);
-            iw.setOutput(tmp);
-            IIOImage img = new IIOImage(image, null, null);
-            iw.write(null, img, iwParam);
-            iw.dispose();
+            if (writer == null) {
+                writer = ImageIO.getImageWritersByMIMEType("image/jpeg").next();
+                writeParam = writer.getDefaultWriteParam();
+                writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            }
+            writeParam.setCompressionQuality(quality);
+            writer.setOutput(tmp);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+            writer.setOutput(null);
 
             out.flags = Buffer.FLAG_KEY_FRAME;
             out.data = tmp.getBuffer();
@@ -97,8 +102,19 @@ public class JPEGCodec extends AbstractVideoCodec {
             out.length = (int) tmp.getStreamPosition();
         } catch (IOException ex) {
             ex.printStackTrace();
+            writer.dispose();
+            writer = null;
             out.flags = Buffer.FLAG_DISCARD;
             return;
         }
     }
+
+    /** Disposes the image writer. */
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.dispose();
+            writer = null;
+        }
+    }
 }
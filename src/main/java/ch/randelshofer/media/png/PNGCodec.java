@@ -14,18 +14,17 @@ import ch.randelshofer.media.AbstractVideoCodec;
 import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.Format;
 import ch.randelshofer.media.VideoFormat;
-import ch.randelshofer.media.io.ByteArrayImageOutputStream;
+import ch.randelshofer.media.io.SeekableByteArrayOutputStream;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
 /**
  * {@code PNGCodec} encodes a BufferedImage as a byte[] array..
  * <p>
+ * The images are encoded with a {@link PNGEncoder}, which is reused for all
+ * frames.
+ * <p>
  * Supported input formats:
  * <ul>
  * {@code VideoFormat} with {@code BufferedImage.class}, any width, any height,
@@ -42,6 +41,56 @@ import java.io.IOException;
  */
 public class PNGCodec extends AbstractVideoCodec {
 
+    private final PNGEncoder encoder = new PNGEncoder();
+
+    /**
+     * Sets the filter type of the scanlines.
+     *
+     * @see PNGEncoder#setFilter
+     */
+    public void setFilter(int newValue) {
+        encoder.setFilter(newValue);
+    }
+
+    public int getFilter() {
+        return encoder.getFilter();
+    }
+
+    /**
+     * Sets the compression level of the deflater.
+     *
+     * @see PNGEncoder#setCompressionLevel
+     */
+    public void setCompressionLevel(int newValue) {
+        encoder.setCompressionLevel(newValue);
+    }
+
+    public int getCompressionLevel() {
+        return encoder.getCompressionLevel();
+    }
+
+    /**
+     * Sets the number of horizontal bands which are compressed in parallel.
+     *
+     * @see PNGEncoder#setBandCount
+     */
+    public void setBandCount(int newValue) {
+        encoder.setBandCount(newValue);
+    }
+
+    public int getBandCount() {
+        return encoder.getBandCount();
+    }
+
+    /**
+     * Releases the native resources of the encoder. The movie writers call
+     * this method when they are closed.
+     */
+    @Override
+    public void close() {
+        encoder.close();
+    }
+
     @Override
     public Format setInputFormat(Format f) {
         if (f instanceof VideoFormat) {
@@ -74,20 +123,15 @@ public class PNGCodec extends AbstractVideoCodec {
             return;
         }
 
-        ByteArrayImageOutputStream tmp;
+        SeekableByteArrayOutputStream tmp;
         if (out.data instanceof byte[]) {
-            tmp = new ByteArrayImageOutputStream((byte[]) out.data);
+            tmp = new SeekableByteArrayOutputStream((byte[]) out.data);
         } else {
-            tmp = new ByteArrayImageOutputStream();
+            tmp = new SeekableByteArrayOutputStream();
         }
 
         try {
-            ImageWriter iw = (ImageWriter) ImageIO.getImageWritersByMIMEType("image/png").next();
-            ImageWriteParam iwParam = iw.getDefaultWriteParam();
-            iw.setOutput(tmp);
-            IIOImage img = new IIOImage(image, null, null);
-            iw.write(null, img, iwParam);
-            iw.dispose();
+            encoder.write(image, tmp);
 
             out.flags = Buffer.FLAG_KEY_FRAME;
             out.data = tmp.getBuffer();
@@ -0,0 +1,532 @@
+/*
+ * @(#)PNGEncoder.java
+ *
+ * Copyright (c) 2011 Werner Randelshofer, Immensee, Switzerland.
+ * All rights reserved.
+ *
+ * You may not use, copy or modify this file, except in compliance with the
+ * license agreement you entered into with Werner Randelshofer.
+ * For details see accompanying license terms.
+ */
+package ch.randelshofer.media.png;
+
+import ch.randelshofer.media.io.SeekableByteArrayOutputStream;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static ch.randelshofer.media.io.ZlibBands.combineAdler32;
+import static ch.randelshofer.media.io.ZlibBands.deflateBand;
+import static ch.randelshofer.media.io.ZlibBands.runBands;
+import static ch.randelshofer.media.io.ZlibBands.writeAdler32;
+import static ch.randelshofer.media.io.ZlibBands.writeZlibHeader;
+import static java.lang.Math.abs;
+import static java.lang.Math.min;
+
+/**
+ * {@code PNGEncoder} writes a BufferedImage as a PNG image with 8 bits per
+ * sample.
+ * <p>
+ * The pixels are read directly from the {@code DataBufferInt} of packed RGB
+ * and ARGB images, and from the {@code DataBufferByte} of interleaved gray,
+ * RGB, RGBA and 8-bit indexed images. Other images are read with
+ * {@code BufferedImage.getRGB}.
+ * <p>
+ * The deflaters are reused until the compression level changes. The
+ * scanlines can be split into horizontal bands, which are filtered and
+ * compressed in parallel. Each band is compressed into a sync-flushed raw
+ * deflate block, and the blocks are concatenated into one zlib stream, so
+ * that each band becomes one IDAT chunk of a regular PNG image.
+ * <p>
+ * An encoder is not thread-safe.
+ * <p>
+ * References:<br/>
+ * <a href="http://www.w3.org/TR/PNG/">http://www.w3.org/TR/PNG/</a><br>
+ *
+ * @author Werner Randelshofer
+ * @version 1.0 2011-03-12 Created.
+ */
+public class PNGEncoder {
+
+    /** Filter type: the scanlines are not filtered. */
+    public final static int FILTER_NONE = 0;
+    /** Filter type: each byte is predicted by the byte of the pixel to its left. */
+    public final static int FILTER_SUB = 1;
+    /** Filter type: each byte is predicted by the byte of the pixel above. */
+    public final static int FILTER_UP = 2;
+    /** Filter type: each byte is predicted by the average of the left and the above byte. */
+    public final static int FILTER_AVERAGE = 3;
+    /** Filter type: each byte is predicted by the Paeth predictor. */
+    public final static int FILTER_PAETH = 4;
+    /**
+     * The filter type of each scanline is chosen by the minimum sum of
+     * absolute differences heuristic. Indexed images are not filtered.
+     */
+    public final static int FILTER_ADAPTIVE = 5;
+    private final static int COLOR_TYPE_GRAY = 0;
+    private final static int COLOR_TYPE_RGB = 2;
+    private final static int COLOR_TYPE_INDEXED = 3;
+    private final static int COLOR_TYPE_RGBA = 6;
+    private final static byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private final static int IHDR = 0x49484452;
+    private final static int PLTE = 0x504c5445;
+    private final static int TRNS = 0x74524e53;
+    private final static int IDAT = 0x49444154;
+    private final static int IEND = 0x49454e44;
+    /** Bands are not made smaller than this number of scanlines. */
+    private final static int MIN_BAND_HEIGHT = 16;
+    private int filter = FILTER_ADAPTIVE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    /** The number of horizontal bands which are encoded in parallel. */
+    private int bandCount = 1;
+    private Band[] bands = new Band[0];
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunkHeader = new byte[8];
+
+    /** The encoding state of a band. */
+    private static class Band {
+
+        byte[] filtered = new byte[0];
+        int length;
+        byte[] raw = new byte[0];
+        byte[] prior = new byte[0];
+        /** The scanline filtered with each of the five filter types. */
+        byte[][] candidates = new byte[5][0];
+        final SeekableByteArrayOutputStream deflated = new SeekableByteArrayOutputStream();
+        Deflater deflater;
+        final byte[] buf = new byte[8192];
+        long adler;
+    }
+
+    /** Reads the samples of a scanline. */
+    private interface ScanlineReader {
+
+        /** Reads the samples of scanline {@code y} into {@code raw}. */
+        void read(int y, byte[] raw);
+    }
+
+    /**
+     * Sets the filter type of the scanlines: {@code FILTER_NONE},
+     * {@code FILTER_SUB}, {@code FILTER_UP}, {@code FILTER_AVERAGE},
+     * {@code FILTER_PAETH} or {@code FILTER_ADAPTIVE}.
+     * <p>
+     * The default value is {@code FILTER_ADAPTIVE}. {@code FILTER_SUB} and
+     * {@code FILTER_UP} are faster, and compress screen content almost as
+     * well.
+     */
+    public void setFilter(int newValue) {
+        if (newValue < FILTER_NONE || newValue > FILTER_ADAPTIVE) {
+            throw new IllegalArgumentException("Illegal filter " + newValue);
+        }
+        filter = newValue;
+    }
+
+    public int getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets the compression level of the deflater, from
+     * {@code Deflater.BEST_SPEED} to {@code Deflater.BEST_COMPRESSION}.
+     * <p>
+     * The default value is {@code Deflater.DEFAULT_COMPRESSION}.
+     */
+    public void setCompressionLevel(int newValue) {
+        if ((newValue < 1 || newValue > 9) && newValue != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Illegal compression level " + newValue);
+        }
+        if (compressionLevel != newValue) {
+            compressionLevel = newValue;
+            endDeflaters();
+        }
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the number of horizontal bands into which an image is split.
+     * The bands are filtered and compressed in parallel on the common
+     * fork/join pool.
+     * <p>
+     * The default value is 1, which encodes the image on the calling thread.
+     */
+    public void setBandCount(int newValue) {
+        bandCount = Math.max(1, newValue);
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Releases the native resources of the deflaters. The encoder can not be
+     * used afterwards.
+     */
+    public void close() {
+        endDeflaters();
+    }
+
+    private void endDeflaters() {
+        for (Band band : bands) {
+            if (band.deflater != null) {
+                band.deflater.end();
+                band.deflater = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the specified image as a PNG image.
+     *
+     * @param image The image.
+     * @param out The output stream.
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        Raster raster = image.getRaster();
+        ColorModel cm = image.getColorModel();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+
+        int colorType;
+        IndexColorModel palette = null;
+        ScanlineReader reader = null;
+        if (db instanceof DataBufferInt && db.getNumBanks() == 1
+                && sm instanceof SinglePixelPackedSampleModel
+                && cm instanceof DirectColorModel && !cm.isAlphaPremultiplied()
+                && hasByteMasks(((SinglePixelPackedSampleModel) sm).getBitMasks())) {
+            SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+            final int[] data = ((DataBufferInt) db).getData();
+            final int stride = sppsm.getScanlineStride();
+            final int base = db.getOffset() - ty * stride - tx;
+            int[] offsets = sppsm.getBitOffsets();
+            final int rShift = offsets[0], gShift = offsets[1], bShift = offsets[2];
+            if (offsets.length == 4) {
+                colorType = COLOR_TYPE_RGBA;
+                final int aShift = offsets[3];
+                reader = (y, raw) -> {
+                    for (int xy = base + y * stride, xymax = xy + width, i = 0; xy < xymax; xy++) {
+                        int v = data[xy];
+                        raw[i++] = (byte) (v >>> rShift);
+                        raw[i++] = (byte) (v >>> gShift);
+                        raw[i++] = (byte) (v >>> bShift);
+                        raw[i++] = (byte) (v >>> aShift);
+                    }
+                };
+            } else {
+                colorType = COLOR_TYPE_RGB;
+                reader = (y, raw) -> {
+                    for (int xy = base + y * stride, xymax = xy + width, i = 0; xy < xymax; xy++) {
+                        int v = data[xy];
+                        raw[i++] = (byte) (v >>> rShift);
+                        raw[i++] = (byte) (v >>> gShift);
+                        raw[i++] = (byte) (v >>> bShift);
+                    }
+                };
+            }
+        } else if (db instanceof DataBufferByte && db.getNumBanks() == 1
+                && sm instanceof PixelInterleavedSampleModel
+                && cm.getPixelSize() == 8 * sm.getNumBands()
+                && (cm instanceof IndexColorModel && sm.getNumBands() == 1
+                || cm instanceof ComponentColorModel && !cm.isAlphaPremultiplied()
+                && (sm.getNumBands() == 1 && cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY
+                || sm.getNumBands() >= 3 && cm.getColorSpace().isCS_sRGB()))) {
+            PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+            final byte[] data = ((DataBufferByte) db).getData();
+            final int stride = pism.getScanlineStride();
+            final int pixelStride = pism.getPixelStride();
+            final int base = db.getOffset() - ty * stride - tx * pixelStride;
+            final int[] bandOffsets = pism.getBandOffsets();
+            final int numBands = bandOffsets.length;
+            if (cm instanceof IndexColorModel) {
+                colorType = COLOR_TYPE_INDEXED;
+                palette = (IndexColorModel) cm;
+            } else if (numBands == 1) {
+                colorType = COLOR_TYPE_GRAY;
+            } else {
+                colorType = numBands == 4 ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+            }
+            if (numBands == 1 && pixelStride == 1) {
+                final int offset = base + bandOffsets[0];
+                reader = (y, raw) -> System.arraycopy(data, offset + y * stride, raw, 0, width);
+            } else {
+                reader = (y, raw) -> {
+                    for (int xy = base + y * stride, xymax = xy + width * pixelStride, i = 0; xy < xymax; xy += pixelStride) {
+                        for (int b = 0; b < numBands; b++) {
+                            raw[i++] = data[xy + bandOffsets[b]];
+                        }
+                    }
+                };
+            }
+        } else {
+            colorType = cm.hasAlpha() ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+            final boolean hasAlpha = cm.hasAlpha();
+            final ThreadLocal<int[]> rgbs = ThreadLocal.withInitial(() -> new int[width]);
+            reader = (y, raw) -> {
+                int[] rgb = rgbs.get();
+                image.getRGB(0, y, width, 1, rgb, 0, width);
+                for (int x = 0, i = 0; x < width; x++) {
+                    int v = rgb[x];
+                    raw[i++] = (byte) (v >>> 16);
+                    raw[i++] = (byte) (v >>> 8);
+                    raw[i++] = (byte) v;
+                    if (hasAlpha) {
+                        raw[i++] = (byte) (v >>> 24);
+                    }
+                }
+            };
+        }
+
+        final int bpp = colorType == COLOR_TYPE_RGBA ? 4 : colorType == COLOR_TYPE_RGB ? 3 : 1;
+        final int rowBytes = width * bpp;
+        final int rowFilter = (filter == FILTER_ADAPTIVE && colorType == COLOR_TYPE_INDEXED) ? FILTER_NONE : filter;
+
+        out.write(SIGNATURE);
+        SeekableByteArrayOutputStream header = new SeekableByteArrayOutputStream(13);
+        writeInt(header, width);
+        writeInt(header, height);
+        header.write(8); // bit depth
+        header.write(colorType);
+        header.write(0); // compression method
+        header.write(0); // filter method
+        header.write(0); // interlace method
+        writeChunk(out, IHDR, header.getBuffer(), 0, header.size());
+        if (palette != null) {
+            writePalette(out, palette);
+        }
+
+        final int n = height >= 2 * MIN_BAND_HEIGHT ? Math.max(1, min(bandCount, height / MIN_BAND_HEIGHT)) : 1;
+        if (bands.length != n) {
+            endDeflaters();
+            bands = new Band[n];
+            for (int i = 0; i < n; i++) {
+                bands[i] = new Band();
+            }
+        }
+        final ScanlineReader scanlines = reader;
+        runBands(n, i -> {
+            Band band = bands[i];
+            int fromLine = i * height / n;
+            int toLine = (i + 1) * height / n;
+            if (band.raw.length != rowBytes) {
+                band.raw = new byte[rowBytes];
+                band.prior = new byte[rowBytes];
+                band.candidates = new byte[5][rowBytes];
+            }
+            int capacity = (toLine - fromLine) * (rowBytes + 1);
+            if (band.filtered.length < capacity) {
+                band.filtered = new byte[capacity];
+            }
+            if (fromLine > 0) {
+                scanlines.read(fromLine - 1, band.prior);
+            } else {
+                Arrays.fill(band.prior, (byte) 0);
+            }
+            band.length = 0;
+            for (int y = fromLine; y < toLine; y++) {
+                scanlines.read(y, band.raw);
+                filterScanline(band, rowFilter, bpp);
+                byte[] swap = band.prior;
+                band.prior = band.raw;
+                band.raw = swap;
+            }
+        });
+
+        for (Band band : bands) {
+            if (band.deflater == null) {
+                band.deflater = new Deflater(compressionLevel, true);
+            } else {
+                band.deflater.reset();
+            }
+        }
+        runBands(n, i -> {
+            Band band = bands[i];
+            Band previous = i > 0 ? bands[i - 1] : null;
+            band.deflated.reset();
+            if (i == 0) {
+                writeZlibHeader(band.deflated, compressionLevel, Deflater.DEFAULT_STRATEGY);
+            }
+            deflateBand(band.deflater, previous == null ? null : previous.filtered,
+                    previous == null ? 0 : previous.length,
+                    band.filtered, band.length, i == n - 1, band.buf, band.deflated);
+            Adler32 adler = new Adler32();
+            adler.update(band.filtered, 0, band.length);
+            band.adler = adler.getValue();
+        });
+
+        long adler = 1;
+        for (Band band : bands) {
+            adler = combineAdler32(adler, band.adler, band.length);
+        }
+        writeAdler32(bands[n - 1].deflated, adler);
+        for (Band band : bands) {
+            writeChunk(out, IDAT, band.deflated.getBuffer(), 0, band.deflated.size());
+        }
+        writeChunk(out, IEND, chunkHeader, 0, 0);
+    }
+
+    /**
+     * Filters the raw scanline of the band and appends it with its filter
+     * type to the filtered data of the band.
+     */
+    private static void filterScanline(Band band, int filter, int bpp) {
+        byte[] raw = band.raw;
+        byte[] prior = band.prior;
+        byte[] dst = band.filtered;
+        int n = raw.length;
+        int type = filter;
+        if (filter == FILTER_ADAPTIVE) {
+            long bestSum = Long.MAX_VALUE;
+            for (int t = FILTER_NONE; t <= FILTER_PAETH; t++) {
+                byte[] candidate = band.candidates[t];
+                filter(t, raw, prior, candidate, 0, bpp);
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += abs(candidate[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    type = t;
+                }
+            }
+            dst[band.length++] = (byte) type;
+            System.arraycopy(band.candidates[type], 0, dst, band.length, n);
+        } else {
+            dst[band.length++] = (byte) type;
+            filter(type, raw, prior, dst, band.length, bpp);
+        }
+        band.length += n;
+    }
+
+    /** Filters a scanline with the specified filter type. */
+    private static void filter(int type, byte[] raw, byte[] prior, byte[] dst, int off, int bpp) {
+        int n = raw.length;
+        switch (type) {
+            case FILTER_NONE:
+                System.arraycopy(raw, 0, dst, off, n);
+                break;
+            case FILTER_SUB:
+                System.arraycopy(raw, 0, dst, off, min(bpp, n));
+                for (int i = bpp; i < n; i++) {
+                    dst[off + i] = (byte) (raw[i] - raw[i - bpp]);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < n; i++) {
+                    dst[off + i] = (byte) (raw[i] - prior[i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < min(bpp, n); i++) {
+                    dst[off + i] = (byte) (raw[i] - ((prior[i] & 0xff) >>> 1));
+                }
+                for (int i = bpp; i < n; i++) {
+                    dst[off + i] = (byte) (raw[i] - (((raw[i - bpp] & 0xff) + (prior[i] & 0xff)) >>> 1));
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < min(bpp, n); i++) {
+                    dst[off + i] = (byte) (raw[i] - prior[i]);
+                }
+                for (int i = bpp; i < n; i++) {
+                    int a = raw[i - bpp] & 0xff;
+                    int b = prior[i] & 0xff;
+                    int c = prior[i - bpp] & 0xff;
+                    int p = a + b - c;
+                    int pa = abs(p - a);
+                    int pb = abs(p - b);
+                    int pc = abs(p - c);
+                    int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+                    dst[off + i] = (byte) (raw[i] - predictor);
+                }
+                break;
+        }
+    }
+
+    /** Writes the PLTE chunk, and the tRNS chunk if the palette is not opaque. */
+    private void writePalette(OutputStream out, IndexColorModel palette) throws IOException {
+        int size = palette.getMapSize();
+        byte[] data = new byte[size * 3];
+        int lastTranslucent = -1;
+        for (int i = 0; i < size; i++) {
+            data[i * 3] = (byte) palette.getRed(i);
+            data[i * 3 + 1] = (byte) palette.getGreen(i);
+            data[i * 3 + 2] = (byte) palette.getBlue(i);
+            if (palette.getAlpha(i) != 255) {
+                lastTranslucent = i;
+            }
+        }
+        writeChunk(out, PLTE, data, 0, data.length);
+        if (lastTranslucent >= 0) {
+            for (int i = 0; i <= lastTranslucent; i++) {
+                data[i] = (byte) palette.getAlpha(i);
+            }
+            writeChunk(out, TRNS, data, 0, lastTranslucent + 1);
+        }
+    }
+
+    /** Writes a chunk with its length, type and CRC. */
+    private void writeChunk(OutputStream out, int type, byte[] data, int off, int len) throws IOException {
+        chunkHeader[0] = (byte) (len >>> 24);
+        chunkHeader[1] = (byte) (len >>> 16);
+        chunkHeader[2] = (byte) (len >>> 8);
+        chunkHeader[3] = (byte) len;
+        chunkHeader[4] = (byte) (type >>> 24);
+        chunkHeader[5] = (byte) (type >>> 16);
+        chunkHeader[6] = (byte) (type >>> 8);
+        chunkHeader[7] = (byte) type;
+        out.write(chunkHeader, 0, 8);
+        out.write(data, off, len);
+        crc.reset();
+        crc.update(chunkHeader, 4, 4);
+        crc.update(data, off, len);
+        int value = (int) crc.getValue();
+        chunkHeader[0] = (byte) (value >>> 24);
+        chunkHeader[1] = (byte) (value >>> 16);
+        chunkHeader[2] = (byte) (value >>> 8);
+        chunkHeader[3] = (byte) value;
+        out.write(chunkHeader, 0, 4);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /** Returns true if each mask selects 8 bits on a byte boundary. */
+    private static boolean hasByteMasks(int[] masks) {
+        if (masks.length != 3 && masks.length != 4) {
+            return false;
+        }
+        for (int mask : masks) {
+            if (mask != 0xff && mask != 0xff00 && mask != 0xff0000 && mask != 0xff000000) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,6 +20,8 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.LinkedList;
 
@@ -53,6 +55,12 @@ public class AbstractQuickTimeStream {
      * This atom holds the moovie header.
      */
     protected CompositeAtom moovAtom;
+    /**
+     * Whether the movie is fragmented. A fragmented movie starts with the
+     * movie header, and the samples are written in movie fragments, each of
+     * them holding the sample tables of its samples.
+     */
+    protected boolean isFragmented;
 
     /**
      * Creation time of the movie.
@@ -369,245 +377,6 @@ public class AbstractQuickTimeStream {
         }
     }
 
-    /**
-     * Groups consecutive samples with same characteristics.
-     */
-    protected abstract static class Group {
-
-        protected Sample firstSample;
-        protected Sample lastSample;
-        protected long sampleCount;
-        protected final static long maxSampleCount = Integer.MAX_VALUE;
-
-        protected Group(Sample firstSample) {
-            this.firstSample = this.lastSample = firstSample;
-            sampleCount = 1;
-        }
-
-        protected Group(Sample firstSample, Sample lastSample, long sampleCount) {
-            this.firstSample = firstSample;
-            this.lastSample = lastSample;
-            this.sampleCount = sampleCount;
-            if (sampleCount > maxSampleCount) {
-                throw new IllegalArgumentException("Capacity exceeded");
-            }
-        }
-
-        protected Group(Group group) {
-            this.firstSample = group.firstSample;
-            this.lastSample = group.lastSample;
-            sampleCount = group.sampleCount;
-        }
-
-        /** Returns true, if the samples was added to the group.
-         * If false is returned, the sample must be added to a new group.
-         * <p>
-         * A sample can only be added to a group, if the capacity of the group
-         * is not exceeded.
-         */
-        protected boolean maybeAddSample(Sample sample) {
-            if (sampleCount < maxSampleCount) {
-                lastSample = sample;
-                sampleCount++;
-                return true;
-            }
-            return false;
-        }
-
-        /** Returns true, if the chunk was added to the group.
-         * If false is returned, the chunk must be added to a new group.
-         * <p>
-         * A chunk can only be added to a group, if the capacity of the group
-         * is not exceeded.
-         */
-        protected boolean maybeAddChunk(Chunk chunk) {
-            if (sampleCount + chunk.sampleCount <= maxSampleCount) {
-                lastSample = chunk.lastSample;
-                sampleCount += chunk.sampleCount;
-                return true;
-            }
-            return false;
-        }
-
-        public long getSampleCount() {
-            return sampleCount;
-        }
-    }
-
-    /**
-     * QuickTime stores media data in samples.
-     * A sample is a single element in a sequence of time-ordered data.
-     * Samples are stored in the mdat atom.
-     */
-    protected static class Sample {
-
-        /** Offset of the sample relative to the start of the QuickTime file.
-         */
-        long offset;
-        /** Data length of the sample. */
-        long length;
-        /**
-         * The duration of the sample in media time scale units.
-         */
-        long duration;
-
-        /**
-         * Creates a new sample.
-         * @param duration
-         * @param offset
-         * @param length
-         */
-        public Sample(long duration, long offset, long length) {
-            this.duration = duration;
-            this.offset = offset;
-            this.length = length;
-        }
-    }
-
-    /**
-     * Groups consecutive smples of the same duration.
-     */
-    protected static class TimeToSampleGroup extends Group {
-
-        public TimeToSampleGroup(Sample firstSample) {
-            super(firstSample);
-        }
-
-        public TimeToSampleGroup(Group group) {
-            super(group);
-        }
-
-        /** Returns true, if the sample was added to the group.
-         * If false is returned, the sample must be added to a new group.
-         * <p>
-         * A sample can only be added to a TimeToSampleGroup, if it has the same
-         * duration as previously added samples, and if the capacity of the
-         * group is not exceeded.
-         */
-        @Override
-        public boolean maybeAddSample(Sample sample) {
-            if (firstSample.duration == sample.duration) {
-                return super.maybeAddSample(sample);
-            }
-            return false;
-        }
-
-        @Override
-        public boolean maybeAddChunk(Chunk chunk) {
-            if (firstSample.duration == chunk.firstSample.duration) {
-                return super.maybeAddChunk(chunk);
-            }
-            return false;
-        }
-
-        /** Returns the duration that all samples in this group share. */
-        public long getSampleDuration() {
-            return firstSample.duration;
-        }
-    }
-
-    /**
-     * Groups consecutive samples of the same size.
-     */
-    protected static class SampleSizeGroup extends Group {
-
-        public SampleSizeGroup(Sample firstSample) {
-            super(firstSample);
-        }
-
-        public SampleSizeGroup(Group group) {
-            super(group);
-        }
-
-        /** Returns true, if the sample was added to the group.
-         * If false is returned, the sample must be added to a new group.
-         * <p>
-         * A sample can only be added to a SampleSizeGroup, if it has the same
-         * size as previously added samples, and if the capacity of the
-         * group is not exceeded.
-         */
-        @Override
-        public boolean maybeAddSample(Sample sample) {
-            if (firstSample.length == sample.length) {
-                return super.maybeAddSample(sample);
-            }
-            return false;
-        }
-
-        @Override
-        public boolean maybeAddChunk(Chunk chunk) {
-            if (firstSample.length == chunk.firstSample.length) {
-                return super.maybeAddChunk(chunk);
-            }
-            return false;
-        }
-
-        /** Returns the length that all samples in this group share. */
-        public long getSampleLength() {
-            return firstSample.length;
-        }
-    }
-
-    /**
-     * Groups consecutive samples with the same sample description Id and
-     * with adjacent offsets in the movie file.
-     */
-    protected static class Chunk extends Group {
-
-        protected int sampleDescriptionId;
-
-        /**
-         * Creates a new Chunk.
-         *
-         * @param firstSample The first sample contained in this chunk.
-         * @param sampleDescriptionId The description Id of the sample.
-         */
-        public Chunk(Sample firstSample, int sampleDescriptionId) {
-            super(firstSample);
-            this.sampleDescriptionId = sampleDescriptionId;
-        }
-
-        /**
-         * Creates a new Chunk.
-         *
-         * @param firstSample The first sample contained in this chunk.
-         * @param sampleDescriptionId The description Id of the sample.
-         */
-        public Chunk(Sample firstSample, Sample lastSample, int sampleCount, int sampleDescriptionId) {
-            super(firstSample, lastSample, sampleCount);
-            this.sampleDescriptionId = sampleDescriptionId;
-        }
-
-        /** Returns true, if the sample was added to the chunk.
-         * If false is returned, the sample must be added to a new chunk.
-         * <p>
-         * A sample can only be added to a chunk, if it has the same sample
-         * description Id as previously added samples, if the capacity of the
-         * chunk is not exceeded and if the sample offset is adjacent to the
-         * last sample in this chunk.
-         */
-        public boolean maybeAddSample(Sample sample, int sampleDescriptionId) {
-            if (sampleDescriptionId == this.sampleDescriptionId
-                    && lastSample.offset + lastSample.length == sample.offset) {
-                return super.maybeAddSample(sample);
-            }
-            return false;
-        }
-
-        @Override
-        public boolean maybeAddChunk(Chunk chunk) {
-            if (sampleDescriptionId == chunk.sampleDescriptionId //
-                    && lastSample.offset + lastSample.length == chunk.firstSample.offset) {
-                return super.maybeAddChunk(chunk);
-            }
-            return false;
-        }
-
-        /** Returns the offset of the chunk in the movie file. */
-        public long getChunkOffset() {
-            return firstSample.offset;
-        }
-    }
     /** Represents a track. */
     protected abstract class Track {
 
@@ -625,27 +394,48 @@ public class AbstractQuickTimeStream {
         protected String mediaCompressionType;
         /** The compressor name. */
         protected String mediaCompressorName;
-        /**
-         * List of chunks.
-         */
-        protected ArrayList<Chunk> chunks = new ArrayList<Chunk>();
-        /**
-         * List of TimeToSample entries.
+        /*
+         * The sample table.
+         *
+         * QuickTime stores media data in samples. A sample is a single element
+         * in a sequence of time-ordered data. Samples are stored in the mdat
+         * atom. The sample table is kept in growable primitive columns, which
+         * are laid out like the stts, stsz, stsc and stco atoms, so that long
+         * recordings do not need an object for each sample.
          */
-        protected ArrayList<TimeToSampleGroup> timeToSamples = new ArrayList<TimeToSampleGroup>();
+        /** Time-to-sample table: runs of consecutive samples with the same duration. */
+        protected int timeToSampleCount;
+        protected int[] timeToSampleCounts = new int[16];
+        protected int[] timeToSampleDurations = new int[16];
+        /** Sample size table: runs of consecutive samples with the same length. */
+        protected int sampleSizeCount;
+        protected int[] sampleSizeCounts = new int[16];
+        protected int[] sampleSizeLengths = new int[16];
         /**
-         * List of SampleSize entries.
+         * Chunk table: consecutive samples with the same sample description Id
+         * and with adjacent offsets in the movie file are grouped into a chunk.
          */
-        protected ArrayList<SampleSizeGroup> sampleSizes = new ArrayList<SampleSizeGroup>();
+        protected int chunkCount;
+        protected long[] chunkOffsets = new long[256];
+        protected int[] chunkSampleCounts = new int[256];
+        protected int[] chunkSampleDescriptionIds = new int[256];
+        /** Offset of the end of the last chunk in the movie file. */
+        protected long chunkEnd = -1;
         /**
-         * List of sync samples.
-         * This list is null as long as all samples in this track are sync samples.
+         * Sync samples, indexed by sample number - 1.
+         * This set is null as long as all samples in this track are sync samples.
          */
-        protected ArrayList<Long> syncSamples = null;
+        protected BitSet syncSamples = null;
         /** The number of samples in this track. */
         protected long sampleCount = 0;
         /** The duration of the media in this track in media time units. */
         protected long mediaDuration = 0;
+        /**
+         * The media time of the first sample in the sample table. This is
+         * 0 unless the sample table has been cleared after writing a movie
+         * fragment.
+         */
+        protected long baseMediaDecodeTime = 0;
         /** The edit list of the track. */
         protected Edit[] editList;
         /** Interval between sync samples (keyframes).
@@ -659,50 +449,91 @@ public class AbstractQuickTimeStream {
             this.mediaType = mediaType;
         }
 
-        public void addSample(Sample sample, int sampleDescriptionId, boolean isSyncSample) {
-            mediaDuration += sample.duration;
-            sampleCount++;
+        /**
+         * Adds samples to the sample table.
+         *
+         * @param sampleCount The number of samples. All samples have the same
+         * duration and length, and are stored one after the other.
+         * @param duration The duration of a sample in media time scale units.
+         * @param offset The offset of the first sample relative to the start of
+         * the mdat atom.
+         * @param length The data length of a sample.
+         * @param sampleDescriptionId The description Id of the samples.
+         * @param isSyncSample Whether the samples are sync samples.
+         */
+        public void addSamples(int sampleCount, long duration, long offset, long length, int sampleDescriptionId, boolean isSyncSample) {
             if (isSyncSample) {
                 if (syncSamples != null) {
-                    syncSamples.add(sampleCount);
+                    syncSamples.set((int) this.sampleCount, (int) this.sampleCount + sampleCount);
                 }
             } else {
                 if (syncSamples == null) {
-                    syncSamples = new ArrayList<Long>();
-                    for (long i = 1; i < sampleCount; i++) {
-                        syncSamples.add(i);
-                    }
+                    syncSamples = new BitSet();
+                    syncSamples.set(0, (int) this.sampleCount);
                 }
             }
-            if (timeToSamples.isEmpty()//
-                    || !timeToSamples.get(timeToSamples.size() - 1).maybeAddSample(sample)) {
-                timeToSamples.add(new TimeToSampleGroup(sample));
+            mediaDuration += duration * sampleCount;
+            this.sampleCount += sampleCount;
+
+            if (timeToSampleCount > 0
+                    && timeToSampleDurations[timeToSampleCount - 1] == (int) duration
+                    && timeToSampleCounts[timeToSampleCount - 1] <= Integer.MAX_VALUE - sampleCount) {
+                timeToSampleCounts[timeToSampleCount - 1] += sampleCount;
+            } else {
+                if (timeToSampleCount == timeToSampleCounts.length) {
+                    timeToSampleCounts = Arrays.copyOf(timeToSampleCounts, timeToSampleCount * 2);
+                    timeToSampleDurations = Arrays.copyOf(timeToSampleDurations, timeToSampleCount * 2);
+                }
+                timeToSampleCounts[timeToSampleCount] = sampleCount;
+                timeToSampleDurations[timeToSampleCount] = (int) duration;
+                timeToSampleCount++;
             }
-            if (sampleSizes.isEmpty()//
-                    || !sampleSizes.get(sampleSizes.size() - 1).maybeAddSample(sample)) {
-                sampleSizes.add(new SampleSizeGroup(sample));
+
+            if (sampleSizeCount > 0
+                    && sampleSizeLengths[sampleSizeCount - 1] == (int) length
+                    && sampleSizeCounts[sampleSizeCount - 1] <= Integer.MAX_VALUE - sampleCount) {
+                sampleSizeCounts[sampleSizeCount - 1] += sampleCount;
+            } else {
+                if (sampleSizeCount == sampleSizeCounts.length) {
+                    sampleSizeCounts = Arrays.copyOf(sampleSizeCounts, sampleSizeCount * 2);
+                    sampleSizeLengths = Arrays.copyOf(sampleSizeLengths, sampleSizeCount * 2);
+                }
+                sampleSizeCounts[sampleSizeCount] = sampleCount;
+                sampleSizeLengths[sampleSizeCount] = (int) length;
+                sampleSizeCount++;
             }
-            if (chunks.isEmpty()//
-                    || !chunks.get(chunks.size() - 1).maybeAddSample(sample, sampleDescriptionId)) {
-                chunks.add(new Chunk(sample, sampleDescriptionId));
+
+            if (chunkCount > 0
+                    && chunkSampleDescriptionIds[chunkCount - 1] == sampleDescriptionId
+                    && chunkEnd == offset
+                    && chunkSampleCounts[chunkCount - 1] <= Integer.MAX_VALUE - sampleCount) {
+                chunkSampleCounts[chunkCount - 1] += sampleCount;
+            } else {
+                if (chunkCount == chunkOffsets.length) {
+                    chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                    chunkSampleCounts = Arrays.copyOf(chunkSampleCounts, chunkCount * 2);
+                    chunkSampleDescriptionIds = Arrays.copyOf(chunkSampleDescriptionIds, chunkCount * 2);
+                }
+                chunkOffsets[chunkCount] = offset;
+                chunkSampleCounts[chunkCount] = sampleCount;
+                chunkSampleDescriptionIds[chunkCount] = sampleDescriptionId;
+                chunkCount++;
             }
+            chunkEnd = offset + length * sampleCount;
         }
 
-        public void addChunk(Chunk chunk, boolean isSyncSample) {
-            mediaDuration += chunk.firstSample.duration * chunk.sampleCount;
-            sampleCount += chunk.sampleCount;
-            if (timeToSamples.isEmpty()//
-                    || !timeToSamples.get(timeToSamples.size() - 1).maybeAddChunk(chunk)) {
-                timeToSamples.add(new TimeToSampleGroup(chunk));
-            }
-            if (sampleSizes.isEmpty()//
-                    || !sampleSizes.get(sampleSizes.size() - 1).maybeAddChunk(chunk)) {
-                sampleSizes.add(new SampleSizeGroup(chunk));
-            }
-            if (chunks.isEmpty()//
-                    || !chunks.get(chunks.size() - 1).maybeAddChunk(chunk)) {
-                chunks.add(chunk);
-            }
+        /**
+         * Clears the sample table, after its samples have been written into a
+         * movie fragment.
+         */
+        public void clearSamples() {
+            timeToSampleCount = 0;
+            sampleSizeCount = 0;
+            chunkCount = 0;
+            chunkEnd = -1;
+            syncSamples = null;
+            sampleCount = 0;
+            baseMediaDecodeTime = mediaDuration;
         }
 
         public boolean isEmpty() {
@@ -856,52 +687,55 @@ public class AbstractQuickTimeStream {
             d.writeFixed16D16(mediaType == MediaType.VIDEO ? ((VideoTrack) this).videoHeight : 0); // height
             // A 32-bit fixed-point number that indicates the height of this track in pixels.
 
-            /* Edit Atom ========= */
-            CompositeAtom edtsAtom = new CompositeAtom("edts");
-            trakAtom.add(edtsAtom);
+            // A fragmented movie has no default edit list, because the
+            // duration of the track is not known when the movie header is written.
+            if (!isFragmented || editList != null && editList.length != 0) {
+                /* Edit Atom ========= */
+                CompositeAtom edtsAtom = new CompositeAtom("edts");
+                trakAtom.add(edtsAtom);
 
-            /* Edit List atom ------- */
-            /*
-            typedef struct {
-            byte version;
-            byte[3] flags;
-            int numberOfEntries;
-            editListTable editListTable[numberOfEntries];
-            } editListAtom;
+                /* Edit List atom ------- */
+                /*
+                typedef struct {
+                byte version;
+                byte[3] flags;
+                int numberOfEntries;
+                editListTable editListTable[numberOfEntries];
+                } editListAtom;
 
-            typedef struct {
-            int trackDuration;
-            int mediaTime;
-            fixed16d16 mediaRate;
-            } editListTable;
-             */
-            leaf = new DataAtom("elst");
-            edtsAtom.add(leaf);
-            d = leaf.getOutputStream();
+                typedef struct {
+                int trackDuration;
+                int mediaTime;
+                fixed16d16 mediaRate;
+                } editListTable;
+                 */
+                leaf = new DataAtom("elst");
+                edtsAtom.add(leaf);
+                d = leaf.getOutputStream();
 
-            d.write(0); // version
-            // One byte that specifies the version of this header atom.
+                d.write(0); // version
+                // One byte that specifies the version of this header atom.
 
-            d.write(0); // flag[0]
-            d.write(0); // flag[1]
-            d.write(0); // flag[2]
+                d.write(0); // flag[0]
+                d.write(0); // flag[1]
+                d.write(0); // flag[2]
 
-            Edit[] elist = editList;
-            if (elist == null || elist.length == 0) {
-                d.writeUInt(1); // numberOfEntries
-                d.writeUInt(getTrackDuration(movieTimeScale)); // trackDuration
-                d.writeUInt(0); // mediaTime
-                d.writeFixed16D16(1); // mediaRate
-            } else {
-                d.writeUInt(elist.length); // numberOfEntries
-                for (int i = 0; i < elist.length; ++i) {
-                    d.writeUInt(elist[i].trackDuration); // trackDuration
-                    d.writeUInt(elist[i].mediaTime); // mediaTime
-                    d.writeUInt(elist[i].mediaRate); // mediaRate
+                Edit[] elist = editList;
+                if (elist == null || elist.length == 0) {
+                    d.writeUInt(1); // numberOfEntries
+                    d.writeUInt(getTrackDuration(movieTimeScale)); // trackDuration
+                    d.writeUInt(0); // mediaTime
+                    d.writeFixed16D16(1); // mediaRate
+                } else {
+                    d.writeUInt(elist.length); // numberOfEntries
+                    for (int i = 0; i < elist.length; ++i) {
+                        d.writeUInt(elist[i].trackDuration); // trackDuration
+                        d.writeUInt(elist[i].mediaTime); // mediaTime
+                        d.writeUInt(elist[i].mediaRate); // mediaRate
+                    }
                 }
             }
 
-
             /* Media Atom ========= */
             CompositeAtom mdiaAtom = new CompositeAtom("mdia");
             trakAtom.add(mdiaAtom);
@@ -1200,16 +1034,16 @@ public class AbstractQuickTimeStream {
             d.write(0); // flag[2]
             // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-            d.writeUInt(timeToSamples.size()); // numberOfEntries
+            d.writeUInt(timeToSampleCount); // numberOfEntries
             // A 32-bit integer containing the count of entries in the
             // time-to-sample table.
 
-            for (TimeToSampleGroup tts : timeToSamples) {
-                d.writeUInt(tts.getSampleCount()); // timeToSampleTable[0].sampleCount
+            for (int i = 0; i < timeToSampleCount; i++) {
+                d.writeUInt(timeToSampleCounts[i]); // timeToSampleTable[0].sampleCount
                 // A 32-bit integer that specifies the number of consecutive
                 // samples that have the same duration.
 
-                d.writeUInt(tts.getSampleDuration()); // timeToSampleTable[0].sampleDuration
+                d.writeUInt(timeToSampleDurations[i] & 0xffffffffL); // timeToSampleTable[0].sampleDuration
                 // A 32-bit integer that specifies the duration of each
                 // sample.
             }
@@ -1245,11 +1079,11 @@ public class AbstractQuickTimeStream {
             int entryCount = 0;
             long previousSampleCount = -1;
             long previousSampleDescriptionId = -1;
-            for (Chunk c : chunks) {
-                if (c.sampleCount != previousSampleCount//
-                        || c.sampleDescriptionId != previousSampleDescriptionId) {
-                    previousSampleCount = c.sampleCount;
-                    previousSampleDescriptionId = c.sampleDescriptionId;
+            for (int i = 0; i < chunkCount; i++) {
+                if (chunkSampleCounts[i] != previousSampleCount//
+                        || chunkSampleDescriptionIds[i] != previousSampleDescriptionId) {
+                    previousSampleCount = chunkSampleCounts[i];
+                    previousSampleDescriptionId = chunkSampleDescriptionIds[i];
                     entryCount++;
                 }
             }
@@ -1260,19 +1094,19 @@ public class AbstractQuickTimeStream {
             int firstChunk = 1;
             previousSampleCount = -1;
             previousSampleDescriptionId = -1;
-            for (Chunk c : chunks) {
-                if (c.sampleCount != previousSampleCount//
-                        || c.sampleDescriptionId != previousSampleDescriptionId) {
-                    previousSampleCount = c.sampleCount;
-                    previousSampleDescriptionId = c.sampleDescriptionId;
+            for (int i = 0; i < chunkCount; i++) {
+                if (chunkSampleCounts[i] != previousSampleCount//
+                        || chunkSampleDescriptionIds[i] != previousSampleDescriptionId) {
+                    previousSampleCount = chunkSampleCounts[i];
+                    previousSampleDescriptionId = chunkSampleDescriptionIds[i];
 
                     d.writeUInt(firstChunk); // first chunk
                     // The first chunk number using this table entry.
 
-                    d.writeUInt(c.sampleCount); // samples per chunk
+                    d.writeUInt(chunkSampleCounts[i]); // samples per chunk
                     // The number of samples in each chunk.
 
-                    d.writeInt(c.sampleDescriptionId); // sample description
+                    d.writeInt(chunkSampleDescriptionIds[i]); // sample description
 
                     // The identification number associated with the sample description for
                     // the sample. For details on sample description atoms, see “Sample
@@ -1307,12 +1141,12 @@ public class AbstractQuickTimeStream {
                 d.write(0); // flag[2]
                 // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-                d.writeUInt(syncSamples.size());
+                d.writeUInt(syncSamples.cardinality());
                 // Number of entries
                 //A 32-bit integer containing the count of entries in the sync sample table.
 
-                for (Long number : syncSamples) {
-                    d.writeUInt(number);
+                for (int i = syncSamples.nextSetBit(0); i >= 0; i = syncSamples.nextSetBit(i + 1)) {
+                    d.writeUInt(i + 1);
                     // Sync sample table A table of sample numbers; each sample
                     // number corresponds to a key frame.
                 }
@@ -1353,14 +1187,14 @@ public class AbstractQuickTimeStream {
                     && ((AudioTrack) this).soundCompressionId != -2 //
                     ? ((AudioTrack) this).soundSampleSize / 8 * ((AudioTrack) this).soundNumberOfChannels//
                     : 1;
-            if (sampleSizes.size() == 1) {
-                d.writeUInt(sampleSizes.get(0).getSampleLength() / sampleUnit); // sample size
+            if (sampleSizeCount == 1) {
+                d.writeUInt((sampleSizeLengths[0] & 0xffffffffL) / sampleUnit); // sample size
                 // A 32-bit integer specifying the sample size. If all the samples are
                 // the same size, this field contains that size value. If this field is
                 // set to 0, then the samples have different sizes, and those sizes are
                 // stored in the sample size table.
 
-                d.writeUInt(sampleSizes.get(0).getSampleCount()); // number of entries
+                d.writeUInt(sampleSizeCounts[0]); // number of entries
                 // A 32-bit integer containing the count of entries in the sample size
                 // table.
 
@@ -1372,17 +1206,13 @@ public class AbstractQuickTimeStream {
                 // stored in the sample size table.
 
 
-                long count = 0;
-                for (SampleSizeGroup s : sampleSizes) {
-                    count += s.sampleCount;
-                }
-                d.writeUInt(count); // number of entries
+                d.writeUInt(sampleCount); // number of entries
                 // A 32-bit integer containing the count of entries in the sample size
                 // table.
 
-                for (SampleSizeGroup s : sampleSizes) {
-                    long sampleSize = s.getSampleLength() / sampleUnit;
-                    for (int i = 0; i < s.sampleCount; i++) {
+                for (int i = 0; i < sampleSizeCount; i++) {
+                    long sampleSize = (sampleSizeLengths[i] & 0xffffffffL) / sampleUnit;
+                    for (int j = 0; j < sampleSizeCounts[i]; j++) {
                         d.writeUInt(sampleSize); // sample size
                         // The size field contains the size, in bytes, of the sample in
                         // question. The table is indexed by sample number—the first entry
@@ -1398,7 +1228,7 @@ public class AbstractQuickTimeStream {
             // 32-bit or 64-bit offsets. The latter is useful when managing very
             // large movies. Only one of these variants occurs in any single
             // instance of a sample table atom.
-            if (chunks.isEmpty() || chunks.get(chunks.size() - 1).getChunkOffset() <= 0xffffffffL) {
+            if (chunkCount == 0 || chunkOffsets[chunkCount - 1] <= 0xffffffffL) {
                 /* 32-bit chunk offset atom -------- */
                 leaf = new DataAtom("stco");
                 stblAtom.add(leaf);
@@ -1423,11 +1253,11 @@ public class AbstractQuickTimeStream {
                 d.write(0); // flag[2]
                 // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-                d.writeUInt(chunks.size()); // number of entries
+                d.writeUInt(chunkCount); // number of entries
                 // A 32-bit integer containing the count of entries in the chunk
                 // offset table.
-                for (Chunk c : chunks) {
-                    d.writeUInt(c.getChunkOffset() + mdatOffset); // offset
+                for (int i = 0; i < chunkCount; i++) {
+                    d.writeUInt(chunkOffsets[i] + mdatOffset); // offset
                     // The offset contains the byte offset from the beginning of the
                     // data stream to the chunk. The table is indexed by chunk
                     // number—the first table entry corresponds to the first chunk,
@@ -1458,12 +1288,12 @@ public class AbstractQuickTimeStream {
                 d.write(0); // flag[2]
                 // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-                d.writeUInt(chunks.size()); // number of entries
+                d.writeUInt(chunkCount); // number of entries
                 // A 32-bit integer containing the count of entries in the chunk
                 // offset table.
 
-                for (Chunk c : chunks) {
-                    d.writeLong(c.getChunkOffset()); // offset
+                for (int i = 0; i < chunkCount; i++) {
+                    d.writeLong(chunkOffsets[i]); // offset
                     // The offset contains the byte offset from the beginning of the
                     // data stream to the chunk. The table is indexed by chunk
                     // number—the first table entry corresponds to the first chunk,
@@ -1508,6 +1338,12 @@ public class AbstractQuickTimeStream {
         /** The codec. */
         protected Codec codec;
         protected Buffer outputBuffer;
+        /** Input buffer handed to the codec by encodeFrame. */
+        protected Buffer inputBuffer;
+        /** Number of frames which have been encoded so far. */
+        protected long encodedFrameCount;
+        /** Number of delta frames which have been encoded since the most recent key frame. */
+        protected long deltaFrameCount;
 
         public VideoTrack() {
             super(MediaType.VIDEO);
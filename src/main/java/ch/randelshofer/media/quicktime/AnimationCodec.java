@@ -13,6 +13,7 @@ package ch.randelshofer.media.quicktime;
 import ch.randelshofer.media.AbstractVideoCodec;
 import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.Format;
+import ch.randelshofer.media.Scanlines;
 import ch.randelshofer.media.VideoFormat;
 import ch.randelshofer.media.io.ByteArrayImageOutputStream;
 
@@ -243,14 +244,15 @@ public class AnimationCodec extends AbstractVideoCodec {
             encodeKey8(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
             out.flags = Buffer.FLAG_KEY_FRAME;
           } else {
-            encodeDelta8(tmp, pixels, (byte[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+            encodeDelta8(tmp, pixels, (byte[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride, getDamageSpans(in, r.width, r.height));
             out.flags = 0;
+            if (isSceneChange(tmp.getStreamPosition())) {
+              tmp.clear();
+              encodeKey8(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+              out.flags = Buffer.FLAG_KEY_FRAME;
+            }
           }
-          if (previousPixels == null) {
-            previousPixels = pixels.clone();
-          } else {
-            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-          }
+          previousPixels = keepPreviousPixels(in, pixels, previousPixels);
           break;
         }
         case 16: {
@@ -265,8 +267,13 @@ public class AnimationCodec extends AbstractVideoCodec {
             encodeKey16(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
             out.flags = Buffer.FLAG_KEY_FRAME;
           } else {
-            encodeDelta16(tmp, pixels, (short[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+            encodeDelta16(tmp, pixels, (short[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride, getDamageSpans(in, r.width, r.height));
             out.flags = 0;
+            if (isSceneChange(tmp.getStreamPosition())) {
+              tmp.clear();
+              encodeKey16(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+              out.flags = Buffer.FLAG_KEY_FRAME;
+            }
 
             /*
             if (testcast == null) {
@@ -278,11 +285,7 @@ public class AnimationCodec extends AbstractVideoCodec {
                     testcast, (short[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
              */
           }
-          if (previousPixels == null) {
-            previousPixels = pixels.clone();
-          } else {
-            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-          }
+          previousPixels = keepPreviousPixels(in, pixels, previousPixels);
           break;
         }
         case 24: {
@@ -297,14 +300,15 @@ public class AnimationCodec extends AbstractVideoCodec {
             encodeKey24(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
             out.flags = Buffer.FLAG_KEY_FRAME;
           } else {
-            encodeDelta24(tmp, pixels, (int[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+            encodeDelta24(tmp, pixels, (int[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride, getDamageSpans(in, r.width, r.height));
             out.flags = 0;
+            if (isSceneChange(tmp.getStreamPosition())) {
+              tmp.clear();
+              encodeKey24(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+              out.flags = Buffer.FLAG_KEY_FRAME;
+            }
           }
-          if (previousPixels == null) {
-            previousPixels = pixels.clone();
-          } else {
-            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-          }
+          previousPixels = keepPreviousPixels(in, pixels, previousPixels);
           break;
         }
         case 32: {
@@ -320,14 +324,15 @@ public class AnimationCodec extends AbstractVideoCodec {
             encodeKey32(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
             out.flags = Buffer.FLAG_KEY_FRAME;
           } else {
-            encodeDelta32(tmp, pixels, (int[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+            encodeDelta32(tmp, pixels, (int[]) previousPixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride, getDamageSpans(in, r.width, r.height));
             out.flags = 0;
+            if (isSceneChange(tmp.getStreamPosition())) {
+              tmp.clear();
+              encodeKey32(tmp, pixels, r.width, r.height, r.x + r.y * scanlineStride, scanlineStride);
+              out.flags = Buffer.FLAG_KEY_FRAME;
+            }
           }
-          if (previousPixels == null) {
-            previousPixels = pixels.clone();
-          } else {
-            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
-          }
+          previousPixels = keepPreviousPixels(in, pixels, previousPixels);
           break;
         }
         default: {
@@ -339,7 +344,9 @@ public class AnimationCodec extends AbstractVideoCodec {
       out.data = tmp.getBuffer();
       out.offset = 0;
       out.length = (int) tmp.getStreamPosition();
-      //
+      if (out.flags == Buffer.FLAG_KEY_FRAME) {
+        keyFrameEncoded(out.length);
+      }
       return;
     } catch (IOException ex) {
       ex.printStackTrace();
@@ -383,6 +390,23 @@ public class AnimationCodec extends AbstractVideoCodec {
    */
   public void encodeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride)
           throws IOException {
+    encodeDelta8(out, data, prev, width, height, offset, scanlineStride, null);
+  }
+
+  /** Encodes an 8-bit delta frame.
+   *
+   * @param tmp The output stream.
+   * @param data The image data.
+   * @param prev The image data of the previous frame.
+   * @param width The width of the image in data elements.
+   * @param height The height of the image in data elements.
+   * @param offset The offset to the first pixel in the data array.
+   * @param scanlineStride The number to add to offset to get to the next scanline.
+   * @param damage The damaged span of each scanline, or null if all
+   * pixels may have changed. See {@code getDamageSpans}.
+   */
+  public void encodeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+          throws IOException {
     if (width % 4 != 0 || offset % 4 != 0 || scanlineStride % 4 != 0) {
       throw new UnsupportedOperationException("Conversion is not fully implemented yet.");
     }
@@ -398,7 +422,16 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (int i = 0, j = 0; i < prev.length; i += 4, j++) {
       pints[j] = ((prev[i] & 0xff) << 24) | ((prev[i + 1] & 0xff) << 16) | ((prev[i + 2] & 0xff) << 8) | ((prev[i + 3] & 0xff));
     }
-    encodeDelta32(out, ints, pints, width / 4, height, offset / 4, scanlineStride / 4);
+    // convert damaged spans to groups of 4 pixels
+    int[] damage32 = null;
+    if (damage != null) {
+      damage32 = new int[damage.length];
+      for (int i = 0; i < damage.length; i += 2) {
+        damage32[i] = damage[i] / 4;
+        damage32[i + 1] = (damage[i + 1] + 3) / 4;
+      }
+    }
+    encodeDelta32(out, ints, pints, width / 4, height, offset / 4, scanlineStride / 4, damage32);
   }
 
   /** Encodes a 16-bit key frame.
@@ -488,6 +521,23 @@ public class AnimationCodec extends AbstractVideoCodec {
    */
   public void encodeDelta16(ImageOutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride)
           throws IOException {
+    encodeDelta16(out, data, prev, width, height, offset, scanlineStride, null);
+  }
+
+  /** Encodes a 16-bit delta frame.
+   *
+   * @param out The output stream.
+   * @param data The image data.
+   * @param prev The image data of the previous frame.
+   * @param width The width of the image in data elements.
+   * @param height The height of the image in data elements.
+   * @param offset The offset to the first pixel in the data array.
+   * @param scanlineStride The number to add to offset to get to the next scanline.
+   * @param damage The damaged span of each scanline, or null if all
+   * pixels may have changed. See {@code getDamageSpans}.
+   */
+  public void encodeDelta16(ImageOutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+          throws IOException {
     out.setByteOrder(ByteOrder.BIG_ENDIAN);
 
     // Determine whether we can skip lines at the beginning
@@ -497,10 +547,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (ymin = offset; ymin < ymax; ymin += scanlineStride) {
       int xy = ymin;
       int xymax = ymin + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymin - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymin + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
 
@@ -516,10 +569,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (; ymax > ymin; ymax -= scanlineStride) {
       int xy = ymax - scanlineStride;
       int xymax = ymax - scanlineStride + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymax - scanlineStride - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymax - scanlineStride + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
     //System.out.println("AnimationCodec ymin:" + ymin / step + " ymax" + ymax / step);
@@ -547,12 +603,17 @@ public class AnimationCodec extends AbstractVideoCodec {
 
       // determine skip count
       int skipCount = 0;
-      for (; xy < xymax; ++xy, ++skipCount) {
-        if (data[xy] != prev[xy]) {
-          break;
-        }
+      if (damage != null) {
+        // pixels outside of the damaged span are unchanged
+        int row = (y - offset) / scanlineStride;
+        skipCount = damage[row * 2];
+        xy += skipCount;
+        xymax = y + damage[row * 2 + 1];
       }
-      if (skipCount == width) {
+      int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+      skipCount += mismatch - xy;
+      xy = mismatch;
+      if (xy == xymax) {
         // => the entire line can be skipped
         out.write(0 + 1); // don't skip any pixels
         out.write(-1); // end of line
@@ -570,12 +631,7 @@ public class AnimationCodec extends AbstractVideoCodec {
       int repeatCount = 0;
       for (; xy < xymax; ++xy) {
         // determine skip count
-        for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-          if (data[xy] != prev[xy]) {
-            break;
-          }
-        }
-        xy -= skipCount;
+        skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
         // determine repeat count
         short v = data[xy];
@@ -722,6 +778,23 @@ public class AnimationCodec extends AbstractVideoCodec {
    */
   public void encodeDelta24(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride)
           throws IOException {
+    encodeDelta24(out, data, prev, width, height, offset, scanlineStride, null);
+  }
+
+  /** Encodes a 24-bit delta frame.
+   *
+   * @param out The output stream.
+   * @param data The image data.
+   * @param prev The image data of the previous frame.
+   * @param width The width of the image in data elements.
+   * @param height The height of the image in data elements.
+   * @param offset The offset to the first pixel in the data array.
+   * @param scanlineStride The number to add to offset to get to the next scanline.
+   * @param damage The damaged span of each scanline, or null if all
+   * pixels may have changed. See {@code getDamageSpans}.
+   */
+  public void encodeDelta24(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+          throws IOException {
     out.setByteOrder(ByteOrder.BIG_ENDIAN);
 
     // Determine whether we can skip lines at the beginning
@@ -731,10 +804,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (ymin = offset; ymin < ymax; ymin += scanlineStride) {
       int xy = ymin;
       int xymax = ymin + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymin - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymin + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
 
@@ -750,10 +826,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (; ymax > ymin; ymax -= scanlineStride) {
       int xy = ymax - scanlineStride;
       int xymax = ymax - scanlineStride + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymax - scanlineStride - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymax - scanlineStride + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
     //System.out.println("AnimationCodec ymin:" + ymin / step + " ymax" + ymax / step);
@@ -782,12 +861,17 @@ public class AnimationCodec extends AbstractVideoCodec {
 
       // determine skip count
       int skipCount = 0;
-      for (; xy < xymax; ++xy, ++skipCount) {
-        if (data[xy] != prev[xy]) {
-          break;
-        }
+      if (damage != null) {
+        // pixels outside of the damaged span are unchanged
+        int row = (y - offset) / scanlineStride;
+        skipCount = damage[row * 2];
+        xy += skipCount;
+        xymax = y + damage[row * 2 + 1];
       }
-      if (skipCount == width) {
+      int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+      skipCount += mismatch - xy;
+      xy = mismatch;
+      if (xy == xymax) {
         // => the entire line can be skipped
         out.write(0 + 1); // don't skip any pixels
         out.write(-1); // end of line
@@ -805,12 +889,7 @@ public class AnimationCodec extends AbstractVideoCodec {
       int repeatCount = 0;
       for (; xy < xymax; ++xy) {
         // determine skip count
-        for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-          if (data[xy] != prev[xy]) {
-            break;
-          }
-        }
-        xy -= skipCount;
+        skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
         // determine repeat count
         int v = data[xy];
@@ -958,6 +1037,23 @@ public class AnimationCodec extends AbstractVideoCodec {
    */
   public void encodeDelta32(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride)
           throws IOException {
+    encodeDelta32(out, data, prev, width, height, offset, scanlineStride, null);
+  }
+
+  /** Encodes a 32-bit delta frame.
+   *
+   * @param out The output stream.
+   * @param data The image data.
+   * @param prev The image data of the previous frame.
+   * @param width The width of the image in data elements.
+   * @param height The height of the image in data elements.
+   * @param offset The offset to the first pixel in the data array.
+   * @param scanlineStride The number to add to offset to get to the next scanline.
+   * @param damage The damaged span of each scanline, or null if all
+   * pixels may have changed. See {@code getDamageSpans}.
+   */
+  public void encodeDelta32(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride, int[] damage)
+          throws IOException {
     out.setByteOrder(ByteOrder.BIG_ENDIAN);
 
     // Determine whether we can skip lines at the beginning
@@ -967,10 +1063,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (ymin = offset; ymin < ymax; ymin += scanlineStride) {
       int xy = ymin;
       int xymax = ymin + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymin - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymin + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
 
@@ -986,10 +1085,13 @@ public class AnimationCodec extends AbstractVideoCodec {
     for (; ymax > ymin; ymax -= scanlineStride) {
       int xy = ymax - scanlineStride;
       int xymax = ymax - scanlineStride + width;
-      for (; xy < xymax; ++xy) {
-        if (data[xy] != prev[xy]) {
-          break scanline;
-        }
+      if (damage != null) {
+        int row = (ymax - scanlineStride - offset) / scanlineStride;
+        xy += damage[row * 2];
+        xymax = ymax - scanlineStride + damage[row * 2 + 1];
+      }
+      if (Scanlines.firstMismatch(data, prev, xy, xymax) < xymax) {
+        break scanline;
       }
     }
     //System.out.println("AnimationCodec ymin:" + ymin / step + " ymax" + ymax / step);
@@ -1018,12 +1120,17 @@ public class AnimationCodec extends AbstractVideoCodec {
 
       // determine skip count
       int skipCount = 0;
-      for (; xy < xymax; ++xy, ++skipCount) {
-        if (data[xy] != prev[xy]) {
-          break;
-        }
+      if (damage != null) {
+        // pixels outside of the damaged span are unchanged
+        int row = (y - offset) / scanlineStride;
+        skipCount = damage[row * 2];
+        xy += skipCount;
+        xymax = y + damage[row * 2 + 1];
       }
-      if (skipCount == width) {
+      int mismatch = Scanlines.firstMismatch(data, prev, xy, xymax);
+      skipCount += mismatch - xy;
+      xy = mismatch;
+      if (xy == xymax) {
         // => the entire line can be skipped
         out.write(1); // don't skip any pixels
         out.write(-1); // end of line
@@ -1045,12 +1152,7 @@ public class AnimationCodec extends AbstractVideoCodec {
       int repeatCount = 0;
       for (; xy < xymax; ++xy) {
         // determine skip count
-        for (skipCount = 0; xy < xymax; ++xy, ++skipCount) {
-          if (data[xy] != prev[xy]) {
-            break;
-          }
-        }
-        xy -= skipCount;
+        skipCount = Scanlines.firstMismatch(data, prev, xy, xymax) - xy;
 
         // determine repeat count
         int v = data[xy];
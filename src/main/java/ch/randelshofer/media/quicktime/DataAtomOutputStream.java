@@ -51,12 +51,11 @@ public class DataAtomOutputStream extends FilterOutputStream {
             throw new IllegalArgumentException("type string must have 4 characters");
         }
 
-        try {
-            out.write(s.getBytes("ASCII"), 0, 4);
-            incCount(4);
-        } catch (UnsupportedEncodingException e) {
-            throw new InternalError(e.toString());
+        for (int i = 0; i < 4; i++) {
+            byteBuf[i] = (byte) s.charAt(i);
         }
+        out.write(byteBuf, 0, 4);
+        incCount(4);
     }
 
     /**
@@ -86,7 +85,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     @Override
-    public synchronized void write(byte b[], int off, int len)
+    public void write(byte b[], int off, int len)
             throws IOException {
         out.write(b, off, len);
         incCount(len);
@@ -105,7 +104,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     @Override
-    public synchronized void write(int b) throws IOException {
+    public void write(int b) throws IOException {
         out.write(b);
         incCount(1);
     }
@@ -120,11 +119,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
      * @see        FilterOutputStream#out
      */
     public void writeInt(int v) throws IOException {
-        out.write((v >>> 24) & 0xff);
-        out.write((v >>> 16) & 0xff);
-        out.write((v >>> 8) & 0xff);
-        out.write((v >>> 0) & 0xff);
-        incCount(4);
+        writeBE(v, 4);
     }
 
     /**
@@ -134,11 +129,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeUInt(long v) throws IOException {
-        out.write((int) ((v >>> 24) & 0xff));
-        out.write((int) ((v >>> 16) & 0xff));
-        out.write((int) ((v >>> 8) & 0xff));
-        out.write((int) ((v >>> 0) & 0xff));
-        incCount(4);
+        writeBE(v, 4);
     }
 
     /**
@@ -148,9 +139,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
      * @throws IOException
      */
     public void writeShort(int v) throws IOException {
-        out.write((int) ((v >> 8) & 0xff));
-        out.write((int) ((v >>> 0) & 0xff));
-        incCount(2);
+        writeBE(v, 2);
     }
 
     /**
@@ -302,21 +291,23 @@ public class DataAtomOutputStream extends FilterOutputStream {
     }
 
     public void writeLong(long v) throws IOException {
-        out.write((int) (v >>> 56) & 0xff);
-        out.write((int) (v >>> 48) & 0xff);
-        out.write((int) (v >>> 40) & 0xff);
-        out.write((int) (v >>> 32) & 0xff);
-        out.write((int) (v >>> 24) & 0xff);
-        out.write((int) (v >>> 16) & 0xff);
-        out.write((int) (v >>> 8) & 0xff);
-        out.write((int) (v >>> 0) & 0xff);
-        incCount(8);
+        writeBE(v, 8);
     }
 
     public void writeUShort(int v) throws IOException {
-        out.write((int) ((v >> 8) & 0xff));
-        out.write((int) ((v >>> 0) & 0xff));
-        incCount(2);
+        writeBE(v, 2);
+    }
+
+    /**
+     * Writes the low bytes of a value, high byte first, with a single write
+     * to the underlying stream.
+     */
+    private void writeBE(long v, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byteBuf[i] = (byte) (v >>> ((count - 1 - i) * 8));
+        }
+        out.write(byteBuf, 0, count);
+        incCount(count);
     }
 
     /**
@@ -366,7 +357,7 @@ public class DataAtomOutputStream extends FilterOutputStream {
 
         write(b, 0, len * 4);
     }
-    private byte[] byteBuf = new byte[3];
+    private final byte[] byteBuf = new byte[8];
 
     public void writeInt24(int v) throws IOException {
         byteBuf[0] = (byte) (v >>> 16);
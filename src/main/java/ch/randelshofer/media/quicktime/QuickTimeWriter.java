@@ -13,11 +13,11 @@ package ch.randelshofer.media.quicktime;
 import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.MovieWriter;
 import ch.randelshofer.media.VideoFormat;
+import ch.randelshofer.media.io.FileChannelImageOutputStream;
 import ch.randelshofer.media.io.ImageOutputStreamAdapter;
 import ch.randelshofer.media.jpeg.JPEGCodec;
 import ch.randelshofer.media.png.PNGCodec;
 
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.sound.sampled.AudioFormat;
@@ -59,6 +59,12 @@ import static java.lang.Math.max;
  * movie. So that the sound and video data is offset from each other in the file
  * by one second.
  * <p>
+ * A movie can be written as a fragmented movie. Then the movie header is
+ * written at the start of the file, and the samples are written in movie
+ * fragments of a few seconds, each of them holding the sample tables of its
+ * samples. The sample tables are not kept in memory, and if the movie is
+ * not finished, all fragments which have been written can still be played.
+ * <p>
  * For convenience, this class has built-in encoders for video frames in the following
  * formats: RAW, ANIMATION, JPEG and PNG. Media data in other formats, including all audio
  * data, must be encoded before it can be written with {@code QuickTimeWriter}.
@@ -147,6 +153,14 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
     public final static VideoFormat VIDEO_ANIMATION = new VideoFormat(VideoFormat.QT_ANIMATION, VideoFormat.QT_ANIMATION_COMPRESSOR_NAME);
     public final static VideoFormat VIDEO_JPEG = new VideoFormat(VideoFormat.QT_JPEG, VideoFormat.QT_JPEG_COMPRESSOR_NAME);
     public final static VideoFormat VIDEO_PNG = new VideoFormat(VideoFormat.QT_PNG, VideoFormat.QT_PNG_COMPRESSOR_NAME);
+    /** The duration of a movie fragment in seconds. 0 = no limit. */
+    private double fragmentDuration = 2;
+    /** The maximal number of sync samples of a video track in a movie fragment. 0 = no limit. */
+    private int fragmentSyncSampleCount = 0;
+    /** Holds the sample data of the current movie fragment. */
+    private ByteArrayOutputStream fragmentData;
+    /** The sequence number of the last movie fragment. */
+    private int fragmentSequenceNumber;
 
     /**
      * Creates a new QuickTime writer.
@@ -154,10 +168,23 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
      * @param file the output file
      */
     public QuickTimeWriter(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Creates a new QuickTime writer.
+     *
+     * @param file the output file
+     * @param asynchronous Whether the file is written by a background
+     * thread. Writing a sample then only copies it into a buffer, and does
+     * not wait for the disk unless all buffers are being written.
+     */
+    public QuickTimeWriter(File file, boolean asynchronous) throws IOException {
         if (file.exists()) {
             file.delete();
         }
-        this.out = new FileImageOutputStream(file);
+        this.out = new FileChannelImageOutputStream(file, FileChannelImageOutputStream.DEFAULT_BUFFER_SIZE,
+                asynchronous ? FileChannelImageOutputStream.DEFAULT_ASYNCHRONOUS_BUFFER_COUNT : 1);
         this.streamOffset = 0;
     }
 
@@ -584,6 +611,53 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         return ((VideoTrack) tracks.get(track)).syncInterval;
     }
 
+    /**
+     * Sets whether the movie is written as a fragmented movie.
+     * <p>
+     * This method must be called before the first sample is written.
+     * The default value is false.
+     */
+    public void setFragmented(boolean newValue) {
+        if (state != States.REALIZED) {
+            throw new IllegalStateException("The movie has already been started");
+        }
+        isFragmented = newValue;
+    }
+
+    public boolean isFragmented() {
+        return isFragmented;
+    }
+
+    /**
+     * Sets the duration of the movie fragments in seconds. A fragment is
+     * written when the samples of a track span this duration. 0 = no limit.
+     * <p>
+     * The default value is 2 seconds.
+     */
+    public void setFragmentDuration(double seconds) {
+        fragmentDuration = seconds;
+    }
+
+    public double getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    /**
+     * Sets the maximal number of sync samples of a video track in a movie
+     * fragment. A fragment is written before a sync sample which exceeds this
+     * number, so that the next fragment starts with a sync sample.
+     * 0 = no limit.
+     * <p>
+     * The default value is 0.
+     */
+    public void setFragmentSyncSampleCount(int newValue) {
+        fragmentSyncSampleCount = newValue;
+    }
+
+    public int getFragmentSyncSampleCount() {
+        return fragmentSyncSampleCount;
+    }
+
     /**
      * Sets the state of the QuickTimeWriter to started.
      * <p>
@@ -598,11 +672,218 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         if (state != States.STARTED) {
             creationTime = new Date();
             writeProlog();
-            mdatAtom = new WideDataAtom("mdat");
+            if (isFragmented) {
+                writeMovieAtom();
+                fragmentData = new ByteArrayOutputStream();
+            } else {
+                mdatAtom = new WideDataAtom("mdat");
+            }
             state = States.STARTED;
         }
     }
 
+    /**
+     * Returns the offset of the next sample. This is the position in the
+     * file, or the position in the data of the current fragment if the movie
+     * is fragmented.
+     */
+    private long getSampleOffset() throws IOException {
+        return isFragmented ? fragmentData.size() : getRelativeStreamPosition();
+    }
+
+    /**
+     * Returns the stream into which the data of the samples is written.
+     */
+    private OutputStream getSampleOutputStream() {
+        return isFragmented ? fragmentData : mdatAtom.getOutputStream();
+    }
+
+    /**
+     * Writes a movie fragment, if the movie is fragmented and the samples
+     * which have been written since the previous fragment span the fragment
+     * duration, or if a sync sample is about to be written into a video track
+     * and the fragment already holds the maximal number of sync samples of
+     * that track.
+     *
+     * @param track The track into which the next sample is written.
+     * @param isSync Whether the next sample is a sync sample.
+     */
+    private void writeFragmentIfFull(Track track, boolean isSync) throws IOException {
+        if (!isFragmented) {
+            return;
+        }
+        boolean isFull = false;
+        for (Track t : tracks) {
+            isFull |= fragmentDuration > 0
+                    && t.mediaDuration - t.baseMediaDecodeTime >= fragmentDuration * t.mediaTimeScale;
+        }
+        if (isSync && track.mediaType == MediaType.VIDEO && fragmentSyncSampleCount > 0) {
+            long syncSampleCount = track.syncSamples == null ? track.sampleCount : track.syncSamples.cardinality();
+            isFull |= syncSampleCount >= fragmentSyncSampleCount;
+        }
+        if (isFull) {
+            writeFragment();
+        }
+    }
+
+    /**
+     * Returns true if all samples of the track have the same duration and
+     * size, and are sync samples.
+     */
+    private static boolean hasUniformSamples(Track t) {
+        return t.timeToSampleCount == 1 && t.sampleSizeCount == 1 && t.syncSamples == null;
+    }
+
+    /**
+     * Writes the samples which have been written since the previous fragment
+     * into a movie fragment, and clears the sample tables of the tracks.
+     */
+    private void writeFragment() throws IOException {
+        // The data offsets of the track runs are relative to the start of
+        // the movie fragment atom, so its size is computed beforehand.
+        // Each track run holds the samples of one chunk.
+        long moofSize = 8 + 16;
+        for (Track t : tracks) {
+            if (t.sampleCount > 0) {
+                moofSize += 8 + 16 + 20 + 20 * t.chunkCount
+                        + (hasUniformSamples(t) ? 12 : 12 * t.sampleCount);
+            }
+        }
+        if (moofSize == 8 + 16) {
+            return;
+        }
+        fragmentSequenceNumber++;
+
+        /* Movie Fragment Atom ========= */
+        CompositeAtom moofAtom = new CompositeAtom("moof");
+
+        /* Movie Fragment Header Atom -------------
+        typedef struct {
+        byte version;
+        byte[3] flags;
+        int sequenceNumber;
+        } movieFragmentHeaderAtom;
+         */
+        DataAtom leaf = new DataAtom("mfhd");
+        moofAtom.add(leaf);
+        DataAtomOutputStream d = leaf.getOutputStream();
+        d.writeInt(0); // version and flags
+        d.writeUInt(fragmentSequenceNumber); // sequenceNumber
+        // The ordinal number of this fragment, in increasing order.
+
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            Track t = tracks.get(i);
+            if (t.sampleCount == 0) {
+                continue;
+            }
+            /* Track Fragment Atom ========= */
+            CompositeAtom trafAtom = new CompositeAtom("traf");
+            moofAtom.add(trafAtom);
+
+            /* Track Fragment Header Atom -------------
+            typedef struct {
+            byte version;
+            byte[3] flags;
+            int trackId;
+            } trackFragmentHeaderAtom;
+             */
+            boolean isUniform = hasUniformSamples(t);
+            leaf = new DataAtom("tfhd");
+            trafAtom.add(leaf);
+            d = leaf.getOutputStream();
+            d.writeInt(isUniform ? 0x20038 : 0x20000); // version and flags
+            // Flag 0x20000 default-base-is-moof: the data offsets are relative
+            // to the start of the movie fragment atom.
+            // Flags 0x8 default-sample-duration, 0x10 default-sample-size and
+            // 0x20 default-sample-flags present.
+
+            d.writeUInt(i + 1); // trackId
+            if (isUniform) {
+                d.writeInt(t.timeToSampleDurations[0]); // defaultSampleDuration
+                d.writeInt(t.sampleSizeLengths[0]); // defaultSampleSize
+                d.writeInt(0x2000000); // defaultSampleFlags
+                // Samples of uniform duration and size, such as PCM audio
+                // frames, need no entries in the track runs.
+            }
+
+            /* Track Fragment Decode Time Atom -------------
+            typedef struct {
+            byte version;
+            byte[3] flags;
+            long baseMediaDecodeTime;
+            } trackFragmentDecodeTimeAtom;
+             */
+            leaf = new DataAtom("tfdt");
+            trafAtom.add(leaf);
+            d = leaf.getOutputStream();
+            d.writeInt(0x1000000); // version 1 and flags
+            d.writeLong(t.baseMediaDecodeTime); // baseMediaDecodeTime
+            // The media time of the first sample in this fragment.
+
+            /* Track Run Atom -------------
+            typedef struct {
+            byte version;
+            byte[3] flags;
+            int sampleCount;
+            int dataOffset;
+            struct {
+            int sampleDuration;
+            int sampleSize;
+            int sampleFlags;
+            } trackRunTable[sampleCount];
+            } trackRunAtom;
+             */
+            int sample = 0;
+            int timeToSample = 0, timeToSampleRemaining = t.timeToSampleCounts[0];
+            int sampleSize = 0, sampleSizeRemaining = t.sampleSizeCounts[0];
+            for (int chunk = 0; chunk < t.chunkCount; chunk++) {
+                leaf = new DataAtom("trun");
+                trafAtom.add(leaf);
+                d = leaf.getOutputStream();
+                d.writeInt(isUniform ? 0x1 : 0x701); // version and flags
+                // Flags 0x1 data-offset, 0x100 sample-duration, 0x200 sample-size
+                // and 0x400 sample-flags present.
+
+                d.writeUInt(t.chunkSampleCounts[chunk]); // sampleCount
+                d.writeUInt(moofSize + 8 + t.chunkOffsets[chunk]); // dataOffset
+                if (isUniform) {
+                    continue;
+                }
+
+                for (int j = 0; j < t.chunkSampleCounts[chunk]; j++, sample++) {
+                    while (timeToSampleRemaining == 0) {
+                        timeToSampleRemaining = t.timeToSampleCounts[++timeToSample];
+                    }
+                    timeToSampleRemaining--;
+                    while (sampleSizeRemaining == 0) {
+                        sampleSizeRemaining = t.sampleSizeCounts[++sampleSize];
+                    }
+                    sampleSizeRemaining--;
+
+                    d.writeInt(t.timeToSampleDurations[timeToSample]); // sampleDuration
+                    d.writeInt(t.sampleSizeLengths[sampleSize]); // sampleSize
+                    d.writeInt(t.syncSamples == null || t.syncSamples.get(sample) ? 0x2000000 : 0x1010000); // sampleFlags
+                    // 0x2000000 the sample does not depend on other samples,
+                    // 0x1010000 the sample depends on other samples and is not
+                    // a sync sample.
+                }
+            }
+            t.clearSamples();
+        }
+        moofAtom.finish();
+
+        /* Media Data Atom ========= */
+        d = new DataAtomOutputStream(new ImageOutputStreamAdapter(out));
+        d.writeUInt(8 + fragmentData.size()); // size
+        d.writeType("mdat"); // type
+        fragmentData.writeTo(d);
+        fragmentData.reset();
+
+        // A fragment is complete: make it readable, also if the movie is
+        // never closed
+        out.flush();
+    }
+
     /**
      * Encodes an image as a video frame and writes it into a video track.
      *
@@ -626,19 +907,63 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         if (vt.mediaType != MediaType.VIDEO) {
             throw new IllegalArgumentException("Track " + track + " is not a video track");
         }
+        ensureStarted();
+
+        if (vt.outputBuffer == null) {
+            vt.outputBuffer = new Buffer();
+        }
+        Buffer inputBuffer = new Buffer();
+        inputBuffer.data = image;
+        inputBuffer.duration = duration;
+        encodeFrame(track, inputBuffer, vt.outputBuffer);
+        if (vt.outputBuffer.flags == Buffer.FLAG_DISCARD) {
+            return;
+        }
+        writeSample(track, vt.outputBuffer);
+    }
+
+    /**
+     * Encodes an image as a video frame, but does not write it into the
+     * video track.
+     * <p>
+     * The encoded frame can be written with {@link #writeSample(int, Buffer)}.
+     * Frames must be written in the order in which they have been encoded.
+     * This method may be invoked concurrently with {@code writeSample} from
+     * a different thread.
+     *
+     * @param track The track index.
+     * @param in A buffer holding the image of the video frame and its duration
+     * in media time scale units.
+     * @param out A buffer which receives the encoded frame.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IllegalArgumentException if the duration is less than 1, or if
+     * the dimension of the frame does not match the dimension of the video.
+     * @throws UnsupportedOperationException if the QuickTimeWriter does not have
+     * a built-in codec for this video format.
+     */
+    @Override
+    public void encodeFrame(int track, Buffer in, Buffer out) throws IOException {
+        if (in.duration <= 0) {
+            throw new IllegalArgumentException("Duration must be greater 0.");
+        }
+        VideoTrack vt = (VideoTrack) tracks.get(track); // throws index out of bounds exception if illegal track index
+        if (vt.mediaType != MediaType.VIDEO) {
+            throw new IllegalArgumentException("Track " + track + " is not a video track");
+        }
         if (vt.codec == null) {
             throw new UnsupportedOperationException("No codec for this video format.");
         }
-        ensureStarted();
 
         // Get the dimensions of the first image
+        BufferedImage image = (BufferedImage) in.data;
         if (vt.videoWidth == -1) {
             vt.videoWidth = image.getWidth();
             vt.videoHeight = image.getHeight();
         } else {
             // The dimension of the image must match the dimension of the video track
             if (vt.videoWidth != image.getWidth() || vt.videoHeight != image.getHeight()) {
-                throw new IllegalArgumentException("Dimensions of frame[" + tracks.get(track).getSampleCount()
+                throw new IllegalArgumentException("Dimensions of frame[" + vt.encodedFrameCount
                         + "] (width=" + image.getWidth() + ", height=" + image.getHeight()
                         + ") differs from video dimension (width="
                         + vt.videoWidth + ", height=" + vt.videoHeight + ") in track " + track + "");
@@ -646,31 +971,62 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         }
 
         // Encode pixel data
-        {
-
-            if (vt.outputBuffer == null) {
-                vt.outputBuffer = new Buffer();
-            }
-
-            boolean isSync = vt.syncInterval == 0 ? false : vt.sampleCount % vt.syncInterval == 0;
-
-            Buffer inputBuffer = new Buffer();
-            inputBuffer.flags = (isSync) ? Buffer.FLAG_KEY_FRAME : 0;
-            inputBuffer.data = image;
-            vt.codec.process(inputBuffer, vt.outputBuffer);
-            if (vt.outputBuffer.flags == Buffer.FLAG_DISCARD) {
-                return;
-            }
+        // The sync interval is the maximal distance from one key frame to the
+        // next. Key frames which are forced by the caller or promoted by the
+        // codec restart the interval.
+        boolean isSync = vt.syncInterval == 0 ? false
+                : vt.encodedFrameCount == 0 || vt.deltaFrameCount >= vt.syncInterval - 1;
+
+        if (vt.inputBuffer == null) {
+            vt.inputBuffer = new Buffer();
+        }
+        Buffer inputBuffer = vt.inputBuffer;
+        inputBuffer.flags = in.flags | ((isSync) ? Buffer.FLAG_KEY_FRAME : 0);
+        inputBuffer.data = image;
+        inputBuffer.damage = in.damage;
+        vt.codec.process(inputBuffer, out);
+        if ((in.flags & Buffer.FLAG_RELINQUISH) != 0) {
+            in.data = inputBuffer.data;
+        }
+        inputBuffer.data = null;
+        inputBuffer.damage = null;
+        if (out.flags == Buffer.FLAG_DISCARD) {
+            return;
+        }
+        vt.encodedFrameCount++;
+        vt.deltaFrameCount = (out.flags & Buffer.FLAG_KEY_FRAME) != 0 ? 0 : vt.deltaFrameCount + 1;
+        out.duration = in.duration;
+        out.timeScale = vt.mediaTimeScale;
+    }
 
-            isSync = (vt.outputBuffer.flags & Buffer.FLAG_KEY_FRAME) != 0;
+    /**
+     * Writes a video frame which has been encoded with {@link #encodeFrame}
+     * into a video track.
+     *
+     * @param track The track index.
+     * @param buf A buffer holding the encoded video frame and its duration
+     * in {@code timeScale} units.
+     *
+     * @throws IndexOutofBoundsException if the track index is out of bounds.
+     * @throws IOException if writing the sample data failed.
+     */
+    @Override
+    public void writeSample(int track, Buffer buf) throws IOException {
+        ensureStarted();
+        VideoTrack vt = (VideoTrack) tracks.get(track);
+        boolean isSync = (buf.flags & Buffer.FLAG_KEY_FRAME) != 0;
+        writeFragmentIfFull(vt, isSync);
 
-            long offset = getRelativeStreamPosition();
-            OutputStream mdatOut = mdatAtom.getOutputStream();
-            mdatOut.write((byte[]) vt.outputBuffer.data, vt.outputBuffer.offset, vt.outputBuffer.length);
+        long offset = getSampleOffset();
+        OutputStream mdatOut = getSampleOutputStream();
+        mdatOut.write((byte[]) buf.data, buf.offset, buf.length);
 
-            long length = getRelativeStreamPosition() - offset;
-            vt.addSample(new Sample(duration, offset, length), 1, isSync);
+        long length = getSampleOffset() - offset;
+        long duration = buf.duration;
+        if (buf.timeScale > 0 && buf.timeScale != vt.mediaTimeScale) {
+            duration = max(1, duration * vt.mediaTimeScale / buf.timeScale);
         }
+        vt.addSamples(1, duration, offset, length, 1, isSync);
     }
 
     /**
@@ -762,15 +1118,16 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
-        long offset = getRelativeStreamPosition();
-        OutputStream mdatOut = mdatAtom.getOutputStream();
+        writeFragmentIfFull(t, isSync);
+        long offset = getSampleOffset();
+        OutputStream mdatOut = getSampleOutputStream();
         byte[] buf = new byte[4096];
         int len;
         while ((len = in.read(buf)) != -1) {
             mdatOut.write(buf, 0, len);
         }
-        long length = getRelativeStreamPosition() - offset;
-        t.addSample(new Sample(duration, offset, length), 1, isSync);
+        long length = getSampleOffset() - offset;
+        t.addSamples(1, duration, offset, length, 1, isSync);
     }
 
     /**
@@ -853,10 +1210,11 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
-        long offset = getRelativeStreamPosition();
-        OutputStream mdatOut = mdatAtom.getOutputStream();
+        writeFragmentIfFull(t, isSync);
+        long offset = getSampleOffset();
+        OutputStream mdatOut = getSampleOutputStream();
         mdatOut.write(data, off, len);
-        t.addSample(new Sample(duration, offset, len), 1, isSync);
+        t.addSamples(1, duration, offset, len, 1, isSync);
     }
 
     /**
@@ -936,15 +1294,13 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
-        long offset = getRelativeStreamPosition();
-        OutputStream mdatOut = mdatAtom.getOutputStream();
+        writeFragmentIfFull(t, isSync);
+        long offset = getSampleOffset();
+        OutputStream mdatOut = getSampleOutputStream();
         mdatOut.write(data, off, len);
 
 
-        int sampleLength = len / sampleCount;
-        Sample first = new Sample(sampleDuration, offset, sampleLength);
-        Sample last = new Sample(sampleDuration, offset + sampleLength * (sampleCount - 1), sampleLength);
-        t.addChunk(new Chunk(first, last, sampleCount, 1), isSync);
+        t.addSamples(sampleCount, sampleDuration, offset, len / sampleCount, 1, isSync);
     }
 
     /** Returns true because QuickTime supports variable frame rates. */
@@ -976,6 +1332,25 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         }
     }
 
+    /** Returns true if the limit for media samples will soon be reached.
+     * This method returns true when the file size exceeds 2^60 or when the
+     * media duration value of a track exceeds 2^60.
+     */
+    @Override
+    public boolean isDataLimitNear() {
+        try {
+            long maxMediaDuration = 0;
+            for (Track t : tracks) {
+                maxMediaDuration = max(t.mediaDuration, maxMediaDuration);
+            }
+
+            return getRelativeStreamPosition() > (long) (1L << 60) //
+                    || maxMediaDuration > 1L << 60;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
     /**
      * Closes the movie file as well as the stream being filtered.
      *
@@ -989,8 +1364,16 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
             }
         } finally {
             if (state != States.CLOSED) {
-                out.close();
-                state = States.CLOSED;
+                try {
+                    out.close();
+                } finally {
+                    state = States.CLOSED;
+                    for (Track t : tracks) {
+                        if (t instanceof VideoTrack && ((VideoTrack) t).codec != null) {
+                            ((VideoTrack) t).codec.close();
+                        }
+                    }
+                }
             }
         }
     }
@@ -1009,8 +1392,12 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         if (state != States.FINISHED) {
             for (int i = 0, n = tracks.size(); i < n; i++) {
             }
-            mdatAtom.finish();
-            writeEpilog();
+            if (isFragmented) {
+                writeFragment();
+            } else {
+                mdatAtom.finish();
+                writeMovieAtom();
+            }
             state = States.FINISHED;
             /*
             for (int i = 0, n = tracks.size(); i < n; i++) {
@@ -1050,13 +1437,21 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
         d.writeBCD2(3); // versionMonth
         d.writeBCD2(0); // versionMinor
         d.writeType("qt  "); // compatibleBrands
-        d.writeInt(0); // compatibleBrands (0 is used to denote no value)
+        if (isFragmented) {
+            d.writeType("iso5"); // compatibleBrands (movie fragments relative to the moof atom)
+        } else {
+            d.writeInt(0); // compatibleBrands (0 is used to denote no value)
+        }
         d.writeInt(0); // compatibleBrands (0 is used to denote no value)
         d.writeInt(0); // compatibleBrands (0 is used to denote no value)
         ftypAtom.finish();
     }
 
-    private void writeEpilog() throws IOException {
+    /**
+     * Writes the movie atom. This is the epilog of a movie, or the prolog of
+     * a fragmented movie.
+     */
+    private void writeMovieAtom() throws IOException {
         Date modificationTime = new Date();
         long duration = getMovieDuration();
 
@@ -1178,6 +1573,36 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
             /* Track Atom ======== */
             t.writeTrackAtoms(i, moovAtom, modificationTime);
         }
+
+        if (isFragmented) {
+            /* Movie Extends Atom ========= */
+            CompositeAtom mvexAtom = new CompositeAtom("mvex");
+            moovAtom.add(mvexAtom);
+            for (int i = 0, n = tracks.size(); i < n; i++) {
+                /* Track Extends Atom -------------
+                typedef struct {
+                byte version;
+                byte[3] flags;
+                int trackId;
+                int defaultSampleDescriptionIndex;
+                int defaultSampleDuration;
+                int defaultSampleSize;
+                int defaultSampleFlags;
+                } trackExtendsAtom;
+                 */
+                leaf = new DataAtom("trex");
+                mvexAtom.add(leaf);
+                d = leaf.getOutputStream();
+                d.writeInt(0); // version and flags
+                d.writeUInt(i + 1); // trackId
+                d.writeUInt(1); // defaultSampleDescriptionIndex
+                d.writeUInt(0); // defaultSampleDuration
+                d.writeUInt(0); // defaultSampleSize
+                d.writeUInt(0); // defaultSampleFlags
+                // The track runs specify the duration, size and flags of
+                // each sample.
+            }
+        }
         //
         moovAtom.finish();
     }
@@ -1190,8 +1615,12 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
      *
      * @param outputFile The output file
      * @param compressHeader Whether the movie header shall be compressed.
+     * @throws IllegalStateException if the movie is fragmented.
      */
     public void toWebOptimizedMovie(File outputFile, boolean compressHeader) throws IOException {
+        if (isFragmented) {
+            throw new IllegalStateException("A fragmented movie already starts with the movie header");
+        }
         finish();
         long originalMdatOffset = mdatAtom.getOffset();
         CompositeAtom originalMoovAtom = moovAtom;
@@ -1212,7 +1641,7 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
                     buf.reset();
                     DeflaterOutputStream deflater = new DeflaterOutputStream(buf);
                     out = new MemoryCacheImageOutputStream(deflater);
-                    writeEpilog();
+                    writeMovieAtom();
                     out.close();
                     deflater.close();
 
@@ -1232,7 +1661,7 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
                     compressHeader = false;
                     System.err.println("WARNING QuickTimeWriter failed to compress header.");
                 } else {
-                    out = new FileImageOutputStream(outputFile);
+                    out = new FileChannelImageOutputStream(outputFile);
                     writeProlog();
 
                     // 40 bytes compression headers
@@ -1263,10 +1692,10 @@ public class QuickTimeWriter extends AbstractQuickTimeStream implements MovieWri
 
             }
             if (!compressHeader) {
-                out = new FileImageOutputStream(outputFile);
+                out = new FileChannelImageOutputStream(outputFile);
                 mdatOffset = moovAtom.size();
                 writeProlog();
-                writeEpilog();
+                writeMovieAtom();
             }
 
 
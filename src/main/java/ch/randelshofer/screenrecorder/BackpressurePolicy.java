@@ -0,0 +1,15 @@
+package ch.randelshofer.screenrecorder;
+
+/**
+ * Specifies what the {@link ScreenRecorder} does when the encoder can not keep
+ * up with the captured frames.
+ */
+public enum BackpressurePolicy {
+    /** The capture stage waits until the encode stage has room for the frame. */
+    BLOCK,
+    /** The oldest frame which waits for the encoder is dropped. */
+    DROP_OLDEST,
+    /** The capture stage skips screen captures while the encoder is backlogged,
+     * which lowers the frame rate until the encoder has caught up. */
+    DEGRADE
+}
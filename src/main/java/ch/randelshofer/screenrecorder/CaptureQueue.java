@@ -0,0 +1,97 @@
+package ch.randelshofer.screenrecorder;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The bounded queue between the capture stage and the encode stage. Applies
+ * the {@link BackpressurePolicy} when the encode stage can not keep up with
+ * the captured frames.
+ */
+class CaptureQueue {
+
+    /** The maximal capture stride with {@code BackpressurePolicy.DEGRADE}. */
+    private static final int MAX_CAPTURE_STRIDE = 16;
+
+    private final BlockingQueue<CapturedFrame> queue;
+    private final int capacity;
+    private final BackpressurePolicy policy;
+    /** With {@code BackpressurePolicy.DEGRADE}, only every n-th screen is captured. */
+    private volatile int captureStride = 1;
+
+    /**
+     * Creates a new capture queue.
+     *
+     * @param capacity The maximal number of frames which wait for the encoder.
+     * @param policy The policy which is applied when the queue is full.
+     */
+    public CaptureQueue(int capacity, BackpressurePolicy policy) {
+        this.queue = new ArrayBlockingQueue<CapturedFrame>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Returns true if the screen capture with the specified tick number is
+     * skipped, because the encoder is backlogged. Only with
+     * {@code BackpressurePolicy.DEGRADE}.
+     */
+    public boolean isSkipped(long tick) {
+        return policy == BackpressurePolicy.DEGRADE && tick % captureStride != 0;
+    }
+
+    /** Returns the number of clock ticks from one screen capture to the next. */
+    public int getCaptureStride() {
+        return captureStride;
+    }
+
+    /**
+     * Hands a frame over to the encode stage. With
+     * {@code BackpressurePolicy.BLOCK}, waits until the queue has room for
+     * the frame. Otherwise the frames which are dropped, either older ones or
+     * this one, are added to {@code dropped}.
+     *
+     * @param frame The captured frame.
+     * @param dropped Receives the frames which have been dropped.
+     * @throws InterruptedException if interrupted while waiting. The frame
+     * has then not been queued.
+     */
+    public void put(CapturedFrame frame, Collection<CapturedFrame> dropped) throws InterruptedException {
+        switch (policy) {
+            case BLOCK:
+                queue.put(frame);
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    CapturedFrame oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.add(oldest);
+                    }
+                }
+                break;
+            case DEGRADE:
+                if (!queue.offer(frame)) {
+                    dropped.add(frame);
+                    captureStride = Math.min(captureStride * 2, MAX_CAPTURE_STRIDE);
+                } else if (captureStride > 1 && queue.size() <= capacity / 4) {
+                    captureStride /= 2;
+                }
+                break;
+        }
+    }
+
+    /** Marks the end of the frame stream. Waits until the queue has room. */
+    public void putEnd() throws InterruptedException {
+        queue.put(CapturedFrame.END);
+    }
+
+    /** Takes the next frame, waiting until one is available. */
+    public CapturedFrame take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,43 @@
+package ch.randelshofer.screenrecorder;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/** Holds a captured screen image on its way to the encoder. */
+class CapturedFrame {
+
+    /** Marks the end of the frame stream. */
+    static final CapturedFrame END = new CapturedFrame(null, 0, -1, null);
+
+    private BufferedImage image;
+    private long time;
+    private long sequenceNumber;
+    private Rectangle[] damage;
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /** Returns the number of the capture. Consecutive captures have
+     * consecutive numbers. */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /** Returns the regions which have changed since the previous capture,
+     * or null if they are unknown. */
+    public Rectangle[] getDamage() {
+        return damage;
+    }
+
+    public CapturedFrame(BufferedImage image, long time, long sequenceNumber, Rectangle[] damage) {
+        this.image = image;
+        this.time = time;
+        this.sequenceNumber = sequenceNumber;
+        this.damage = damage;
+    }
+}
@@ -0,0 +1,33 @@
+package ch.randelshofer.screenrecorder;
+
+import ch.randelshofer.media.Buffer;
+import ch.randelshofer.media.MovieWriter;
+
+/** Holds an encoded frame on its way to the movie writer which encoded it. */
+class EncodedFrame {
+
+    /** Marks the end of the frame stream. */
+    static final EncodedFrame END = new EncodedFrame(null, null, 0);
+
+    private Buffer buffer;
+    private MovieWriter writer;
+    private long time;
+
+    public Buffer getBuffer() {
+        return buffer;
+    }
+
+    public MovieWriter getWriter() {
+        return writer;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public EncodedFrame(Buffer buffer, MovieWriter writer, long time) {
+        this.buffer = buffer;
+        this.writer = writer;
+        this.time = time;
+    }
+}
@@ -0,0 +1,312 @@
+package ch.randelshofer.screenrecorder;
+
+import ch.randelshofer.media.color.InverseColorMap;
+import ch.randelshofer.media.color.MedianCutQuantizer;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Recycles the images of captured frames.
+ * <p>
+ * Each captured screen is copied into a preallocated frame image with the
+ * color depth of the movie, and the mouse cursor is painted on it. When the
+ * encoder is done with the frame, it is released back into the pool. Thus in
+ * steady state, preparing a frame does not allocate memory.
+ */
+class FramePool {
+
+    /** The mean squared color error below which the palette is not replaced. */
+    private static final double MIN_PALETTE_ERROR = 16;
+
+    private final int width;
+    private final int height;
+    private final ColorDepth depth;
+    /** The palette of new frames, only used with {@code ColorDepth.DOZENS}. */
+    private IndexColorModel palette;
+    /** Maps colors to the palette. */
+    private InverseColorMap inverseColorMap;
+    /** Whether DOZENS frames are dithered. */
+    private volatile boolean dither;
+    /** The palette is checked every so many captures, or never if 0. */
+    private int paletteCheckInterval;
+    private int capturesSincePaletteCheck;
+    private MedianCutQuantizer quantizer;
+    /** Frames which are ready for reuse. */
+    private final BlockingQueue<BufferedImage> freeFrames;
+    /** Graphics of the frames, only used for color depths other than MILLIONS. */
+    private final Map<BufferedImage, Graphics2D> graphics = new IdentityHashMap<BufferedImage, Graphics2D>();
+    private int createdCount;
+    /** The cursor image of which the ARGB pixels have been cached. */
+    private BufferedImage cursorImage;
+    private int[] cursorPixels;
+
+    /**
+     * Creates a new frame pool.
+     *
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @param depth The color depth of the frames.
+     * @param palette The palette of the frames. Only used with
+     * {@code ColorDepth.DOZENS}.
+     * @param capacity The maximal number of frames which are kept for reuse.
+     */
+    public FramePool(int width, int height, ColorDepth depth, IndexColorModel palette, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.palette = palette;
+        this.inverseColorMap = (depth == ColorDepth.DOZENS) ? new InverseColorMap(palette) : null;
+        this.freeFrames = new ArrayBlockingQueue<BufferedImage>(capacity);
+    }
+
+    /**
+     * Returns a frame from the pool, or creates a new one if the pool is
+     * empty. The contents of the frame is undefined.
+     */
+    public BufferedImage acquire() {
+        BufferedImage frame = freeFrames.poll();
+        if (frame == null) {
+            frame = createFrame();
+        } else if (depth == ColorDepth.DOZENS && frame.getColorModel() != palette) {
+            // Reuse the pixels with the current palette
+            synchronized (graphics) {
+                Graphics2D g = graphics.remove(frame);
+                if (g != null) {
+                    g.dispose();
+                }
+            }
+            frame = new BufferedImage(palette, frame.getRaster(), false, null);
+        }
+        return frame;
+    }
+
+    /**
+     * Releases a frame back into the pool. The frame is discarded if the pool
+     * is full.
+     */
+    public void release(BufferedImage frame) {
+        if (frame != null && !freeFrames.offer(frame)) {
+            synchronized (graphics) {
+                Graphics2D g = graphics.remove(frame);
+                if (g != null) {
+                    g.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets whether frames with {@code ColorDepth.DOZENS} are dithered.
+     * Dithering gives smoother gradients, but flat areas compress less well.
+     * The default is false.
+     */
+    public void setDither(boolean newValue) {
+        dither = newValue;
+    }
+
+    /**
+     * Sets how often the palette of {@code ColorDepth.DOZENS} frames is
+     * adapted to the captured screen. Every {@code interval} captures, an
+     * optimized palette is created from the screen. It replaces the current
+     * palette if it reduces the color error considerably. Frames with a new
+     * palette must be encoded as key frames.
+     *
+     * @param interval The interval in captures, or 0 for a fixed palette.
+     */
+    public void setPaletteCheckInterval(int interval) {
+        paletteCheckInterval = interval;
+    }
+
+    /** Returns the palette of new frames. */
+    public IndexColorModel getPalette() {
+        return palette;
+    }
+
+    /** Returns the number of frames which have been created by this pool. */
+    public synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+    private synchronized BufferedImage createFrame() {
+        createdCount++;
+        switch (depth) {
+            case MILLIONS:
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            case THOUSANDS:
+                return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
+            default:
+                return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        }
+    }
+
+    /**
+     * Copies a captured screen into a frame from the pool, and paints the
+     * mouse cursor on it.
+     *
+     * @param screen The captured screen.
+     * @param cursorImage The image of the mouse cursor, or null.
+     * @param cursorX The x coordinate of the cursor image on the screen.
+     * @param cursorY The y coordinate of the cursor image on the screen.
+     * @return A frame. Must be released when it is no longer needed.
+     */
+    public BufferedImage capture(BufferedImage screen, BufferedImage cursorImage, int cursorX, int cursorY) {
+        if (depth == ColorDepth.DOZENS && paletteCheckInterval > 0
+                && capturesSincePaletteCheck++ % paletteCheckInterval == 0 && isIntRGB(screen)) {
+            updatePalette(screen);
+        }
+        BufferedImage frame = acquire();
+        if (depth == ColorDepth.MILLIONS && copyPixels(screen, frame)) {
+            if (cursorImage != null) {
+                if (this.cursorImage != cursorImage) {
+                    this.cursorImage = cursorImage;
+                    cursorPixels = cursorImage.getRGB(0, 0, cursorImage.getWidth(), cursorImage.getHeight(), null, 0, cursorImage.getWidth());
+                }
+                paintCursor(frame, cursorPixels, cursorImage.getWidth(), cursorImage.getHeight(), cursorX, cursorY);
+            }
+        } else {
+            Graphics2D g = getGraphics(frame);
+            if (!convertPixels(screen, frame)) {
+                g.drawImage(screen, 0, 0, null);
+            }
+            if (cursorImage != null) {
+                g.drawImage(cursorImage, cursorX, cursorY, null);
+            }
+        }
+        return frame;
+    }
+
+    private Graphics2D getGraphics(BufferedImage frame) {
+        synchronized (graphics) {
+            Graphics2D g = graphics.get(frame);
+            if (g == null) {
+                g = frame.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
+                g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+                graphics.put(frame, g);
+            }
+            return g;
+        }
+    }
+
+    /**
+     * Reduces the pixels of an INT_RGB image to the palette of a DOZENS
+     * frame. This is much faster than drawing the image with Java2D. For
+     * THOUSANDS, Java2D already uses a fast native loop.
+     * Returns false if the pixels have not been converted.
+     */
+    private boolean convertPixels(BufferedImage src, BufferedImage dst) {
+        if (depth != ColorDepth.DOZENS || !isIntRGB(src)) {
+            return false;
+        }
+        WritableRaster srcRaster = src.getRaster();
+        int[] srcPixels = ((DataBufferInt) srcRaster.getDataBuffer()).getData();
+        int srcStride = ((SinglePixelPackedSampleModel) srcRaster.getSampleModel()).getScanlineStride();
+        int srcOffset = -srcRaster.getSampleModelTranslateX() - srcRaster.getSampleModelTranslateY() * srcStride;
+        byte[] dstPixels = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+        inverseColorMap.toIndexed(srcPixels, srcOffset, srcStride, dstPixels, 0, width, width, height, dither);
+        return true;
+    }
+
+    /**
+     * Creates a palette for the colors of an INT_RGB screen, and uses it for
+     * new frames if it is considerably better than the current palette.
+     */
+    private void updatePalette(BufferedImage screen) {
+        if (quantizer == null) {
+            // Black and white are reserved for the cursor
+            quantizer = new MedianCutQuantizer(254);
+        }
+        WritableRaster raster = screen.getRaster();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = -raster.getSampleModelTranslateX() - raster.getSampleModelTranslateY() * stride;
+        quantizer.clear();
+        quantizer.addPixels(((DataBufferInt) raster.getDataBuffer()).getData(), offset, stride, width, height, 2);
+        int[] colors = quantizer.createPalette();
+        if (quantizer.getError(palette, inverseColorMap) > 2 * quantizer.getError() + MIN_PALETTE_ERROR) {
+            byte[] r = new byte[256];
+            byte[] g = new byte[256];
+            byte[] b = new byte[256];
+            r[1] = g[1] = b[1] = (byte) 255;
+            for (int i = 0; i < colors.length; i++) {
+                r[i + 2] = (byte) (colors[i] >>> 16);
+                g[i + 2] = (byte) (colors[i] >>> 8);
+                b[i + 2] = (byte) colors[i];
+            }
+            palette = new IndexColorModel(8, 256, r, g, b);
+            inverseColorMap = new InverseColorMap(palette);
+        }
+    }
+
+    /** Returns true if the source image has an INT_RGB raster of the size of the frames. */
+    private boolean isIntRGB(BufferedImage src) {
+        WritableRaster srcRaster = src.getRaster();
+        return srcRaster.getDataBuffer() instanceof DataBufferInt
+                && srcRaster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && src.getType() == BufferedImage.TYPE_INT_RGB
+                && src.getWidth() == width && src.getHeight() == height;
+    }
+
+    /**
+     * Copies the pixels of an INT_RGB image into an INT_RGB frame.
+     * Returns false if the images do not have compatible rasters.
+     */
+    private boolean copyPixels(BufferedImage src, BufferedImage dst) {
+        if (!isIntRGB(src)) {
+            return false;
+        }
+        WritableRaster srcRaster = src.getRaster();
+        WritableRaster dstRaster = dst.getRaster();
+        int[] srcPixels = ((DataBufferInt) srcRaster.getDataBuffer()).getData();
+        int srcStride = ((SinglePixelPackedSampleModel) srcRaster.getSampleModel()).getScanlineStride();
+        int srcOffset = -srcRaster.getSampleModelTranslateX() - srcRaster.getSampleModelTranslateY() * srcStride;
+        int[] dstPixels = ((DataBufferInt) dstRaster.getDataBuffer()).getData();
+        int dstStride = ((SinglePixelPackedSampleModel) dstRaster.getSampleModel()).getScanlineStride();
+        int w = dst.getWidth();
+        int h = dst.getHeight();
+        if (srcStride == w && dstStride == w && srcOffset == 0) {
+            System.arraycopy(srcPixels, 0, dstPixels, 0, w * h);
+        } else {
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(srcPixels, srcOffset + y * srcStride, dstPixels, y * dstStride, w);
+            }
+        }
+        return true;
+    }
+
+    /** Paints the cursor image with source-over compositing into an INT_RGB frame. */
+    private static void paintCursor(BufferedImage frame, int[] cursorPixels, int cw, int ch, int cx, int cy) {
+        int[] dst = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) frame.getRaster().getSampleModel()).getScanlineStride();
+        int x0 = Math.max(0, cx);
+        int y0 = Math.max(0, cy);
+        int x1 = Math.min(frame.getWidth(), cx + cw);
+        int y1 = Math.min(frame.getHeight(), cy + ch);
+        for (int y = y0; y < y1; y++) {
+            int xy = y * stride;
+            for (int x = x0; x < x1; x++) {
+                int src = cursorPixels[(y - cy) * cw + x - cx];
+                int a = src >>> 24;
+                if (a == 0xff) {
+                    dst[xy + x] = src & 0xffffff;
+                } else if (a != 0) {
+                    int d = dst[xy + x];
+                    int r = (((src >>> 16) & 0xff) * a + ((d >>> 16) & 0xff) * (255 - a)) / 255;
+                    int g = (((src >>> 8) & 0xff) * a + ((d >>> 8) & 0xff) * (255 - a)) / 255;
+                    int b = ((src & 0xff) * a + (d & 0xff) * (255 - a)) / 255;
+                    dst[xy + x] = (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ch.randelshofer.screenrecorder;
+
+import ch.randelshofer.media.Buffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the most recent encoded video frames in memory.
+ * <p>
+ * The frames are kept in groups of pictures, each of which starts with a key
+ * frame. When the limits are exceeded, the oldest group is evicted as a
+ * whole. Thus the kept frames always start with a key frame and can be
+ * written into a playable movie.
+ */
+class GopRing implements Iterable<Buffer> {
+
+    /** A group of pictures. */
+    private static class Gop {
+
+        final List<Buffer> frames = new ArrayList<Buffer>();
+        long duration;
+        long size;
+    }
+    /** The duration which is at least kept, in milliseconds. */
+    private final long maxDuration;
+    /** The maximal number of bytes which are kept, or 0 if unlimited. */
+    private final long maxSize;
+    private final ArrayDeque<Gop> gops = new ArrayDeque<Gop>();
+    private long duration;
+    private long size;
+
+    /**
+     * Creates a new ring.
+     *
+     * @param maxDuration The duration which is at least kept, in milliseconds.
+     * Older groups of pictures are evicted once the newer ones cover this
+     * duration.
+     * @param maxSize The maximal number of bytes which are kept, or 0 if
+     * unlimited. The newest group of pictures is always kept, even if it
+     * exceeds this size.
+     */
+    public GopRing(long maxDuration, long maxSize) {
+        this.maxDuration = maxDuration;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds an encoded frame. The duration of the buffer must be in
+     * milliseconds.
+     *
+     * @param buf The encoded frame. The ring takes ownership of the buffer.
+     * @param evicted Receives the buffers which have been evicted, and the
+     * buffer itself if it can not be kept because it is a delta frame which
+     * does not follow a key frame.
+     */
+    public void add(Buffer buf, Collection<Buffer> evicted) {
+        if ((buf.flags & Buffer.FLAG_KEY_FRAME) != 0) {
+            gops.addLast(new Gop());
+        } else if (gops.isEmpty()) {
+            evicted.add(buf);
+            return;
+        }
+        Gop gop = gops.getLast();
+        gop.frames.add(buf);
+        gop.duration += buf.duration;
+        gop.size += buf.length;
+        duration += buf.duration;
+        size += buf.length;
+
+        while (gops.size() > 1
+                && (duration - gops.getFirst().duration >= maxDuration
+                || maxSize > 0 && size > maxSize)) {
+            Gop oldest = gops.removeFirst();
+            duration -= oldest.duration;
+            size -= oldest.size;
+            evicted.addAll(oldest.frames);
+        }
+    }
+
+    /** Returns the duration of the kept frames in milliseconds. */
+    public long getDuration() {
+        return duration;
+    }
+
+    /** Returns the number of bytes of the kept frames. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Returns the kept frames in the order in which they have been added. */
+    @Override
+    public Iterator<Buffer> iterator() {
+        List<Buffer> frames = new ArrayList<Buffer>();
+        for (Gop gop : gops) {
+            frames.addAll(gop.frames);
+        }
+        return frames.iterator();
+    }
+
+    /** Removes all frames from the ring. */
+    public void clear(Collection<Buffer> evicted) {
+        for (Gop gop : gops) {
+            evicted.addAll(gop.frames);
+        }
+        gops.clear();
+        duration = 0;
+        size = 0;
+    }
+}
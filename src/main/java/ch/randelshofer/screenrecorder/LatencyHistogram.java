@@ -0,0 +1,55 @@
+package ch.randelshofer.screenrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with buckets of powers of two microseconds.
+ * <p>
+ * Durations are recorded by one thread, and may be read by other threads
+ * at any time.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 32;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private volatile long maxNanos;
+
+    /** Records a duration in nanoseconds. */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Returns the counts of the buckets. */
+    public long[] getBuckets() {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+
+    /** Returns the mean duration in microseconds. */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n / 1000;
+    }
+
+    /** Returns the maximal duration in microseconds. */
+    public long getMax() {
+        return maxNanos / 1000;
+    }
+}
@@ -0,0 +1,101 @@
+package ch.randelshofer.screenrecorder;
+
+import java.awt.*;
+
+/**
+ * A ring buffer of mouse samples, which is written by one thread and read
+ * by another thread.
+ * <p>
+ * The samples are stored in primitive arrays, so that adding and reading a
+ * sample does not allocate memory. If the buffer is full, new samples are
+ * discarded until the reader has caught up.
+ */
+class MouseSamples {
+
+    private final long[] times;
+    private final int[] xs;
+    private final int[] ys;
+    private final int mask;
+    /** The number of samples which have been written. Only changed by the writer. */
+    private volatile long writeIndex;
+    /** The number of samples which have been read. Only changed by the reader. */
+    private volatile long readIndex;
+    /** The most recent sample which has been read. */
+    private boolean hasLast;
+    private long lastTime;
+    private int lastX;
+    private int lastY;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param capacity The capacity. Is rounded up to a power of two.
+     */
+    public MouseSamples(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        times = new long[size];
+        xs = new int[size];
+        ys = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a sample. Must only be called by the writer thread.
+     *
+     * @return false if the buffer is full and the sample has been discarded.
+     */
+    public boolean add(long time, int x, int y) {
+        long w = writeIndex;
+        if (w - readIndex > mask) {
+            return false;
+        }
+        int i = (int) w & mask;
+        times[i] = time;
+        xs[i] = x;
+        ys[i] = y;
+        writeIndex = w + 1;
+        return true;
+    }
+
+    /**
+     * Determines the location of the mouse at the specified time. The
+     * location is interpolated between the samples before and after the
+     * time. If there is no sample after the time yet, the most recent
+     * sample is used. Samples before the time are consumed. Must only be
+     * called by the reader thread, with non-decreasing times.
+     *
+     * @param time The time.
+     * @param p Receives the location.
+     * @return false if there are no samples at all.
+     */
+    public boolean getLocation(long time, Point p) {
+        long r = readIndex;
+        long w = writeIndex;
+        for (; r < w; r++) {
+            int i = (int) r & mask;
+            if (times[i] > time) {
+                if (hasLast) {
+                    long dt = times[i] - lastTime;
+                    long t = time - lastTime;
+                    p.x = lastX + (int) ((xs[i] - lastX) * t / dt);
+                    p.y = lastY + (int) ((ys[i] - lastY) * t / dt);
+                } else {
+                    p.x = xs[i];
+                    p.y = ys[i];
+                }
+                readIndex = r;
+                return true;
+            }
+            hasLast = true;
+            lastTime = times[i];
+            lastX = xs[i];
+            lastY = ys[i];
+        }
+        readIndex = r;
+        if (hasLast) {
+            p.x = lastX;
+            p.y = lastY;
+        }
+        return hasLast;
+    }
+}
@@ -0,0 +1,14 @@
+package ch.randelshofer.screenrecorder;
+
+/**
+ * Publishes the events of a {@link ScreenRecorder}, for example as Java
+ * Flight Recorder events.
+ */
+interface RecorderEvents {
+
+    void captured(long nanos, int width, int height);
+
+    void encoded(long nanos, String codec, int size, boolean keyFrame);
+
+    void dropped(String stage);
+}
@@ -0,0 +1,265 @@
+package ch.randelshofer.screenrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the metrics of a {@link ScreenRecorder}.
+ * <p>
+ * The metrics are published over JMX, and as Java Flight Recorder events if
+ * the JVM supports them and they have been compiled.
+ */
+class RecorderMetrics implements ScreenRecorderMXBean {
+
+    /** The Java Flight Recorder events, or null if the JVM does not support them. */
+    private static final RecorderEvents JFR_EVENTS = loadJfrEvents();
+    private volatile String file;
+    private volatile String codec;
+    private volatile float requestedFrameRate;
+    private volatile float idleFrameRate;
+    private volatile long startTime;
+    private volatile long stopTime;
+    private final AtomicLong captureCount = new AtomicLong();
+    private final LatencyHistogram captureLatency = new LatencyHistogram();
+    private final LatencyHistogram cursorCompositeTime = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong keyFramesWritten = new AtomicLong();
+    private final AtomicLong videoBytesWritten = new AtomicLong();
+    private final AtomicLong audioBytesWritten = new AtomicLong();
+    private final AtomicLong captureDropCount = new AtomicLong();
+    private final AtomicLong encodeDropCount = new AtomicLong();
+    private final AtomicLong writeDropCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong segmentCount = new AtomicLong();
+    private volatile String lastError;
+
+    /**
+     * Loads the Java Flight Recorder events. The class of the events is
+     * loaded reflectively, because it is only compiled by a JDK which has the
+     * {@code jdk.jfr} module, and it can only be loaded by a JVM which has it.
+     */
+    private static RecorderEvents loadJfrEvents() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (RecorderEvents) Class.forName("ch.randelshofer.screenrecorder.JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    void started(String file, String codec, float requestedFrameRate, float idleFrameRate) {
+        this.file = file;
+        this.codec = codec;
+        this.requestedFrameRate = requestedFrameRate;
+        this.idleFrameRate = idleFrameRate;
+        this.startTime = System.currentTimeMillis();
+        this.stopTime = 0;
+    }
+
+    void stopped() {
+        stopTime = System.currentTimeMillis();
+    }
+
+    void captured(long nanos, int width, int height) {
+        captureCount.incrementAndGet();
+        captureLatency.record(nanos);
+        if (JFR_EVENTS != null) {
+            JFR_EVENTS.captured(nanos, width, height);
+        }
+    }
+
+    void cursorComposited(long nanos) {
+        cursorCompositeTime.record(nanos);
+    }
+
+    void encoded(long nanos, int length, boolean keyFrame) {
+        encodeTime.record(nanos);
+        if (JFR_EVENTS != null) {
+            JFR_EVENTS.encoded(nanos, codec, length, keyFrame);
+        }
+    }
+
+    void written(int length, boolean keyFrame) {
+        framesWritten.incrementAndGet();
+        if (keyFrame) {
+            keyFramesWritten.incrementAndGet();
+        }
+        videoBytesWritten.addAndGet(length);
+    }
+
+    void audioWritten(int length) {
+        audioBytesWritten.addAndGet(length);
+    }
+
+    void captureDropped() {
+        captureDropCount.incrementAndGet();
+        if (JFR_EVENTS != null) {
+            JFR_EVENTS.dropped("capture");
+        }
+    }
+
+    void encodeDropped() {
+        encodeDropCount.incrementAndGet();
+        if (JFR_EVENTS != null) {
+            JFR_EVENTS.dropped("encode");
+        }
+    }
+
+    void writeDropped() {
+        writeDropCount.incrementAndGet();
+        if (JFR_EVENTS != null) {
+            JFR_EVENTS.dropped("write");
+        }
+    }
+
+    void segmentStarted() {
+        segmentCount.incrementAndGet();
+    }
+
+    void failed(String stage, Throwable t) {
+        errorCount.incrementAndGet();
+        lastError = stage + ": " + t;
+    }
+
+    /** Returns the seconds since the start. */
+    private double getElapsedSeconds() {
+        long end = (stopTime == 0) ? System.currentTimeMillis() : stopTime;
+        return Math.max(1, end - startTime) / 1000.0;
+    }
+
+    @Override
+    public String getFile() {
+        return file;
+    }
+
+    @Override
+    public String getCodec() {
+        return codec;
+    }
+
+    @Override
+    public float getRequestedFrameRate() {
+        return requestedFrameRate;
+    }
+
+    @Override
+    public float getIdleFrameRate() {
+        return idleFrameRate;
+    }
+
+    @Override
+    public double getAchievedCaptureRate() {
+        return captureCount.get() / getElapsedSeconds();
+    }
+
+    @Override
+    public double getAchievedFrameRate() {
+        return framesWritten.get() / getElapsedSeconds();
+    }
+
+    @Override
+    public long getCaptureCount() {
+        return captureCount.get();
+    }
+
+    @Override
+    public long[] getCaptureLatencyHistogram() {
+        return captureLatency.getBuckets();
+    }
+
+    @Override
+    public long getMeanCaptureLatency() {
+        return captureLatency.getMean();
+    }
+
+    @Override
+    public long getMaxCaptureLatency() {
+        return captureLatency.getMax();
+    }
+
+    @Override
+    public long[] getCursorCompositeHistogram() {
+        return cursorCompositeTime.getBuckets();
+    }
+
+    @Override
+    public long getMeanCursorCompositeTime() {
+        return cursorCompositeTime.getMean();
+    }
+
+    @Override
+    public long getMaxCursorCompositeTime() {
+        return cursorCompositeTime.getMax();
+    }
+
+    @Override
+    public long[] getEncodeTimeHistogram() {
+        return encodeTime.getBuckets();
+    }
+
+    @Override
+    public long getMeanEncodeTime() {
+        return encodeTime.getMean();
+    }
+
+    @Override
+    public long getMaxEncodeTime() {
+        return encodeTime.getMax();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    @Override
+    public long getKeyFramesWritten() {
+        return keyFramesWritten.get();
+    }
+
+    @Override
+    public double getKeyFrameRatio() {
+        long n = framesWritten.get();
+        return n == 0 ? 0 : (double) keyFramesWritten.get() / n;
+    }
+
+    @Override
+    public long getVideoBytesWritten() {
+        return videoBytesWritten.get();
+    }
+
+    @Override
+    public long getAudioBytesWritten() {
+        return audioBytesWritten.get();
+    }
+
+    @Override
+    public long getCaptureDropCount() {
+        return captureDropCount.get();
+    }
+
+    @Override
+    public long getEncodeDropCount() {
+        return encodeDropCount.get();
+    }
+
+    @Override
+    public long getWriteDropCount() {
+        return writeDropCount.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public long getSegmentCount() {
+        return segmentCount.get();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -1,5 +1,6 @@
 package ch.randelshofer.screenrecorder;
 
+import ch.randelshofer.media.Buffer;
 import ch.randelshofer.media.MovieWriter;
 import ch.randelshofer.media.avi.AVIWriter;
 import ch.randelshofer.media.color.Colors;
@@ -7,19 +8,40 @@ import ch.randelshofer.media.image.Images;
 import ch.randelshofer.media.quicktime.QuickTimeWriter;
 import uk.co.itstherules.TestCastService;
 
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sound.sampled.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 public class ScreenRecorder implements TestCastService {
 
@@ -27,22 +49,114 @@ public class ScreenRecorder implements TestCastService {
     private CursorColor cursor;
     private VideoFormat format;
     private ColorDepth depth;
-    private MovieWriter writer;
-    private long startTime;
-    private long previousFrameTime;
+    private volatile MovieWriter writer;
+    private volatile long startTime;
+    /** The frame rate at which the screen is captured while it changes. */
     private float frameRate = 24;
-    private float mouseFrameRate = 24;
-    private int aviKeyFrameInterval = (int) (max(frameRate, mouseFrameRate) * 60);
-    private int quickTimeKeyFrameInterval = (int) max(frameRate, mouseFrameRate);
-    private long maxFrameDuration = 1000;
+    /** The frame rate at which the screen is captured while it is idle. */
+    private float minFrameRate = 2;
+    /** The rate at which the mouse is sampled. */
+    private float mouseSampleRate = 100;
+    private int aviKeyFrameInterval = (int) (frameRate * 60);
+    private int quickTimeKeyFrameInterval = (int) frameRate;
+    private long maxRecordingTime = 60 * 60 * 1000;
+    /** The number of bytes of video samples at which a new segment is
+     * started, or 0 if only the limit of the file format applies. */
+    private long maxSegmentSize;
+    /** Whether AVI files are written as OpenDML (AVI 2.0) files. */
+    private boolean openDML;
+    /** Whether QuickTime movies are written as fragmented movies. */
+    private boolean fragmented;
+    /** The maximal time from one key frame to the next, in milliseconds. */
+    private long maxSeekDistance = 10 * 1000;
+    /** The fraction of the capture area which must have changed to force a key frame. */
+    private float sceneChangeThreshold = 0.5f;
+    /** With the flight recorder, the duration which is at least kept in
+     * memory, in milliseconds. 0 if the flight recorder is off. */
+    private long flightRecorderDuration;
+    /** With the flight recorder, the maximal number of bytes which are kept
+     * in memory, or 0 if unlimited. */
+    private long flightRecorderSize;
+    /** The frames kept by the flight recorder. */
+    private GopRing gopRing;
     private Robot robot;
+    /** The bounds of the screen device. */
+    private Rectangle screenBounds;
+    /** The region of the screen which is recorded. */
     private Rectangle rectangle;
-    private BufferedImage capturedScreenImage;
-    private List<MouseCapture> mouseCaptures;
-    private BufferedImage capturedScreenWithMouseImage;
-    private Graphics2D capturedScreenWithMouseGraphics;
-    private ScheduledThreadPoolExecutor screenTimer;
-    private ScheduledThreadPoolExecutor mouseTimer;
+    private IndexColorModel palette;
+    /** Mouse samples, written by the clock thread and read by the capture thread. */
+    private MouseSamples mouseSamples;
+    /** The location of the mouse at the time of the current capture. */
+    private final Point mouseLocation = new Point();
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    /** Maximal number of frames which wait for the encode stage and for the
+     * write stage respectively. */
+    private int queueCapacity = 4;
+    /** The number of horizontal bands which the AVI encoder encodes in parallel. */
+    private int bandCount = 1;
+    /** The deflate compression level of the AVI encoder. */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    /** Whether the AVI encoder adapts the compression level to the frame rate. */
+    private boolean adaptiveCompression;
+    /** Whether the AVI encoder searches motion vectors, using the ZMBV format. */
+    private boolean motionCompensation;
+    /** Whether frames with {@code ColorDepth.DOZENS} are dithered. */
+    private boolean dither;
+    /** Whether frames with {@code ColorDepth.DOZENS} get an optimized palette. */
+    private boolean adaptivePalette;
+    private CaptureQueue encodeQueue;
+    private BlockingQueue<EncodedFrame> writeQueue;
+    /** Buffers which have been written and can be reused by the encoder. */
+    private Queue<Buffer> freeBuffers;
+    /** Frame images which can be reused by the capture stage. */
+    private FramePool framePool;
+    /** Detects the regions of the screen which changed between captures. */
+    private TileChangeDetector changeDetector;
+    /** The bounds of the cursor image in the previous capture. */
+    private Rectangle previousCursorBounds;
+    private long captureSequenceNumber;
+    private Thread encoderThread;
+    private Thread writerThread;
+    /** Set by the write stage when the current movie file is full. */
+    private volatile boolean rolloverRequested;
+    /** Opens the movie file of the next segment ahead of time, and closes full segments. */
+    private ExecutorService segmentExecutor;
+    /** The writer of the next segment. Null until the current segment is
+     * close to its data limit or to the maximal recording time. */
+    private volatile Future<MovieWriter> nextWriter;
+    /** The index of the current segment. */
+    private int segmentIndex;
+    private SegmentManifest segments;
+    /** The movie files which have been kept, each with the time of its first frame. */
+    private Map<File, Long> movieStartTimes = Collections.emptyMap();
+    /** With the flight recorder, the end time of the newest kept frame. */
+    private long flightRecorderEndTime;
+    private long captureTick;
+    /** Receives the frames which the encode queue drops. Only used by the capture thread. */
+    private final List<CapturedFrame> droppedFrames = new ArrayList<CapturedFrame>();
+    /** The number of consecutive captures in which nothing changed. */
+    private int unchangedCount;
+    /** Set when a captured frame has been dropped. The next capture must
+     * then be encoded even if nothing has changed. */
+    private volatile boolean frameDropped;
+    /** Set by the clock thread when the mouse has moved since the last capture. */
+    private volatile boolean mouseMoved;
+    private int previousMouseX = Integer.MIN_VALUE;
+    private int previousMouseY = Integer.MIN_VALUE;
+    private volatile long stopTime;
+    private final RecorderMetrics metrics = new RecorderMetrics();
+    /** The name under which the metrics are registered with JMX. */
+    private ObjectName metricsName;
+    /** Samples the mouse and triggers screen captures. */
+    private Thread clockThread;
+    /** Captures the screen when triggered by the clock thread. */
+    private Thread captureThread;
+    /** Hands capture ticks from the clock thread over to the capture thread.
+     * A tick is skipped if the capture thread is still busy. */
+    private SynchronousQueue<Object> captureTicks;
+    private static final Object CAPTURE_TICK = new Object();
+    private static final Object STOP_CAPTURE = new Object();
     private BufferedImage mouseCursorImage;
     private Point mouseCursorImageOffset = new Point(-8, -5);
     private final Object threadSyncObject = new Object();
@@ -60,102 +174,534 @@ public class ScreenRecorder implements TestCastService {
         this.cursor = cursor;
         this.audioRate = audioRate;
         this.file = file;
-        this.mouseFrameRate = frameRate;
         this.frameRate = frameRate;
 
         GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
         GraphicsDevice screenDevice = ge.getDefaultScreenDevice();
         GraphicsConfiguration cfg = screenDevice.getDefaultConfiguration();
-        rectangle = cfg.getBounds();
+        screenBounds = cfg.getBounds();
+        rectangle = screenBounds;
         try {
             robot = new Robot(cfg.getDevice());
         } catch (AWTException e) {
             throw new RuntimeException("Unable to create a robot to capture the screen", e);
         }
-        if (depth == ColorDepth.MILLIONS) {
-            capturedScreenWithMouseImage = new BufferedImage(rectangle.width, rectangle.height, BufferedImage.TYPE_INT_RGB);
-        } else if (depth == ColorDepth.THOUSANDS) {
-            capturedScreenWithMouseImage = new BufferedImage(rectangle.width, rectangle.height, BufferedImage.TYPE_USHORT_555_RGB);
-        } else if (depth == ColorDepth.DOZENS) {
-            capturedScreenWithMouseImage = new BufferedImage(rectangle.width, rectangle.height, BufferedImage.TYPE_BYTE_INDEXED, Colors.createMacColors());
-        } else {
+        if (depth == ColorDepth.DOZENS) {
+            palette = Colors.createMacColors();
+        } else if (depth != ColorDepth.MILLIONS && depth != ColorDepth.THOUSANDS) {
             throw new UnsupportedOperationException("Unsupported color depth " + depth);
         }
-        capturedScreenWithMouseGraphics = capturedScreenWithMouseImage.createGraphics();
-        capturedScreenWithMouseGraphics.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
-        capturedScreenWithMouseGraphics.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
-        capturedScreenWithMouseGraphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
-        mouseCaptures = Collections.synchronizedList(new LinkedList<MouseCapture>());
         if (cursor == CursorColor.BLACK) {
             mouseCursorImage = Images.toBufferedImage(Images.createImage(ScreenRecorder.class, "/ch/randelshofer/media/images/Cursor.black.png"));
         } else {
             mouseCursorImage = Images.toBufferedImage(Images.createImage(ScreenRecorder.class, "/ch/randelshofer/media/images/Cursor.white.png"));
         }
-
-        createMovieWriter();
     }
 
+    /**
+     * Creates the movie writer which encodes the frames. With the flight
+     * recorder, the writer only encodes the frames, and its output stream
+     * is a dummy.
+     */
     protected void createMovieWriter() {
         try {
-            if (format == VideoFormat.AVI) {
-                writer = createAviWriter();
-            } else if (format == VideoFormat.QUICKTIME) {
-                writer = createMovWriter();
-            } else {
-                throw new UnsupportedOperationException("Unsupported format " + format);
-            }
+            writer = createMovieWriter(isFlightRecorder() ? null : file);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private MovieWriter createMovWriter() throws IOException {
-        QuickTimeWriter writer = new QuickTimeWriter(file);
+    /**
+     * Creates a movie writer.
+     *
+     * @param file The movie file, or null for a writer which is only used
+     * for encoding.
+     */
+    private MovieWriter createMovieWriter(File file) throws IOException {
+        if (format == VideoFormat.AVI) {
+            return createAviWriter(file);
+        } else if (format == VideoFormat.QUICKTIME) {
+            return createMovWriter(file);
+        } else {
+            throw new UnsupportedOperationException("Unsupported format " + format);
+        }
+    }
+
+    private MovieWriter createMovWriter(File file) throws IOException {
+        QuickTimeWriter writer = (file == null) ? new QuickTimeWriter(createDummyStream()) : new QuickTimeWriter(file, true);
+        if (fragmented) {
+            writer.setFragmented(true);
+            // Cut the fragments only before key frames, so that each
+            // fragment can be decoded on its own
+            writer.setFragmentDuration(0);
+            writer.setFragmentSyncSampleCount(1);
+        }
         writer.addVideoTrack(QuickTimeWriter.VIDEO_ANIMATION, 1000, rectangle.width, rectangle.height, depth.getValue(), quickTimeKeyFrameInterval);
-        if (audioRate > 0) {
+        if (audioRate > 0 && !isFlightRecorder()) {
             audioFormat = new AudioFormat(audioRate, 16, 1, true, true);
             writer.addAudioTrack(audioFormat);
         }
         if (depth == ColorDepth.DOZENS) {
-            writer.setVideoColorTable(0, (IndexColorModel) capturedScreenWithMouseImage.getColorModel());
+            writer.setVideoColorTable(0, palette);
         }
         return writer;
     }
 
-    private MovieWriter createAviWriter() throws IOException {
-        AVIWriter writer = new AVIWriter(file);
-        writer.addVideoTrack(AVIWriter.VIDEO_SCREEN_CAPTURE, 1, (int) mouseFrameRate, rectangle.width, rectangle.height, depth.getValue(), aviKeyFrameInterval);
+    private MovieWriter createAviWriter(File file) throws IOException {
+        AVIWriter writer = (file == null) ? new AVIWriter(createDummyStream()) : new AVIWriter(file, true);
+        writer.setOpenDML(openDML);
+        writer.addVideoTrack(getAviEncoding(), 1, (int) frameRate, rectangle.width, rectangle.height, depth.getValue(), aviKeyFrameInterval);
+        writer.setBandCount(0, bandCount);
+        writer.setCompressionLevel(0, compressionLevel);
+        writer.setAdaptiveCompression(0, adaptiveCompression);
         if (depth == ColorDepth.DOZENS) {
-            writer.setPalette(0, (IndexColorModel) capturedScreenWithMouseImage.getColorModel());
+            writer.setPalette(0, palette);
         }
         return writer;
     }
 
+    private String getAviEncoding() {
+        return (motionCompensation ? AVIWriter.VIDEO_ZMBV : AVIWriter.VIDEO_SCREEN_CAPTURE).getEncoding();
+    }
+
+    private static ImageOutputStream createDummyStream() {
+        return new MemoryCacheImageOutputStream(new ByteArrayOutputStream());
+    }
+
+    /**
+     * Sets the region of the screen which is recorded. The region is clipped
+     * to the bounds of the screen. By default the whole screen is recorded.
+     * Must be called before the recorder is started.
+     *
+     * @param newValue The region in screen coordinates, or null to record
+     * the whole screen.
+     */
+    public void setCaptureArea(Rectangle newValue) {
+        if (newValue == null) {
+            rectangle = screenBounds;
+            return;
+        }
+        Rectangle r = newValue.intersection(screenBounds);
+        if (r.isEmpty()) {
+            throw new IllegalArgumentException("captureArea must intersect with the screen " + screenBounds + ", captureArea=" + newValue);
+        }
+        rectangle = r;
+    }
+
+    public Rectangle getCaptureArea() {
+        return new Rectangle(rectangle);
+    }
+
+    /**
+     * Sets the frame rate at which the screen is captured while it is idle.
+     * <p>
+     * The screen is captured at the maximal frame rate as long as it changes
+     * or the mouse moves. Once nothing has changed for one second, it is only
+     * captured at the minimal frame rate, until a change is detected again.
+     * Captures in which nothing has changed are not recorded, instead the
+     * previous frame is shown longer. Must be called before the recorder is
+     * started.
+     */
+    public void setMinFrameRate(float newValue) {
+        if (newValue <= 0) {
+            throw new IllegalArgumentException("minFrameRate must be greater 0, minFrameRate=" + newValue);
+        }
+        minFrameRate = newValue;
+    }
+
+    public float getMinFrameRate() {
+        return minFrameRate;
+    }
+
+    /**
+     * Sets the frame rate at which the screen is captured while it changes.
+     * Must be called before the recorder is started.
+     */
+    public void setMaxFrameRate(float newValue) {
+        if (newValue <= 0) {
+            throw new IllegalArgumentException("maxFrameRate must be greater 0, maxFrameRate=" + newValue);
+        }
+        frameRate = newValue;
+    }
+
+    public float getMaxFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Sets the rate at which the location of the mouse is sampled. The
+     * location of the mouse cursor in a frame is interpolated between the
+     * samples. Must be called before the recorder is started.
+     */
+    public void setMouseSampleRate(float newValue) {
+        if (newValue <= 0) {
+            throw new IllegalArgumentException("mouseSampleRate must be greater 0, mouseSampleRate=" + newValue);
+        }
+        mouseSampleRate = newValue;
+    }
+
+    public float getMouseSampleRate() {
+        return mouseSampleRate;
+    }
+
+    /**
+     * Turns the flight recorder on or off.
+     * <p>
+     * With the flight recorder, the encoded frames are not written into the
+     * movie file, but kept in memory. Only the most recent frames are kept,
+     * in whole groups of pictures starting with a key frame. When the
+     * recorder is stopped, the kept frames are written into the movie file,
+     * or discarded, see {@link #stop(boolean)}. Audio is not recorded with
+     * the flight recorder. Must be called before the recorder is started.
+     *
+     * @param maxDuration The duration which is at least kept, in
+     * milliseconds, or 0 to turn the flight recorder off.
+     * @param maxSize The maximal number of bytes which are kept, or 0 if
+     * unlimited. The most recent group of pictures is always kept.
+     */
+    public void setFlightRecorder(long maxDuration, long maxSize) {
+        if (maxDuration < 0 || maxSize < 0) {
+            throw new IllegalArgumentException("maxDuration and maxSize must not be negative, maxDuration=" + maxDuration + ", maxSize=" + maxSize);
+        }
+        flightRecorderDuration = maxDuration;
+        flightRecorderSize = maxSize;
+    }
+
+    public boolean isFlightRecorder() {
+        return flightRecorderDuration > 0;
+    }
+
+    /**
+     * Sets whether AVI files are written as OpenDML (AVI 2.0) files. An
+     * AVI 1.0 file is limited to about 2 GB, so a new segment is started at
+     * 1.8 GB. An OpenDML file has no such limit; use
+     * {@link #setMaxSegmentSize} to keep its segments small. Not all players
+     * support OpenDML files. Must be called before the recorder is started.
+     * <p>
+     * The default value is false.
+     */
+    public void setOpenDML(boolean newValue) {
+        openDML = newValue;
+    }
+
+    public boolean isOpenDML() {
+        return openDML;
+    }
+
+    /**
+     * Sets whether QuickTime movies are written as fragmented movies. A
+     * fragmented movie is written in fragments which each start with a key
+     * frame. The fragments which have been written can be played also if the
+     * recorder is never stopped, for example because the JVM crashed. Must
+     * be called before the recorder is started.
+     * <p>
+     * The default value is false.
+     */
+    public void setFragmented(boolean newValue) {
+        fragmented = newValue;
+    }
+
+    public boolean isFragmented() {
+        return fragmented;
+    }
+
+    /**
+     * Sets the number of bytes of video samples at which the recording
+     * continues in a new segment file. The next file is opened when 90% of
+     * the size is reached. Must be called before the recorder is started.
+     * <p>
+     * The default value is 0: a new segment is only started when the file
+     * format reaches its limit, or when the maximal recording time has
+     * passed.
+     */
+    public void setMaxSegmentSize(long newValue) {
+        if (newValue < 0) {
+            throw new IllegalArgumentException("maxSegmentSize must not be negative, maxSegmentSize=" + newValue);
+        }
+        maxSegmentSize = newValue;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * Sets the policy which is applied when the encoder can not keep up with
+     * the captured frames. Must be called before the recorder is started.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy newValue) {
+        backpressurePolicy = newValue;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * Sets the maximal number of frames which may wait for the encoder, and
+     * for the writer respectively. Must be called before the recorder is
+     * started.
+     */
+    public void setQueueCapacity(int newValue) {
+        if (newValue < 1) {
+            throw new IllegalArgumentException("queueCapacity must be greater 0, queueCapacity=" + newValue);
+        }
+        queueCapacity = newValue;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of horizontal bands into which the encoder splits each
+     * frame, and which it encodes in parallel. Only supported by the AVI
+     * format. Must be called before the recorder is started.
+     */
+    public void setBandCount(int newValue) {
+        if (newValue < 1) {
+            throw new IllegalArgumentException("bandCount must be greater 0, bandCount=" + newValue);
+        }
+        bandCount = newValue;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Sets the deflate compression level of the encoder, from
+     * {@code Deflater.BEST_SPEED} to {@code Deflater.BEST_COMPRESSION}. Only
+     * supported by the AVI format. Must be called before the recorder is
+     * started.
+     */
+    public void setCompressionLevel(int newValue) {
+        compressionLevel = newValue;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets whether the encoder adapts the compression level to the time it
+     * takes to encode a frame: Slow machines keep up with the maximal frame
+     * rate, fast machines produce smaller files. Only supported by the AVI
+     * format. Must be called before the recorder is started.
+     */
+    public void setAdaptiveCompression(boolean newValue) {
+        adaptiveCompression = newValue;
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    /**
+     * Sets whether the encoder searches for blocks which have moved since
+     * the previous frame, and encodes them as motion vectors. This makes
+     * frames in which a page scrolls much smaller and faster to encode. The
+     * frames are encoded with the ZMBV format instead of the TechSmith
+     * Screen Capture format; the band count and adaptive compression have
+     * then no effect. Only supported by the AVI format. Must be called
+     * before the recorder is started.
+     */
+    public void setMotionCompensation(boolean newValue) {
+        motionCompensation = newValue;
+    }
+
+    public boolean isMotionCompensation() {
+        return motionCompensation;
+    }
+
+    /**
+     * Sets whether frames are dithered when they are reduced to the palette
+     * of {@code ColorDepth.DOZENS}. Dithering gives smoother gradients, but
+     * flat areas compress less well. Must be called before the recorder is
+     * started.
+     */
+    public void setDither(boolean newValue) {
+        dither = newValue;
+    }
+
+    public boolean isDither() {
+        return dither;
+    }
+
+    /**
+     * Sets whether frames with {@code ColorDepth.DOZENS} use a palette which
+     * is optimized for the colors on the screen, instead of the Macintosh
+     * palette. The palette is checked once per second. When it is replaced,
+     * a key frame is encoded. Only supported by the AVI format. Must be
+     * called before the recorder is started.
+     */
+    public void setAdaptivePalette(boolean newValue) {
+        adaptivePalette = newValue;
+    }
+
+    public boolean isAdaptivePalette() {
+        return adaptivePalette;
+    }
+
+    /**
+     * Sets the maximal time from one key frame to the next, in milliseconds.
+     * A player which seeks to a point in the movie has to decode the frames
+     * from the preceding key frame on, and so do the tools which extract a
+     * frame at the time of a failure. Must be called before the recorder is
+     * started.
+     * <p>
+     * The default value is 10 seconds.
+     */
+    public void setMaxSeekDistance(long newValue) {
+        if (newValue <= 0) {
+            throw new IllegalArgumentException("maxSeekDistance must be positive, maxSeekDistance=" + newValue);
+        }
+        maxSeekDistance = newValue;
+    }
+
+    public long getMaxSeekDistance() {
+        return maxSeekDistance;
+    }
+
+    /**
+     * Sets the fraction of the capture area which must have changed since
+     * the previous frame, so that the frame is encoded as a key frame. When
+     * most of the screen is replaced, for example on a page navigation, a
+     * delta frame is not smaller than a key frame. A value greater than 1
+     * turns the check off; the codecs then still encode a key frame when a
+     * delta frame would be larger. Must be called before the recorder is
+     * started.
+     * <p>
+     * The default value is 0.5.
+     */
+    public void setSceneChangeThreshold(float newValue) {
+        if (newValue <= 0) {
+            throw new IllegalArgumentException("sceneChangeThreshold must be positive, sceneChangeThreshold=" + newValue);
+        }
+        sceneChangeThreshold = newValue;
+    }
+
+    public float getSceneChangeThreshold() {
+        return sceneChangeThreshold;
+    }
+
+    /** Returns the number of captured frames which were dropped before they
+     * reached the encoder, including screen captures skipped due to
+     * {@code BackpressurePolicy.DEGRADE}. */
+    public long getCaptureDropCount() {
+        return metrics.getCaptureDropCount();
+    }
+
+    /** Returns the number of frames which the encoder failed to encode. */
+    public long getEncodeDropCount() {
+        return metrics.getEncodeDropCount();
+    }
+
+    /** Returns the number of encoded frames which could not be written. */
+    public long getWriteDropCount() {
+        return metrics.getWriteDropCount();
+    }
+
+    /**
+     * Returns the metrics of the recorder. While the recorder is running,
+     * the metrics are also registered with the platform MBean server under
+     * the name {@code ch.randelshofer.screenrecorder:type=ScreenRecorder,name=<file>}.
+     */
+    public ScreenRecorderMXBean getMetrics() {
+        return metrics;
+    }
 
     /**
      * Starts the screen recorder.
+     * <p>
+     * Capturing, encoding and writing are done by separate threads, which
+     * are connected by bounded queues.
+     * <p>
+     * The capture thread adapts its frame rate to the activity on the
+     * screen, see {@link #setMinFrameRate}. The duration of each frame
+     * lasts until the next frame has been captured. With AVI, which does not
+     * support variable frame rates, frames which last longer than the frame
+     * period of the maximal frame rate are repeated with empty chunks.
+     * <p>
+     * When a movie file is full, or the maximal recording time has passed,
+     * the recording continues in a new segment file, see
+     * {@link SegmentManifest#getSegmentFile}. The file of the next segment
+     * is opened ahead of time, when the current one is close to its limits,
+     * and full segments are closed in the background. If there is more than one segment, a manifest of the
+     * segments is written when the recorder is stopped.
      */
     public void start() throws Exception {
-        startTime = previousFrameTime = System.currentTimeMillis();
-        screenTimer = new ScheduledThreadPoolExecutor(1);
-        screenTimer.scheduleAtFixedRate(() -> {
+        createMovieWriter();
+        startTime = System.currentTimeMillis();
+        segmentExecutor = Executors.newSingleThreadExecutor(r -> newThread(r, "ScreenRecorder-segments"));
+        segmentIndex = 0;
+        segments = new SegmentManifest();
+        if (!isFlightRecorder()) {
+            segments.add(file, startTime);
+            metrics.segmentStarted();
+        }
+        metrics.started(file.getPath(), getCodecName(), frameRate, minFrameRate);
+        registerMetrics();
+        encodeQueue = new CaptureQueue(queueCapacity, backpressurePolicy);
+        writeQueue = new ArrayBlockingQueue<EncodedFrame>(queueCapacity);
+        freeBuffers = new ConcurrentLinkedQueue<Buffer>();
+        framePool = new FramePool(rectangle.width, rectangle.height, depth, palette, queueCapacity + 2);
+        framePool.setDither(dither);
+        if (adaptivePalette && format == VideoFormat.AVI) {
+            framePool.setPaletteCheckInterval(max(1, (int) frameRate));
+        }
+        changeDetector = new TileChangeDetector(rectangle.width, rectangle.height, 32);
+        encoderThread = newThread(this::encodeFrames, "ScreenRecorder-encoder");
+        writerThread = newThread(this::writeFrames, "ScreenRecorder-writer");
+        encoderThread.start();
+        writerThread.start();
+        gopRing = isFlightRecorder() ? new GopRing(flightRecorderDuration, flightRecorderSize) : null;
+        mouseSamples = new MouseSamples(1024);
+        captureTicks = new SynchronousQueue<Object>();
+        captureThread = newThread(this::captureFrames, "ScreenRecorder-capture");
+        clockThread = newThread(this::runClock, "ScreenRecorder-clock");
+        captureThread.start();
+        clockThread.start();
+
+        if (audioRate > 0 && (writer instanceof QuickTimeWriter) && !isFlightRecorder()) {
+            startAudio();
+        }
+    }
+
+    /**
+     * Creates a thread of the recorder. The threads are daemon threads, so
+     * that a recording which is stopped by a shutdown hook does not keep the
+     * JVM from exiting. {@link #stop} waits for them.
+     */
+    private static Thread newThread(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private String getCodecName() {
+        return format == VideoFormat.AVI ? getAviEncoding() : QuickTimeWriter.VIDEO_ANIMATION.getEncoding();
+    }
+
+    private void registerMetrics() {
+        try {
+            metricsName = new ObjectName("ch.randelshofer.screenrecorder:type=ScreenRecorder,name=" + ObjectName.quote(file.getPath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException ex) {
+            // the recorder works without JMX
+            metricsName = null;
+            ex.printStackTrace();
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
             try {
-                grabScreen();
-            } catch (IOException ex) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ex) {
                 ex.printStackTrace();
             }
-        }, (int) (1000 / frameRate), (int) (1000 / frameRate), TimeUnit.MILLISECONDS);
-        mouseTimer = new ScheduledThreadPoolExecutor(1);
-        mouseTimer.scheduleAtFixedRate(new Runnable() {
-
-            @Override
-            public void run() {
-                grabMouse();
-            }
-        }, (int) (1000 / mouseFrameRate), (int) (1000 / mouseFrameRate), TimeUnit.MILLISECONDS);
-
-        if (audioRate > 0 && (writer instanceof QuickTimeWriter)) {
-            startAudio();
+            metricsName = null;
         }
     }
 
@@ -190,10 +736,12 @@ public class ScreenRecorder implements TestCastService {
                                 synchronized (threadSyncObject) {
                                     int sampleCount = count * 8 / audioFormat.getSampleSizeInBits();
                                     writer.writeSamples(1, sampleCount, buffer, 0, count, 1, true);
+                                    metrics.audioWritten(count);
                                 }
                             }
                         }
                     } catch (IOException e) {
+                        metrics.failed("audio", e);
                         e.printStackTrace();
                         return;
                     } finally {
@@ -201,6 +749,7 @@ public class ScreenRecorder implements TestCastService {
                     }
                 }
             };
+            audioThread.setDaemon(true);
             audioThread.start();
         } catch (LineUnavailableException ex) {
             // FIXME - Instead of silently suppressing audio recording, we should
@@ -210,17 +759,47 @@ public class ScreenRecorder implements TestCastService {
     }
 
     /**
-     * Stops the screen recorder.
+     * Returns the movie files which have been written, in the order of the
+     * recording, each with the time at which it starts, in milliseconds since
+     * the epoch. This is the time of the first frame in the file. With the
+     * flight recorder, it is the time of the first kept frame, and the map is
+     * empty if the kept frames have been discarded. Only known after the
+     * recorder has been stopped.
+     */
+    @Override
+    public Map<File, Long> getMovieStartTimes() {
+        return movieStartTimes;
+    }
+
+    /**
+     * Stops the screen recorder. With the flight recorder, the kept frames
+     * are written into the movie file.
      */
     public void stop() throws Exception {
-        mouseTimer.shutdown();
-        screenTimer.shutdown();
+        stop(true);
+    }
+
+    /**
+     * Stops the screen recorder.
+     *
+     * @param keepRecording With the flight recorder, whether the kept frames
+     * are written into the movie file or discarded. Without the flight
+     * recorder, the movie file is always kept.
+     */
+    @Override
+    public void stop(boolean keepRecording) throws Exception {
+        stopTime = System.currentTimeMillis();
+        clockThread.interrupt();
         Thread T = audioThread;
         audioThread = null;
 
         try {
-            mouseTimer.awaitTermination((int) (1000 / mouseFrameRate), TimeUnit.MILLISECONDS);
-            screenTimer.awaitTermination((int) (1000 / frameRate), TimeUnit.MILLISECONDS);
+            clockThread.join();
+            captureTicks.put(STOP_CAPTURE);
+            captureThread.join();
+            encodeQueue.putEnd();
+            encoderThread.join();
+            writerThread.join();
             if (T != null) {
                 T.join();
             }
@@ -233,105 +812,449 @@ public class ScreenRecorder implements TestCastService {
                 writer = null;
             }
         }
-        capturedScreenWithMouseGraphics.dispose();
-        capturedScreenWithMouseImage.flush();
+        finishSegments();
+        if (gopRing == null) {
+            movieStartTimes = segments.getStartTimes();
+        } else {
+            if (keepRecording) {
+                writeFlightRecording();
+            }
+            gopRing.clear(freeBuffers);
+        }
+        metrics.stopped();
+        unregisterMetrics();
+    }
+
+    /**
+     * Opens the movie file of the next segment on the segment executor.
+     */
+    private void openNextSegment() {
+        final File segmentFile = SegmentManifest.getSegmentFile(file, segmentIndex + 1);
+        nextWriter = segmentExecutor.submit(() -> createMovieWriter(segmentFile));
+    }
+
+    /**
+     * Continues the recording in the next segment.
+     *
+     * @param time The time of the first frame in the next segment.
+     */
+    private void startNextSegment(long time) {
+        if (nextWriter == null) {
+            // the limit has been reached without warning
+            openNextSegment();
+        }
+        MovieWriter w;
+        try {
+            w = nextWriter.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            // keep writing into the current segment, and try again on the
+            // next request
+            metrics.failed("rollover", ex);
+            ex.printStackTrace();
+            nextWriter = null;
+            return;
+        }
+        synchronized (threadSyncObject) {
+            writer = w;
+        }
+        nextWriter = null;
+        segmentIndex++;
+        segments.add(SegmentManifest.getSegmentFile(file, segmentIndex), time);
+        metrics.segmentStarted();
+        startTime = time;
+    }
+
+    /**
+     * Deletes the file of the next segment if it has been opened but not
+     * used, waits until all segments have been closed, and writes the
+     * manifest of the segments.
+     */
+    private void finishSegments() throws IOException, InterruptedException {
+        Future<MovieWriter> unused = nextWriter;
+        nextWriter = null;
+        try {
+            if (unused != null) {
+                try {
+                    unused.get().close();
+                } catch (ExecutionException ex) {
+                    // nothing to close
+                } finally {
+                    SegmentManifest.getSegmentFile(file, segmentIndex + 1).delete();
+                }
+            }
+        } finally {
+            segmentExecutor.shutdown();
+            segmentExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (segments.getSegmentCount() > 1) {
+                try (Writer out = new FileWriter(SegmentManifest.getManifestFile(file))) {
+                    segments.write(out, stopTime);
+                }
+            }
+        }
     }
 
     /**
-     * Grabs a screen, generates video images with pending mouse captures
-     * and writes them into the movie file.
+     * Writes the frames kept by the flight recorder into the movie file.
      */
-    private void grabScreen() throws IOException {
+    private void writeFlightRecording() throws IOException {
+        if (!gopRing.iterator().hasNext()) {
+            return;
+        }
+        MovieWriter w = createMovieWriter(file);
+        // the durations of the kept frames add up to the time from the
+        // first kept frame to the end of the newest one
+        movieStartTimes = Collections.singletonMap(file, flightRecorderEndTime - gopRing.getDuration());
+        try {
+            for (Buffer buf : gopRing) {
+                w.writeSample(0, buf);
+                metrics.written(buf.length, (buf.flags & Buffer.FLAG_KEY_FRAME) != 0);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * The clock thread. Samples the mouse at the mouse sample rate and
+     * triggers a screen capture at the maximal frame rate. Ticks which are
+     * missed, because the thread was not scheduled in time or because the
+     * capture thread is busy, are skipped.
+     */
+    private void runClock() {
+        long mousePeriod = max(1, (long) (1000 / mouseSampleRate));
+        long capturePeriod = max(1, (long) (1000 / frameRate));
+        long nextMouseTime = startTime;
+        long nextCaptureTime = startTime + capturePeriod;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                if (now >= nextMouseTime) {
+                    grabMouse(now);
+                    nextMouseTime = max(now, nextMouseTime + mousePeriod);
+                }
+                if (now >= nextCaptureTime) {
+                    captureTicks.offer(CAPTURE_TICK);
+                    nextCaptureTime = max(now, nextCaptureTime + capturePeriod);
+                }
+                Thread.sleep(max(0, Math.min(nextMouseTime, nextCaptureTime) - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException ex) {
+            // the recorder is being stopped
+        }
+    }
+
+    /**
+     * The capture thread. Captures the screen on each tick of the clock
+     * thread.
+     */
+    private void captureFrames() {
+        try {
+            for (Object tick = captureTicks.take(); tick != STOP_CAPTURE; tick = captureTicks.take()) {
+                try {
+                    grabScreen();
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    metrics.captureDropped();
+                    metrics.failed("capture", t);
+                    frameDropped = true;
+                    t.printStackTrace();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // the recorder is being stopped
+        }
+    }
+
+    /**
+     * Grabs a screen, paints the mouse cursor on it and hands it over to
+     * the encode stage.
+     */
+    private void grabScreen() throws InterruptedException {
+        long tick = captureTick++;
+        if (encodeQueue.isSkipped(tick)) {
+            metrics.captureDropped();
+            return;
+        }
+
+        // While the screen is idle, only capture at the minimal frame rate,
+        // unless the mouse has moved
+        boolean idle = unchangedCount >= frameRate;
+        if (idle && !mouseMoved && tick % max(1, Math.round(frameRate / minFrameRate)) != 0) {
+            return;
+        }
+        mouseMoved = false;
+
         // Capture the screen
-        capturedScreenImage = robot.createScreenCapture(new Rectangle(0, 0, rectangle.width, rectangle.height));
         long now = System.currentTimeMillis();
-        capturedScreenWithMouseGraphics.drawImage(capturedScreenImage, 0, 0, null);
+        long captureStart = System.nanoTime();
+        BufferedImage capturedScreenImage = robot.createScreenCapture(rectangle);
+        metrics.captured(System.nanoTime() - captureStart, rectangle.width, rectangle.height);
 
+        // Determine the changed regions of the screen
+        Rectangle[] damage = changeDetector.detect(capturedScreenImage);
+        boolean changed = damage == null || damage.length > 0 || frameDropped;
 
-        // Generate video frames with mouse cursor painted on them
-        boolean hasMouseCapture = false;
+        // Copy the screen into a pooled frame and paint the mouse cursor on
+        // it, at its location interpolated to the time of the capture
+        BufferedImage frameImage;
         if (cursor != CursorColor.NONE) {
+            // Without samples, the mouse is at its current location. If that
+            // is unknown, the cursor stays at its last known location.
+            Point p = mouseLocation;
+            if (!mouseSamples.getLocation(now, p)) {
+                PointerInfo info = MouseInfo.getPointerInfo();
+                if (info != null) {
+                    p.setLocation(info.getLocation());
+                }
+            }
+            Rectangle cursorBounds = new Rectangle(p.x - rectangle.x + mouseCursorImageOffset.x, p.y - rectangle.y + mouseCursorImageOffset.y,
+                    mouseCursorImage.getWidth(), mouseCursorImage.getHeight());
+            changed |= !cursorBounds.equals(previousCursorBounds);
+            if (!changed) {
+                unchangedCount++;
+                return;
+            }
+            long compositeStart = System.nanoTime();
+            frameImage = framePool.capture(capturedScreenImage, mouseCursorImage, cursorBounds.x, cursorBounds.y);
+            metrics.cursorComposited(System.nanoTime() - compositeStart);
 
-            Point previous = new Point(Integer.MAX_VALUE, Integer.MAX_VALUE);
-            while (!mouseCaptures.isEmpty() && mouseCaptures.get(0).getTime() < now) {
-                MouseCapture pc = mouseCaptures.remove(0);
-                if (pc.getTime() > previousFrameTime) {
-                    hasMouseCapture = true;
-                    Point p = pc.getP();
-                    p.x -= rectangle.x;
-                    p.y -= rectangle.y;
-                    synchronized (threadSyncObject) {
-                        if (!writer.isVFRSupported() || p.x != previous.x || p.y != previous.y || pc.getTime() - previousFrameTime > maxFrameDuration) {
-                            previous.x = p.x;
-                            previous.y = p.y;
-
-                            // draw cursor
-                            capturedScreenWithMouseGraphics.drawImage(mouseCursorImage, p.x + mouseCursorImageOffset.x, p.y + mouseCursorImageOffset.y, null);
-                            if (writer == null) {
-                                return;
-                            }
-                            try {
-                                writer.writeFrame(0, capturedScreenWithMouseImage, (int) (pc.getTime() - previousFrameTime));
-                            } catch (Throwable t) {
-                                System.out.flush();
-                                t.printStackTrace();
-                                System.err.flush();
-                                System.exit(10);
-                            }
-                            previousFrameTime = pc.getTime();
-                            // erase cursor
-                            capturedScreenWithMouseGraphics.drawImage(capturedScreenImage, //
-                                    p.x + mouseCursorImageOffset.x, p.y + mouseCursorImageOffset.y,//
-                                    p.x + mouseCursorImageOffset.x + mouseCursorImage.getWidth() - 1, p.y + mouseCursorImageOffset.y + mouseCursorImage.getHeight() - 1,//
-                                    p.x + mouseCursorImageOffset.x, p.y + mouseCursorImageOffset.y,//
-                                    p.x + mouseCursorImageOffset.x + mouseCursorImage.getWidth() - 1, p.y + mouseCursorImageOffset.y + mouseCursorImage.getHeight() - 1,//
-                                    null);
-                        }
+            // The cursor damages the region where it is painted now, and
+            // the region where it was painted before
+            if (damage != null && previousCursorBounds != null) {
+                if (cursorBounds.equals(previousCursorBounds)) {
+                    damage = Arrays.copyOf(damage, damage.length + 1);
+                    damage[damage.length - 1] = cursorBounds;
+                } else {
+                    damage = Arrays.copyOf(damage, damage.length + 2);
+                    damage[damage.length - 2] = previousCursorBounds;
+                    damage[damage.length - 1] = cursorBounds;
+                }
+            }
+            previousCursorBounds = cursorBounds;
+        } else {
+            if (!changed) {
+                unchangedCount++;
+                return;
+            }
+            long compositeStart = System.nanoTime();
+            frameImage = framePool.capture(capturedScreenImage, null, 0, 0);
+            metrics.cursorComposited(System.nanoTime() - compositeStart);
+        }
+        unchangedCount = 0;
+        frameDropped = false;
 
-                        // Close file on a separate thread if file is full or an hour
-                        // has passed.
-                        if (writer.isDataLimitReached() || now - startTime > 60 * 60 * 1000) {
-                            System.out.println("ScreenRecorder dataLimit:" + writer.isDataLimitReached() + " timeLimit=" + (now - startTime > 60 * 60 * 1000));
-                            new Thread() {
+        CapturedFrame frame = new CapturedFrame(frameImage, now, captureSequenceNumber++, damage);
+        try {
+            encodeQueue.put(frame, droppedFrames);
+        } catch (InterruptedException ex) {
+            framePool.release(frameImage);
+            throw ex;
+        }
+        for (CapturedFrame dropped : droppedFrames) {
+            framePool.release(dropped.getImage());
+            metrics.captureDropped();
+            frameDropped = true;
+        }
+        droppedFrames.clear();
+    }
 
-                                @Override
-                                public void run() {
-                                    try {
-                                        writer.close();
-                                    } catch (IOException ex) {
-                                        ex.printStackTrace();
-                                    }
+    /**
+     * The encode stage. Takes captured frames from the encode queue, encodes
+     * them and hands them over to the write stage.
+     * <p>
+     * The write stage requests a new segment when the current one is full.
+     * The encode stage switches to it, so that all frames which are encoded
+     * afterwards start with a key frame in the new segment.
+     */
+    private void encodeFrames() {
+        Buffer inputBuffer = new Buffer();
+        long previousFrameTime = startTime;
+        // A key frame is forced after the maximal seek distance. With the
+        // flight recorder, it is forced at a quarter of the kept duration, so
+        // that evicting a group of pictures does not discard much more than
+        // necessary.
+        long keyFrameDistance = isFlightRecorder() ? min(maxSeekDistance, flightRecorderDuration / 4) : maxSeekDistance;
+        long keyFrameTime = startTime;
+        long previousSequenceNumber = -1;
+        ColorModel previousColorModel = null;
+        try {
+            for (CapturedFrame frame = encodeQueue.take(); frame != CapturedFrame.END; frame = encodeQueue.take()) {
+                if (rolloverRequested) {
+                    startNextSegment(frame.getTime());
+                    // cleared after the switch, so that frames of the full
+                    // segment which are still being written do not request
+                    // another one
+                    rolloverRequested = false;
+                }
+                MovieWriter w = writer;
+                Buffer outputBuffer = freeBuffers.poll();
+                if (outputBuffer == null) {
+                    outputBuffer = new Buffer();
+                }
+                // The codec may keep the frame as its previous frame, instead
+                // of copying it. It hands back the frame which it no longer needs.
+                // A palette change can only take effect with a key frame
+                ColorModel colorModel = frame.getImage().getColorModel();
+                boolean paletteChanged = colorModel instanceof IndexColorModel && colorModel != previousColorModel;
+                // The damage regions are relative to the previous capture.
+                // They can only be used if the previous capture has been encoded.
+                Rectangle[] damage = (frame.getSequenceNumber() == previousSequenceNumber + 1) ? frame.getDamage() : null;
+                boolean forceKeyFrame = paletteChanged
+                        || frame.getTime() - keyFrameTime >= keyFrameDistance
+                        || (damage != null && getDamagedFraction(damage) >= sceneChangeThreshold);
+                inputBuffer.flags = Buffer.FLAG_RELINQUISH | (forceKeyFrame ? Buffer.FLAG_KEY_FRAME : 0);
+                inputBuffer.data = frame.getImage();
+                inputBuffer.duration = max(1, frame.getTime() - previousFrameTime);
+                inputBuffer.damage = damage;
+                long encodeStart = System.nanoTime();
+                try {
+                    w.encodeFrame(0, inputBuffer, outputBuffer);
+                } catch (Throwable t) {
+                    metrics.encodeDropped();
+                    metrics.failed("encode", t);
+                    frameDropped = true;
+                    t.printStackTrace();
+                    continue;
+                } finally {
+                    framePool.release((BufferedImage) inputBuffer.data);
+                    inputBuffer.data = null;
+                    inputBuffer.damage = null;
+                }
+                if (outputBuffer.flags == Buffer.FLAG_DISCARD) {
+                    metrics.encodeDropped();
+                    frameDropped = true;
+                    freeBuffers.offer(outputBuffer);
+                    continue;
+                }
+                boolean keyFrame = (outputBuffer.flags & Buffer.FLAG_KEY_FRAME) != 0;
+                metrics.encoded(System.nanoTime() - encodeStart, outputBuffer.length, keyFrame);
+                if (keyFrame) {
+                    keyFrameTime = frame.getTime();
+                }
+                if (previousSequenceNumber == -1 && !isFlightRecorder()) {
+                    // the movie starts with its first frame, not when the recorder was started
+                    segments.setStartTime(0, frame.getTime());
+                }
+                previousFrameTime = frame.getTime();
+                previousSequenceNumber = frame.getSequenceNumber();
+                previousColorModel = colorModel;
+                writeQueue.put(new EncodedFrame(outputBuffer, w, frame.getTime()));
+            }
+            writeQueue.put(EncodedFrame.END);
+        } catch (InterruptedException ex) {
+            // the recorder is being stopped
+        }
+    }
 
-                                }
-                            }.start();
-                            createMovieWriter();
-                            startTime = now;
-                        }
+    /** Returns the fraction of the capture area which is covered by damage regions. */
+    private float getDamagedFraction(Rectangle[] damage) {
+        long area = 0;
+        for (Rectangle r : damage) {
+            area += (long) r.width * r.height;
+        }
+        return area / ((float) rectangle.width * rectangle.height);
+    }
+
+    /**
+     * The write stage. Takes encoded frames from the write queue and writes
+     * them into the movie writer which encoded them. Closes a movie writer
+     * on the segment executor as soon as frames for its successor arrive.
+     * <p>
+     * A frame lasts until the next frame has been captured. Therefore each
+     * frame is held back until its successor arrives.
+     */
+    private void writeFrames() {
+        MovieWriter previousWriter = null;
+        // the number of bytes of video samples in the current segment
+        long segmentSize = 0;
+        try {
+            EncodedFrame next;
+            for (EncodedFrame frame = writeQueue.take(); frame != EncodedFrame.END; frame = next) {
+                next = writeQueue.take();
+                long endTime = (next == EncodedFrame.END) ? max(stopTime, frame.getTime() + 1) : next.getTime();
+                frame.getBuffer().duration = max(1, endTime - frame.getTime());
+                frame.getBuffer().timeScale = 1000;
+
+                MovieWriter w = frame.getWriter();
+                if (previousWriter != null && previousWriter != w) {
+                    closeWriter(previousWriter);
+                }
+                if (previousWriter != w) {
+                    segmentSize = 0;
+                }
+                previousWriter = w;
+                if (gopRing != null) {
+                    gopRing.add(frame.getBuffer(), freeBuffers);
+                    flightRecorderEndTime = endTime;
+                    continue;
+                }
+                synchronized (threadSyncObject) {
+                    try {
+                        w.writeSample(0, frame.getBuffer());
+                        segmentSize += frame.getBuffer().length;
+                        metrics.written(frame.getBuffer().length, (frame.getBuffer().flags & Buffer.FLAG_KEY_FRAME) != 0);
+                    } catch (Throwable t) {
+                        metrics.writeDropped();
+                        metrics.failed("write", t);
+                        t.printStackTrace();
+                    }
+                }
+                freeBuffers.offer(frame.getBuffer());
+
+                // Open the next file ahead of time if the file is nearly full
+                // or if the maximal recording time has nearly passed. Request
+                // it if the file is full or if the time has passed.
+                if (w == writer && !rolloverRequested) {
+                    long segmentTime = frame.getTime() - startTime;
+                    boolean isSizeLimitNear = maxSegmentSize > 0 && segmentSize > maxSegmentSize - maxSegmentSize / 10;
+                    boolean isSizeLimitReached = maxSegmentSize > 0 && segmentSize >= maxSegmentSize;
+                    if (nextWriter == null
+                            && (w.isDataLimitNear() || isSizeLimitNear || segmentTime > maxRecordingTime - maxRecordingTime / 10)) {
+                        openNextSegment();
+                    }
+                    if (w.isDataLimitReached() || isSizeLimitReached || segmentTime > maxRecordingTime) {
+                        rolloverRequested = true;
                     }
                 }
             }
+        } catch (InterruptedException ex) {
+            // the recorder is being stopped
         }
-        if (!hasMouseCapture) {
-            if (cursor != CursorColor.NONE) {
-                PointerInfo info = MouseInfo.getPointerInfo();
-                Point p = info.getLocation();
-                capturedScreenWithMouseGraphics.drawImage(mouseCursorImage, p.x + mouseCursorImageOffset.x, p.x + mouseCursorImageOffset.y, null);
-            }
-            synchronized (threadSyncObject) {
-                writer.writeFrame(0, capturedScreenWithMouseImage, (int) (now - previousFrameTime));
-            }
-            previousFrameTime = now;
+        if (previousWriter != null && previousWriter != writer) {
+            closeWriter(previousWriter);
         }
     }
 
     /**
-     * Captures the mouse cursor.
+     * Closes a movie writer on the segment executor.
      */
-    private void grabMouse() {
-        long now = System.currentTimeMillis();
-        PointerInfo info = MouseInfo.getPointerInfo();
+    private void closeWriter(final MovieWriter w) {
+        segmentExecutor.execute(() -> {
+            try {
+                w.close();
+            } catch (IOException ex) {
+                metrics.failed("close", ex);
+                ex.printStackTrace();
+            }
+        });
+    }
 
-        mouseCaptures.add(new MouseCapture(now, info.getLocation()));
+    /**
+     * Samples the location of the mouse.
+     */
+    private void grabMouse(long now) {
+        PointerInfo info = MouseInfo.getPointerInfo();
+        if (info == null) {
+            return;
+        }
+        Point p = info.getLocation();
+        if (p.x != previousMouseX || p.y != previousMouseY) {
+            previousMouseX = p.x;
+            previousMouseY = p.y;
+            mouseMoved = true;
+        }
+        mouseSamples.add(now, p.x, p.y);
     }
 
 }
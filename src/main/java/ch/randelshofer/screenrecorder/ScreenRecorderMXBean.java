@@ -0,0 +1,84 @@
+package ch.randelshofer.screenrecorder;
+
+/**
+ * Management interface for the metrics of a {@link ScreenRecorder}.
+ * <p>
+ * Times are given in microseconds. A histogram is an array in which element
+ * {@code i} counts the measurements which took less than {@code 2^i}
+ * microseconds, and at least {@code 2^(i-1)} microseconds. The last element
+ * also counts all longer measurements.
+ */
+public interface ScreenRecorderMXBean {
+
+    /** Returns the path of the movie file. */
+    String getFile();
+
+    /** Returns the name of the video codec. */
+    String getCodec();
+
+    /** Returns the frame rate at which the screen is captured while it changes. */
+    float getRequestedFrameRate();
+
+    /** Returns the frame rate at which the screen is captured while it is idle. */
+    float getIdleFrameRate();
+
+    /** Returns the number of screen captures per second since the start. */
+    double getAchievedCaptureRate();
+
+    /** Returns the number of recorded frames per second since the start.
+     * This is lower than the capture rate if captures in which nothing
+     * changed are skipped. */
+    double getAchievedFrameRate();
+
+    long getCaptureCount();
+
+    long[] getCaptureLatencyHistogram();
+
+    long getMeanCaptureLatency();
+
+    long getMaxCaptureLatency();
+
+    /** Returns the histogram of the time needed to copy a captured screen
+     * into a frame and to paint the mouse cursor on it. */
+    long[] getCursorCompositeHistogram();
+
+    long getMeanCursorCompositeTime();
+
+    long getMaxCursorCompositeTime();
+
+    /** Returns the histogram of the time the codec needs to encode a frame. */
+    long[] getEncodeTimeHistogram();
+
+    long getMeanEncodeTime();
+
+    long getMaxEncodeTime();
+
+    long getFramesWritten();
+
+    long getKeyFramesWritten();
+
+    /** Returns the ratio of key frames to all written frames. */
+    double getKeyFrameRatio();
+
+    long getVideoBytesWritten();
+
+    long getAudioBytesWritten();
+
+    long getCaptureDropCount();
+
+    long getEncodeDropCount();
+
+    long getWriteDropCount();
+
+    /** Returns the number of errors which occurred in the capture, encode
+     * and write stages. */
+    long getErrorCount();
+
+    /** Returns the number of movie files which have been started. The
+     * recording continues in a new segment file when a file is full, or
+     * when the maximal recording time has passed. */
+    long getSegmentCount();
+
+    /** Returns a description of the most recent error, or null. */
+    String getLastError();
+}
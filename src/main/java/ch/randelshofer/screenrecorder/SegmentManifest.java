@@ -0,0 +1,114 @@
+package ch.randelshofer.screenrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the segment files of a recording which has been split into several
+ * movie files.
+ * <p>
+ * The manifest is a text file with one line per segment. Each line holds
+ * the name of the segment file, its start time relative to the start of the
+ * recording, and its duration, separated by tabs. Times are in
+ * milliseconds.
+ */
+class SegmentManifest {
+
+    private final List<File> files = new ArrayList<File>();
+    private final List<Long> startTimes = new ArrayList<Long>();
+
+    /**
+     * Adds a segment. The previous segment ends where this one starts.
+     *
+     * @param file The segment file.
+     * @param startTime The time of the first frame in the segment.
+     */
+    public void add(File file, long startTime) {
+        files.add(file);
+        startTimes.add(startTime);
+    }
+
+    /**
+     * Changes the start time of a segment.
+     *
+     * @param index The index of the segment.
+     * @param startTime The time of the first frame in the segment.
+     */
+    public void setStartTime(int index, long startTime) {
+        startTimes.set(index, startTime);
+    }
+
+    /**
+     * Returns the segment files in the order of the recording, each with
+     * the time of its first frame.
+     */
+    public Map<File, Long> getStartTimes() {
+        Map<File, Long> map = new LinkedHashMap<File, Long>();
+        for (int i = 0, n = files.size(); i < n; i++) {
+            map.put(files.get(i), startTimes.get(i));
+        }
+        return map;
+    }
+
+    public int getSegmentCount() {
+        return files.size();
+    }
+
+    /**
+     * Writes the manifest.
+     *
+     * @param out The output.
+     * @param endTime The end time of the last segment.
+     */
+    public void write(Writer out, long endTime) throws IOException {
+        PrintWriter w = new PrintWriter(out);
+        w.println("# file\tstart\tduration");
+        long recordingStart = startTimes.isEmpty() ? endTime : startTimes.get(0);
+        for (int i = 0, n = files.size(); i < n; i++) {
+            long start = startTimes.get(i);
+            long end = (i + 1 < n) ? startTimes.get(i + 1) : endTime;
+            w.println(files.get(i).getName() + "\t" + (start - recordingStart) + "\t" + Math.max(0, end - start));
+        }
+        w.flush();
+        if (w.checkError()) {
+            throw new IOException("Unable to write the segment manifest");
+        }
+    }
+
+    /**
+     * Returns the file of a segment. The first segment is stored in the
+     * movie file itself, the following segments are numbered, for example
+     * {@code movie-001.avi}, {@code movie-002.avi}.
+     *
+     * @param file The movie file.
+     * @param index The index of the segment.
+     */
+    public static File getSegmentFile(File file, int index) {
+        if (index == 0) {
+            return file;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot == -1) ? name : name.substring(0, dot);
+        String extension = (dot == -1) ? "" : name.substring(dot);
+        return new File(file.getParentFile(), String.format("%s-%03d%s", base, index, extension));
+    }
+
+    /**
+     * Returns the file of the manifest, for example {@code movie.segments}.
+     *
+     * @param file The movie file.
+     */
+    public static File getManifestFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot == -1) ? name : name.substring(0, dot);
+        return new File(file.getParentFile(), base + ".segments");
+    }
+}
@@ -0,0 +1,112 @@
+package ch.randelshofer.screenrecorder;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Detects which regions of the screen have changed since the previous
+ * capture.
+ * <p>
+ * The screen is divided into square tiles. For each tile a hash of its
+ * pixels is computed and compared with the hash of the previous capture.
+ * Changed tiles which are next to each other on the same row of tiles are
+ * merged into one rectangle.
+ */
+class TileChangeDetector {
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private long[] hashes;
+    private long[] previousHashes;
+    private boolean hasPrevious;
+
+    public TileChangeDetector(int width, int height, int tileSize) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.hashes = new long[tilesX * tilesY];
+        this.previousHashes = new long[tilesX * tilesY];
+    }
+
+    /** Forgets the previous capture. */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    /**
+     * Returns the regions of the screen which have changed since the
+     * previous invocation of this method.
+     *
+     * @param screen An INT_RGB image of the screen.
+     * @return The changed regions, or null if the changed regions are
+     * unknown. An empty array if nothing has changed.
+     */
+    public Rectangle[] detect(BufferedImage screen) {
+        WritableRaster raster = screen.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || screen.getWidth() != width || screen.getHeight() != height) {
+            hasPrevious = false;
+            return null;
+        }
+        int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = -raster.getSampleModelTranslateX() - raster.getSampleModelTranslateY() * stride;
+
+        computeHashes(pixels, offset, stride);
+
+        Rectangle[] damage = null;
+        if (hasPrevious) {
+            ArrayList<Rectangle> changed = new ArrayList<Rectangle>();
+            for (int ty = 0; ty < tilesY; ty++) {
+                int t = ty * tilesX;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    if (hashes[t + tx] != previousHashes[t + tx]) {
+                        int tx0 = tx;
+                        while (tx + 1 < tilesX && hashes[t + tx + 1] != previousHashes[t + tx + 1]) {
+                            tx++;
+                        }
+                        int x = tx0 * tileSize;
+                        int y = ty * tileSize;
+                        changed.add(new Rectangle(x, y,
+                                Math.min(width, (tx + 1) * tileSize) - x,
+                                Math.min(height, y + tileSize) - y));
+                    }
+                }
+            }
+            damage = changed.toArray(new Rectangle[changed.size()]);
+        }
+
+        long[] swap = previousHashes;
+        previousHashes = hashes;
+        hashes = swap;
+        hasPrevious = true;
+        return damage;
+    }
+
+    /** Computes an FNV-1a hash over the pixels of each tile. */
+    private void computeHashes(int[] pixels, int offset, int stride) {
+        Arrays.fill(hashes, 0xcbf29ce484222325L);
+        for (int y = 0; y < height; y++) {
+            int t = (y / tileSize) * tilesX;
+            int xy = offset + y * stride;
+            for (int x = 0; x < width; x += tileSize, t++) {
+                long h = hashes[t];
+                for (int xymax = xy + Math.min(tileSize, width - x); xy < xymax; xy++) {
+                    h = (h ^ pixels[xy]) * 0x100000001b3L;
+                }
+                hashes[t] = h;
+            }
+        }
+    }
+}
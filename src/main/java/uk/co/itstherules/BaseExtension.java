@@ -5,24 +5,63 @@ import org.junit.platform.commons.util.AnnotationUtils;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
 
-public abstract class BaseExtension<T extends Annotation> implements BeforeTestExecutionCallback, AfterTestExecutionCallback {
+public abstract class BaseExtension<T extends Annotation> implements BeforeAllCallback, AfterAllCallback, BeforeTestExecutionCallback, AfterTestExecutionCallback {
+
+    private static final String CLASS_RECORDING = "testcast_class_recording";
+    private static final Map<Class<?>, SharedRecording> suiteRecordings = new HashMap<>();
+
+    @Override
+    public void beforeAll(ContainerExtensionContext context) {
+        Optional<T> annotation = context.getTestClass().flatMap(testClass -> AnnotationUtils.findAnnotation(testClass, getAnnotationClass()));
+        if (!annotation.isPresent() || getScope(annotation.get()) != RecordingScope.CLASS) return;
+        SharedRecording recording = startSharedRecording(context.getTestClass().get().getCanonicalName(), annotation.get());
+        context.getStore(getNamespace()).put(CLASS_RECORDING, recording);
+    }
+
+    @Override
+    public void afterAll(ContainerExtensionContext context) {
+        SharedRecording recording = context.getStore(getNamespace()).get(CLASS_RECORDING, SharedRecording.class);
+        if (recording == null) return;
+        context.getStore(getNamespace()).remove(CLASS_RECORDING);
+        stop(recording, recording.hasFailures());
+    }
 
     @Override
     public void beforeTestExecution(TestExtensionContext context) {
-        if (!shouldBeRecorded(context)) return;
-        new IO(getDirectoryName()).makeDirectoryIfNotExists();
-        launchAndStore(context);
+        Optional<T> annotation = findAnnotation(context);
+        if (!annotation.isPresent()) return;
+        switch (scopeOf(context, annotation.get())) {
+            case TEST:
+                launchAndStore(context, annotation.get());
+                break;
+            case CLASS:
+                loadClassRecording(context).beginTest(testName(context));
+                break;
+            case SUITE:
+                suiteRecording(annotation.get()).beginTest(testName(context));
+                break;
+        }
     }
 
     @Override
     public void afterTestExecution(TestExtensionContext context) {
-        if (!shouldBeRecorded(context)) return;
-        TestCastService testCastService = loadTestCastService(context);
-        try {
-            testCastService.stop();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        Optional<T> annotation = findAnnotation(context);
+        if (!annotation.isPresent()) return;
+        boolean failed = context.getTestException().isPresent();
+        switch (scopeOf(context, annotation.get())) {
+            case TEST:
+                stop(loadTestCastService(context), failed);
+                break;
+            case CLASS:
+                loadClassRecording(context).endTest(testName(context), failed);
+                break;
+            case SUITE:
+                suiteRecording(annotation.get()).endTest(testName(context), failed);
+                break;
         }
     }
 
@@ -32,25 +71,42 @@ public abstract class BaseExtension<T extends Annotation> implements BeforeTestE
 
     public abstract ExtensionContext.Namespace getNamespace();
 
-    public abstract TestCastService makeService(String fileName);
+    public abstract RecordingScope getScope(T annotation);
+
+    /** fileName is the name of the movie file, in the directory of the extension. */
+    public abstract TestCastService makeService(String fileName, T annotation);
 
-    private boolean shouldBeRecorded(ExtensionContext context) {
-        return context.getElement()
-                .map(el -> AnnotationUtils.isAnnotated(el, getAnnotationClass()))
-                .orElse(false);
+    /** Looks for the annotation on the test method first, then on the test class. */
+    private Optional<T> findAnnotation(ExtensionContext context) {
+        Optional<T> annotation = context.getTestMethod().flatMap(method -> AnnotationUtils.findAnnotation(method, getAnnotationClass()));
+        if (annotation.isPresent()) return annotation;
+        return context.getTestClass().flatMap(testClass -> AnnotationUtils.findAnnotation(testClass, getAnnotationClass()));
+    }
+
+    /**
+     * A test in a class which is recorded as a whole is a chapter of that recording, also if the
+     * test method has an annotation of its own. Otherwise it would start a second recorder.
+     */
+    private RecordingScope scopeOf(ExtensionContext context, T annotation) {
+        if (context.getStore(getNamespace()).get(CLASS_RECORDING, SharedRecording.class) != null) {
+            return RecordingScope.CLASS;
+        }
+        return getScope(annotation);
     }
 
-    private void launchAndStore(ExtensionContext context) {
+    private String testName(ExtensionContext context) {
         Method method = context.getTestMethod().get();
-        String methodName = method.getName();
-        String fileName = method.getDeclaringClass().getCanonicalName() + "." + methodName;
-        TestCastService service = makeService(fileName);
+        return method.getDeclaringClass().getCanonicalName() + "." + method.getName();
+    }
+
+    private void launchAndStore(ExtensionContext context, T annotation) {
+        TestCastService service = makeService(makeMovieName(testName(context)), annotation);
         try {
             service.start();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        context.getStore(getNamespace()).put("testcast_service_" + methodName, service);
+        context.getStore(getNamespace()).put("testcast_service_" + context.getTestMethod().get().getName(), service);
     }
 
     private TestCastService loadTestCastService(ExtensionContext context) {
@@ -59,6 +115,53 @@ public abstract class BaseExtension<T extends Annotation> implements BeforeTestE
         return context.getStore(getNamespace()).get("testcast_service_" + methodName, serviceClass());
     }
 
+    private SharedRecording loadClassRecording(ExtensionContext context) {
+        SharedRecording recording = context.getStore(getNamespace()).get(CLASS_RECORDING, SharedRecording.class);
+        if (recording == null) {
+            throw new IllegalStateException("Recording scope CLASS needs the test class to be annotated with @" + getAnnotationClass().getSimpleName());
+        }
+        return recording;
+    }
+
+    private SharedRecording suiteRecording(T annotation) {
+        synchronized (suiteRecordings) {
+            SharedRecording recording = suiteRecordings.get(getClass());
+            if (recording == null) {
+                recording = startSharedRecording("suite", annotation);
+                suiteRecordings.put(getClass(), recording);
+                SharedRecording suite = recording;
+                // The recorder threads are daemon threads, so the JVM exits after the last test
+                // and runs this hook, which finishes the movie
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(suite, suite.hasFailures())));
+            }
+            return recording;
+        }
+    }
+
+    private SharedRecording startSharedRecording(String name, T annotation) {
+        SharedRecording recording = new SharedRecording(makeService(makeMovieName(name), annotation));
+        try {
+            recording.start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return recording;
+    }
+
+    private String makeMovieName(String name) {
+        IO io = new IO(getDirectoryName());
+        io.makeDirectoryIfNotExists();
+        return io.makeMovieName(name);
+    }
+
+    private void stop(TestCastService service, boolean keepRecording) {
+        try {
+            service.stop(keepRecording);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected abstract Class<? extends TestCastService> serviceClass();
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+package uk.co.itstherules;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.WebDriver;
+
+import java.awt.*;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public final class BrowserWindow {
+
+    private static final List<Consumer<Rectangle>> listeners = new CopyOnWriteArrayList<>();
+    /** The driver which has reported its window last. Not kept alive for the recorders. */
+    private static volatile Reference<WebDriver> lastDriver = new WeakReference<>(null);
+
+    private BrowserWindow() { }
+
+    /**
+     * Tells the recorders where the window of this driver is on the screen. ScreenCastDriver
+     * does this when it is created and on every navigation, other drivers can call it once their
+     * window has been positioned. A recorder which starts later asks the last reported driver
+     * for its window again.
+     */
+    public static void opened(WebDriver driver) {
+        lastDriver = new WeakReference<>(driver);
+        Rectangle bounds = boundsOf(driver);
+        listeners.forEach(listener -> listener.accept(bounds));
+    }
+
+    /**
+     * Returns where the window of the last reported driver is on the screen now, or null if no
+     * driver has been reported, or if its window is gone, for example because the driver has quit.
+     */
+    static Rectangle locate() {
+        WebDriver driver = lastDriver.get();
+        if (driver == null) return null;
+        try {
+            return boundsOf(driver);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Rectangle boundsOf(WebDriver driver) {
+        WebDriver.Window window = driver.manage().window();
+        Point position = window.getPosition();
+        Dimension size = window.getSize();
+        return new Rectangle(position.getX(), position.getY(), size.getWidth(), size.getHeight());
+    }
+
+    static void addListener(Consumer<Rectangle> listener) {
+        listeners.add(listener);
+    }
+
+    static void removeListener(Consumer<Rectangle> listener) {
+        listeners.remove(listener);
+    }
+
+}
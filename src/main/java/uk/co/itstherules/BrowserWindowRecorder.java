@@ -0,0 +1,117 @@
+package uk.co.itstherules;
+
+import ch.randelshofer.screenrecorder.ScreenRecorder;
+
+import java.awt.*;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Records the window of the browser. If a driver has already reported its window to
+ * BrowserWindow, the recording starts on that window right away. Otherwise it starts when a
+ * window is reported. If none is reported within a few seconds, for example because the test
+ * uses a plain ChromeDriver, the whole screen or the fixed capture area is recorded instead.
+ */
+public class BrowserWindowRecorder implements TestCastService, Consumer<Rectangle> {
+
+    /** How long the recorder waits for a browser window, in milliseconds. */
+    static final long WINDOW_TIMEOUT = 5000;
+
+    private final File file;
+    private final RecordingSettings settings;
+    private final long windowTimeout;
+    private ScreenRecorder recorder;
+    private Exception failure;
+    private boolean stopped;
+
+    public BrowserWindowRecorder(File file, RecordingSettings settings) {
+        this(file, settings, WINDOW_TIMEOUT);
+    }
+
+    BrowserWindowRecorder(File file, RecordingSettings settings, long windowTimeout) {
+        this.file = file;
+        this.settings = settings;
+        this.windowTimeout = windowTimeout;
+    }
+
+    @Override
+    public synchronized void start() {
+        Rectangle bounds = BrowserWindow.locate();
+        if (bounds != null) {
+            startRecording(bounds);
+            return;
+        }
+        BrowserWindow.addListener(this);
+        Thread thread = new Thread(this::awaitWindow, "BrowserWindowRecorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Starts the recording when a driver reports its window. Called on the thread of the test, so nothing is thrown. */
+    @Override
+    public synchronized void accept(Rectangle bounds) {
+        if (isStarted() || stopped) return;
+        startRecording(bounds);
+    }
+
+    private synchronized void awaitWindow() {
+        long deadline = System.currentTimeMillis() + windowTimeout;
+        try {
+            for (long remaining = windowTimeout; !isStarted() && !stopped && remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (isStarted() || stopped) return;
+        Rectangle fixedArea = settings.getFixedArea();
+        System.err.println("No browser window has been reported within " + windowTimeout + " ms, recording "
+                + (fixedArea == null ? "the whole screen" : "the capture area " + fixedArea) + " into " + file + " instead");
+        startRecording(fixedArea);
+    }
+
+    private boolean isStarted() {
+        return recorder != null || failure != null;
+    }
+
+    /** Starts the recorder. A failure is kept and reported when the recording is stopped. */
+    private void startRecording(Rectangle bounds) {
+        BrowserWindow.removeListener(this);
+        notifyAll();
+        try {
+            ScreenRecorder screenRecorder = settings.makeScreenRecorder(file, bounds);
+            screenRecorder.start();
+            recorder = screenRecorder;
+        } catch (Exception e) {
+            failure = e;
+            System.err.println("Could not start recording into " + file + ": " + e);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        stop(true);
+    }
+
+    @Override
+    public synchronized void stop(boolean keepRecording) throws Exception {
+        BrowserWindow.removeListener(this);
+        stopped = true;
+        notifyAll();
+        if (recorder != null) {
+            recorder.stop(keepRecording);
+        } else if (failure != null) {
+            throw new IllegalStateException("No movie has been written into " + file + ", because the recording failed to start", failure);
+        } else {
+            System.err.println("No movie has been written into " + file + ", because the recording had not started yet");
+        }
+    }
+
+    @Override
+    public synchronized Map<File, Long> getMovieStartTimes() {
+        return recorder == null ? Collections.<File, Long>emptyMap() : recorder.getMovieStartTimes();
+    }
+
+}
@@ -0,0 +1,73 @@
+package uk.co.itstherules;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tests in a shared recording. Written as a sidecar file next to each movie file of the
+ * recording, with one line per test in that movie: name, start and end in milliseconds since the
+ * start of the movie, and passed or failed, separated by tabs. A clip of a test can be cut out of
+ * the movie with these times. A test which is only partly in the movie, because the movie is one
+ * segment of the recording or only keeps its last seconds, is cut off at the ends of the movie.
+ */
+public final class Chapters {
+
+    private static final class Chapter {
+
+        final String name;
+        final long begin;
+        final long end;
+        final boolean failed;
+
+        Chapter(String name, long begin, long end, boolean failed) {
+            this.name = name;
+            this.begin = begin;
+            this.end = end;
+            this.failed = failed;
+        }
+    }
+
+    private final Map<String, Long> started = new HashMap<>();
+    private final List<Chapter> chapters = new ArrayList<>();
+    private boolean failed;
+
+    /** Times are in milliseconds since the epoch. */
+    public synchronized void begin(String name, long time) {
+        started.put(name, time);
+    }
+
+    public synchronized void end(String name, long time, boolean failed) {
+        Long begin = started.remove(name);
+        if (begin == null) return;
+        this.failed |= failed;
+        chapters.add(new Chapter(name, begin, time, failed));
+    }
+
+    public synchronized boolean hasFailures() {
+        return failed;
+    }
+
+    /** Writes the tests in the movie which starts at startTime and ends at endTime. */
+    public synchronized void write(Writer out, long startTime, long endTime) {
+        PrintWriter writer = new PrintWriter(out);
+        writer.println("# test\tstart\tend\tresult");
+        for (Chapter chapter : chapters) {
+            if (chapter.end < startTime || chapter.begin >= endTime) continue;
+            long begin = Math.max(chapter.begin, startTime) - startTime;
+            long end = Math.min(chapter.end, endTime) - startTime;
+            writer.println(chapter.name + "\t" + begin + "\t" + end + "\t" + (chapter.failed ? "failed" : "passed"));
+        }
+        writer.flush();
+    }
+
+    public static File fileFor(File movie) {
+        String name = movie.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(movie.getParentFile(), (dot == -1 ? name : name.substring(0, dot)) + ".chapters");
+    }
+}
@@ -0,0 +1,13 @@
+package uk.co.itstherules;
+
+public enum RecordingScope {
+
+    /** One recording per test. */
+    TEST,
+
+    /** One recording per test class, with a chapter per test. Needs the test class to be annotated. */
+    CLASS,
+
+    /** One recording for all tests in the JVM, with a chapter per test. Stops when the JVM exits. */
+    SUITE
+}
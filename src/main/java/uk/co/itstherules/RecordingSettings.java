@@ -0,0 +1,71 @@
+package uk.co.itstherules;
+
+import ch.randelshofer.screenrecorder.ScreenRecorder;
+
+import java.awt.*;
+import java.io.File;
+
+public final class RecordingSettings {
+
+    private final Rectangle fixedArea;
+    private final boolean browserWindow;
+    private final float minFrameRate;
+    private final float maxFrameRate;
+    private final int keepLastSeconds;
+    private final long keepLastBytes;
+
+    private RecordingSettings(Rectangle fixedArea, boolean browserWindow, float minFrameRate, float maxFrameRate, int keepLastSeconds, long keepLastBytes) {
+        this.fixedArea = fixedArea;
+        this.browserWindow = browserWindow;
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.keepLastSeconds = keepLastSeconds;
+        this.keepLastBytes = keepLastBytes;
+    }
+
+    public static RecordingSettings defaults() {
+        return of(new int[0], false, 2, 24, 0, 0);
+    }
+
+    /**
+     * captureArea is either empty for the whole screen, or x, y, width
+     * and height of the area in screen coordinates.
+     */
+    public static RecordingSettings of(int[] captureArea, boolean browserWindow, float minFrameRate, float maxFrameRate, int keepLastSeconds, long keepLastBytes) {
+        if (captureArea.length != 0 && captureArea.length != 4) {
+            throw new IllegalArgumentException("captureArea must be empty or {x, y, width, height}, but has " + captureArea.length + " values");
+        }
+        if (minFrameRate <= 0 || maxFrameRate < minFrameRate) {
+            throw new IllegalArgumentException("frame rates must satisfy 0 < minFrameRate <= maxFrameRate, but are " + minFrameRate + " and " + maxFrameRate);
+        }
+        if (keepLastSeconds < 0 || keepLastBytes < 0) {
+            throw new IllegalArgumentException("keepLastSeconds and keepLastBytes must not be negative, but are " + keepLastSeconds + " and " + keepLastBytes);
+        }
+        Rectangle fixedArea = captureArea.length == 0 ? null : new Rectangle(captureArea[0], captureArea[1], captureArea[2], captureArea[3]);
+        return new RecordingSettings(fixedArea, browserWindow, minFrameRate, maxFrameRate, keepLastSeconds, keepLastBytes);
+    }
+
+    public TestCastService makeRecorder(File file) {
+        if (browserWindow) {
+            return new BrowserWindowRecorder(file, this);
+        }
+        return makeScreenRecorder(file, fixedArea);
+    }
+
+    /** The fixed capture area, or null for the whole screen. */
+    Rectangle getFixedArea() {
+        return fixedArea;
+    }
+
+    ScreenRecorder makeScreenRecorder(File file, Rectangle captureArea) {
+        ScreenRecorder recorder = new ScreenRecorder(file);
+        recorder.setCaptureArea(captureArea);
+        recorder.setMaxFrameRate(maxFrameRate);
+        recorder.setMinFrameRate(minFrameRate);
+        if (keepLastSeconds > 0 || keepLastBytes > 0) {
+            recorder.setFlightRecorder(keepLastSeconds > 0 ? keepLastSeconds * 1000L : Long.MAX_VALUE, keepLastBytes);
+        }
+        return recorder;
+    }
+
+}
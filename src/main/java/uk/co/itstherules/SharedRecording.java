@@ -0,0 +1,71 @@
+package uk.co.itstherules;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one recording running across several tests, and marks each test as a chapter.
+ */
+public final class SharedRecording implements TestCastService {
+
+    private final TestCastService recorder;
+    private Chapters chapters;
+    private boolean stopped;
+
+    public SharedRecording(TestCastService recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void start() throws Exception {
+        chapters = new Chapters();
+        recorder.start();
+    }
+
+    public void beginTest(String name) {
+        chapters.begin(name, System.currentTimeMillis());
+    }
+
+    public void endTest(String name, boolean failed) {
+        chapters.end(name, System.currentTimeMillis(), failed);
+    }
+
+    public boolean hasFailures() {
+        return chapters.hasFailures();
+    }
+
+    /** Keeps a flight recording if any test failed. */
+    @Override
+    public void stop() throws Exception {
+        stop(hasFailures());
+    }
+
+    /**
+     * Stops the recording once. Later calls, for example from a shutdown hook, do nothing.
+     * Writes the chapters of each movie file which the recorder has kept, relative to the start
+     * of that file.
+     */
+    @Override
+    public synchronized void stop(boolean keepRecording) throws Exception {
+        if (stopped) return;
+        stopped = true;
+        recorder.stop(keepRecording);
+        List<Map.Entry<File, Long>> movies = new ArrayList<>(getMovieStartTimes().entrySet());
+        for (int i = 0; i < movies.size(); i++) {
+            long endTime = i + 1 < movies.size() ? movies.get(i + 1).getValue() : Long.MAX_VALUE;
+            try (Writer out = new FileWriter(Chapters.fileFor(movies.get(i).getKey()))) {
+                chapters.write(out, movies.get(i).getValue(), endTime);
+            }
+        }
+    }
+
+    @Override
+    public Map<File, Long> getMovieStartTimes() {
+        return recorder.getMovieStartTimes();
+    }
+
+}
@@ -1,9 +1,30 @@
 package uk.co.itstherules;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
 public interface TestCastService {
 
     void start() throws Exception;
 
     void stop() throws Exception;
 
+    /**
+     * Stops the service. A service may discard what it has recorded if it
+     * is not worth keeping, for example because the test passed.
+     */
+    default void stop(boolean keepRecording) throws Exception {
+        stop();
+    }
+
+    /**
+     * Returns the movie files which the service has kept, in the order of the recording, each
+     * with the time at which it starts, in milliseconds since the epoch. Known after the service
+     * has been stopped. Empty for services which do not record a movie.
+     */
+    default Map<File, Long> getMovieStartTimes() {
+        return Collections.emptyMap();
+    }
+
 }
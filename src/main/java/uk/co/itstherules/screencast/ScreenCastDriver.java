@@ -4,6 +4,7 @@ import org.openqa.selenium.By;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
+import uk.co.itstherules.BrowserWindow;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -12,6 +13,23 @@ public class ScreenCastDriver extends ChromeDriver {
 
     public ScreenCastDriver(ChromeOptions options) {
         super(options);
+        reportWindow();
+    }
+
+    /** Reports the window on every navigation, so that a driver which is reused by several tests is found by each of their recorders. */
+    @Override
+    public void get(String url) {
+        reportWindow();
+        super.get(url);
+    }
+
+    /** The recording must not break the test, so a window which can not be reported is only logged. */
+    private void reportWindow() {
+        try {
+            BrowserWindow.opened(this);
+        } catch (RuntimeException e) {
+            System.err.println("Could not report the browser window to the recorders: " + e);
+        }
     }
 
     @Override
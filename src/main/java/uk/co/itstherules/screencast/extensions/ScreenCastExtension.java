@@ -1,7 +1,8 @@
 package uk.co.itstherules.screencast.extensions;
 
 import uk.co.itstherules.BaseExtension;
-import uk.co.itstherules.IO;
+import uk.co.itstherules.RecordingScope;
+import uk.co.itstherules.RecordingSettings;
 import uk.co.itstherules.TestCastService;
 import org.junit.jupiter.api.extension.ExtensionContext;
 
@@ -27,9 +28,13 @@ public class ScreenCastExtension extends BaseExtension<ScreenCast> {
     }
 
     @Override
-    public TestCastService makeService(String fileName) {
-        fileName = new IO(getDirectoryName()).makeMovieName(fileName);
-        return new ScreenCastService(fileName);
+    public RecordingScope getScope(ScreenCast annotation) {
+        return annotation.scope();
+    }
+
+    @Override
+    public TestCastService makeService(String fileName, ScreenCast annotation) {
+        return new ScreenCastService(fileName, RecordingSettings.of(annotation.captureArea(), annotation.browserWindow(), annotation.minFrameRate(), annotation.maxFrameRate(), annotation.keepLastSeconds(), annotation.keepLastBytes()));
     }
     @Override
     protected Class<? extends TestCastService> serviceClass() {
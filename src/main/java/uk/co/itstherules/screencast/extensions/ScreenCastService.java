@@ -1,6 +1,6 @@
 package uk.co.itstherules.screencast.extensions;
 
-import ch.randelshofer.screenrecorder.ScreenRecorder;
+import uk.co.itstherules.RecordingSettings;
 import uk.co.itstherules.TestCastService;
 import uk.co.itstherules.screencast.server.NotifierConfiguration;
 import uk.co.itstherules.screencast.server.NotifierServer;
@@ -13,18 +13,33 @@ import java.util.concurrent.Executors;
 public class ScreenCastService implements TestCastService {
 
     private final ExecutorService recorderExecutor;
-    private final ScreenRecorder recorder;
+    private final TestCastService recorder;
     private final ExecutorService popupServerExecutor;
     private final NotifierServer popUpService;
 
     public ScreenCastService(String fileName) {
+        this(fileName, RecordingSettings.defaults());
+    }
+
+    public ScreenCastService(String fileName, RecordingSettings settings) {
 
-        recorder = new ScreenRecorder(new File(fileName));
-        recorderExecutor = Executors.newSingleThreadExecutor();
+        recorder = settings.makeRecorder(new File(fileName));
+        recorderExecutor = Executors.newSingleThreadExecutor(ScreenCastService::newDaemonThread);
 
         popUpService = new NotifierServer(new NotifierConfiguration());
-        popupServerExecutor = Executors.newSingleThreadExecutor();
+        popupServerExecutor = Executors.newSingleThreadExecutor(ScreenCastService::newDaemonThread);
+
+    }
 
+    /**
+     * The services are started on daemon threads, and so are the threads which they start, for example
+     * the dispatcher of the notifier server. A suite recording, which is stopped by a shutdown hook,
+     * then does not keep the JVM from exiting.
+     */
+    private static Thread newDaemonThread(Runnable r) {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
     }
 
     @Override
@@ -35,8 +50,13 @@ public class ScreenCastService implements TestCastService {
 
     @Override
     public void stop() throws IOException {
-        stopService(recorderExecutor, recorder);
-        stopService(popupServerExecutor, popUpService);
+        stop(true);
+    }
+
+    @Override
+    public void stop(boolean keepRecording) throws IOException {
+        stopService(recorderExecutor, recorder, keepRecording);
+        stopService(popupServerExecutor, popUpService, true);
     }
 
     private void startService(ExecutorService executorService, TestCastService server) {
@@ -48,12 +68,12 @@ public class ScreenCastService implements TestCastService {
             }
         });
     }
-    private void stopService(ExecutorService executorService, TestCastService service) {
+    private void stopService(ExecutorService executorService, TestCastService service, boolean keepRecording) {
         if (service == null) {
             return;
         }
         try {
-            service.stop();
+            service.stop(keepRecording);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -1,6 +1,7 @@
 package uk.co.itstherules.testcast.extensions;
 
 import org.junit.jupiter.api.Tag;
+import uk.co.itstherules.RecordingScope;
 import org.junit.jupiter.api.extension.ExtendWith;
 
 import java.lang.annotation.ElementType;
@@ -11,7 +12,34 @@ import java.lang.annotation.Target;
 @Tag("testcast")
 @Retention(RetentionPolicy.RUNTIME)
 @ExtendWith(TestCastExtension.class)
-@Target({ ElementType.METHOD })
+@Target({ ElementType.METHOD, ElementType.TYPE })
 public @interface TestCast  {
     String fileName() default "";
+
+    /** x, y, width and height of the recorded area of the screen. Records the whole screen if empty. */
+    int[] captureArea() default {};
+
+    /**
+     * Records only the window of the browser, which a ScreenCastDriver reports to BrowserWindow. If no
+     * window is reported within a few seconds, the captureArea or the whole screen is recorded instead.
+     */
+    boolean browserWindow() default false;
+
+    /** Frames per second while nothing changes on the screen. */
+    float minFrameRate() default 2;
+
+    /** Frames per second while the screen changes or the mouse moves. */
+    float maxFrameRate() default 24;
+
+    /** If greater 0, only the last seconds are kept in memory, and written only if the test fails. */
+    int keepLastSeconds() default 0;
+
+    /** If greater 0, at most this many bytes of video are kept in memory, and written only if the test fails. */
+    long keepLastBytes() default 0;
+
+    /**
+     * TEST records each test into its own file. CLASS and SUITE keep one recording running, and list the tests in a .chapters file next to it.
+     * In a test class which is annotated with scope CLASS, an annotation on a test method only marks the test as a chapter.
+     */
+    RecordingScope scope() default RecordingScope.TEST;
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package uk.co.itstherules.testcast.extensions;
 
-import ch.randelshofer.screenrecorder.ScreenRecorder;
 import uk.co.itstherules.BaseExtension;
-import uk.co.itstherules.IO;
+import uk.co.itstherules.RecordingScope;
+import uk.co.itstherules.RecordingSettings;
 import uk.co.itstherules.TestCastService;
 import org.junit.jupiter.api.extension.ExtensionContext.Namespace;
 
@@ -30,14 +30,18 @@ public class TestCastExtension extends BaseExtension<TestCast> {
     }
 
     @Override
-    public TestCastService makeService(String fileName) {
-        fileName = new IO(getDirectoryName()).makeMovieName(fileName);
-        return new ScreenRecorder(new File(fileName));
+    public RecordingScope getScope(TestCast annotation) {
+        return annotation.scope();
+    }
+
+    @Override
+    public TestCastService makeService(String fileName, TestCast annotation) {
+        return RecordingSettings.of(annotation.captureArea(), annotation.browserWindow(), annotation.minFrameRate(), annotation.maxFrameRate(), annotation.keepLastSeconds(), annotation.keepLastBytes()).makeRecorder(new File(fileName));
     }
 
     @Override
     protected Class<? extends TestCastService> serviceClass() {
-        return ScreenRecorder.class;
+        return TestCastService.class;
     }
 
 }
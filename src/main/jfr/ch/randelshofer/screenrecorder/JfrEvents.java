@@ -0,0 +1,94 @@
+package ch.randelshofer.screenrecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the screen recorder.
+ * <p>
+ * This class is only compiled by a JDK which has the {@code jdk.jfr} module,
+ * see the {@code jfr} profile of the pom. It is loaded reflectively by
+ * {@link RecorderMetrics}, and only if the JVM supports Java Flight Recorder
+ * events.
+ */
+final class JfrEvents implements RecorderEvents {
+
+    @Name("ch.randelshofer.screenrecorder.ScreenCapture")
+    @Label("Screen Capture")
+    @Category({"TestCast", "Screen Recorder"})
+    static class ScreenCaptureEvent extends Event {
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("ch.randelshofer.screenrecorder.FrameEncode")
+    @Label("Frame Encode")
+    @Category({"TestCast", "Screen Recorder"})
+    static class FrameEncodeEvent extends Event {
+
+        @Label("Encode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long encodeTime;
+        @Label("Codec")
+        String codec;
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Key Frame")
+        boolean keyFrame;
+    }
+
+    @Name("ch.randelshofer.screenrecorder.FrameDrop")
+    @Label("Frame Drop")
+    @Category({"TestCast", "Screen Recorder"})
+    static class FrameDropEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+    }
+
+    JfrEvents() {
+    }
+
+    @Override
+    public void captured(long nanos, int width, int height) {
+        ScreenCaptureEvent event = new ScreenCaptureEvent();
+        if (event.isEnabled()) {
+            event.latency = nanos;
+            event.width = width;
+            event.height = height;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void encoded(long nanos, String codec, int size, boolean keyFrame) {
+        FrameEncodeEvent event = new FrameEncodeEvent();
+        if (event.isEnabled()) {
+            event.encodeTime = nanos;
+            event.codec = codec;
+            event.size = size;
+            event.keyFrame = keyFrame;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void dropped(String stage) {
+        FrameDropEvent event = new FrameDropEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ch.randelshofer.media;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class AbstractVideoCodecTest {
+
+    private static class PixelKeepingCodec extends AbstractVideoCodec {
+        Object previousPixels;
+
+        @Override
+        public void process(Buffer in, Buffer out) {
+            previousPixels = keepPreviousPixels(in, getRGB24(in), previousPixels);
+        }
+    }
+
+    @Test
+    public void copiesBorrowedPixels() {
+        PixelKeepingCodec unit = new PixelKeepingCodec();
+        BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0x123456);
+        Buffer in = new Buffer();
+        in.data = image;
+
+        unit.process(in, new Buffer());
+
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        assertSame(image, in.data);
+        assertNotSame(pixels, unit.previousPixels);
+        assertArrayEquals(pixels, (int[]) unit.previousPixels);
+    }
+
+    @Test
+    public void keepsRelinquishedPixelsAndHandsBackThePreviousFrame() {
+        PixelKeepingCodec unit = new PixelKeepingCodec();
+        BufferedImage first = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        BufferedImage second = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        Buffer in = new Buffer();
+        in.flags = Buffer.FLAG_RELINQUISH;
+
+        in.data = first;
+        unit.process(in, new Buffer());
+        assertNull(in.data);
+        assertSame(((DataBufferInt) first.getRaster().getDataBuffer()).getData(), unit.previousPixels);
+
+        in.data = second;
+        unit.process(in, new Buffer());
+        assertSame(first, in.data);
+        assertSame(((DataBufferInt) second.getRaster().getDataBuffer()).getData(), unit.previousPixels);
+    }
+
+    @Test
+    public void handsBackThePreviousFrameWhenThePixelsAreConverted() {
+        PixelKeepingCodec unit = new PixelKeepingCodec();
+        unit.setOutputFormat(new VideoFormat("raw ", int[].class, 4, 2, 24));
+        BufferedImage first = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        BufferedImage converted = new BufferedImage(4, 2, BufferedImage.TYPE_3BYTE_BGR);
+        converted.setRGB(1, 1, 0x123456);
+        Buffer in = new Buffer();
+        in.flags = Buffer.FLAG_RELINQUISH;
+
+        in.data = first;
+        unit.process(in, new Buffer());
+        assertNull(in.data);
+
+        in.data = converted;
+        unit.process(in, new Buffer());
+        assertSame(first, in.data);
+        assertArrayEquals(converted.getRGB(0, 0, 4, 2, null, 0, 4), (int[]) unit.previousPixels);
+
+        // nothing is kept anymore
+        in.data = converted;
+        unit.process(in, new Buffer());
+        assertSame(converted, in.data);
+    }
+}
@@ -0,0 +1,47 @@
+package ch.randelshofer.media;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ScanlinesTest {
+
+    @Test
+    public void findsTheFirstMismatchInShortAndLongRuns() {
+        for (int length : new int[]{0, 1, 5, 15, 16, 100}) {
+            int[] data = new int[length + 10];
+            int[] prev = new int[length + 10];
+            assertEquals(5 + length, Scanlines.firstMismatch(data, prev, 5, 5 + length));
+            for (int i = 5; i < 5 + length; i++) {
+                data[i] = 1;
+                assertEquals(i, Scanlines.firstMismatch(data, prev, 5, 5 + length));
+                assertEquals(i, Scanlines.firstMismatch(toBytes(data), toBytes(prev), 5, 5 + length));
+                assertEquals(i, Scanlines.firstMismatch(toShorts(data), toShorts(prev), 5, 5 + length));
+                data[i] = 0;
+            }
+        }
+    }
+
+    @Test
+    public void ignoresPixelsOutsideOfTheRange() {
+        byte[] data = {1, 0, 0, 0, 1};
+        byte[] prev = {0, 0, 0, 0, 0};
+        assertEquals(4, Scanlines.firstMismatch(data, prev, 1, 4));
+    }
+
+    private static byte[] toBytes(int[] a) {
+        byte[] b = new byte[a.length];
+        for (int i = 0; i < a.length; i++) {
+            b[i] = (byte) a[i];
+        }
+        return b;
+    }
+
+    private static short[] toShorts(int[] a) {
+        short[] b = new short[a.length];
+        for (int i = 0; i < a.length; i++) {
+            b[i] = (short) a[i];
+        }
+        return b;
+    }
+}
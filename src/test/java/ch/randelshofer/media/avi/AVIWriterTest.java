@@ -0,0 +1,186 @@
+package ch.randelshofer.media.avi;
+
+import ch.randelshofer.media.Codec;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AVIWriterTest {
+
+    @Test
+    public void writesParallelEncodedFramesInFrameOrder() throws Exception {
+        assertArrayEquals(writeMovie(1), writeMovie(4));
+    }
+
+    @Test
+    public void writesAnIndexEntryForEachFrame() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(bytes));
+        writer.addVideoTrack(AVIWriter.VIDEO_SCREEN_CAPTURE, 1, 10, 64, 48, 24, 10);
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 25; i++) {
+            image.setRGB(i, i, 0xffffff);
+            writer.writeFrame(0, image, 1);
+        }
+        writer.close();
+
+        // the idx1 chunk is the last chunk in the file
+        ByteBuffer file = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        int idx1 = file.limit() - 8 - 25 * 16;
+        assertEquals(0x31786469, file.getInt(idx1)); // "idx1"
+        assertEquals(25 * 16, file.getInt(idx1 + 4));
+        int movi = new String(file.array(), "ISO-8859-1").indexOf("movi");
+        for (int i = 0; i < 25; i++) {
+            int entry = idx1 + 8 + i * 16;
+            boolean isSync = i % 10 == 0;
+            assertEquals(isSync ? 0x62643030 : 0x63643030, file.getInt(entry)); // "00db" or "00dc"
+            assertEquals(isSync ? 0x10 : 0, file.getInt(entry + 4));
+            int offset = movi + file.getInt(entry + 8);
+            assertEquals(file.getInt(entry), file.getInt(offset));
+            assertEquals(file.getInt(entry + 12), file.getInt(offset + 4));
+        }
+    }
+
+    @Test
+    public void writesOpenDMLIndexesForEachRiffChunk() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(bytes));
+        writer.setOpenDML(true);
+        writer.addVideoTrack(AVIWriter.VIDEO_SCREEN_CAPTURE, 1, 10, 64, 48, 24, 10);
+        // more samples than a RIFF chunk holds
+        int sampleCount = 300000;
+        byte[] data = new byte[5];
+        for (int i = 0; i < sampleCount; i++) {
+            data[0] = (byte) i;
+            writer.writeSample(0, data, 0, data.length, 1, i % 10 == 0);
+        }
+        writer.close();
+
+        ByteBuffer file = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x46464952, file.getInt(0)); // "RIFF"
+        assertEquals(0x20495641, file.getInt(8)); // "AVI "
+        int avix = 8 + file.getInt(4);
+        assertEquals(0x46464952, file.getInt(avix)); // "RIFF"
+        assertEquals(0x58495641, file.getInt(avix + 8)); // "AVIX"
+        assertEquals(file.limit(), avix + 8 + file.getInt(avix + 4));
+
+        String chars = new String(file.array(), "ISO-8859-1");
+        int indx = chars.indexOf("indx");
+        assertEquals(2, file.getInt(indx + 12)); // nEntriesInUse
+        int indexedCount = 0;
+        for (int i = 0; i < 2; i++) {
+            int ix = (int) file.getLong(indx + 32 + i * 16); // qwOffset
+            assertEquals(0x30307869, file.getInt(ix)); // "ix00"
+            int entryCount = file.getInt(ix + 12);
+            assertEquals(entryCount, file.getInt(indx + 32 + i * 16 + 12)); // dwDuration
+            long base = file.getLong(ix + 20);
+            for (int j = 0; j < entryCount; j++) {
+                int offset = (int) (base + file.getInt(ix + 32 + j * 8));
+                int size = file.getInt(ix + 36 + j * 8);
+                boolean isSync = (indexedCount + j) % 10 == 0;
+                assertEquals(isSync ? 0 : 0x80000000, size & 0x80000000);
+                assertEquals(data.length, size & 0x7fffffff);
+                assertEquals(data.length, file.getInt(offset - 4));
+                assertEquals((byte) (indexedCount + j), file.get(offset));
+            }
+            indexedCount += entryCount;
+        }
+        assertEquals(sampleCount, indexedCount);
+        assertEquals(sampleCount, file.getInt(chars.indexOf("dmlh") + 8)); // dwTotalFrames
+    }
+
+    @Test
+    public void closesTheCodecOfTheVideoTrack() throws Exception {
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(new ByteArrayOutputStream()));
+        writer.addVideoTrack(AVIWriter.VIDEO_ZMBV, 1, 10, 64, 48, 24, 10);
+        writer.writeFrame(0, new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), 1);
+        ZMBVCodec codec = (ZMBVCodec) ((AbstractAVIStream.VideoTrack) writer.tracks.get(0)).codec;
+        assertNotNull(getField(codec, "deflater"));
+
+        writer.close();
+        assertNull(getField(codec, "deflater"));
+    }
+
+    @Test
+    public void closesTheCodecsOfTheEncodeWorkers() throws Exception {
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(new ByteArrayOutputStream()));
+        writer.addVideoTrack(AVIWriter.VIDEO_JPEG, 1, 10, 64, 48, 24, 1);
+        writer.setEncodeThreadCount(0, 4);
+        for (int i = 0; i < 20; i++) {
+            writer.writeFrame(0, new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), 1);
+        }
+        AbstractAVIStream.VideoTrack track = (AbstractAVIStream.VideoTrack) writer.tracks.get(0);
+        List<Codec> codecs = new ArrayList<>(track.encodeCodecs);
+        assertFalse(codecs.isEmpty());
+
+        writer.close();
+        assertTrue(track.encodeExecutor.isTerminated());
+        for (Codec codec : codecs) {
+            assertNull(getField(codec, "writer"));
+        }
+    }
+
+    @Test
+    public void closesThePNGEncoders() throws Exception {
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(new ByteArrayOutputStream()));
+        writer.addVideoTrack(AVIWriter.VIDEO_PNG, 1, 10, 64, 48, 24, 1);
+        writer.setEncodeThreadCount(0, 2);
+        for (int i = 0; i < 8; i++) {
+            writer.writeFrame(0, new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), 1);
+        }
+        AbstractAVIStream.VideoTrack track = (AbstractAVIStream.VideoTrack) writer.tracks.get(0);
+        List<Codec> codecs = new ArrayList<>(track.encodeCodecs);
+        codecs.add(track.codec);
+
+        writer.close();
+        for (Codec codec : codecs) {
+            for (Object band : (Object[]) getField(getField(codec, "encoder"), "bands")) {
+                assertNull(getField(band, "deflater"));
+            }
+        }
+    }
+
+    /** Returns the value of a private field. */
+    static Object getField(Object object, String name) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static byte[] writeMovie(int encodeThreadCount) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(bytes));
+        writer.addVideoTrack(AVIWriter.VIDEO_JPEG, 1, 10, 64, 48, 24, 1);
+        writer.setEncodeThreadCount(0, encodeThreadCount);
+
+        // The same image is reused for all frames
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 20; i++) {
+            g.setColor(new Color(i * 12, 255 - i * 12, 128));
+            g.fillRect(0, 0, 64, 48);
+            g.setColor(Color.BLACK);
+            g.drawString(Integer.toString(i), 8, 24);
+            writer.writeFrame(0, image, 1);
+        }
+        g.dispose();
+        writer.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+package ch.randelshofer.media.avi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures how the encoding time of a 1080p key frame scales with the
+ * number of bands of {@link TechSmithCodec}.
+ * <p>
+ * Usage: {@code java ch.randelshofer.media.avi.TechSmithCodecBenchmark [frames]}
+ */
+public class TechSmithCodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int width = 1920, height = 1080;
+        int[] pixels = createScreen(width, height);
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        double serialTime = 0;
+        for (int bands = 1; bands <= processors * 2; bands *= 2) {
+            TechSmithCodec codec = new TechSmithCodec();
+            codec.setBandCount(bands);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // warm up
+            for (int i = 0; i < frames / 5 + 1; i++) {
+                out.reset();
+                codec.writeKey24(out, pixels, width, height, 0, width);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                out.reset();
+                codec.writeKey24(out, pixels, width, height, 0, width);
+            }
+            double time = (System.nanoTime() - start) / 1e6 / frames;
+            if (bands == 1) {
+                serialTime = time;
+            }
+            System.out.printf("bands=%2d  %7.2f ms/frame  %5.2fx  %8d bytes%n", bands, time, serialTime / time, out.size());
+        }
+    }
+
+    /** Creates an image which looks like a screen with windows and text. */
+    private static int[] createScreen(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int window = (x / 480 + y / 270) % 3;
+                int background = window == 0 ? 0xffffff : window == 1 ? 0xececec : 0x3c3f41;
+                boolean text = (y % 18) < 11 && (x % 480) > 20 && random.nextInt(3) == 0;
+                pixels[y * width + x] = text ? random.nextInt(0x1000000) : background;
+            }
+        }
+        return pixels;
+    }
+}
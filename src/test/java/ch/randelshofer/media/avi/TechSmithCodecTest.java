@@ -0,0 +1,186 @@
+package ch.randelshofer.media.avi;
+
+import ch.randelshofer.media.Buffer;
+import ch.randelshofer.media.VideoFormat;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TechSmithCodecTest {
+
+    @Test
+    public void encodesKeyFramesInBandsIntoOneZlibStream() throws Exception {
+        int width = 200, height = 100;
+        int[] pixels = new int[width * height];
+        Random random = new Random(1);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(4) == 0 ? random.nextInt(0x1000000) : 0xffffff;
+        }
+
+        TechSmithCodec serial = new TechSmithCodec();
+        ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+        serial.writeKey24(serialOut, pixels, width, height, 0, width);
+
+        TechSmithCodec banded = new TechSmithCodec();
+        banded.setBandCount(4);
+        ByteArrayOutputStream bandedOut = new ByteArrayOutputStream();
+        banded.writeKey24(bandedOut, pixels, width, height, 0, width);
+
+        // the inflater verifies the checksum of the zlib stream
+        assertArrayEquals(inflate(serialOut.toByteArray()), inflate(bandedOut.toByteArray()));
+    }
+
+    @Test
+    public void encodesDeltaFramesInBandsWhichDecodeLikeSerialFrames() throws Exception {
+        int width = 200, height = 100;
+        int[] prev = new int[width * height];
+        Random random = new Random(1);
+        for (int i = 0; i < prev.length; i++) {
+            prev[i] = random.nextInt(4) == 0 ? random.nextInt(0x1000000) : 0xffffff;
+        }
+        TechSmithCodec serial = new TechSmithCodec();
+        TechSmithCodec banded = new TechSmithCodec();
+        banded.setBandCount(4);
+
+        // Four bands of 25 scanlines, counted from the bottom. Changes on
+        // both sides of the boundaries of the lowest bands, none in the
+        // third band, and one in the top band.
+        int[][] changedLines = {{24, 25, 49, 50, 80}, {0, 24}, {25, 26}, {99}, {30, 40, 60}, {}};
+        for (int[] lines : changedLines) {
+            int[] data = prev.clone();
+            for (int line : lines) {
+                int row = height - 1 - line;
+                for (int x = random.nextInt(20); x < width; x += 1 + random.nextInt(30)) {
+                    data[row * width + x] = random.nextInt(0x1000000);
+                }
+            }
+
+            ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+            serial.writeDelta24(serialOut, data, prev, width, height, 0, width);
+            ByteArrayOutputStream bandedOut = new ByteArrayOutputStream();
+            banded.writeDelta24(bandedOut, data, prev, width, height, 0, width);
+
+            assertArrayEquals(data, decodeDelta24(serialOut.toByteArray(), prev, width, height));
+            assertArrayEquals(data, decodeDelta24(bandedOut.toByteArray(), prev, width, height));
+            if (lines.length == 0) {
+                // a frame without changes is not compressed
+                assertArrayEquals(new byte[]{0, 1}, bandedOut.toByteArray());
+            }
+            prev = data;
+        }
+    }
+
+    @Test
+    public void adaptsTheCompressionLevelToTheEncodeTimeBudget() {
+        TechSmithCodec slow = createCodec();
+        slow.setEncodeTimeBudget(1);
+        TechSmithCodec fast = createCodec();
+        fast.setEncodeTimeBudget(Long.MAX_VALUE / 4);
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 100; i++) {
+            image.setRGB(i % 64, i % 48, i * 0x010203);
+            for (TechSmithCodec codec : new TechSmithCodec[]{slow, fast}) {
+                Buffer in = new Buffer();
+                in.data = image;
+                codec.process(in, new Buffer());
+            }
+        }
+
+        assertEquals(Deflater.BEST_SPEED, slow.getCompressionLevel());
+        assertEquals(Deflater.BEST_COMPRESSION, fast.getCompressionLevel());
+    }
+
+    @Test
+    public void encodesASceneChangeAsKeyFrame() {
+        TechSmithCodec codec = createCodec();
+        TechSmithCodec withoutDetection = createCodec();
+        withoutDetection.setSceneChangeDetection(false);
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        assertEquals(Buffer.FLAG_KEY_FRAME, encode(codec, image).flags);
+        encode(withoutDetection, image);
+
+        // a new page replaces the blank screen
+        Random random = new Random(1);
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        assertEquals(Buffer.FLAG_KEY_FRAME, encode(codec, image).flags);
+        assertEquals(0, encode(withoutDetection, image).flags);
+
+        image.setRGB(10, 10, 0);
+        assertEquals(0, encode(codec, image).flags);
+    }
+
+    private static Buffer encode(TechSmithCodec codec, BufferedImage image) {
+        Buffer in = new Buffer();
+        in.data = image;
+        Buffer out = new Buffer();
+        codec.process(in, out);
+        return out;
+    }
+
+    private static TechSmithCodec createCodec() {
+        TechSmithCodec codec = new TechSmithCodec();
+        codec.setInputFormat(new VideoFormat(VideoFormat.AVI_TECHSMITH_SCREEN_CAPTURE, BufferedImage.class, 64, 48, 24));
+        codec.setOutputFormat(new VideoFormat(VideoFormat.AVI_TECHSMITH_SCREEN_CAPTURE, byte[].class, 64, 48, 24));
+        return codec;
+    }
+
+    /** Decodes a 24-bit delta frame onto a copy of the previous frame. */
+    private static int[] decodeDelta24(byte[] data, int[] prev, int width, int height) throws Exception {
+        byte[] rle = (data.length == 2) ? data : inflate(data);
+        int[] frame = prev.clone();
+        // Scanlines are counted from the bottom of the image
+        int x = 0, y = 0;
+        for (int p = 0; ; ) {
+            int op = rle[p++] & 0xff;
+            if (op == 0) {
+                int code = rle[p++] & 0xff;
+                if (code == 0) { // end of line
+                    x = 0;
+                    y++;
+                } else if (code == 1) { // end of bitmap
+                    assertEquals(rle.length, p);
+                    return frame;
+                } else if (code == 2) { // skip
+                    x += rle[p++] & 0xff;
+                    y += rle[p++] & 0xff;
+                } else { // literal
+                    for (int i = 0; i < code; i++, p += 3) {
+                        frame[(height - 1 - y) * width + x++] = readPixel24(rle, p);
+                    }
+                }
+            } else { // repeat
+                int v = readPixel24(rle, p);
+                p += 3;
+                for (int i = 0; i < op; i++) {
+                    frame[(height - 1 - y) * width + x++] = v;
+                }
+            }
+        }
+    }
+
+    private static int readPixel24(byte[] b, int p) {
+        return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8) | ((b[p + 2] & 0xff) << 16);
+    }
+
+    private static byte[] inflate(byte[] data) throws Exception {
+        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int count = in.read(buf); count != -1; count = in.read(buf)) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
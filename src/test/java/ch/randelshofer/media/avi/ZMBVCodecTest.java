@@ -0,0 +1,207 @@
+package ch.randelshofer.media.avi;
+
+import ch.randelshofer.media.Buffer;
+import ch.randelshofer.media.VideoFormat;
+import ch.randelshofer.media.color.Colors;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZMBVCodecTest {
+
+    private final static int WIDTH = 96, HEIGHT = 80;
+
+    @Test
+    public void encodesScrolledFramesWithMotionVectors() throws Exception {
+        ZMBVCodec codec = createCodec(24);
+        ZMBVCodec withoutSearch = createCodec(24);
+        withoutSearch.setSearchRange(0);
+        Decoder decoder = new Decoder();
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        int[] page = createPage(HEIGHT + 40);
+
+        Buffer key = encode(codec, image, page, 0);
+        encode(withoutSearch, image);
+        assertEquals(Buffer.FLAG_KEY_FRAME, key.flags);
+        assertArrayEquals(getPixels(image), decoder.decode(key));
+        for (int scroll : new int[]{7, 12, 20, 23, 33}) {
+            Buffer delta = encode(codec, image, page, scroll);
+            assertEquals(0, delta.flags);
+            assertArrayEquals(getPixels(image), decoder.decode(delta));
+            int length = encode(withoutSearch, image).length;
+            assertTrue(delta.length < length / 2, "delta=" + delta.length + ", without search=" + length);
+        }
+    }
+
+    @Test
+    public void encodesIndexedFramesWithPaletteChanges() throws Exception {
+        ZMBVCodec codec = createCodec(8);
+        Decoder decoder = new Decoder();
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, Colors.createMacColors());
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        random.nextBytes(pixels);
+        assertArrayEquals(getPixels(image), decoder.decode(encode(codec, image)));
+
+        byte[] gray = new byte[256];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) i;
+        }
+        BufferedImage grayImage = new BufferedImage(new IndexColorModel(8, 256, gray, gray, gray), image.getRaster(), false, null);
+        pixels[5] ^= 1;
+        assertArrayEquals(getPixels(grayImage), decoder.decode(encode(codec, grayImage)));
+    }
+
+    @Test
+    public void encodesASceneChangeAsKeyFrame() throws Exception {
+        ZMBVCodec codec = createCodec(24);
+        Decoder decoder = new Decoder();
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        decoder.decode(encode(codec, image, createPage(HEIGHT), 0));
+
+        // a photo can not be copied from the previous frame
+        Random random = new Random(1);
+        int[] page = new int[WIDTH * HEIGHT * 2];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = random.nextInt(0x1000000);
+        }
+        Buffer key = encode(codec, image, page, HEIGHT);
+        assertEquals(Buffer.FLAG_KEY_FRAME, key.flags);
+        assertArrayEquals(getPixels(image), decoder.decode(key));
+
+        Buffer delta = encode(codec, image, page, HEIGHT - 7);
+        assertEquals(0, delta.flags);
+        assertArrayEquals(getPixels(image), decoder.decode(delta));
+    }
+
+    private static ZMBVCodec createCodec(int depth) {
+        ZMBVCodec codec = new ZMBVCodec();
+        codec.setInputFormat(new VideoFormat(VideoFormat.AVI_ZMBV, BufferedImage.class, WIDTH, HEIGHT, depth));
+        codec.setOutputFormat(new VideoFormat(VideoFormat.AVI_ZMBV, byte[].class, WIDTH, HEIGHT, depth));
+        return codec;
+    }
+
+    /** Creates a page of random text lines on white. */
+    private static int[] createPage(int height) {
+        Random random = new Random(1);
+        int[] page = new int[WIDTH * height];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = (i / WIDTH) % 10 < 7 && random.nextInt(3) == 0 ? random.nextInt(0x1000000) : 0xffffff;
+        }
+        return page;
+    }
+
+    private static Buffer encode(ZMBVCodec codec, BufferedImage image, int[] page, int scroll) {
+        image.setRGB(0, 0, WIDTH, HEIGHT, page, scroll * WIDTH, WIDTH);
+        return encode(codec, image);
+    }
+
+    private static Buffer encode(ZMBVCodec codec, BufferedImage image) {
+        Buffer in = new Buffer();
+        in.data = image;
+        Buffer out = new Buffer();
+        codec.process(in, out);
+        return out;
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        int[] rgb = image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xffffff;
+        }
+        return rgb;
+    }
+
+    /** A ZMBV decoder for 8-bit and 32-bit frames, which returns RGB pixels. */
+    private static class Decoder {
+
+        private final Inflater inflater = new Inflater();
+        private final int[] palette = new int[256];
+        private int[] frame = new int[WIDTH * HEIGHT];
+        private int format;
+        private int blockWidth, blockHeight;
+
+        int[] decode(Buffer buf) throws Exception {
+            byte[] data = (byte[]) buf.data;
+            int pos = buf.offset;
+            int flags = data[pos++];
+            if ((flags & 1) != 0) {
+                assertEquals(0, data[pos++]);
+                assertEquals(1, data[pos++]);
+                assertEquals(1, data[pos++]);
+                format = data[pos++];
+                blockWidth = data[pos++];
+                blockHeight = data[pos++];
+                inflater.reset();
+            }
+            inflater.setInput(data, pos, buf.offset + buf.length - pos);
+            byte[] work = new byte[768 + WIDTH * HEIGHT * 8];
+            int length = inflater.inflate(work);
+            assertTrue(inflater.needsInput());
+            int bytesPerPixel = format == 4 ? 1 : 4;
+
+            int p = 0;
+            if ((flags & 1) != 0) {
+                if (format == 4) {
+                    for (int i = 0; i < 256; i++, p += 3) {
+                        palette[i] = ((work[p] & 0xff) << 16) | ((work[p + 1] & 0xff) << 8) | (work[p + 2] & 0xff);
+                    }
+                }
+                for (int xy = 0; xy < frame.length; xy++, p += bytesPerPixel) {
+                    frame[xy] = readPixel(work, p, bytesPerPixel);
+                }
+            } else {
+                if ((flags & 2) != 0) {
+                    for (int i = 0; i < 256; i++, p += 3) {
+                        palette[i] ^= ((work[p] & 0xff) << 16) | ((work[p + 1] & 0xff) << 8) | (work[p + 2] & 0xff);
+                    }
+                }
+                int[] prev = frame;
+                frame = new int[prev.length];
+                int blocksX = (WIDTH + blockWidth - 1) / blockWidth;
+                int blocksY = (HEIGHT + blockHeight - 1) / blockHeight;
+                int vectors = p;
+                p += (blocksX * blocksY * 2 + 3) & ~3;
+                int block = 0;
+                for (int y = 0; y < HEIGHT; y += blockHeight) {
+                    for (int x = 0; x < WIDTH; x += blockWidth, block++) {
+                        boolean hasXor = (work[vectors + block * 2] & 1) != 0;
+                        int dx = work[vectors + block * 2] >> 1;
+                        int dy = work[vectors + block * 2 + 1] >> 1;
+                        for (int j = y; j < Math.min(HEIGHT, y + blockHeight); j++) {
+                            for (int i = x; i < Math.min(WIDTH, x + blockWidth); i++) {
+                                frame[j * WIDTH + i] = prev[(j + dy) * WIDTH + i + dx];
+                                if (hasXor) {
+                                    frame[j * WIDTH + i] ^= readPixel(work, p, bytesPerPixel);
+                                    p += bytesPerPixel;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            assertEquals(length, p);
+
+            int[] rgb = new int[frame.length];
+            for (int i = 0; i < rgb.length; i++) {
+                rgb[i] = format == 4 ? palette[frame[i]] : frame[i];
+            }
+            return rgb;
+        }
+
+        private static int readPixel(byte[] work, int p, int bytesPerPixel) {
+            if (bytesPerPixel == 1) {
+                return work[p] & 0xff;
+            }
+            return (work[p] & 0xff) | ((work[p + 1] & 0xff) << 8) | ((work[p + 2] & 0xff) << 16) | ((work[p + 3] & 0xff) << 24);
+        }
+    }
+}
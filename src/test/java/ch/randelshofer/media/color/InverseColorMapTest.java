@@ -0,0 +1,34 @@
+package ch.randelshofer.media.color;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.IndexColorModel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class InverseColorMapTest {
+
+    @Test
+    public void mapsThePaletteColorsToThemselves() {
+        IndexColorModel palette = Colors.createMacColors();
+        InverseColorMap unit = new InverseColorMap(palette);
+        for (int i = 0; i < palette.getMapSize(); i++) {
+            assertEquals(palette.getRGB(i) & 0xffffff, palette.getRGB(unit.lookup(palette.getRGB(i))) & 0xffffff);
+        }
+    }
+
+    @Test
+    public void convertsPixelsWithinTheStrides() {
+        InverseColorMap unit = new InverseColorMap(Colors.createMacColors());
+        int[] src = {0xffffff, 0x000000, 0x123456, 0x000000, 0xff0000, 0x123456};
+        byte[] dst = new byte[8];
+        unit.toIndexed(src, 0, 3, dst, 1, 4, 2, 2, false);
+
+        assertEquals(0, dst[0]);
+        assertEquals(unit.lookup(0xffffff), dst[1] & 0xff);
+        assertEquals(unit.lookup(0x000000), dst[2] & 0xff);
+        assertEquals(unit.lookup(0x000000), dst[5] & 0xff);
+        assertEquals(unit.lookup(0xff0000), dst[6] & 0xff);
+        assertEquals(0, dst[7]);
+    }
+}
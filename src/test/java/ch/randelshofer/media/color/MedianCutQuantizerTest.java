@@ -0,0 +1,40 @@
+package ch.randelshofer.media.color;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MedianCutQuantizerTest {
+
+    @Test
+    public void keepsTheExactColorsOfImagesWithFewColors() {
+        int[] pixels = {0x3366ff, 0x3366ff, 0xfafafa, 0x202124, 0xfafafa, 0x3366ff};
+        MedianCutQuantizer unit = new MedianCutQuantizer(254);
+        unit.addPixels(pixels, 0, 3, 3, 2, 1);
+
+        int[] colors = unit.createPalette();
+        Arrays.sort(colors);
+
+        assertArrayEquals(new int[]{0x202124, 0x3366ff, 0xfafafa}, colors);
+        assertEquals(0, (int) unit.getError());
+    }
+
+    @Test
+    public void reducesImagesWithManyColors() {
+        int[] pixels = new int[256 * 256];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i & 0xff) << 16 | (i >>> 8) << 8 | 0x80;
+        }
+        MedianCutQuantizer unit = new MedianCutQuantizer(16);
+        unit.addPixels(pixels, 0, 256, 256, 256, 1);
+
+        int[] colors = unit.createPalette();
+
+        assertEquals(16, colors.length);
+        assertTrue(unit.getError() < 3 * 32 * 32, "error " + unit.getError());
+    }
+}
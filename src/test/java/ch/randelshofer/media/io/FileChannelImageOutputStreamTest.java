@@ -0,0 +1,81 @@
+package ch.randelshofer.media.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FileChannelImageOutputStreamTest {
+
+    @Test
+    public void writesTheSameDataAsAByteArrayStream() throws Exception {
+        assertWritesSameData(1);
+    }
+
+    @Test
+    public void writesTheSameDataAsynchronously() throws Exception {
+        assertWritesSameData(3);
+    }
+
+    private static void assertWritesSameData(int bufferCount) throws Exception {
+        File file = File.createTempFile("test", ".bin");
+        try {
+            FileChannelImageOutputStream unit = new FileChannelImageOutputStream(file, 64, bufferCount);
+            ByteArrayImageOutputStream expected = new ByteArrayImageOutputStream();
+            Random random = new Random(1);
+            for (int i = 0; i < 2000; i++) {
+                long length = expected.length();
+                switch (random.nextInt(6)) {
+                    case 0: {
+                        // patch a header somewhere before the end
+                        long pos = length == 0 ? 0 : (long) random.nextInt((int) length);
+                        unit.seek(pos);
+                        expected.seek(pos);
+                        break;
+                    }
+                    case 1: {
+                        unit.seek(length);
+                        expected.seek(length);
+                        break;
+                    }
+                    case 2: {
+                        int v = random.nextInt();
+                        unit.writeInt(v);
+                        expected.writeInt(v);
+                        break;
+                    }
+                    case 3: {
+                        int v = random.nextInt(256);
+                        unit.write(v);
+                        expected.write(v);
+                        break;
+                    }
+                    default: {
+                        // small writes, and frames which do not fit into the buffer
+                        byte[] b = new byte[random.nextInt(4) == 0 ? random.nextInt(300) : random.nextInt(20)];
+                        random.nextBytes(b);
+                        unit.write(b);
+                        expected.write(b);
+                        break;
+                    }
+                }
+                assertEquals(expected.getStreamPosition(), unit.getStreamPosition());
+            }
+
+            // read back through the stream, like the web optimization of QuickTimeWriter
+            byte[] read = new byte[(int) expected.length()];
+            unit.seek(0);
+            unit.readFully(read);
+            assertArrayEquals(expected.toByteArray(), read);
+
+            unit.close();
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+}
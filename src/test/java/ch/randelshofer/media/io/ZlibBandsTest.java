@@ -0,0 +1,68 @@
+package ch.randelshofer.media.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ZlibBandsTest {
+
+    @Test
+    public void combinesAdler32Checksums() {
+        byte[] a = "The quick brown fox ".getBytes();
+        byte[] b = "jumps over the lazy dog".getBytes();
+        Adler32 whole = new Adler32();
+        whole.update(a);
+        whole.update(b);
+        Adler32 first = new Adler32();
+        first.update(a);
+        Adler32 second = new Adler32();
+        second.update(b);
+
+        assertEquals(whole.getValue(), ZlibBands.combineAdler32(first.getValue(), second.getValue(), b.length));
+    }
+
+    @Test
+    public void deflatesBandsIntoOneZlibStream() throws Exception {
+        Random random = new Random(7);
+        byte[][] bands = new byte[3][];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = new byte[40000 + i];
+            for (int j = 0; j < bands[i].length; j++) {
+                bands[i][j] = (byte) random.nextInt(4);
+            }
+            expected.write(bands[i]);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZlibBands.writeZlibHeader(out, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        long adler = 1;
+        byte[] buf = new byte[100];
+        for (int i = 0; i < bands.length; i++) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            ZlibBands.deflateBand(deflater, i > 0 ? bands[i - 1] : null, i > 0 ? bands[i - 1].length : 0,
+                    bands[i], bands[i].length, i == bands.length - 1, buf, out);
+            deflater.end();
+            Adler32 checksum = new Adler32();
+            checksum.update(bands[i]);
+            adler = ZlibBands.combineAdler32(adler, checksum.getValue(), bands[i].length);
+        }
+        ZlibBands.writeAdler32(out, adler);
+
+        byte[] inflated = new byte[expected.size()];
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray())))) {
+            in.readFully(inflated);
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(expected.toByteArray(), inflated);
+    }
+}
@@ -0,0 +1,77 @@
+package ch.randelshofer.media.png;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PNGEncoderTest {
+
+    @Test
+    public void encodesImagesWhichImageIOCanRead() throws Exception {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_INDEXED,
+            BufferedImage.TYPE_USHORT_555_RGB};
+        for (int type : types) {
+            BufferedImage image = createImage(type, 70, 50);
+            for (int filter = PNGEncoder.FILTER_NONE; filter <= PNGEncoder.FILTER_ADAPTIVE; filter++) {
+                PNGEncoder unit = new PNGEncoder();
+                unit.setFilter(filter);
+                assertSameImage(image, ImageIO.read(new ByteArrayInputStream(encode(unit, image))));
+            }
+        }
+    }
+
+    @Test
+    public void encodesBandsIntoOneZlibStream() throws Exception {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_RGB, 100, 100);
+        PNGEncoder unit = new PNGEncoder();
+        unit.setBandCount(4);
+
+        // encode twice, so that the reused deflaters are exercised
+        encode(unit, image);
+        assertSameImage(image, ImageIO.read(new ByteArrayInputStream(encode(unit, image))));
+    }
+
+    @Test
+    public void encodesSubImages() throws Exception {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_RGB, 100, 100);
+        BufferedImage subImage = image.getSubimage(10, 20, 30, 40);
+
+        assertSameImage(subImage, ImageIO.read(new ByteArrayInputStream(encode(new PNGEncoder(), subImage))));
+    }
+
+    private static byte[] encode(PNGEncoder unit, BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        unit.write(image, out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage createImage(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // mostly flat areas with some noise, like a screen
+                int rgb = random.nextInt(8) == 0 ? random.nextInt() : (x / 10) * 0x102030;
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}
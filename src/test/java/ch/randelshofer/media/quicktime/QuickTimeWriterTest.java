@@ -0,0 +1,197 @@
+package ch.randelshofer.media.quicktime;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QuickTimeWriterTest {
+
+    @Test
+    public void writesAFragmentEveryFragmentDuration() throws Exception {
+        ByteBuffer file = writeFragmentedMovie(2, 0);
+
+        // 45 frames at 10 fps in fragments of 2 seconds
+        List<Integer> fragments = assertFragmentedMovie(file);
+        assertEquals(3, fragments.size());
+        assertEquals(20, countSamples(file, fragments.get(0)));
+        assertEquals(20, countSamples(file, fragments.get(1)));
+        assertEquals(5, countSamples(file, fragments.get(2)));
+    }
+
+    @Test
+    public void startsEachFragmentWithASyncSample() throws Exception {
+        ByteBuffer file = writeFragmentedMovie(0, 1);
+
+        // a sync sample every 10 frames
+        List<Integer> fragments = assertFragmentedMovie(file);
+        assertEquals(5, fragments.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(10, countSamples(file, fragments.get(i)));
+        }
+        assertEquals(5, countSamples(file, fragments.get(4)));
+    }
+
+    @Test
+    public void writesUniformSamplesWithDefaultsInsteadOfTrackRunEntries() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QuickTimeWriter writer = new QuickTimeWriter(new MemoryCacheImageOutputStream(bytes));
+        writer.setFragmented(true);
+        writer.addVideoTrack("raw ", "None", 10, 16, 16, 24, 1);
+        byte[] data = new byte[5];
+        for (int i = 0; i < 30; i++) {
+            data[0] = (byte) i;
+            writer.writeSample(0, data, 1, true);
+        }
+        writer.close();
+
+        ByteBuffer file = ByteBuffer.wrap(bytes.toByteArray());
+        int moov = file.getInt(0);
+        int moof = moov + file.getInt(moov);
+        int mdat = moof + file.getInt(moof);
+        int traf = findAtom(file, moof + 8, mdat, "traf");
+        int tfhd = findAtom(file, traf + 8, mdat, "tfhd");
+        assertEquals(0x20038, file.getInt(tfhd + 8)); // flags
+        assertEquals(1, file.getInt(tfhd + 16)); // defaultSampleDuration
+        assertEquals(5, file.getInt(tfhd + 20)); // defaultSampleSize
+        int trun = findAtom(file, traf + 8, mdat, "trun");
+        assertEquals(20, file.getInt(trun)); // size
+        assertEquals(20, file.getInt(trun + 12)); // sampleCount
+        int offset = moof + file.getInt(trun + 16);
+        for (int i = 0; i < 20; i++) {
+            assertEquals((byte) i, file.get(offset + i * 5));
+        }
+    }
+
+    @Test
+    public void flushesEachFragmentToTheFile() throws Exception {
+        File file = File.createTempFile("fragmented", ".mov");
+        QuickTimeWriter writer = new QuickTimeWriter(file);
+        try {
+            writer.setFragmented(true);
+            writer.addVideoTrack("raw ", "None", 10, 16, 16, 24, 10);
+            byte[] data = new byte[5];
+            for (int i = 0; i < 45; i++) {
+                data[0] = (byte) i;
+                writer.writeSample(0, data, 1, i % 10 == 0);
+            }
+
+            // the first two fragments can be read before the movie is closed
+            ByteBuffer partial = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            int moof = partial.getInt(0) + partial.getInt(partial.getInt(0));
+            for (int i = 0; i < 2; i++) {
+                assertEquals("moof", getType(partial, moof));
+                int mdat = moof + partial.getInt(moof);
+                assertEquals("mdat", getType(partial, mdat));
+                assertEquals(20, countSamples(partial, moof));
+                moof = mdat + partial.getInt(mdat);
+            }
+            assertEquals(partial.limit(), moof);
+        } finally {
+            writer.close();
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer writeFragmentedMovie(double fragmentDuration, int fragmentSyncSampleCount) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QuickTimeWriter writer = new QuickTimeWriter(new MemoryCacheImageOutputStream(bytes));
+        writer.setFragmented(true);
+        writer.setFragmentDuration(fragmentDuration);
+        writer.setFragmentSyncSampleCount(fragmentSyncSampleCount);
+        writer.addVideoTrack("raw ", "None", 10, 16, 16, 24, 10);
+        byte[] data = new byte[5];
+        for (int i = 0; i < 45; i++) {
+            data[0] = (byte) i;
+            writer.writeSample(0, data, 1, i % 10 == 0);
+        }
+        writer.close();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Checks that the movie consists of ftyp, moov with mvex, and pairs of
+     * moof and mdat atoms, and that the samples of the track runs are in
+     * the mdat atom which follows their moof atom.
+     *
+     * @return the offsets of the moof atoms.
+     */
+    private static List<Integer> assertFragmentedMovie(ByteBuffer file) {
+        assertEquals("ftyp", getType(file, 0));
+        int moov = file.getInt(0);
+        assertEquals("moov", getType(file, moov));
+        assertTrue(findAtom(file, moov + 8, moov + file.getInt(moov), "mvex") != -1);
+
+        List<Integer> fragments = new ArrayList<>();
+        int sample = 0;
+        for (int moof = moov + file.getInt(moov); moof < file.limit(); ) {
+            assertEquals("moof", getType(file, moof));
+            int mdat = moof + file.getInt(moof);
+            assertEquals("mdat", getType(file, mdat));
+            int end = mdat + file.getInt(mdat);
+            fragments.add(moof);
+
+            int mfhd = findAtom(file, moof + 8, mdat, "mfhd");
+            assertEquals(fragments.size(), file.getInt(mfhd + 12)); // sequenceNumber
+            int traf = findAtom(file, moof + 8, mdat, "traf");
+            int tfdt = findAtom(file, traf + 8, mdat, "tfdt");
+            assertEquals(sample, file.getLong(tfdt + 12)); // baseMediaDecodeTime
+            for (int trun = traf + 8; trun < mdat; trun += file.getInt(trun)) {
+                if (!getType(file, trun).equals("trun")) {
+                    continue;
+                }
+                int sampleCount = file.getInt(trun + 12);
+                int offset = moof + file.getInt(trun + 16);
+                for (int i = 0; i < sampleCount; i++, sample++) {
+                    int entry = trun + 20 + i * 12;
+                    assertEquals(1, file.getInt(entry)); // sampleDuration
+                    assertEquals(5, file.getInt(entry + 4)); // sampleSize
+                    assertEquals(sample % 10 == 0 ? 0x2000000 : 0x1010000, file.getInt(entry + 8)); // sampleFlags
+                    assertTrue(offset > mdat && offset + 5 <= end);
+                    assertEquals((byte) sample, file.get(offset));
+                    offset += 5;
+                }
+            }
+            moof = end;
+        }
+        assertEquals(45, sample);
+        return fragments;
+    }
+
+    private static int countSamples(ByteBuffer file, int moof) {
+        int count = 0;
+        int end = moof + file.getInt(moof);
+        int traf = findAtom(file, moof + 8, end, "traf");
+        for (int trun = traf + 8; trun < end; trun += file.getInt(trun)) {
+            if (getType(file, trun).equals("trun")) {
+                count += file.getInt(trun + 12);
+            }
+        }
+        return count;
+    }
+
+    private static int findAtom(ByteBuffer file, int offset, int end, String type) {
+        for (; offset < end; offset += file.getInt(offset)) {
+            if (getType(file, offset).equals(type)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static String getType(ByteBuffer file, int offset) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) file.get(offset + 4 + i);
+        }
+        return new String(type);
+    }
+}
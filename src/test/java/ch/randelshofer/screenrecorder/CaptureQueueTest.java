@@ -0,0 +1,124 @@
+package ch.randelshofer.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaptureQueueTest {
+
+    @Test
+    public void blocksTheCaptureStageUntilTheEncoderHasRoom() throws Exception {
+        CaptureQueue unit = new CaptureQueue(2, BackpressurePolicy.BLOCK);
+        List<CapturedFrame> dropped = new ArrayList<CapturedFrame>();
+        Thread capture = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    unit.put(frame(i), dropped);
+                }
+                unit.putEnd();
+            } catch (InterruptedException ex) {
+                // the test failed
+            }
+        });
+        capture.start();
+
+        // the capture stage waits as long as the encoder does not take frames
+        waitUntilWaiting(capture);
+        assertEquals(2, unit.size());
+
+        // a slow encoder, which takes one frame at a time
+        List<Long> encoded = new ArrayList<Long>();
+        for (CapturedFrame frame = unit.take(); frame != CapturedFrame.END; frame = unit.take()) {
+            encoded.add(frame.getSequenceNumber());
+            waitUntilWaiting(capture);
+        }
+        capture.join();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), encoded);
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void dropsTheOldestFramesWhenTheEncoderFallsBehind() throws Exception {
+        CaptureQueue unit = new CaptureQueue(2, BackpressurePolicy.DROP_OLDEST);
+        List<CapturedFrame> dropped = new ArrayList<CapturedFrame>();
+        List<Long> encoded = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            unit.put(frame(i), dropped);
+            // the encoder takes a frame on every second capture
+            if (i % 2 == 1) {
+                encoded.add(unit.take().getSequenceNumber());
+            }
+        }
+
+        assertEquals(Arrays.asList(0L, 2L, 4L, 6L, 8L), encoded);
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L), getSequenceNumbers(dropped));
+        assertEquals(1, unit.size());
+        assertEquals(9, unit.take().getSequenceNumber());
+        assertFalse(unit.isSkipped(1));
+    }
+
+    @Test
+    public void dropsTheNewestFrameAndSkipsCapturesWhenDegraded() throws Exception {
+        CaptureQueue unit = new CaptureQueue(4, BackpressurePolicy.DEGRADE);
+        List<CapturedFrame> dropped = new ArrayList<CapturedFrame>();
+        for (int i = 0; i < 4; i++) {
+            unit.put(frame(i), dropped);
+        }
+        assertTrue(dropped.isEmpty());
+        assertFalse(unit.isSkipped(1));
+
+        // the encoder is stalled: the newest frames are dropped, and the
+        // capture stride doubles up to its maximum
+        for (int i = 4; i < 10; i++) {
+            unit.put(frame(i), dropped);
+        }
+        assertEquals(Arrays.asList(4L, 5L, 6L, 7L, 8L, 9L), getSequenceNumbers(dropped));
+        assertEquals(16, unit.getCaptureStride());
+        assertTrue(unit.isSkipped(15));
+        assertFalse(unit.isSkipped(32));
+
+        // the encoder catches up: the stride halves with each frame which
+        // finds the queue nearly empty
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, unit.take().getSequenceNumber());
+        }
+        unit.put(frame(10), dropped);
+        assertEquals(8, unit.getCaptureStride());
+        unit.put(frame(11), dropped);
+        assertEquals(8, unit.getCaptureStride());
+        unit.take();
+        unit.take();
+        for (int i = 12; i < 15; i++) {
+            unit.put(frame(i), dropped);
+            unit.take();
+        }
+        assertEquals(1, unit.getCaptureStride());
+        assertFalse(unit.isSkipped(15));
+        assertEquals(6, dropped.size());
+    }
+
+    private static CapturedFrame frame(long sequenceNumber) {
+        return new CapturedFrame(null, sequenceNumber * 100, sequenceNumber, null);
+    }
+
+    private static List<Long> getSequenceNumbers(List<CapturedFrame> frames) {
+        List<Long> sequenceNumbers = new ArrayList<Long>();
+        for (CapturedFrame frame : frames) {
+            sequenceNumbers.add(frame.getSequenceNumber());
+        }
+        return sequenceNumbers;
+    }
+
+    /** Waits until the thread blocks on the full queue, or has terminated. */
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TERMINATED) {
+            Thread.sleep(1);
+        }
+    }
+}
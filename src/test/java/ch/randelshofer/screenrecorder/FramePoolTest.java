@@ -0,0 +1,89 @@
+package ch.randelshofer.screenrecorder;
+
+import ch.randelshofer.media.color.Colors;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FramePoolTest {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final long BYTES_PER_FRAME_BUDGET = 1024;
+
+    @Test
+    public void reusesFramesInSteadyState() {
+        FramePool unit = new FramePool(WIDTH, HEIGHT, ColorDepth.MILLIONS, null, 4);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        BufferedImage cursor = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < 100; i++) {
+            BufferedImage first = unit.capture(screen, cursor, i, i);
+            BufferedImage second = unit.capture(screen, cursor, i, i);
+            unit.release(first);
+            unit.release(second);
+        }
+        assertEquals(2, unit.getCreatedCount());
+    }
+
+    @Test
+    public void capturesFramesWithinAllocationBudget() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        FramePool unit = new FramePool(WIDTH, HEIGHT, ColorDepth.MILLIONS, null, 4);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        BufferedImage cursor = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+
+        // warm up
+        for (int i = 0; i < 50; i++) {
+            unit.release(unit.capture(screen, cursor, i, i));
+        }
+
+        int frames = 200;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            unit.release(unit.capture(screen, cursor, i, i));
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated / frames < BYTES_PER_FRAME_BUDGET, "allocated " + allocated / frames + " bytes per frame");
+    }
+
+    @Test
+    public void reducesCapturesToThePalette() {
+        IndexColorModel palette = Colors.createMacColors();
+        FramePool unit = new FramePool(64, 32, ColorDepth.DOZENS, palette, 4);
+        BufferedImage screen = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        screen.setRGB(3, 5, 0xff0000);
+        screen.setRGB(4, 5, 0x3366ff);
+
+        BufferedImage frame = unit.capture(screen, null, 0, 0);
+
+        assertEquals(0x000000, frame.getRGB(0, 0) & 0xffffff);
+        assertEquals(0xff0000, frame.getRGB(3, 5) & 0xffffff);
+        assertEquals(0x3366ff, frame.getRGB(4, 5) & 0xffffff);
+    }
+
+    @Test
+    public void adaptsThePaletteToTheScreen() {
+        IndexColorModel palette = Colors.createMacColors();
+        FramePool unit = new FramePool(64, 32, ColorDepth.DOZENS, palette, 4);
+        unit.setPaletteCheckInterval(1);
+        BufferedImage screen = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                screen.setRGB(x, y, x < 32 ? 0xfafafa : 0x1a73e8);
+            }
+        }
+
+        BufferedImage frame = unit.capture(screen, null, 0, 0);
+
+        assertTrue(unit.getPalette() != palette);
+        assertEquals(unit.getPalette(), frame.getColorModel());
+        assertEquals(0xfafafa, frame.getRGB(0, 0) & 0xffffff);
+        assertEquals(0x1a73e8, frame.getRGB(63, 31) & 0xffffff);
+    }
+}
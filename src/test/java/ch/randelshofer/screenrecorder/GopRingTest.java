@@ -0,0 +1,66 @@
+package ch.randelshofer.screenrecorder;
+
+import ch.randelshofer.media.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GopRingTest {
+
+    @Test
+    public void evictsWholeGroupsOfPicturesByDuration() {
+        GopRing unit = new GopRing(1000, 0);
+        List<Buffer> evicted = new ArrayList<Buffer>();
+        for (int i = 0; i < 50; i++) {
+            unit.add(frame(i % 4 == 0, 100, 10), evicted);
+        }
+
+        assertEquals(1000, unit.getDuration());
+        assertEquals(40, evicted.size());
+        assertTrue(isKeyFrame(unit.iterator().next()));
+    }
+
+    @Test
+    public void evictsWholeGroupsOfPicturesBySize() {
+        GopRing unit = new GopRing(Long.MAX_VALUE, 100);
+        List<Buffer> evicted = new ArrayList<Buffer>();
+        for (int i = 0; i < 50; i++) {
+            unit.add(frame(i % 4 == 0, 100, 10), evicted);
+        }
+
+        assertEquals(100, unit.getSize());
+        assertTrue(isKeyFrame(unit.iterator().next()));
+    }
+
+    @Test
+    public void dropsDeltaFramesBeforeTheFirstKeyFrame() {
+        GopRing unit = new GopRing(1000, 0);
+        List<Buffer> evicted = new ArrayList<Buffer>();
+        unit.add(frame(false, 100, 10), evicted);
+        unit.add(frame(true, 100, 10), evicted);
+        unit.add(frame(false, 100, 10), evicted);
+
+        assertEquals(1, evicted.size());
+        Iterator<Buffer> frames = unit.iterator();
+        assertTrue(isKeyFrame(frames.next()));
+        frames.next();
+        assertTrue(!frames.hasNext());
+    }
+
+    private static Buffer frame(boolean keyFrame, long duration, int length) {
+        Buffer buf = new Buffer();
+        buf.flags = keyFrame ? Buffer.FLAG_KEY_FRAME : 0;
+        buf.duration = duration;
+        buf.length = length;
+        return buf;
+    }
+
+    private static boolean isKeyFrame(Buffer buf) {
+        return (buf.flags & Buffer.FLAG_KEY_FRAME) != 0;
+    }
+}
@@ -0,0 +1,26 @@
+package ch.randelshofer.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void recordsIntoPowerOfTwoBuckets() {
+        LatencyHistogram unit = new LatencyHistogram();
+        unit.record(500);
+        unit.record(1000);
+        unit.record(3000);
+        unit.record(4000);
+
+        long[] buckets = unit.getBuckets();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[3]);
+        assertEquals(4, unit.getCount());
+        assertEquals(2, unit.getMean());
+        assertEquals(4, unit.getMax());
+    }
+}
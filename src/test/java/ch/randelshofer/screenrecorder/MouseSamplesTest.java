@@ -0,0 +1,47 @@
+package ch.randelshofer.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MouseSamplesTest {
+
+    @Test
+    public void interpolatesBetweenSamples() {
+        MouseSamples unit = new MouseSamples(4);
+        Point p = new Point();
+
+        assertFalse(unit.getLocation(0, p));
+
+        unit.add(100, 10, 20);
+        unit.add(110, 30, 0);
+        assertTrue(unit.getLocation(105, p));
+        assertEquals(new Point(20, 10), p);
+
+        // without a later sample, the most recent sample is used
+        assertTrue(unit.getLocation(200, p));
+        assertEquals(new Point(30, 0), p);
+    }
+
+    @Test
+    public void discardsSamplesWhenFull() {
+        MouseSamples unit = new MouseSamples(4);
+        Point p = new Point();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(unit.add(i, i, i));
+        }
+        assertFalse(unit.add(4, 4, 4));
+
+        assertTrue(unit.getLocation(10, p));
+        assertEquals(new Point(3, 3), p);
+        for (int i = 5; i < 9; i++) {
+            assertTrue(unit.add(i, i, i));
+        }
+        assertTrue(unit.getLocation(10, p));
+        assertEquals(new Point(8, 8), p);
+    }
+}
@@ -0,0 +1,55 @@
+package ch.randelshofer.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SegmentManifestTest {
+
+    @Test
+    public void numbersTheSegmentFiles() {
+        File file = new File("target", "movie.avi");
+
+        assertEquals(file, SegmentManifest.getSegmentFile(file, 0));
+        assertEquals(new File("target", "movie-001.avi"), SegmentManifest.getSegmentFile(file, 1));
+        assertEquals(new File("target", "movie-012.avi"), SegmentManifest.getSegmentFile(file, 12));
+        assertEquals(new File("target", "movie.segments"), SegmentManifest.getManifestFile(file));
+    }
+
+    @Test
+    public void listsStartTimesAndDurations() throws Exception {
+        File file = new File("movie.mov");
+        SegmentManifest unit = new SegmentManifest();
+        unit.add(SegmentManifest.getSegmentFile(file, 0), 10000);
+        unit.add(SegmentManifest.getSegmentFile(file, 1), 13600);
+        unit.add(SegmentManifest.getSegmentFile(file, 2), 17200);
+
+        StringWriter out = new StringWriter();
+        unit.write(out, 18000);
+
+        String nl = System.lineSeparator();
+        assertEquals("# file\tstart\tduration" + nl
+                + "movie.mov\t0\t3600" + nl
+                + "movie-001.mov\t3600\t3600" + nl
+                + "movie-002.mov\t7200\t800" + nl, out.toString());
+    }
+
+    @Test
+    public void listsTheSegmentFilesWithTheirStartTimes() {
+        File file = new File("movie.avi");
+        SegmentManifest unit = new SegmentManifest();
+        unit.add(SegmentManifest.getSegmentFile(file, 0), 10000);
+        unit.add(SegmentManifest.getSegmentFile(file, 1), 13600);
+        unit.setStartTime(0, 10040);
+
+        Map<File, Long> expected = new LinkedHashMap<File, Long>();
+        expected.put(file, 10040L);
+        expected.put(new File("movie-001.avi"), 13600L);
+        assertEquals(expected, unit.getStartTimes());
+    }
+}
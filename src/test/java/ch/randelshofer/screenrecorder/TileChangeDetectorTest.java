@@ -0,0 +1,31 @@
+package ch.randelshofer.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TileChangeDetectorTest {
+
+    @Test
+    public void reportsOnlyChangedTiles() {
+        TileChangeDetector unit = new TileChangeDetector(100, 70, 32);
+        BufferedImage screen = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+
+        assertNull(unit.detect(screen));
+        assertEquals(0, unit.detect(screen).length);
+
+        screen.setRGB(40, 10, 0xff0000);
+        screen.setRGB(70, 10, 0x00ff00);
+        screen.setRGB(99, 69, 0x0000ff);
+        Rectangle[] damage = unit.detect(screen);
+
+        assertEquals(2, damage.length);
+        assertEquals(new Rectangle(32, 0, 64, 32), damage[0]);
+        assertEquals(new Rectangle(96, 64, 4, 6), damage[1]);
+        assertEquals(0, unit.detect(screen).length);
+    }
+}
@@ -0,0 +1,92 @@
+package uk.co.itstherules;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChaptersTest {
+
+    @Test
+    public void canListTestsRelativeToTheStartOfTheMovie() {
+        Chapters unit = new Chapters();
+        unit.begin("fred", 1500);
+        unit.end("fred", 2500, false);
+        unit.begin("wilma", 2600);
+        unit.end("wilma", 4000, true);
+        StringWriter out = new StringWriter();
+        unit.write(out, 1000, Long.MAX_VALUE);
+        String nl = System.lineSeparator();
+        assertEquals("# test\tstart\tend\tresult" + nl + "fred\t500\t1500\tpassed" + nl + "wilma\t1600\t3000\tfailed" + nl, out.toString());
+        assertTrue(unit.hasFailures());
+    }
+
+    @Test
+    public void canListTestsWhichOverlap() {
+        Chapters unit = new Chapters();
+        unit.begin("fred", 100);
+        unit.begin("wilma", 200);
+        unit.end("wilma", 300, false);
+        unit.end("fred", 400, false);
+        StringWriter out = new StringWriter();
+        unit.write(out, 0, Long.MAX_VALUE);
+        String nl = System.lineSeparator();
+        assertEquals("# test\tstart\tend\tresult" + nl + "wilma\t200\t300\tpassed" + nl + "fred\t100\t400\tpassed" + nl, out.toString());
+        assertFalse(unit.hasFailures());
+    }
+
+    @Test
+    public void ignoresTestsWhichHaveNotBegun() {
+        Chapters unit = new Chapters();
+        unit.end("fred", 100, true);
+        unit.begin("wilma", 200);
+        unit.end("wilma", 300, false);
+        unit.end("wilma", 400, true);
+        StringWriter out = new StringWriter();
+        unit.write(out, 0, Long.MAX_VALUE);
+        String nl = System.lineSeparator();
+        assertEquals("# test\tstart\tend\tresult" + nl + "wilma\t200\t300\tpassed" + nl, out.toString());
+        assertFalse(unit.hasFailures());
+    }
+
+    @Test
+    public void canListATestWhichRunsTwice() {
+        Chapters unit = new Chapters();
+        unit.begin("fred", 100);
+        unit.end("fred", 200, true);
+        unit.begin("fred", 300);
+        unit.end("fred", 400, false);
+        StringWriter out = new StringWriter();
+        unit.write(out, 0, Long.MAX_VALUE);
+        String nl = System.lineSeparator();
+        assertEquals("# test\tstart\tend\tresult" + nl + "fred\t100\t200\tfailed" + nl + "fred\t300\t400\tpassed" + nl, out.toString());
+        assertTrue(unit.hasFailures());
+    }
+
+    @Test
+    public void canListOnlyTheTestsInTheMovieAndCutThemOffAtItsEnds() {
+        Chapters unit = new Chapters();
+        unit.begin("fred", 100);
+        unit.end("fred", 200, false);
+        unit.begin("wilma", 300);
+        unit.end("wilma", 600, true);
+        unit.begin("barney", 700);
+        unit.end("barney", 800, false);
+        unit.begin("betty", 900);
+        unit.end("betty", 1000, false);
+        StringWriter out = new StringWriter();
+        unit.write(out, 500, 750);
+        String nl = System.lineSeparator();
+        assertEquals("# test\tstart\tend\tresult" + nl + "wilma\t0\t100\tfailed" + nl + "barney\t200\t250\tpassed" + nl, out.toString());
+    }
+
+    @Test
+    public void canMakeChaptersFileNextToTheMovie() {
+        assertEquals(new File("./reports", "fred.chapters"), Chapters.fileFor(new File("./reports/fred.avi")));
+    }
+
+}
@@ -0,0 +1,167 @@
+package uk.co.itstherules;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedRecordingTest {
+
+    @Test
+    public void keepsTheRecordingIfAnyTestFailed() throws Exception {
+        FakeRecorder recorder = new FakeRecorder();
+        File movie = File.createTempFile("suite", ".avi");
+        SharedRecording unit = new SharedRecording(recorder);
+        recorder.movies.put(movie, System.currentTimeMillis());
+        try {
+            unit.start();
+            unit.beginTest("fred");
+            unit.endTest("fred", false);
+            unit.beginTest("wilma");
+            unit.endTest("wilma", true);
+            unit.beginTest("barney");
+            unit.endTest("barney", false);
+            unit.stop();
+
+            assertTrue(unit.hasFailures());
+            assertEquals(1, recorder.startCount);
+            assertEquals(1, recorder.stops.size());
+            assertTrue(recorder.stops.get(0));
+            List<String> lines = Files.readAllLines(Chapters.fileFor(movie).toPath());
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(2).startsWith("wilma\t"));
+            assertTrue(lines.get(2).endsWith("\tfailed"));
+        } finally {
+            movie.delete();
+            Chapters.fileFor(movie).delete();
+        }
+    }
+
+    @Test
+    public void discardsTheRecordingIfAllTestsPassed() throws Exception {
+        FakeRecorder recorder = new FakeRecorder();
+        File movie = File.createTempFile("suite", ".avi");
+        SharedRecording unit = new SharedRecording(recorder);
+        try {
+            unit.start();
+            unit.beginTest("fred");
+            unit.endTest("fred", false);
+            unit.stop();
+
+            assertFalse(unit.hasFailures());
+            assertEquals(1, recorder.stops.size());
+            assertFalse(recorder.stops.get(0));
+        } finally {
+            movie.delete();
+            Chapters.fileFor(movie).delete();
+        }
+    }
+
+    @Test
+    public void stopsTheRecorderOnlyOnce() throws Exception {
+        FakeRecorder recorder = new FakeRecorder();
+        File movie = File.createTempFile("suite", ".avi");
+        SharedRecording unit = new SharedRecording(recorder);
+        try {
+            unit.start();
+            unit.beginTest("fred");
+            unit.endTest("fred", true);
+            unit.stop(true);
+            // a shutdown hook may stop the recording again
+            unit.stop(false);
+
+            assertEquals(1, recorder.stops.size());
+            assertTrue(recorder.stops.get(0));
+        } finally {
+            movie.delete();
+            Chapters.fileFor(movie).delete();
+        }
+    }
+
+    @Test
+    public void writesTheChaptersOfEachSegmentRelativeToItsStart() throws Exception {
+        FakeRecorder recorder = new FakeRecorder();
+        File movie = File.createTempFile("suite", ".avi");
+        File segment = new File(movie.getParentFile(), movie.getName().replace(".avi", "-001.avi"));
+        SharedRecording unit = new SharedRecording(recorder);
+        try {
+            recorder.movies.put(movie, System.currentTimeMillis());
+            unit.start();
+            unit.beginTest("fred");
+            unit.endTest("fred", false);
+            Thread.sleep(20);
+            long rollover = System.currentTimeMillis();
+            recorder.movies.put(segment, rollover);
+            Thread.sleep(20);
+            unit.beginTest("wilma");
+            unit.endTest("wilma", true);
+            unit.stop();
+
+            List<String> lines = Files.readAllLines(Chapters.fileFor(movie).toPath());
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(1).startsWith("fred\t"));
+            List<String> segmentLines = Files.readAllLines(Chapters.fileFor(segment).toPath());
+            assertEquals(2, segmentLines.size());
+            String[] wilma = segmentLines.get(1).split("\t");
+            assertEquals("wilma", wilma[0]);
+            assertTrue(Long.parseLong(wilma[1]) >= 20);
+            assertTrue(Long.parseLong(wilma[1]) < System.currentTimeMillis() - rollover + 1);
+        } finally {
+            movie.delete();
+            Chapters.fileFor(movie).delete();
+            Chapters.fileFor(segment).delete();
+        }
+    }
+
+    @Test
+    public void writesNoChaptersIfNoMovieHasBeenKept() throws Exception {
+        FakeRecorder recorder = new FakeRecorder();
+        File movie = File.createTempFile("suite", ".avi");
+        SharedRecording unit = new SharedRecording(recorder);
+        try {
+            unit.start();
+            unit.beginTest("fred");
+            unit.endTest("fred", false);
+            unit.stop();
+
+            assertFalse(Chapters.fileFor(movie).exists());
+        } finally {
+            movie.delete();
+        }
+    }
+
+    private static class FakeRecorder implements TestCastService {
+
+        int startCount;
+        final List<Boolean> stops = new ArrayList<>();
+        final Map<File, Long> movies = new LinkedHashMap<>();
+
+        @Override
+        public void start() {
+            startCount++;
+        }
+
+        @Override
+        public void stop() {
+            stop(true);
+        }
+
+        @Override
+        public void stop(boolean keepRecording) {
+            stops.add(keepRecording);
+        }
+
+        @Override
+        public Map<File, Long> getMovieStartTimes() {
+            return movies;
+        }
+    }
+}